@@ -0,0 +1,131 @@
+/*
+ * MIT License
+ * 
+ * Copyright (c) 2016 Michael Westbrook
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.brightpi.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.brightpi.BrightPiLED;
+
+/**
+ * Several threads driving one BrightPi at once. Run with <code>-prof gc</code> to report the allocation rate.
+ * 
+ * @author Mike Westbrook
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ContentionBenchmark
+{
+	/**
+	 * Counter used to alternate on and off.
+	 */
+	private int my_step;
+
+	/**
+	 * Four threads changing the same LED.
+	 */
+	@Benchmark
+	@Threads(4)
+	public void sameLED(final SimulatedBus the_bus, final Ramp the_ramp)
+	{
+		the_bus.brightpi.setLEDBrightness(BrightPiLED.W1, the_ramp.nextLevel());
+	}
+
+	/**
+	 * Four threads each changing a different LED.
+	 */
+	@Benchmark
+	@Group("separateLEDs")
+	@GroupThreads(1)
+	public void white1(final SimulatedBus the_bus, final Ramp the_ramp)
+	{
+		the_bus.brightpi.setLEDBrightness(BrightPiLED.W1, the_ramp.nextLevel());
+	}
+
+	@Benchmark
+	@Group("separateLEDs")
+	@GroupThreads(1)
+	public void white2(final SimulatedBus the_bus, final Ramp the_ramp)
+	{
+		the_bus.brightpi.setLEDBrightness(BrightPiLED.W2, the_ramp.nextLevel());
+	}
+
+	@Benchmark
+	@Group("separateLEDs")
+	@GroupThreads(1)
+	public void infrared1(final SimulatedBus the_bus, final Ramp the_ramp)
+	{
+		the_bus.brightpi.setLEDBrightness(BrightPiLED.IR1, the_ramp.nextLevel());
+	}
+
+	@Benchmark
+	@Group("separateLEDs")
+	@GroupThreads(1)
+	public void infrared2(final SimulatedBus the_bus, final Ramp the_ramp)
+	{
+		the_bus.brightpi.setLEDBrightness(BrightPiLED.IR2, the_ramp.nextLevel());
+	}
+
+	/**
+	 * Control traffic mixed with a thread toggling the light.
+	 */
+	@Benchmark
+	@Group("toggleWhileDimming")
+	@GroupThreads(3)
+	public void dim(final SimulatedBus the_bus, final Ramp the_ramp)
+	{
+		the_bus.brightpi.setLEDBrightness(the_ramp.nextLevel());
+	}
+
+	@Benchmark
+	@Group("toggleWhileDimming")
+	@GroupThreads(1)
+	public void toggle(final SimulatedBus the_bus)
+	{
+		if ((my_step++ & 1) == 0)
+		{
+			the_bus.brightpi.on();
+		} else
+		{
+			the_bus.brightpi.off();
+		}
+	}
+}
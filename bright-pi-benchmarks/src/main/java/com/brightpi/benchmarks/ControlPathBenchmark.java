@@ -0,0 +1,130 @@
+/*
+ * MIT License
+ * 
+ * Copyright (c) 2016 Michael Westbrook
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.brightpi.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.brightpi.BrightPiBrightness;
+import com.brightpi.BrightPiLED;
+import com.brightpi.BrightPiMode;
+
+/**
+ * Single-threaded throughput of the BrightPi control path. The "changing" benchmarks alternate values so every call
+ * reaches the bus, the "repeated" benchmarks set values that are already set. Run with <code>-prof gc</code> to report
+ * the allocation rate.
+ * 
+ * @author Mike Westbrook
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ControlPathBenchmark
+{
+	private static final BrightPiMode[] MODES = {BrightPiMode.WHITE, BrightPiMode.IR, BrightPiMode.MIXED};
+
+	/**
+	 * Length of each fade in microseconds.
+	 */
+	private static final long FADE_MICROS = 1000;
+
+	/**
+	 * Counter used to pick the next mode and fade direction.
+	 */
+	private int my_step;
+
+	@Benchmark
+	public void setLEDBrightnessChanging(final SimulatedBus the_bus, final Ramp the_ramp)
+	{
+		the_bus.brightpi.setLEDBrightness(BrightPiLED.W1, the_ramp.nextLevel());
+	}
+
+	@Benchmark
+	public void setLEDBrightnessRepeated(final SimulatedBus the_bus)
+	{
+		the_bus.brightpi.setLEDBrightness(BrightPiLED.W1, BrightPiBrightness.LED_MED);
+	}
+
+	@Benchmark
+	public void setAllLEDBrightnessChanging(final SimulatedBus the_bus, final Ramp the_ramp)
+	{
+		the_bus.brightpi.setLEDBrightness(the_ramp.nextLevel());
+	}
+
+	@Benchmark
+	public void setAllLEDBrightnessRepeated(final SimulatedBus the_bus)
+	{
+		the_bus.brightpi.setLEDBrightness(BrightPiBrightness.LED_MED);
+	}
+
+	@Benchmark
+	public void setModeChanging(final SimulatedBus the_bus)
+	{
+		the_bus.brightpi.on();
+		the_bus.brightpi.setMode(MODES[my_step++ % MODES.length]);
+	}
+
+	@Benchmark
+	public void onOff(final SimulatedBus the_bus)
+	{
+		the_bus.brightpi.on();
+		the_bus.brightpi.off();
+	}
+
+	@Benchmark
+	public void clear(final SimulatedBus the_bus, final Ramp the_ramp)
+	{
+		the_bus.brightpi.setLEDBrightness(the_ramp.nextLevel());
+		the_bus.brightpi.clear();
+	}
+
+	/**
+	 * A whole fade across the brightness range, alternately up and down, lasting {@link #FADE_MICROS}. The average time
+	 * above the duration is the cost of stepping on deadlines and parking between steps, and grows with the bus
+	 * latency as steps that fall due while the bus is busy are dropped.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void fade(final SimulatedBus the_bus)
+	{
+		final boolean up = (my_step++ & 1) == 0;
+		final byte low = BrightPiBrightness.LED_MIN;
+		final byte high = BrightPiBrightness.LED_MAX;
+		the_bus.brightpi.fade(BrightPiLED.W2, up ? low : high, up ? high : low, FADE_MICROS, TimeUnit.MICROSECONDS);
+	}
+}
@@ -0,0 +1,56 @@
+/*
+ * MIT License
+ * 
+ * Copyright (c) 2016 Michael Westbrook
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.brightpi.benchmarks;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import com.brightpi.BrightPiBrightness;
+
+/**
+ * Brightness values for a benchmark thread, rising from the minimum to the maximum and falling back, so consecutive
+ * values always differ and every change reaches the bus.
+ * 
+ * @author Mike Westbrook
+ *
+ */
+@State(Scope.Thread)
+public class Ramp
+{
+	private static final int RANGE = BrightPiBrightness.LED_MAX - BrightPiBrightness.LED_MIN;
+
+	/**
+	 * Position on the ramp.
+	 */
+	private int my_step;
+
+	/**
+	 * @return The next level of the ramp.
+	 */
+	public byte nextLevel()
+	{
+		final int position = my_step++ % (2 * RANGE);
+		return (byte) (BrightPiBrightness.LED_MIN + (position < RANGE ? position : 2 * RANGE - position));
+	}
+}
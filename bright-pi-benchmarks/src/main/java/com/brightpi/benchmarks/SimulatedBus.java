@@ -0,0 +1,70 @@
+/*
+ * MIT License
+ * 
+ * Copyright (c) 2016 Michael Westbrook
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.brightpi.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.brightpi.BrightPi;
+import com.brightpi.SimulatedBrightPi;
+
+/**
+ * A BrightPi on a simulated bus shared by all benchmark threads. Select the bus latency with
+ * <code>-p latency=...</code> (microseconds per transaction).
+ * 
+ * @author Mike Westbrook
+ *
+ */
+@State(Scope.Benchmark)
+public class SimulatedBus
+{
+	/**
+	 * Latency of each bus transaction in microseconds.
+	 */
+	@Param({"0", "200"})
+	public long latency;
+
+	/**
+	 * Random jitter added to each bus transaction in microseconds.
+	 */
+	@Param({"0"})
+	public long jitter;
+
+	public SimulatedBrightPi simulator;
+
+	public BrightPi brightpi;
+
+	@Setup
+	public void setup()
+	{
+		simulator = new SimulatedBrightPi();
+		simulator.setLatency(latency, TimeUnit.MICROSECONDS);
+		simulator.setJitter(jitter, TimeUnit.MICROSECONDS);
+		brightpi = new BrightPi(simulator);
+	}
+}
@@ -0,0 +1,408 @@
+/*
+ * MIT License
+ * 
+ * Copyright (c) 2016 Michael Westbrook
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.brightpi.server;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import com.brightpi.BrightPiGain;
+import com.brightpi.BrightPiLED;
+import com.brightpi.BrightPiMode;
+
+/**
+ * Client of a {@link BrightPiServer}. Requests may be pipelined: {@link #send(Batch)} returns as soon as the request
+ * is written and {@link #receive()} reads the acknowledgements in order. Over UDP, {@link #call(Batch)} sends a
+ * request again until it is acknowledged, which the server's sequencing makes safe.
+ * <p>
+ * A client is meant for one thread at a time.
+ * 
+ * @author Mike Westbrook
+ *
+ */
+public class BrightPiClient implements Closeable
+{
+	/**
+	 * Times a UDP request is sent before giving up.
+	 */
+	private static final int UDP_ATTEMPTS = 5;
+
+	/**
+	 * Connection to the server over TCP, or null when using UDP.
+	 */
+	private final SocketChannel my_channel;
+
+	/**
+	 * Socket for UDP, or null when using TCP.
+	 */
+	private final DatagramSocket my_socket;
+
+	/**
+	 * Frame being sent.
+	 */
+	private final ByteBuffer my_request = ByteBuffer.allocate(BrightPiProtocol.MAX_REQUEST);
+
+	/**
+	 * Acknowledgement being read.
+	 */
+	private final ByteBuffer my_ack = ByteBuffer.allocate(BrightPiProtocol.ACK_SIZE);
+
+	private final DatagramPacket my_request_packet;
+
+	private final DatagramPacket my_ack_packet;
+
+	/**
+	 * Sequence of the next request.
+	 */
+	private int my_sequence = 1;
+
+	private BrightPiClient(final SocketChannel the_channel, final DatagramSocket the_socket)
+	{
+		my_channel = the_channel;
+		my_socket = the_socket;
+		my_request_packet = new DatagramPacket(my_request.array(), 0);
+		my_ack_packet = new DatagramPacket(my_ack.array(), my_ack.capacity());
+	}
+
+	/**
+	 * @param the_address TCP address of the server.
+	 * @return A client connected over TCP.
+	 * @throws IOException If the server cannot be reached.
+	 */
+	public static BrightPiClient tcp(final InetSocketAddress the_address) throws IOException
+	{
+		final SocketChannel channel = SocketChannel.open(the_address);
+		channel.socket().setTcpNoDelay(true);
+		return new BrightPiClient(channel, null);
+	}
+
+	/**
+	 * @param the_address UDP address of the server.
+	 * @param the_timeout Milliseconds to wait for each acknowledgement.
+	 * @return A client sending datagrams.
+	 * @throws IOException If no socket can be opened.
+	 */
+	public static BrightPiClient udp(final InetSocketAddress the_address, final int the_timeout) throws IOException
+	{
+		final DatagramSocket socket = new DatagramSocket();
+		socket.connect(the_address);
+		socket.setSoTimeout(the_timeout);
+		return new BrightPiClient(null, socket);
+	}
+
+	/**
+	 * Sends a request without waiting for its acknowledgement.
+	 * 
+	 * @param the_batch The operations to apply.
+	 * @return Sequence of the request.
+	 * @throws IOException If the request cannot be sent.
+	 */
+	public int send(final Batch the_batch) throws IOException
+	{
+		final int sequence = my_sequence++;
+		my_request.clear();
+		my_request.putInt(BrightPiProtocol.REQUEST_HEADER + the_batch.my_count * BrightPiProtocol.OP_SIZE)
+				.putInt(sequence).putShort((short) the_batch.my_count)
+				.put(the_batch.my_ops, 0, the_batch.my_count * BrightPiProtocol.OP_SIZE);
+		my_request.flip();
+		transmit();
+		return sequence;
+	}
+
+	/**
+	 * Reads the next acknowledgement.
+	 * 
+	 * @return The acknowledgement, or null if none arrived in time over UDP.
+	 * @throws IOException If the connection failed.
+	 */
+	public Ack receive() throws IOException
+	{
+		my_ack.clear();
+		if (my_channel != null)
+		{
+			while (my_ack.hasRemaining())
+			{
+				if (my_channel.read(my_ack) < 0)
+				{
+					throw new EOFException("Server closed the connection.");
+				}
+			}
+		} else
+		{
+			try
+			{
+				my_socket.receive(my_ack_packet);
+			} catch (SocketTimeoutException e)
+			{
+				return null;
+			}
+
+			if (my_ack_packet.getLength() != BrightPiProtocol.ACK_SIZE)
+			{
+				throw new IOException("Bad acknowledgement of " + my_ack_packet.getLength() + " bytes");
+			}
+		}
+
+		final byte[] registers = new byte[BrightPiProtocol.REGISTER_COUNT];
+		System.arraycopy(my_ack.array(), 9, registers, 0, registers.length);
+		return new Ack(my_ack.getInt(4), my_ack.get(8), registers);
+	}
+
+	/**
+	 * Sends a request and waits for its acknowledgement. Over UDP the request is sent again if no acknowledgement
+	 * arrives in time. Acknowledgements of earlier requests are skipped and do not count as attempts.
+	 * 
+	 * @param the_batch The operations to apply.
+	 * @return The acknowledgement.
+	 * @throws IOException If the request cannot be sent or is never acknowledged.
+	 */
+	public Ack call(final Batch the_batch) throws IOException
+	{
+		final int sequence = send(the_batch);
+		int attempts = 1;
+		while (true)
+		{
+			final Ack ack = receive();
+			if (ack == null)
+			{
+				if (attempts == UDP_ATTEMPTS)
+				{
+					throw new SocketTimeoutException("No acknowledgement of request " + sequence);
+				}
+
+				my_request.rewind();
+				transmit();
+				attempts++;
+			} else if (ack.getSequence() == sequence)
+			{
+				return ack;
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if (my_channel != null)
+		{
+			my_channel.close();
+		} else
+		{
+			my_socket.close();
+		}
+	}
+
+	/**
+	 * Writes the request buffer.
+	 */
+	private void transmit() throws IOException
+	{
+		if (my_channel != null)
+		{
+			while (my_request.hasRemaining())
+			{
+				my_channel.write(my_request);
+			}
+		} else
+		{
+			my_request_packet.setLength(my_request.remaining());
+			my_socket.send(my_request_packet);
+		}
+	}
+
+	/**
+	 * Operations sent in one request, with the same meaning as the matching {@link com.brightpi.BrightPiTransaction}
+	 * methods. A batch can be sent many times and is reused after {@link #reset()}.
+	 */
+	public static class Batch
+	{
+		private final byte[] my_ops = new byte[BrightPiProtocol.MAX_OPS * BrightPiProtocol.OP_SIZE];
+
+		private int my_count;
+
+		/**
+		 * Turns all LEDs for the current mode on.
+		 * 
+		 * @return This batch.
+		 */
+		public Batch on()
+		{
+			return add(BrightPiProtocol.OP_ON, 0, (byte) 0);
+		}
+
+		/**
+		 * Turns all LEDs off.
+		 * 
+		 * @return This batch.
+		 */
+		public Batch off()
+		{
+			return add(BrightPiProtocol.OP_OFF, 0, (byte) 0);
+		}
+
+		/**
+		 * @param the_mode The mode to set the device to.
+		 * @return This batch.
+		 */
+		public Batch setMode(final BrightPiMode the_mode)
+		{
+			return add(BrightPiProtocol.OP_MODE, the_mode.ordinal(), (byte) 0);
+		}
+
+		/**
+		 * @param the_gain The gain to set the device to.
+		 * @return This batch.
+		 */
+		public Batch setGain(final BrightPiGain the_gain)
+		{
+			return add(BrightPiProtocol.OP_GAIN, the_gain.ordinal(), (byte) 0);
+		}
+
+		/**
+		 * @param the_gain The gain register value.
+		 * @return This batch.
+		 */
+		public Batch setGain(final byte the_gain)
+		{
+			return add(BrightPiProtocol.OP_GAIN_VALUE, 0, the_gain);
+		}
+
+		/**
+		 * @param the_mask A bit-mask of the LEDs to use in individual mode.
+		 * @return This batch.
+		 */
+		public Batch setMask(final byte the_mask)
+		{
+			return add(BrightPiProtocol.OP_MASK, 0, the_mask);
+		}
+
+		/**
+		 * @param the_led The LED to adjust the brightness of.
+		 * @param the_value The value to set the brightness to.
+		 * @return This batch.
+		 */
+		public Batch setLEDBrightness(final BrightPiLED the_led, final byte the_value)
+		{
+			return add(BrightPiProtocol.OP_LED, the_led.ordinal(), the_value);
+		}
+
+		/**
+		 * @param the_value Brightness to set all LEDs to.
+		 * @return This batch.
+		 */
+		public Batch setLEDBrightness(final byte the_value)
+		{
+			return add(BrightPiProtocol.OP_ALL_LEDS, 0, the_value);
+		}
+
+		/**
+		 * Resets the device to the default state.
+		 * 
+		 * @return This batch.
+		 */
+		public Batch clear()
+		{
+			return add(BrightPiProtocol.OP_CLEAR, 0, (byte) 0);
+		}
+
+		/**
+		 * @return Number of operations in the batch.
+		 */
+		public int size()
+		{
+			return my_count;
+		}
+
+		/**
+		 * Empties the batch.
+		 */
+		public void reset()
+		{
+			my_count = 0;
+		}
+
+		private Batch add(final byte the_op, final int the_arg, final byte the_value)
+		{
+			if (my_count == BrightPiProtocol.MAX_OPS)
+			{
+				throw new IllegalStateException("A batch holds at most " + BrightPiProtocol.MAX_OPS + " operations.");
+			}
+
+			final int offset = my_count++ * BrightPiProtocol.OP_SIZE;
+			my_ops[offset] = the_op;
+			my_ops[offset + 1] = (byte) the_arg;
+			my_ops[offset + 2] = the_value;
+			return this;
+		}
+	}
+
+	/**
+	 * Acknowledgement of a request.
+	 */
+	public static final class Ack
+	{
+		private final int my_sequence;
+
+		private final byte my_status;
+
+		private final byte[] my_registers;
+
+		Ack(final int the_sequence, final byte the_status, final byte[] the_registers)
+		{
+			my_sequence = the_sequence;
+			my_status = the_status;
+			my_registers = the_registers;
+		}
+
+		/**
+		 * @return Sequence of the request.
+		 */
+		public int getSequence()
+		{
+			return my_sequence;
+		}
+
+		/**
+		 * @return One of the STATUS_ constants of {@link BrightPiProtocol}.
+		 */
+		public byte getStatus()
+		{
+			return my_status;
+		}
+
+		/**
+		 * @return A copy of the registers after the request, indexed by address.
+		 */
+		public byte[] getRegisters()
+		{
+			return my_registers.clone();
+		}
+	}
+}
@@ -0,0 +1,251 @@
+/*
+ * MIT License
+ * 
+ * Copyright (c) 2016 Michael Westbrook
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.brightpi.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.brightpi.BrightPi;
+import com.brightpi.BrightPiHistogram;
+import com.brightpi.BrightPiLED;
+import com.brightpi.SimulatedBrightPi;
+
+/**
+ * Measures round-trip latency and throughput of a {@link BrightPiServer}. With <code>--loopback</code> a server on a
+ * {@link SimulatedBrightPi} is started in the same process, so no Bright Pi or second host is needed.
+ * 
+ * <pre>
+ * java -cp ... com.brightpi.server.BrightPiLoadGenerator --loopback --clients 4 --ops 8 --window 16 --seconds 10
+ * </pre>
+ * 
+ * Options: <code>--host</code>, <code>--port</code>, <code>--udp</code>, <code>--loopback</code>,
+ * <code>--latency</code> (microseconds per simulated bus transaction), <code>--clients</code>, <code>--ops</code>
+ * (operations per request), <code>--window</code> (TCP requests in flight per client) and <code>--seconds</code>.
+ * 
+ * @author Mike Westbrook
+ *
+ */
+public class BrightPiLoadGenerator
+{
+	private static final BrightPiLED[] LEDS = BrightPiLED.values();
+
+	private String my_host = InetAddress.getLoopbackAddress().getHostAddress();
+
+	private int my_port = BrightPiProtocol.DEFAULT_PORT;
+
+	private boolean i_use_udp;
+
+	private boolean i_am_loopback;
+
+	private long my_latency;
+
+	private int my_clients = 1;
+
+	private int my_ops = 8;
+
+	private int my_window = 1;
+
+	private int my_seconds = 10;
+
+	/**
+	 * Round-trip times in nanoseconds.
+	 */
+	private final BrightPiHistogram my_round_trips = new BrightPiHistogram();
+
+	private final AtomicLong my_requests = new AtomicLong();
+
+	/**
+	 * @param the_args See the class description.
+	 * @throws Exception If the server cannot be reached.
+	 */
+	public static void main(final String[] the_args) throws Exception
+	{
+		final BrightPiLoadGenerator generator = new BrightPiLoadGenerator();
+		for (int i = 0; i < the_args.length; i++)
+		{
+			final String option = the_args[i];
+			if ("--udp".equals(option))
+			{
+				generator.i_use_udp = true;
+			} else if ("--loopback".equals(option))
+			{
+				generator.i_am_loopback = true;
+			} else if ("--host".equals(option))
+			{
+				generator.my_host = the_args[++i];
+			} else if ("--port".equals(option))
+			{
+				generator.my_port = Integer.parseInt(the_args[++i]);
+			} else if ("--latency".equals(option))
+			{
+				generator.my_latency = Long.parseLong(the_args[++i]);
+			} else if ("--clients".equals(option))
+			{
+				generator.my_clients = Integer.parseInt(the_args[++i]);
+			} else if ("--ops".equals(option))
+			{
+				generator.my_ops = Integer.parseInt(the_args[++i]);
+			} else if ("--window".equals(option))
+			{
+				generator.my_window = Integer.parseInt(the_args[++i]);
+			} else if ("--seconds".equals(option))
+			{
+				generator.my_seconds = Integer.parseInt(the_args[++i]);
+			} else
+			{
+				throw new IllegalArgumentException("Unknown option " + option);
+			}
+		}
+
+		generator.run();
+	}
+
+	/**
+	 * Runs the clients and prints the results.
+	 */
+	private void run() throws Exception
+	{
+		BrightPiServer server = null;
+		InetSocketAddress address = new InetSocketAddress(my_host, my_port);
+		if (i_am_loopback)
+		{
+			final SimulatedBrightPi simulator = new SimulatedBrightPi();
+			simulator.setLatency(my_latency, TimeUnit.MICROSECONDS);
+			final InetSocketAddress any = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+			server = new BrightPiServer(new BrightPi(simulator), i_use_udp ? null : any, i_use_udp ? any : null);
+			server.start();
+			address = i_use_udp ? server.getUdpAddress() : server.getTcpAddress();
+		}
+
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(my_seconds);
+		final List<Thread> threads = new ArrayList<Thread>();
+		final List<Exception> failures = new ArrayList<Exception>();
+		for (int i = 0; i < my_clients; i++)
+		{
+			final InetSocketAddress target = address;
+			final Thread thread = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						drive(target, deadline);
+					} catch (IOException e)
+					{
+						synchronized (failures)
+						{
+							failures.add(e);
+						}
+					}
+				}
+			}, "BrightPi load " + i);
+			thread.start();
+			threads.add(thread);
+		}
+
+		final long start = System.nanoTime();
+		for (final Thread thread : threads)
+		{
+			thread.join();
+		}
+
+		final double seconds = (System.nanoTime() - start) / 1e9;
+		if (server != null)
+		{
+			server.close();
+		}
+
+		for (final Exception failure : failures)
+		{
+			failure.printStackTrace();
+		}
+
+		final long requests = my_requests.get();
+		System.out.printf("%s, %d clients, %d ops per request, window %d%n", i_use_udp ? "UDP" : "TCP", my_clients,
+				my_ops, my_window);
+		System.out.printf("requests/s %.0f, commands/s %.0f%n", requests / seconds, requests * my_ops / seconds);
+		System.out.printf("round trip us: mean %.1f, p50 %.1f, p99 %.1f, p99.9 %.1f, max %.1f%n",
+				my_round_trips.getMean() / 1e3, my_round_trips.getValueAtPercentile(50) / 1e3,
+				my_round_trips.getValueAtPercentile(99) / 1e3, my_round_trips.getValueAtPercentile(99.9) / 1e3,
+				my_round_trips.getMax() / 1e3);
+	}
+
+	/**
+	 * Sends requests from one client until the deadline, keeping up to the window in flight.
+	 */
+	private void drive(final InetSocketAddress the_address, final long the_deadline) throws IOException
+	{
+		final BrightPiClient client = i_use_udp ? BrightPiClient.udp(the_address, 1000)
+				: BrightPiClient.tcp(the_address);
+		try
+		{
+			final int window = i_use_udp ? 1 : Math.max(1, my_window);
+			final long[] sent = new long[window];
+			final BrightPiClient.Batch batch = new BrightPiClient.Batch();
+			int in_flight = 0;
+			int frame = 0;
+			while (System.nanoTime() < the_deadline || in_flight > 0)
+			{
+				if (in_flight < window && System.nanoTime() < the_deadline)
+				{
+					//Change every LED in each request so the device is not spared any writes.
+					batch.reset();
+					for (int i = 0; i < my_ops; i++)
+					{
+						batch.setLEDBrightness(LEDS[i % LEDS.length], (byte) ((frame + i) % 0x32));
+					}
+
+					frame++;
+					if (i_use_udp)
+					{
+						final long start = System.nanoTime();
+						client.call(batch);
+						my_round_trips.record(System.nanoTime() - start);
+						my_requests.incrementAndGet();
+						continue;
+					}
+
+					final int sequence = client.send(batch);
+					sent[sequence % window] = System.nanoTime();
+					in_flight++;
+					continue;
+				}
+
+				final BrightPiClient.Ack ack = client.receive();
+				my_round_trips.record(System.nanoTime() - sent[ack.getSequence() % window]);
+				my_requests.incrementAndGet();
+				in_flight--;
+			}
+		} finally
+		{
+			client.close();
+		}
+	}
+}
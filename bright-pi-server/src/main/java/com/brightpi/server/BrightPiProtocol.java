@@ -0,0 +1,158 @@
+/*
+ * MIT License
+ * 
+ * Copyright (c) 2016 Michael Westbrook
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.brightpi.server;
+
+/**
+ * The binary protocol of {@link BrightPiServer}. All numbers are big-endian. Over TCP frames follow each other on
+ * the stream, over UDP each datagram holds one frame.
+ * <p>
+ * A request frame carries a batch of operations that are committed as one {@link com.brightpi.BrightPiTransaction}:
+ * 
+ * <pre>
+ * int   length      bytes after this field
+ * int   sequence    chosen by the client, increasing by one per frame
+ * short count       number of operations, 0 to only ask for the state
+ * count times:
+ *   byte op         one of the OP_ constants
+ *   byte arg        enum ordinal of the operation, or 0
+ *   byte value      value of the operation, or 0
+ * </pre>
+ * 
+ * Every request is answered by an acknowledgement holding the register image after the batch:
+ * 
+ * <pre>
+ * int   length      always {@link #ACK_LENGTH}
+ * int   sequence    sequence of the request
+ * byte  status      one of the STATUS_ constants
+ * byte[10]          registers of the device, indexed by address
+ * </pre>
+ * 
+ * The server remembers the last sequence applied for each client, so a request sent again after a lost
+ * acknowledgement is acknowledged without being applied twice.
+ * 
+ * @author Mike Westbrook
+ *
+ */
+public final class BrightPiProtocol
+{
+	public static final byte OP_ON = 1;
+
+	public static final byte OP_OFF = 2;
+
+	/**
+	 * Arg is the ordinal of a {@link com.brightpi.BrightPiMode}.
+	 */
+	public static final byte OP_MODE = 3;
+
+	/**
+	 * Arg is the ordinal of a {@link com.brightpi.BrightPiGain}.
+	 */
+	public static final byte OP_GAIN = 4;
+
+	/**
+	 * Value is the LED mask for individual mode.
+	 */
+	public static final byte OP_MASK = 5;
+
+	/**
+	 * Arg is the ordinal of a {@link com.brightpi.BrightPiLED}, value its brightness.
+	 */
+	public static final byte OP_LED = 6;
+
+	/**
+	 * Value is the brightness of all LEDs.
+	 */
+	public static final byte OP_ALL_LEDS = 7;
+
+	public static final byte OP_CLEAR = 8;
+
+	/**
+	 * Value is the gain register.
+	 */
+	public static final byte OP_GAIN_VALUE = 9;
+
+	/**
+	 * The batch was applied.
+	 */
+	public static final byte STATUS_OK = 0;
+
+	/**
+	 * The sequence was already applied, so the batch was not applied again.
+	 */
+	public static final byte STATUS_DUPLICATE = 1;
+
+	/**
+	 * A later sequence was already applied, so the batch was dropped.
+	 */
+	public static final byte STATUS_STALE = 2;
+
+	/**
+	 * The frame could not be decoded or held an invalid operation, so nothing was applied.
+	 */
+	public static final byte STATUS_BAD_FRAME = 3;
+
+	/**
+	 * Bytes of a request before the operations, not counting the length field.
+	 */
+	public static final int REQUEST_HEADER = 6;
+
+	/**
+	 * Bytes of each operation.
+	 */
+	public static final int OP_SIZE = 3;
+
+	/**
+	 * Largest number of operations in one request.
+	 */
+	public static final int MAX_OPS = 1024;
+
+	/**
+	 * Largest request including the length field.
+	 */
+	public static final int MAX_REQUEST = 4 + REQUEST_HEADER + MAX_OPS * OP_SIZE;
+
+	/**
+	 * Number of registers in an acknowledgement.
+	 */
+	public static final int REGISTER_COUNT = 10;
+
+	/**
+	 * Bytes of an acknowledgement after the length field.
+	 */
+	public static final int ACK_LENGTH = 5 + REGISTER_COUNT;
+
+	/**
+	 * Bytes of an acknowledgement including the length field.
+	 */
+	public static final int ACK_SIZE = 4 + ACK_LENGTH;
+
+	/**
+	 * Default port for both TCP and UDP.
+	 */
+	public static final int DEFAULT_PORT = 7070;
+
+	private BrightPiProtocol()
+	{
+	}
+}
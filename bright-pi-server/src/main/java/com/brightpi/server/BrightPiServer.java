@@ -0,0 +1,672 @@
+/*
+ * MIT License
+ * 
+ * Copyright (c) 2016 Michael Westbrook
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.brightpi.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.brightpi.BrightPi;
+import com.brightpi.BrightPiGain;
+import com.brightpi.BrightPiLED;
+import com.brightpi.BrightPiMode;
+import com.brightpi.BrightPiState;
+import com.brightpi.BrightPiTransaction;
+
+/**
+ * Serves a BrightPi to other hosts and processes over the {@link BrightPiProtocol}, on TCP, UDP or both. A single
+ * thread runs the selector and is the only one to touch the device, so requests from all clients are applied one
+ * batch at a time in the order they arrive, each batch as one transaction.
+ * 
+ * @author Mike Westbrook
+ *
+ */
+public class BrightPiServer implements Runnable, Closeable
+{
+	private static final BrightPiMode[] MODES = BrightPiMode.values();
+
+	private static final BrightPiGain[] GAINS = BrightPiGain.values();
+
+	private static final BrightPiLED[] LEDS = BrightPiLED.values();
+
+	/**
+	 * Number of UDP clients whose sequence is remembered. The least recently heard from are forgotten first.
+	 */
+	private static final int MAX_UDP_CLIENTS = 1024;
+
+	/**
+	 * Acknowledgements buffered for a TCP client before its requests are no longer read.
+	 */
+	private static final int PENDING_ACKS = 64;
+
+	/**
+	 * The device served.
+	 */
+	private final BrightPi my_brightpi;
+
+	/**
+	 * Reused for every request.
+	 */
+	private final BrightPiTransaction my_transaction;
+
+	private final Selector my_selector;
+
+	/**
+	 * Accepts TCP clients, or null if TCP is not served.
+	 */
+	private final ServerSocketChannel my_tcp;
+
+	/**
+	 * Receives UDP requests, or null if UDP is not served.
+	 */
+	private final DatagramChannel my_udp;
+
+	/**
+	 * Receives one datagram.
+	 */
+	private final ByteBuffer my_datagram = ByteBuffer.allocateDirect(BrightPiProtocol.MAX_REQUEST);
+
+	/**
+	 * Holds the acknowledgement of one datagram.
+	 */
+	private final ByteBuffer my_datagram_ack = ByteBuffer.allocateDirect(BrightPiProtocol.ACK_SIZE);
+
+	/**
+	 * Last sequence of each UDP client, in order of use.
+	 */
+	private final Map<SocketAddress, Client> my_udp_clients = new LinkedHashMap<SocketAddress, Client>(16, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<SocketAddress, Client> the_eldest)
+		{
+			return size() > MAX_UDP_CLIENTS;
+		}
+	};
+
+	/**
+	 * Runs the selector, or null if not started.
+	 */
+	private Thread my_thread;
+
+	private volatile boolean i_am_running = true;
+
+	/**
+	 * The failure that stopped the server thread, or null.
+	 */
+	private volatile IOException my_last_error;
+
+	/**
+	 * Number of requests handled. Only written by the server thread.
+	 */
+	private volatile long my_requests;
+
+	/**
+	 * Number of operations applied. Only written by the server thread.
+	 */
+	private volatile long my_operations;
+
+	/**
+	 * @param the_brightpi The device to serve.
+	 * @param the_tcp Address to accept TCP clients on, or null for no TCP.
+	 * @param the_udp Address to receive UDP requests on, or null for no UDP.
+	 * @throws IOException If an address cannot be bound.
+	 */
+	public BrightPiServer(final BrightPi the_brightpi, final InetSocketAddress the_tcp,
+			final InetSocketAddress the_udp) throws IOException
+	{
+		my_brightpi = the_brightpi;
+		my_transaction = the_brightpi.batch();
+		my_selector = Selector.open();
+		ServerSocketChannel tcp = null;
+		DatagramChannel udp = null;
+		try
+		{
+			if (the_tcp != null)
+			{
+				tcp = ServerSocketChannel.open();
+				tcp.socket().setReuseAddress(true);
+				tcp.socket().bind(the_tcp);
+				tcp.configureBlocking(false);
+				tcp.register(my_selector, SelectionKey.OP_ACCEPT);
+			}
+
+			if (the_udp != null)
+			{
+				udp = DatagramChannel.open();
+				udp.socket().bind(the_udp);
+				udp.configureBlocking(false);
+				udp.register(my_selector, SelectionKey.OP_READ);
+			}
+		} catch (IOException e)
+		{
+			closeQuietly(tcp);
+			closeQuietly(udp);
+			my_selector.close();
+			throw e;
+		}
+
+		my_tcp = tcp;
+		my_udp = udp;
+	}
+
+	/**
+	 * Serves BrightPi.instance() on TCP and UDP.
+	 * 
+	 * @param the_args Optionally the port, {@link BrightPiProtocol#DEFAULT_PORT} by default.
+	 * @throws IOException If the port cannot be bound.
+	 */
+	public static void main(final String[] the_args) throws IOException
+	{
+		final int port = the_args.length > 0 ? Integer.parseInt(the_args[0]) : BrightPiProtocol.DEFAULT_PORT;
+		final BrightPiServer server = new BrightPiServer(BrightPi.instance(), new InetSocketAddress(port),
+				new InetSocketAddress(port));
+		server.start();
+	}
+
+	/**
+	 * Starts serving on a new thread.
+	 */
+	public synchronized void start()
+	{
+		if (my_thread == null)
+		{
+			my_thread = new Thread(this, "BrightPi server");
+			my_thread.start();
+		}
+	}
+
+	/**
+	 * @return The bound TCP address, or null if TCP is not served.
+	 */
+	public InetSocketAddress getTcpAddress()
+	{
+		return my_tcp == null ? null : (InetSocketAddress) my_tcp.socket().getLocalSocketAddress();
+	}
+
+	/**
+	 * @return The bound UDP address, or null if UDP is not served.
+	 */
+	public InetSocketAddress getUdpAddress()
+	{
+		return my_udp == null ? null : (InetSocketAddress) my_udp.socket().getLocalSocketAddress();
+	}
+
+	/**
+	 * @return Number of requests handled.
+	 */
+	public long getRequests()
+	{
+		return my_requests;
+	}
+
+	/**
+	 * @return Number of operations applied.
+	 */
+	public long getOperations()
+	{
+		return my_operations;
+	}
+
+	/**
+	 * @return The failure that stopped the server, or null if it is serving or was closed.
+	 */
+	public IOException getLastError()
+	{
+		return my_last_error;
+	}
+
+	/**
+	 * Runs the selector until the server is closed or the selector fails. Either way all connections are closed when
+	 * it returns, and a failure is kept for {@link #getLastError()}.
+	 */
+	@Override
+	public void run()
+	{
+		try
+		{
+			dispatch();
+		} catch (IOException e)
+		{
+			my_last_error = e;
+		} finally
+		{
+			i_am_running = false;
+			closeChannels();
+		}
+	}
+
+	/**
+	 * Stops serving and closes all connections. The device stays open.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		i_am_running = false;
+		my_selector.wakeup();
+		final Thread thread;
+		synchronized (this)
+		{
+			thread = my_thread;
+		}
+
+		if (thread != null && thread != Thread.currentThread())
+		{
+			try
+			{
+				thread.join();
+			} catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		closeChannels();
+	}
+
+	/**
+	 * Handles selected keys until the server is closed.
+	 * 
+	 * @throws IOException If the selector fails.
+	 */
+	private void dispatch() throws IOException
+	{
+		while (i_am_running)
+		{
+			my_selector.select();
+			final Iterator<SelectionKey> keys = my_selector.selectedKeys().iterator();
+			while (keys.hasNext())
+			{
+				final SelectionKey key = keys.next();
+				keys.remove();
+				try
+				{
+					if (!key.isValid())
+					{
+						continue;
+					}
+
+					if (key.isAcceptable())
+					{
+						accept();
+					} else if (key.channel() == my_udp)
+					{
+						receive();
+					} else
+					{
+						serve(key);
+					}
+				} catch (IOException e)
+				{
+					//The client went away.
+					key.cancel();
+					closeQuietly(key.channel());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Closes every registered channel and the selector, once.
+	 */
+	private synchronized void closeChannels()
+	{
+		if (my_selector.isOpen())
+		{
+			for (final SelectionKey key : my_selector.keys())
+			{
+				closeQuietly(key.channel());
+			}
+
+			closeQuietly(my_selector);
+		}
+	}
+
+	/**
+	 * Accepts a TCP client.
+	 */
+	private void accept() throws IOException
+	{
+		final SocketChannel channel = my_tcp.accept();
+		if (channel != null)
+		{
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			channel.register(my_selector, SelectionKey.OP_READ, new Connection());
+		}
+	}
+
+	/**
+	 * Reads requests of a TCP client and writes their acknowledgements. Requests are handled until the input holds no
+	 * complete frame or the acknowledgements back up, so frames pipelined past {@link #PENDING_ACKS} are handled as
+	 * soon as the client reads its acknowledgements, without waiting for more input.
+	 */
+	private void serve(final SelectionKey the_key) throws IOException
+	{
+		final SocketChannel channel = (SocketChannel) the_key.channel();
+		final Connection connection = (Connection) the_key.attachment();
+		if (the_key.isReadable() && channel.read(connection.my_in) < 0)
+		{
+			throw new IOException("Client closed the connection.");
+		}
+
+		final ByteBuffer in = connection.my_in;
+		final ByteBuffer out = connection.my_out;
+		do
+		{
+			in.flip();
+			while (in.remaining() >= 4 && out.remaining() >= BrightPiProtocol.ACK_SIZE)
+			{
+				final int length = in.getInt(in.position());
+				if (length < BrightPiProtocol.REQUEST_HEADER || length > BrightPiProtocol.MAX_REQUEST - 4)
+				{
+					//The stream cannot be trusted past a broken length.
+					throw new IOException("Bad frame length " + length);
+				}
+
+				if (in.remaining() < 4 + length)
+				{
+					break;
+				}
+
+				handle(in, length, connection, out);
+			}
+
+			in.compact();
+			out.flip();
+			channel.write(out);
+			out.compact();
+		} while (out.position() == 0 && hasFrame(in));
+
+		//Stop reading while acknowledgements are backed up, and come back once they are written.
+		final boolean backed_up = out.position() > 0;
+		the_key.interestOps(backed_up ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+	}
+
+	/**
+	 * @param the_in Input buffer being filled, with the data from 0 to its position.
+	 * @return True if the buffer starts with a whole frame, or with a length that cannot be valid.
+	 */
+	private static boolean hasFrame(final ByteBuffer the_in)
+	{
+		if (the_in.position() < 4)
+		{
+			return false;
+		}
+
+		final int length = the_in.getInt(0);
+		return length < BrightPiProtocol.REQUEST_HEADER || the_in.position() - 4 >= length;
+	}
+
+	/**
+	 * Handles the datagrams that have arrived.
+	 */
+	private void receive() throws IOException
+	{
+		while (true)
+		{
+			my_datagram.clear();
+			final SocketAddress address = my_udp.receive(my_datagram);
+			if (address == null)
+			{
+				return;
+			}
+
+			my_datagram.flip();
+			Client client = my_udp_clients.get(address);
+			if (client == null)
+			{
+				client = new Client();
+				my_udp_clients.put(address, client);
+			}
+
+			my_datagram_ack.clear();
+			final int length = my_datagram.remaining() >= 4 ? my_datagram.getInt(0) : -1;
+			if (length >= BrightPiProtocol.REQUEST_HEADER && length == my_datagram.remaining() - 4)
+			{
+				handle(my_datagram, length, client, my_datagram_ack);
+			} else
+			{
+				acknowledge(my_datagram.remaining() >= 8 ? my_datagram.getInt(4) : 0,
+						BrightPiProtocol.STATUS_BAD_FRAME, my_datagram_ack);
+			}
+
+			my_datagram_ack.flip();
+			my_udp.send(my_datagram_ack, address);
+		}
+	}
+
+	/**
+	 * Applies one request and writes its acknowledgement.
+	 * 
+	 * @param the_frame Holds the request at its position, which is moved past it.
+	 * @param the_length Length of the request after the length field.
+	 * @param the_client The client the request came from.
+	 * @param the_ack Receives the acknowledgement.
+	 */
+	private void handle(final ByteBuffer the_frame, final int the_length, final Client the_client,
+			final ByteBuffer the_ack)
+	{
+		final int start = the_frame.position();
+		final int sequence = the_frame.getInt(start + 4);
+		final int count = the_frame.getShort(start + 8) & 0xffff;
+		final int ops = start + 4 + BrightPiProtocol.REQUEST_HEADER;
+		the_frame.position(start + 4 + the_length);
+		my_requests++;
+
+		final byte status;
+		if (count > BrightPiProtocol.MAX_OPS
+				|| the_length != BrightPiProtocol.REQUEST_HEADER + count * BrightPiProtocol.OP_SIZE
+				|| !isValid(the_frame, ops, count))
+		{
+			status = BrightPiProtocol.STATUS_BAD_FRAME;
+		} else if (the_client.i_have_sequence && sequence == the_client.my_last_sequence)
+		{
+			status = BrightPiProtocol.STATUS_DUPLICATE;
+		} else if (the_client.i_have_sequence && sequence - the_client.my_last_sequence < 0)
+		{
+			status = BrightPiProtocol.STATUS_STALE;
+		} else
+		{
+			apply(the_frame, ops, count);
+			the_client.my_last_sequence = sequence;
+			the_client.i_have_sequence = true;
+			status = BrightPiProtocol.STATUS_OK;
+		}
+
+		acknowledge(sequence, status, the_ack);
+	}
+
+	/**
+	 * Writes an acknowledgement holding the current register image.
+	 */
+	private void acknowledge(final int the_sequence, final byte the_status, final ByteBuffer the_ack)
+	{
+		final BrightPiState state = my_brightpi.snapshot();
+		the_ack.putInt(BrightPiProtocol.ACK_LENGTH).putInt(the_sequence).put(the_status);
+		for (int address = 0; address < BrightPiProtocol.REGISTER_COUNT; address++)
+		{
+			the_ack.put(state.getRegister(address));
+		}
+	}
+
+	/**
+	 * @return True if every operation can be applied.
+	 */
+	private static boolean isValid(final ByteBuffer the_frame, final int the_offset, final int the_count)
+	{
+		for (int i = 0; i < the_count; i++)
+		{
+			final int offset = the_offset + i * BrightPiProtocol.OP_SIZE;
+			final int arg = the_frame.get(offset + 1) & 0xff;
+			final byte value = the_frame.get(offset + 2);
+			switch (the_frame.get(offset))
+			{
+				case BrightPiProtocol.OP_ON:
+				case BrightPiProtocol.OP_OFF:
+				case BrightPiProtocol.OP_MASK:
+				case BrightPiProtocol.OP_ALL_LEDS:
+				case BrightPiProtocol.OP_CLEAR:
+					break;
+				case BrightPiProtocol.OP_MODE:
+					if (arg >= MODES.length)
+					{
+						return false;
+					}
+					break;
+				case BrightPiProtocol.OP_GAIN:
+					if (arg >= GAINS.length)
+					{
+						return false;
+					}
+					break;
+				case BrightPiProtocol.OP_LED:
+					if (arg >= LEDS.length)
+					{
+						return false;
+					}
+					break;
+				case BrightPiProtocol.OP_GAIN_VALUE:
+					if (value < BrightPiGain.MIN_GAIN || value > BrightPiGain.MAX_GAIN)
+					{
+						return false;
+					}
+					break;
+				default:
+					return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Commits the operations of a request as one transaction.
+	 */
+	private void apply(final ByteBuffer the_frame, final int the_offset, final int the_count)
+	{
+		for (int i = 0; i < the_count; i++)
+		{
+			final int offset = the_offset + i * BrightPiProtocol.OP_SIZE;
+			final int arg = the_frame.get(offset + 1) & 0xff;
+			final byte value = the_frame.get(offset + 2);
+			switch (the_frame.get(offset))
+			{
+				case BrightPiProtocol.OP_ON:
+					my_transaction.on();
+					break;
+				case BrightPiProtocol.OP_OFF:
+					my_transaction.off();
+					break;
+				case BrightPiProtocol.OP_MODE:
+					my_transaction.setMode(MODES[arg]);
+					break;
+				case BrightPiProtocol.OP_GAIN:
+					my_transaction.setGain(GAINS[arg]);
+					break;
+				case BrightPiProtocol.OP_MASK:
+					my_transaction.setMask(value);
+					break;
+				case BrightPiProtocol.OP_LED:
+					my_transaction.setLEDBrightness(LEDS[arg], value);
+					break;
+				case BrightPiProtocol.OP_ALL_LEDS:
+					my_transaction.setLEDBrightness(value);
+					break;
+				case BrightPiProtocol.OP_CLEAR:
+					my_transaction.clear();
+					break;
+				case BrightPiProtocol.OP_GAIN_VALUE:
+					my_transaction.setGain(value);
+					break;
+				default:
+					break;
+			}
+		}
+
+		if (the_count > 0)
+		{
+			my_transaction.commit();
+		}
+
+		my_operations += the_count;
+	}
+
+	private static void closeQuietly(final Closeable the_closeable)
+	{
+		if (the_closeable != null)
+		{
+			try
+			{
+				the_closeable.close();
+			} catch (IOException e)
+			{
+				//Nothing left to do with it.
+			}
+		}
+	}
+
+	/**
+	 * Sequencing of one client.
+	 */
+	private static class Client
+	{
+		/**
+		 * Sequence of the last request applied.
+		 */
+		int my_last_sequence;
+
+		/**
+		 * False until the first request is applied.
+		 */
+		boolean i_have_sequence;
+	}
+
+	/**
+	 * A TCP client and its buffers.
+	 */
+	private static final class Connection extends Client
+	{
+		/**
+		 * Requests read but not handled yet.
+		 */
+		final ByteBuffer my_in = ByteBuffer.allocateDirect(BrightPiProtocol.MAX_REQUEST);
+
+		/**
+		 * Acknowledgements not written yet.
+		 */
+		final ByteBuffer my_out = ByteBuffer.allocateDirect(PENDING_ACKS * BrightPiProtocol.ACK_SIZE);
+	}
+}
@@ -0,0 +1,279 @@
+package test.brightpi.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.brightpi.BrightPi;
+import com.brightpi.BrightPiLED;
+import com.brightpi.BrightPiMode;
+import com.brightpi.SimulatedBrightPi;
+import com.brightpi.server.BrightPiClient;
+import com.brightpi.server.BrightPiProtocol;
+import com.brightpi.server.BrightPiServer;
+
+/**
+ * Serves a simulated BrightPi on loopback and talks to it with raw frames, to control sequences and pipelining.
+ */
+public class TestBrightPiServer
+{
+	/**
+	 * More requests than the server keeps acknowledgements for.
+	 */
+	private static final int PIPELINED = 200;
+
+	/**
+	 * One less than the times the client sends a UDP request, so counting them as attempts gives up early.
+	 */
+	private static final int STALE_ACKS = 4;
+
+	private SimulatedBrightPi my_simulator;
+
+	private BrightPi my_bp;
+
+	private BrightPiServer my_server;
+
+	private Socket my_socket;
+
+	@Before
+	public void before() throws IOException
+	{
+		my_simulator = new SimulatedBrightPi();
+		my_bp = new BrightPi(my_simulator);
+		final InetSocketAddress loopback = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+		my_server = new BrightPiServer(my_bp, loopback, loopback);
+		my_server.start();
+		my_socket = new Socket();
+		my_socket.connect(my_server.getTcpAddress());
+		my_socket.setSoTimeout(5000);
+	}
+
+	@After
+	public void after() throws IOException
+	{
+		my_socket.close();
+		my_server.close();
+	}
+
+	@Test(timeout = 10000)
+	public void testPipelining() throws IOException
+	{
+		//Every request in one write, acknowledgements read only after.
+		final ByteBuffer frames = ByteBuffer.allocate(PIPELINED * 16);
+		for (int i = 1; i <= PIPELINED; i++)
+		{
+			frame(frames, i, BrightPiProtocol.OP_LED, BrightPiLED.W1.ordinal(), (byte) i);
+		}
+
+		send(frames);
+		final DataInputStream in = new DataInputStream(my_socket.getInputStream());
+		for (int i = 1; i <= PIPELINED; i++)
+		{
+			assertAck(in, i, BrightPiProtocol.STATUS_OK);
+		}
+
+		assertEquals((byte) PIPELINED, my_simulator.getRegister(BrightPiLED.W1.getAddress()));
+		assertEquals(PIPELINED, my_server.getRequests());
+	}
+
+	@Test(timeout = 10000)
+	public void testDuplicate() throws IOException
+	{
+		final DataInputStream in = new DataInputStream(my_socket.getInputStream());
+		send(frame(ByteBuffer.allocate(16), 7, BrightPiProtocol.OP_LED, BrightPiLED.W2.ordinal(), (byte) 10));
+		assertAck(in, 7, BrightPiProtocol.STATUS_OK);
+
+		//A resent request is acknowledged but not applied again.
+		my_bp.setLEDBrightness(BrightPiLED.W2, (byte) 30);
+		send(frame(ByteBuffer.allocate(16), 7, BrightPiProtocol.OP_LED, BrightPiLED.W2.ordinal(), (byte) 10));
+		assertAck(in, 7, BrightPiProtocol.STATUS_DUPLICATE);
+		assertEquals((byte) 30, my_simulator.getRegister(BrightPiLED.W2.getAddress()));
+	}
+
+	@Test(timeout = 10000)
+	public void testStale() throws IOException
+	{
+		final DataInputStream in = new DataInputStream(my_socket.getInputStream());
+		send(frame(ByteBuffer.allocate(16), 5, BrightPiProtocol.OP_LED, BrightPiLED.W3.ordinal(), (byte) 50));
+		assertAck(in, 5, BrightPiProtocol.STATUS_OK);
+		send(frame(ByteBuffer.allocate(16), 3, BrightPiProtocol.OP_LED, BrightPiLED.W3.ordinal(), (byte) 30));
+		assertAck(in, 3, BrightPiProtocol.STATUS_STALE);
+		assertEquals((byte) 50, my_simulator.getRegister(BrightPiLED.W3.getAddress()));
+
+		//Sequences wrap around.
+		send(frame(ByteBuffer.allocate(16), Integer.MAX_VALUE, BrightPiProtocol.OP_ON, 0, (byte) 0));
+		assertAck(in, Integer.MAX_VALUE, BrightPiProtocol.STATUS_OK);
+		send(frame(ByteBuffer.allocate(16), Integer.MIN_VALUE, BrightPiProtocol.OP_OFF, 0, (byte) 0));
+		assertAck(in, Integer.MIN_VALUE, BrightPiProtocol.STATUS_OK);
+	}
+
+	@Test(timeout = 10000)
+	public void testBadFrame() throws IOException
+	{
+		final DataInputStream in = new DataInputStream(my_socket.getInputStream());
+		send(frame(ByteBuffer.allocate(16), 1, (byte) 99, 0, (byte) 0));
+		assertAck(in, 1, BrightPiProtocol.STATUS_BAD_FRAME);
+		send(frame(ByteBuffer.allocate(16), 2, BrightPiProtocol.OP_MODE, 200, (byte) 0));
+		assertAck(in, 2, BrightPiProtocol.STATUS_BAD_FRAME);
+
+		//A bad frame does not use up its sequence.
+		send(frame(ByteBuffer.allocate(16), 2, BrightPiProtocol.OP_MODE, BrightPiMode.IR.ordinal(), (byte) 0));
+		assertAck(in, 2, BrightPiProtocol.STATUS_OK);
+		assertEquals(BrightPiMode.IR, my_bp.getMode());
+	}
+
+	@Test(timeout = 10000)
+	public void testUdp() throws IOException
+	{
+		final BrightPiClient client = BrightPiClient.udp(my_server.getUdpAddress(), 1000);
+		try
+		{
+			final BrightPiClient.Ack ack = client.call(new BrightPiClient.Batch().setMode(BrightPiMode.WHITE).on());
+			assertEquals(BrightPiProtocol.STATUS_OK, ack.getStatus());
+			assertArrayEquals(my_simulator.getRegisters(), ack.getRegisters());
+			assertEquals(BrightPiMode.WHITE, my_bp.getMode());
+			assertTrue(my_bp.snapshot().isOn());
+		} finally
+		{
+			client.close();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testUdpBadFrame() throws IOException
+	{
+		final DatagramSocket socket = new DatagramSocket();
+		try
+		{
+			socket.setSoTimeout(5000);
+			socket.connect(my_server.getUdpAddress());
+
+			//The length field claims one more operation than the datagram holds.
+			final ByteBuffer request = frame(ByteBuffer.allocate(16), 9, BrightPiProtocol.OP_ON, 0, (byte) 0);
+			request.putInt(0, request.getInt(0) + BrightPiProtocol.OP_SIZE);
+			socket.send(new DatagramPacket(request.array(), request.position()));
+
+			final byte[] ack = new byte[BrightPiProtocol.ACK_SIZE];
+			final DatagramPacket packet = new DatagramPacket(ack, ack.length);
+			socket.receive(packet);
+			assertEquals(BrightPiProtocol.ACK_SIZE, packet.getLength());
+			assertEquals(9, ByteBuffer.wrap(ack).getInt(4));
+			assertEquals(BrightPiProtocol.STATUS_BAD_FRAME, ack[8]);
+			assertFalse("Bad datagram was applied", my_bp.snapshot().isOn());
+		} finally
+		{
+			socket.close();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testUdpStaleAcks() throws Exception
+	{
+		//A fake server answers with acknowledgements of earlier requests until the request is sent again.
+		final DatagramSocket server = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+		final Thread thread = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					final byte[] request = new byte[BrightPiProtocol.MAX_REQUEST];
+					final DatagramPacket packet = new DatagramPacket(request, request.length);
+					server.receive(packet);
+					final int sequence = ByteBuffer.wrap(request).getInt(4);
+					for (int stale = 1; stale <= STALE_ACKS; stale++)
+					{
+						server.send(ack(sequence - stale, packet));
+					}
+
+					server.receive(packet);
+					server.send(ack(sequence, packet));
+				} catch (IOException e)
+				{
+					//The client fails the test.
+				}
+			}
+		};
+		thread.start();
+
+		final BrightPiClient client = BrightPiClient.udp((InetSocketAddress) server.getLocalSocketAddress(), 200);
+		try
+		{
+			final BrightPiClient.Ack ack = client.call(new BrightPiClient.Batch().on());
+			assertEquals(1, ack.getSequence());
+			assertEquals(BrightPiProtocol.STATUS_OK, ack.getStatus());
+		} finally
+		{
+			client.close();
+			server.close();
+			thread.join();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testClose() throws IOException
+	{
+		//Once a request is acknowledged the connection has been accepted, and closing it ends the stream.
+		final DataInputStream in = new DataInputStream(my_socket.getInputStream());
+		send(frame(ByteBuffer.allocate(16), 1, BrightPiProtocol.OP_ON, 0, (byte) 0));
+		assertAck(in, 1, BrightPiProtocol.STATUS_OK);
+		my_server.close();
+		assertNull(my_server.getLastError());
+		assertEquals("Connection not closed", -1, my_socket.getInputStream().read());
+	}
+
+	/**
+	 * @return An acknowledgement datagram addressed to the sender of the packet.
+	 */
+	private static DatagramPacket ack(final int the_sequence, final DatagramPacket the_packet)
+	{
+		final ByteBuffer ack = ByteBuffer.allocate(BrightPiProtocol.ACK_SIZE);
+		ack.putInt(BrightPiProtocol.ACK_LENGTH).putInt(the_sequence).put(BrightPiProtocol.STATUS_OK);
+		return new DatagramPacket(ack.array(), ack.capacity(), the_packet.getSocketAddress());
+	}
+
+	/**
+	 * Appends a request of one operation.
+	 */
+	private static ByteBuffer frame(final ByteBuffer the_buffer, final int the_sequence, final byte the_op,
+			final int the_arg, final byte the_value)
+	{
+		the_buffer.putInt(BrightPiProtocol.REQUEST_HEADER + BrightPiProtocol.OP_SIZE).putInt(the_sequence)
+				.putShort((short) 1).put(the_op).put((byte) the_arg).put(the_value);
+		return the_buffer;
+	}
+
+	private void send(final ByteBuffer the_frames) throws IOException
+	{
+		final OutputStream out = my_socket.getOutputStream();
+		out.write(the_frames.array(), 0, the_frames.position());
+		out.flush();
+	}
+
+	private void assertAck(final DataInputStream the_in, final int the_sequence, final byte the_status)
+			throws IOException
+	{
+		assertEquals("Ack length", BrightPiProtocol.ACK_LENGTH, the_in.readInt());
+		assertEquals("Ack sequence", the_sequence, the_in.readInt());
+		assertEquals("Status of " + the_sequence, the_status, the_in.readByte());
+		final byte[] registers = new byte[BrightPiProtocol.REGISTER_COUNT];
+		the_in.readFully(registers);
+	}
+}
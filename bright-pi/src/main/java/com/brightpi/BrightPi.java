@@ -23,13 +23,19 @@
  */
 package com.brightpi;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.pi4j.io.i2c.I2CBus;
-import com.pi4j.io.i2c.I2CDevice;
-import com.pi4j.io.i2c.I2CFactory;
 import com.pi4j.io.i2c.I2CFactory.UnsupportedBusNumberException;
 
 /**
@@ -40,12 +46,28 @@ import com.pi4j.io.i2c.I2CFactory.UnsupportedBusNumberException;
  */
 public class BrightPi implements BrightPiBrightness
 {	
-	private static final byte DEFAULT_LED_BRIGHTNESS = LED_MIN;
+	static final byte DEFAULT_LED_BRIGHTNESS = LED_MIN;
 
 	/**
-	 * Only one instance of BrightPi since there should only be one on a Raspberry Pi.
+	 * Only one instance of BrightPi since there should only be one on a Raspberry Pi. Opened when first needed.
 	 */
-	private static BrightPi ME = null;
+	private static FutureTask<BrightPi> ME = null;
+
+	/**
+	 * System property selecting the {@link BrightPiStartup} of {@link #instance()}, "reset" by default.
+	 */
+	public static final String STARTUP_PROPERTY = "brightpi.startup";
+
+	/**
+	 * System property naming a {@link BrightPiSharedState} file for {@link #instance()}, not shared by default.
+	 */
+	public static final String SHARED_PROPERTY = "brightpi.shared";
+
+	/**
+	 * System property that protects the bus of {@link #instance()} with a {@link ResilientTransport} when set to
+	 * "true". Off by default, since every transaction then waits on a hand-off to the transport's worker thread.
+	 */
+	public static final String RESILIENT_PROPERTY = "brightpi.resilient";
 	
 	/**
 	 * Default gain for BrightPi.
@@ -66,73 +88,250 @@ public class BrightPi implements BrightPiBrightness
 	 * Address used to turn individual LEDs on or off. Value written at this address controls which LEDs are activated.
 	 */
 	private static final int LED_MASK_ADDRESS = 0x00;
+
+	/**
+	 * Number of registers on the chip: the LED mask, eight dimming registers and the gain.
+	 */
+	static final int REGISTER_COUNT = 10;
+
+	/**
+	 * Address of the first LED dimming register. The dimming registers are contiguous and followed by the gain.
+	 */
+	static final int FIRST_LED_ADDRESS = 0x01;
+
+	/**
+	 * Number of LED dimming registers.
+	 */
+	static final int LED_COUNT = 8;
+
+	/**
+	 * Largest run of unchanged registers that is rewritten to join two block writes. Every transaction repeats the
+	 * start condition, device address and register address, so rewriting a couple of registers is cheaper.
+	 */
+	private static final int MAX_BRIDGED_GAP = 2;
+	
+	/**
+	 * Transport used to reach the BrightPi.
+	 */
+	private final BrightPiTransport my_brightpi;
+
+	/**
+	 * Thread owning the bus when writes are queued, or null if writes go straight to the transport.
+	 */
+	private final BrightPiBusOwner my_bus_owner;
+
+	/**
+	 * Shadow copy of the device registers, indexed by register address.
+	 */
+	private final byte[] my_registers = new byte[REGISTER_COUNT];
+
+	/**
+	 * Bit set of the registers whose shadow value is known to match the device.
+	 */
+	private int my_known_registers;
+
+	/**
+	 * Register values waiting to be flushed to the device, indexed by register address.
+	 */
+	private final byte[] my_staged_registers = new byte[REGISTER_COUNT];
+
+	/**
+	 * Bit set of the staged registers that have not been flushed yet.
+	 */
+	private int my_dirty_registers;
+
+	/**
+	 * Buffer used to send runs of registers to the device.
+	 */
+	private final byte[] my_write_buffer = new byte[REGISTER_COUNT];
+
+	/**
+	 * Runs non-blocking animations, created when first used under my_lock.
+	 */
+	private volatile BrightPiAnimator my_animator;
+
+	/**
+	 * Counters and latencies of the bus traffic.
+	 */
+	private final BrightPiMetrics my_metrics = new BrightPiMetrics();
+
+	/**
+	 * Device lock, guarding the shadow and staged registers and the bus. A lock rather than a monitor, so a virtual
+	 * thread waiting for the bus unmounts from its carrier instead of pinning it.
+	 */
+	private final ReentrantLock my_lock = new ReentrantLock();
 	
 	/**
-	 * Maps modes to their appropriate values.
+	 * Current state of BrightPi. The registers are written from this state after it changes.
+	 */
+	private final AtomicReference<BrightPiState> my_state = new AtomicReference<BrightPiState>(BrightPiState.DEFAULT);
+
+	/**
+	 * Register image shared with other processes, or null if this process has the device to itself.
+	 */
+	private final BrightPiSharedState my_shared;
+
+	/**
+	 * Sequence counter of the shared image the state was last taken from or written to.
+	 */
+	private volatile long my_shared_sequence = -1;
+
+	/**
+	 * Last failure not yet taken by {@link #takeLastError()}.
+	 */
+	private final AtomicReference<BrightPiException> my_last_error = new AtomicReference<BrightPiException>();
+
+	/**
+	 * When a caller last took the device lock, from {@link System#nanoTime()}.
+	 */
+	private volatile long my_last_activity = System.nanoTime();
+
+	/**
+	 * Receives the registers read back by {@link #repair()}.
 	 */
-	private final Map<BrightPiMode, Byte> my_modes = new HashMap<BrightPiMode, Byte>();
+	private final byte[] my_verify_buffer = new byte[REGISTER_COUNT];
 
 	/**
-	 * Actual BrightPi I2C device.
+	 * Receives the shared image.
 	 */
-	private final I2CDevice my_brightpi;
+	private final byte[] my_shared_image = new byte[BrightPiSharedState.IMAGE_SIZE];
 	
 	/**
-	 * Current mode for BrightPi.
+	 * Gets instance of actual BrightPi device and starts it as set by {@link #STARTUP_PROPERTY}.
+	 * 
+	 * @throws BrightPiException If the bus or the shared state cannot be opened.
+	 */
+	private BrightPi() throws BrightPiException
+	{
+		this(openDefaultTransport(),
+				BrightPiStartup.valueOf(System.getProperty(STARTUP_PROPERTY, "reset").toUpperCase(Locale.ROOT)),
+				openSharedState());
+	}
+
+	/**
+	 * Uses a BrightPi reached through the given transport and resets it to default mode. Use this for a BrightPi that
+	 * is not at the default bus and address, or with a {@link SimulatedBrightPi}.
+	 * 
+	 * @param the_transport Transport used to reach the BrightPi.
 	 */
-	private BrightPiMode my_mode = DEFAULT_MODE;
+	public BrightPi(final BrightPiTransport the_transport)
+	{
+		this(the_transport, BrightPiStartup.RESET);
+	}
 
 	/**
-	 * Current gain for BrightPi.
+	 * Uses a BrightPi reached through the given transport.
+	 * 
+	 * @param the_transport Transport used to reach the BrightPi.
+	 * @param the_startup How to bring the BrightPi up.
 	 */
-	private BrightPiGain my_gain;
+	public BrightPi(final BrightPiTransport the_transport, final BrightPiStartup the_startup)
+	{
+		this(the_transport, the_startup, null);
+	}
 
 	/**
-	 * Indicates if BrightPi is current on.
+	 * Uses a BrightPi reached through the given transport, coordinating with other processes through a shared image.
+	 * If another process already wrote the image, its state is taken over and the startup is skipped, so joining
+	 * never resets the device under the other processes.
+	 * 
+	 * @param the_transport Transport used to reach the BrightPi.
+	 * @param the_startup How to bring the BrightPi up if no process has yet.
+	 * @param the_shared The shared image, or null if this process has the device to itself.
 	 */
-	private boolean i_am_on;
+	public BrightPi(final BrightPiTransport the_transport, final BrightPiStartup the_startup,
+			final BrightPiSharedState the_shared)
+	{
+		my_brightpi = the_transport;
+		my_bus_owner = the_transport instanceof BrightPiBusOwner ? (BrightPiBusOwner) the_transport : null;
+		my_shared = the_shared;
+		if (my_shared != null && my_shared.isInitialized())
+		{
+			refresh();
+		} else if (the_startup == BrightPiStartup.ADOPT && adopt())
+		{
+			//Let the other processes see the adopted state.
+			publish(my_state.get(), 0);
+		} else
+		{
+			clear();
+		}
+	}
 	
 	/**
-	 * Gets instance of actual BrightPi device and resets it to default mode.
+	 * Takes the state from the registers of the device, read in one transaction, without writing anything.
+	 * 
+	 * @return False if the registers could not be read.
 	 */
-	private BrightPi()
+	private boolean adopt()
 	{
-		populateModes();
-		I2CDevice device = null;
+		final byte[] registers = new byte[REGISTER_COUNT];
+		my_lock.lock();
 		try
 		{
-			final I2CBus i2c = I2CFactory.getInstance(I2CBus.BUS_1);
-			device = i2c.getDevice(BRIGHTPI_ADDRESS);
-		} catch (UnsupportedBusNumberException e)
+			if (!readBlock(0, registers))
+			{
+				return false;
+			}
+
+			my_state.set(BrightPiState.fromRegisters(registers, BrightPiMode.INDIVIDUAL.getLeds()));
+		} finally
+		{
+			my_lock.unlock();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Reads contiguous registers in one transaction and updates the shadow registers. Call while holding the device
+	 * lock.
+	 * 
+	 * @param the_address The first register to read.
+	 * @param the_buffer Receives the values, one per register.
+	 * @return False if the registers could not be read, or fewer were read than asked for.
+	 */
+	private boolean readBlock(final int the_address, final byte[] the_buffer)
+	{
+		forgetFailedWrites();
+		final int size = the_buffer.length;
+		final int mask = ((1 << size) - 1) << the_address;
+		final long start = System.nanoTime();
+		try
 		{
-			// TODO Exception handling
-			e.printStackTrace();
+			final int read = my_brightpi.read(the_address, the_buffer, 0, size);
+			if (read != size)
+			{
+				throw new BrightPiException("Read " + read + " of " + size + " registers.");
+			}
+
+			my_metrics.transaction(BrightPiMetrics.Operation.BLOCK_READ, the_address, size, System.nanoTime() - start,
+					true);
+			System.arraycopy(the_buffer, 0, my_registers, the_address, size);
+			my_known_registers |= mask;
+			return true;
 		} catch (IOException e)
 		{
-			// TODO Exception handling
-			e.printStackTrace();
+			my_metrics.transaction(BrightPiMetrics.Operation.BLOCK_READ, the_address, size, System.nanoTime() - start,
+					false);
+			failed(e);
+			my_known_registers &= ~mask;
+			return false;
 		}
-		
-		my_brightpi = device;
-		clear();
 	}
-	
+
 	/**
 	 * Resets BrightPi.
 	 */
 	public void clear()
 	{
-		off();
-		for (final BrightPiLED led : BrightPiLED.values())
-		{
-			write(led.getAddress(), DEFAULT_LED_BRIGHTNESS);
-		}
-		
-		setMode(DEFAULT_MODE);
-		setGain(DEFAULT_GAIN);
+		change(BrightPiTransaction.OP_CLEAR, 0, (byte) 0);
 	}
 
 	/**
+	 * Fades an LED, blocking until the fade is done. Use {@link #animator()} to fade without blocking or to fade
+	 * several LEDs at once.
+	 * 
 	 * @param the_led The LED to fade.
 	 * @param the_start Brightness value to start at.
 	 * @param the_end Brightness value to end at.
@@ -140,29 +339,71 @@ public class BrightPi implements BrightPiBrightness
 	 */
 	public void fade(final BrightPiLED the_led, final byte the_start, final byte the_end, final long the_delay)
 	{
-		byte value = the_start;
-		while (value != the_end)
+		fade(the_led, the_start, the_end, Math.abs(the_end - the_start) * the_delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Fades an LED over a fixed time, blocking until the fade is done. The brightness of each step comes from the time
+	 * elapsed since the fade started, so steps that fall due while the bus is busy are dropped instead of delaying
+	 * the end of the fade.
+	 * 
+	 * @param the_led The LED to fade.
+	 * @param the_start Brightness value to start at.
+	 * @param the_end Brightness value to end at.
+	 * @param the_duration Length of the fade.
+	 * @param the_unit Unit of the_duration.
+	 */
+	public void fade(final BrightPiLED the_led, final byte the_start, final byte the_end, final long the_duration,
+			final TimeUnit the_unit)
+	{
+		final long duration = the_unit.toNanos(the_duration);
+		final int steps = Math.abs(the_end - the_start);
+		final int direction = the_start < the_end ? 1 : -1;
+		final long start = System.nanoTime();
+		long elapsed = 0;
+		while (steps > 0 && elapsed < duration)
 		{
-			setLEDBrightness(the_led, value);
-			if (the_start < the_end)
-			{
-				value = (byte) (value + 0x01);
-			} else
+			final int step = (int) (steps * elapsed / duration);
+			setLEDBrightness(the_led, (byte) (the_start + direction * step));
+
+			//Sleep until the next step is due, measured from the start of the fade.
+			final long next = ((step + 1) * duration + steps - 1) / steps;
+			if (!parkUntil(start + next))
 			{
-				value = (byte) (value - 0x01);
+				//Stop fading and let the caller see the interrupt.
+				return;
 			}
-			
+
+			elapsed = System.nanoTime() - start;
+		}
+		
+		setLEDBrightness(the_led, the_end);
+	}
+
+	/**
+	 * @return The animator for this device, created when first used.
+	 */
+	public BrightPiAnimator animator()
+	{
+		BrightPiAnimator animator = my_animator;
+		if (animator == null)
+		{
+			my_lock.lock();
 			try
 			{
-				Thread.sleep(the_delay);
-			} catch (InterruptedException e)
+				animator = my_animator;
+				if (animator == null)
+				{
+					animator = new BrightPiAnimator(this);
+					my_animator = animator;
+				}
+			} finally
 			{
-				// TODO Exception handling
-				e.printStackTrace();
+				my_lock.unlock();
 			}
 		}
-		
-		write(the_led.getAddress(), value);
+
+		return animator;
 	}
 
 	/**
@@ -171,16 +412,17 @@ public class BrightPi implements BrightPiBrightness
 	 */
 	public boolean isOn()
 	{
-		return i_am_on;
+		return state().isOn();
 	}
 
 	/**
 
-	 * @return Current gain of BrightPi.
+	 * @return The gain setting closest to the current gain of BrightPi. Use {@link #snapshot()} and
+	 *         {@link BrightPiState#getGainValue()} for the exact register value.
 	 */
 	public BrightPiGain getGain()
 	{
-		return my_gain;
+		return state().getGain();
 	}
 	
 	/**
@@ -189,7 +431,44 @@ public class BrightPi implements BrightPiBrightness
 	 */
 	public BrightPiMode getMode()
 	{
-		return my_mode;
+		return state().getMode();
+	}
+
+	/**
+	 * Reads every register from the device in one bus transaction, so the values are consistent with each other. The
+	 * shadow registers are updated, the state of this BrightPi is not.
+	 * 
+	 * @return The state the device holds, or null if the device could not be read.
+	 */
+	public BrightPiState readState()
+	{
+		final byte[] registers = new byte[REGISTER_COUNT];
+		final long waiting = System.nanoTime();
+		my_lock.lock();
+		try
+		{
+			lockAcquired(waiting);
+			if (!readBlock(0, registers))
+			{
+				return null;
+			}
+		} finally
+		{
+			my_lock.unlock();
+		}
+
+		return BrightPiState.fromRegisters(registers, my_state.get().getIndividualMask());
+	}
+
+	/**
+	 * Gets the whole state without locking. The state is consistent: it is the result of a sequence of complete
+	 * operations, never part of one.
+	 * 
+	 * @return The current state of BrightPi.
+	 */
+	public BrightPiState snapshot()
+	{
+		return state();
 	}
 	
 	/**
@@ -198,24 +477,107 @@ public class BrightPi implements BrightPiBrightness
 	 */
 	public byte getCurrentOnLEDs()
 	{
+		return getCurrentOnLEDs(false);
+	}
+
+	/**
+	 * @param the_hardware_read True to read the mask from the device instead of the shadow register.
+	 * @return A bit-mask of LEDs that are currently on.
+	 */
+	public byte getCurrentOnLEDs(final boolean the_hardware_read)
+	{
+		return readRegister(LED_MASK_ADDRESS, the_hardware_read);
+	}
+
+	/**
+	 * Reads a register. The shadow copy is used unless a hardware read is requested or the register has not been
+	 * written or read yet.
+	 * 
+	 * @param the_address The address to read.
+	 * @param the_hardware_read True to always read the value from the device.
+	 * @return The value of the register, or -1 if the device could not be read.
+	 */
+	public byte readRegister(final int the_address, final boolean the_hardware_read)
+	{
+		final long waiting = System.nanoTime();
+		my_lock.lock();
+		try
+		{
+			lockAcquired(waiting);
+			return readLocked(the_address, the_hardware_read);
+		} finally
+		{
+			my_lock.unlock();
+		}
+	}
+
+	/**
+	 * Reads a register while holding the device lock.
+	 * 
+	 * @param the_address The address to read.
+	 * @param the_hardware_read True to always read the value from the device.
+	 * @return The value of the register, or -1 if the device could not be read.
+	 */
+	private byte readLocked(final int the_address, final boolean the_hardware_read)
+	{
+		forgetFailedWrites();
+		final int bit = 1 << the_address;
+		if (!the_hardware_read && (my_known_registers & bit) != 0)
+		{
+			return my_registers[the_address];
+		}
+
+		final long start = System.nanoTime();
 		try
 		{
-			return (byte) my_brightpi.read(LED_MASK_ADDRESS);
+			final byte value = (byte) my_brightpi.read(the_address);
+			my_metrics.transaction(BrightPiMetrics.Operation.READ, the_address, 1, System.nanoTime() - start, true);
+			my_registers[the_address] = value;
+			my_known_registers |= bit;
+			return value;
 		} catch (IOException e)
 		{
-			// TODO Exception handling
-			e.printStackTrace();
+			my_metrics.transaction(BrightPiMetrics.Operation.READ, the_address, 1, System.nanoTime() - start, false);
+			failed(e);
+			my_known_registers &= ~bit;
 			return -1;
 		}
 	}
 
+	/**
+	 * Commands do not throw when the bus fails: the registers that could not be written are forgotten, so the next
+	 * change rewrites them, and the failure is kept for this method. Reads report failures through their return
+	 * value.
+	 * 
+	 * @return The last failure since this method was last called, or null if nothing failed.
+	 */
+	public BrightPiException takeLastError()
+	{
+		return my_last_error.getAndSet(null);
+	}
+
+	/**
+	 * Forgets the shadow registers so the next write to each register goes to the device. Use this if something other
+	 * than this instance may have changed the device.
+	 */
+	public void invalidate()
+	{
+		my_lock.lock();
+		try
+		{
+			my_known_registers = 0;
+		} finally
+		{
+			my_lock.unlock();
+		}
+	}
+
 	/**
 	 * Turns all LEDs off.
 	 */
 	public void off()
 	{
-		write(LED_MASK_ADDRESS, BrightPiMode.OFF.getLeds());
-		i_am_on = false;
+		change(BrightPiTransaction.OP_OFF, 0, (byte) 0);
 	}
 
 	/**
@@ -223,8 +585,7 @@ public class BrightPi implements BrightPiBrightness
 	 */
 	public void on()
 	{
-		write(LED_MASK_ADDRESS, my_modes.get(getMode()));
-		i_am_on = true;
+		change(BrightPiTransaction.OP_ON, 0, (byte) 0);
 	}
 
 	/**
@@ -234,10 +595,111 @@ public class BrightPi implements BrightPiBrightness
 	 */
 	public void setGain(final BrightPiGain the_gain)
 	{
-		my_gain = the_gain;
-		write(BrightPiGain.GAIN_CHIP_ADDRESS, getGain().getGain());
+		change(BrightPiTransaction.OP_GAIN, the_gain.ordinal(), (byte) 0);
 	}
 	
+	/**
+	 * Sets the gain register to any value, including those between the {@link BrightPiGain} settings.
+	 * 
+	 * @param the_gain The gain from {@link BrightPiGain#MIN_GAIN} to {@link BrightPiGain#MAX_GAIN}.
+	 */
+	public void setGain(final byte the_gain)
+	{
+		checkGain(the_gain);
+		change(BrightPiTransaction.OP_GAIN_VALUE, 0, the_gain);
+	}
+
+	/**
+	 * Sets all LEDs to a perceptual brightness level of the default {@link BrightPiCurve}. The gain and brightness are
+	 * written together, and only if they change.
+	 * 
+	 * @param the_level The level from 0 to {@link BrightPiCurve#getMaxLevel()}.
+	 */
+	public void setBrightnessLevel(final int the_level)
+	{
+		setBrightnessLevel(BrightPiCurve.DEFAULT, the_level);
+	}
+
+	/**
+	 * Sets all LEDs to a perceptual brightness level. The gain and brightness are written together, and only if they
+	 * change.
+	 * 
+	 * @param the_curve The curve to use.
+	 * @param the_level The level from 0 to {@link BrightPiCurve#getMaxLevel()}.
+	 */
+	public void setBrightnessLevel(final BrightPiCurve the_curve, final int the_level)
+	{
+		batch().setBrightnessLevel(the_curve, the_level).commit();
+	}
+
+	/**
+	 * Sets one LED to a perceptual brightness level, keeping the current gain since the other LEDs share it.
+	 * 
+	 * @param the_led The LED to adjust the brightness of.
+	 * @param the_curve The curve to use.
+	 * @param the_level The level from 0 to {@link BrightPiCurve#getMaxLevel()}.
+	 */
+	public void setBrightnessLevel(final BrightPiLED the_led, final BrightPiCurve the_curve, final int the_level)
+	{
+		setLEDBrightness(the_led, the_curve.getDuty(the_level, state().getGainValue()));
+	}
+
+	/**
+	 * Fades all LEDs between perceptual brightness levels over a fixed time, blocking until the fade is done. The
+	 * registers are only written when the level reaches a different gain and brightness pair, and steps that fall
+	 * due while the bus is busy are dropped.
+	 * 
+	 * @param the_curve The curve to use.
+	 * @param the_start Level to start at.
+	 * @param the_end Level to end at.
+	 * @param the_duration Length of the fade.
+	 * @param the_unit Unit of the_duration.
+	 */
+	public void fadeBrightnessLevel(final BrightPiCurve the_curve, final int the_start, final int the_end,
+			final long the_duration, final TimeUnit the_unit)
+	{
+		final long duration = the_unit.toNanos(the_duration);
+		final int steps = Math.abs(the_end - the_start);
+		final int direction = the_start < the_end ? 1 : -1;
+		final BrightPiTransaction transaction = batch();
+		final long start = System.nanoTime();
+		long elapsed = 0;
+		while (steps > 0 && elapsed < duration)
+		{
+			int step = (int) (steps * elapsed / duration);
+			final int level = the_start + direction * step;
+			transaction.setBrightnessLevel(the_curve, level).commit();
+
+			//Sleep until the level reaches a different register pair.
+			while (step < steps && the_curve.isSame(level, the_start + direction * (step + 1)))
+			{
+				step++;
+			}
+
+			final long next = ((step + 1) * duration + steps - 1) / steps;
+			if (!parkUntil(start + next))
+			{
+				//Stop fading and let the caller see the interrupt.
+				return;
+			}
+
+			elapsed = System.nanoTime() - start;
+		}
+
+		transaction.setBrightnessLevel(the_curve, the_end).commit();
+	}
+
+	/**
+	 * Switches to a scene. Only the registers that differ from the device are written, with contiguous registers in
+	 * one block write, so switching between scenes usually takes one or two bus transactions.
+	 * 
+	 * @param the_scene The scene to switch to.
+	 */
+	public void apply(final BrightPiScene the_scene)
+	{
+		publish(the_scene.getState(), (1 << REGISTER_COUNT) - 1);
+	}
+
 	/**
 	 * Sets the brightness of all LEDs to the specified brightness.
 	 * 
@@ -245,10 +707,7 @@ public class BrightPi implements BrightPiBrightness
 	 */
 	public void setLEDBrightness(final byte the_value)
 	{
-		for (final BrightPiLED led : BrightPiLED.values())
-		{
-			setLEDBrightness(led, the_value);
-		}
+		change(BrightPiTransaction.OP_ALL_LEDS, 0, the_value);
 	}
 	
 	/**
@@ -259,13 +718,7 @@ public class BrightPi implements BrightPiBrightness
 	 */
 	public void setLEDBrightness(final BrightPiLED the_led, final byte the_value)
 	{
-		if (getMode() != BrightPiMode.INDIVIDUAL)
-		{
-			my_modes.put(BrightPiMode.INDIVIDUAL, getCurrentOnLEDs());
-			setMode(BrightPiMode.INDIVIDUAL);
-		}
-		
-		write(the_led.getAddress(), the_value);
+		change(BrightPiTransaction.OP_LED, the_led.ordinal(), the_value);
 	}
 
 	/**
@@ -275,53 +728,657 @@ public class BrightPi implements BrightPiBrightness
 	 */
 	public void setMode(final BrightPiMode the_mode)
 	{
-		my_mode = the_mode;
-		if (isOn())
-		{
-			//Write the new mode to the LED mask if device is on.
-			on();
-		}
+		change(BrightPiTransaction.OP_MODE, the_mode.ordinal(), (byte) 0);
 	}
 	
 	/**
-	 * @return The single instance of BrightPi.
+	 * @return Counters and latencies of the bus traffic of this device.
 	 */
-	public static BrightPi instance()
+	public BrightPiMetrics getMetrics()
 	{
-		if (ME == null)
-		{
-			ME = new BrightPi();
-		}
-		
-		return ME;
+		return my_metrics;
 	}
 
 	/**
-	 * Stores the BrightPi modes in a convenient location.
+	 * Starts a transaction. Changes made through the transaction are written when it is committed, using only the
+	 * register writes needed to reach the final state.
+	 * 
+	 * @return A new transaction for this device.
 	 */
-	private void populateModes()
+	public BrightPiTransaction batch()
 	{
-		for (final BrightPiMode mode : BrightPiMode.values())
-		{
-			my_modes.put(mode, mode.getLeds()); 
-		}
+		return new BrightPiTransaction(this);
 	}
 
 	/**
-	 * Writes the value to the address.
+	 * Gets the single instance of BrightPi, opening it on the calling thread if it has not been opened yet. If opening
+	 * fails, the next call tries again.
 	 * 
-	 * @param the_address The address to write to.
-	 * @param the_data The value to write to the address.
+	 * @return The single instance of BrightPi.
 	 */
-	private synchronized void write(final int the_address, final byte the_data)
+	public static BrightPi instance()
+	{
+		final FutureTask<BrightPi> task = opening();
+		//Does nothing if another thread opened or is opening the BrightPi.
+		task.run();
+		boolean interrupted = false;
+		try
+		{
+			while (true)
+			{
+				try
+				{
+					return task.get();
+				} catch (InterruptedException e)
+				{
+					interrupted = true;
+				} catch (ExecutionException e)
+				{
+					throw new IllegalStateException("BrightPi could not be opened.", e.getCause());
+				}
+			}
+		} finally
+		{
+			if (interrupted)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Opens the single instance of BrightPi on a background thread so the caller does not wait for the bus.
+	 * 
+	 * @return The single instance of BrightPi once it is open.
+	 */
+	public static Future<BrightPi> instanceAsync()
+	{
+		final FutureTask<BrightPi> task = opening();
+		if (!task.isDone())
+		{
+			BrightPiExecutors.threadFactory("BrightPi startup").newThread(task).start();
+		}
+
+		return task;
+	}
+
+	/**
+	 * @return The task that opens the single instance of BrightPi, created when first needed and again after a failed
+	 *         attempt, so a board that was briefly unavailable can still be opened.
+	 */
+	private static synchronized FutureTask<BrightPi> opening()
+	{
+		if (ME == null || hasFailed(ME))
+		{
+			ME = new FutureTask<BrightPi>(new Callable<BrightPi>()
+			{
+				@Override
+				public BrightPi call() throws BrightPiException
+				{
+					return new BrightPi();
+				}
+			});
+		}
+
+		return ME;
+	}
+
+	/**
+	 * @return True if the task has finished by throwing.
+	 */
+	private static boolean hasFailed(final FutureTask<BrightPi> the_task)
+	{
+		if (!the_task.isDone())
+		{
+			return false;
+		}
+
+		try
+		{
+			the_task.get();
+			return false;
+		} catch (ExecutionException e)
+		{
+			return true;
+		} catch (InterruptedException e)
+		{
+			//Cannot happen once the task is done.
+			return false;
+		}
+	}
+
+	/**
+	 * @param the_gain A gain register value.
+	 * @throws IllegalArgumentException If the value is outside the range of the gain register.
+	 */
+	static void checkGain(final byte the_gain)
+	{
+		if (the_gain < BrightPiGain.MIN_GAIN || the_gain > BrightPiGain.MAX_GAIN)
+		{
+			throw new IllegalArgumentException("Gain " + the_gain + " is not between " + BrightPiGain.MIN_GAIN
+					+ " and " + BrightPiGain.MAX_GAIN);
+		}
+	}
+
+	/**
+	 * @return The shared image named by {@link #SHARED_PROPERTY}, or null if none is named.
+	 * @throws BrightPiException If the shared image cannot be opened. Carrying on without it could clobber the other
+	 *             processes.
+	 */
+	private static BrightPiSharedState openSharedState() throws BrightPiException
+	{
+		final String file = System.getProperty(SHARED_PROPERTY);
+		if (file == null)
+		{
+			return null;
+		}
+
+		try
+		{
+			return new BrightPiSharedState(new File(file));
+		} catch (IOException e)
+		{
+			throw new BrightPiException("Shared state " + file + " could not be opened.", e);
+		}
+	}
+
+	/**
+	 * @return Transport for the BrightPi at the default bus and address, protected by a {@link ResilientTransport} if
+	 *         {@link #RESILIENT_PROPERTY} is "true".
+	 * @throws BrightPiUnavailableException If the bus cannot be opened.
+	 */
+	private static BrightPiTransport openDefaultTransport() throws BrightPiUnavailableException
+	{
+		try
+		{
+			final BrightPiTransport transport = I2CTransport.open(I2CBus.BUS_1, BRIGHTPI_ADDRESS);
+			return Boolean.getBoolean(RESILIENT_PROPERTY) ? new ResilientTransport(transport) : transport;
+		} catch (UnsupportedBusNumberException e)
+		{
+			throw new BrightPiUnavailableException("I2C bus " + I2CBus.BUS_1 + " does not exist.", e);
+		} catch (IOException e)
+		{
+			throw new BrightPiUnavailableException("I2C bus " + I2CBus.BUS_1 + " could not be opened.", e);
+		}
+	}
+
+	/**
+	 * Remembers a failure for {@link #takeLastError()}.
+	 * 
+	 * @param the_failure The failure.
+	 */
+	private void failed(final IOException the_failure)
 	{
+		my_last_error.set(the_failure instanceof BrightPiException ? (BrightPiException) the_failure
+				: new BrightPiException(the_failure.getMessage(), the_failure));
+	}
+
+	/**
+	 * Changes the state and writes the registers that follow from it.
+	 * 
+	 * @param the_op An operation, see {@link BrightPiTransaction}.
+	 * @param the_arg The enum ordinal of the operation.
+	 * @param the_value The value of the operation.
+	 */
+	private void change(final int the_op, final int the_arg, final byte the_value)
+	{
+		if (my_shared != null)
+		{
+			exclusive(new int[] { (the_op << 16) | (the_arg << 8) | (the_value & 0xff) }, 1, null, null, 0);
+			return;
+		}
+
+		BrightPiState current;
+		do
+		{
+			current = my_state.get();
+		} while (!my_state.compareAndSet(current, current.apply(the_op, the_arg, the_value)));
+
+		sync(BrightPiState.registersChanged(the_op, the_arg));
+	}
+
+	/**
+	 * Applies the operations of a transaction as a single change of state and writes the resulting registers in as
+	 * few bus transactions as possible.
+	 * 
+	 * @param the_ops The encoded operations, see {@link BrightPiTransaction}.
+	 * @param the_count Number of operations.
+	 */
+	void commit(final int[] the_ops, final int the_count)
+	{
+		if (my_shared != null)
+		{
+			exclusive(the_ops, the_count, null, null, 0);
+			return;
+		}
+
+		BrightPiState current;
+		BrightPiState next;
+		int registers;
+		do
+		{
+			current = my_state.get();
+			next = current;
+			registers = 0;
+			for (int i = 0; i < the_count; i++)
+			{
+				final int op = the_ops[i] >>> 16;
+				final int arg = (the_ops[i] >> 8) & 0xff;
+				next = next.apply(op, arg, (byte) the_ops[i]);
+				registers |= BrightPiState.registersChanged(op, arg);
+			}
+		} while (!my_state.compareAndSet(current, next));
+
+		sync(registers);
+	}
+
+	/**
+	 * Replaces the state without comparing it to the current one and writes the given registers. Used by
+	 * {@link BrightPiStrobe}, which prepares its states ahead of time so this never allocates.
+	 * 
+	 * @param the_state The new state.
+	 * @param the_registers Bit set of the register addresses to write.
+	 */
+	void publish(final BrightPiState the_state, final int the_registers)
+	{
+		if (my_shared != null)
+		{
+			exclusive(null, 0, null, the_state, the_registers);
+			return;
+		}
+
+		my_state.set(the_state);
+		sync(the_registers);
+	}
+
+	/**
+	 * Replaces the state if it is still the expected one, and writes the given registers. Used by
+	 * {@link BrightPiStrobe} to trigger from states prepared ahead of time without undoing changes made by others.
+	 * 
+	 * @param the_expected The state the BrightPi must be in.
+	 * @param the_state The new state.
+	 * @param the_registers Bit set of the register addresses to write.
+	 * @return False if the state had changed, in which case nothing was written.
+	 */
+	boolean publish(final BrightPiState the_expected, final BrightPiState the_state, final int the_registers)
+	{
+		if (my_shared != null)
+		{
+			return exclusive(null, 0, the_expected, the_state, the_registers);
+		}
+
+		if (!my_state.compareAndSet(the_expected, the_state))
+		{
+			return false;
+		}
+
+		sync(the_registers);
+		return true;
+	}
+
+	/**
+	 * Changes the state while holding the lock on the shared image, starting from the changes other processes made
+	 * and storing the result for them.
+	 * 
+	 * @param the_ops The encoded operations, see {@link BrightPiTransaction}.
+	 * @param the_count Number of operations.
+	 * @param the_expected State the current one must equal, or null to accept any.
+	 * @param the_state State replacing the current one before the operations are applied, or null to keep it.
+	 * @param the_registers Bit set of register addresses to write besides those the operations change.
+	 * @return False if the current state was not the expected one or the shared image could not be locked.
+	 */
+	private boolean exclusive(final int[] the_ops, final int the_count, final BrightPiState the_expected,
+			final BrightPiState the_state, final int the_registers)
+	{
+		final long waiting = System.nanoTime();
+		my_lock.lock();
 		try
 		{
-			my_brightpi.write(the_address, the_data);
+			lockAcquired(waiting);
+			try
+			{
+				my_shared.lock();
+			} catch (IOException e)
+			{
+				failed(e);
+				return false;
+			}
+
+			try
+			{
+				refresh();
+				if (the_expected != null && !the_expected.equals(my_state.get()))
+				{
+					return false;
+				}
+
+				BrightPiState next = the_state == null ? my_state.get() : the_state;
+				int registers = the_registers;
+				for (int i = 0; i < the_count; i++)
+				{
+					final int op = the_ops[i] >>> 16;
+					final int arg = (the_ops[i] >> 8) & 0xff;
+					next = next.apply(op, arg, (byte) the_ops[i]);
+					registers |= BrightPiState.registersChanged(op, arg);
+				}
+
+				my_state.set(next);
+				stageState(registers);
+				flush();
+				my_shared_sequence = my_shared.write(next);
+				return true;
+			} finally
+			{
+				my_shared.unlock();
+			}
+		} finally
+		{
+			my_lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The current state, first taking over changes other processes made to the shared image.
+	 */
+	private BrightPiState state()
+	{
+		if (my_shared != null && my_shared.getSequence() != my_shared_sequence)
+		{
+			my_lock.lock();
+			try
+			{
+				refresh();
+			} finally
+			{
+				my_lock.unlock();
+			}
+		}
+
+		return my_state.get();
+	}
+
+	/**
+	 * Takes the state and shadow registers from the shared image if another process changed it. The other process
+	 * wrote the registers, so they are known to match the device. Call while holding the device lock.
+	 */
+	private void refresh()
+	{
+		if (my_shared.getSequence() == my_shared_sequence)
+		{
+			return;
+		}
+
+		final long sequence = my_shared.read(my_shared_image);
+		if (sequence >= 0)
+		{
+			System.arraycopy(my_shared_image, 0, my_registers, 0, REGISTER_COUNT);
+			my_known_registers = (1 << REGISTER_COUNT) - 1;
+			my_state.set(BrightPiSharedState.decode(my_shared_image));
+			my_shared_sequence = sequence;
+		}
+	}
+
+	/**
+	 * Writes registers from the current state. Because the values are taken from the latest state while holding the
+	 * device lock, the last write to reach the device always matches the latest state.
+	 * 
+	 * @param the_registers Bit set of the register addresses to write.
+	 */
+	private void sync(final int the_registers)
+	{
+		final long waiting = System.nanoTime();
+		my_lock.lock();
+		try
+		{
+			lockAcquired(waiting);
+			stageState(the_registers);
+			flush();
+		} finally
+		{
+			my_lock.unlock();
+		}
+	}
+
+	/**
+	 * Stages registers from the current state. Call while holding the device lock.
+	 * 
+	 * @param the_registers Bit set of the register addresses to stage.
+	 */
+	private void stageState(final int the_registers)
+	{
+		final BrightPiState state = my_state.get();
+		for (int address = 0; address < REGISTER_COUNT; address++)
+		{
+			if ((the_registers & (1 << address)) != 0)
+			{
+				stage(address, state.getRegister(address));
+			}
+		}
+	}
+
+	/**
+	 * Records how long the caller waited for the device lock.
+	 * 
+	 * @param the_waiting When the caller started waiting, from {@link System#nanoTime()}.
+	 */
+	private void lockAcquired(final long the_waiting)
+	{
+		final long now = System.nanoTime();
+		my_metrics.lockWait(now - the_waiting);
+		my_last_activity = now;
+	}
+
+	/**
+	 * Waits for a deadline by parking, which lets a virtual thread unmount while it waits.
+	 * 
+	 * @param the_deadline When to stop waiting, from {@link System#nanoTime()}.
+	 * @return False if the thread was interrupted, which is left set for the caller.
+	 */
+	private static boolean parkUntil(final long the_deadline)
+	{
+		long remaining;
+		while ((remaining = the_deadline - System.nanoTime()) > 0)
+		{
+			LockSupport.parkNanos(remaining);
+			if (Thread.currentThread().isInterrupted())
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return When a caller last used the device, from {@link System#nanoTime()}. {@link #repair()} does not count.
+	 */
+	long lastActivity()
+	{
+		return my_last_activity;
+	}
+
+	/**
+	 * Reads every register back in one transaction and rewrites the ones that no longer match the state, for example
+	 * after a brown-out reset the chip. Used by {@link BrightPiWatchdog}.
+	 * 
+	 * @return Number of registers that had drifted, or -1 if the device could not be read.
+	 */
+	int repair()
+	{
+		my_lock.lock();
+		try
+		{
+			if (my_shared != null)
+			{
+				try
+				{
+					my_shared.lock();
+				} catch (IOException e)
+				{
+					failed(e);
+					return -1;
+				}
+			}
+
+			try
+			{
+				if (my_shared != null)
+				{
+					refresh();
+				}
+
+				//Reading updates the shadow registers, so the flush below only rewrites the registers that drifted.
+				if (!readBlock(0, my_verify_buffer))
+				{
+					return -1;
+				}
+
+				final BrightPiState state = my_state.get();
+				int drifted = 0;
+				for (int address = 0; address < REGISTER_COUNT; address++)
+				{
+					if (my_verify_buffer[address] != state.getRegister(address))
+					{
+						drifted++;
+					}
+				}
+
+				if (drifted > 0)
+				{
+					stageState((1 << REGISTER_COUNT) - 1);
+					flush();
+				}
+
+				return drifted;
+			} finally
+			{
+				if (my_shared != null)
+				{
+					my_shared.unlock();
+				}
+			}
+		} finally
+		{
+			my_lock.unlock();
+		}
+	}
+
+	/**
+	 * Records the value a register should hold without writing it.
+	 * 
+	 * @param the_address The address of the register.
+	 * @param the_data The value of the register.
+	 */
+	private void stage(final int the_address, final byte the_data)
+	{
+		my_staged_registers[the_address] = the_data;
+		my_dirty_registers |= 1 << the_address;
+	}
+
+	/**
+	 * Writes the staged registers that differ from the shadow copy. Runs of changed registers are merged into block
+	 * writes, bridging short gaps of known registers since rewriting them is cheaper than starting another transaction.
+	 */
+	private void flush()
+	{
+		forgetFailedWrites();
+		int pending = 0;
+		int elided = 0;
+		int coalesced = 0;
+		for (int address = 0; address < REGISTER_COUNT; address++)
+		{
+			final int bit = 1 << address;
+			if ((my_dirty_registers & bit) != 0)
+			{
+				if ((my_known_registers & bit) == 0 || my_registers[address] != my_staged_registers[address])
+				{
+					pending |= bit;
+				} else
+				{
+					elided++;
+				}
+			}
+		}
+
+		int address = 0;
+		while (pending != 0)
+		{
+			while ((pending & (1 << address)) == 0)
+			{
+				address++;
+			}
+
+			final int start = address;
+			int end = address;
+			for (int next = end + 1; next < REGISTER_COUNT && next - end - 1 <= MAX_BRIDGED_GAP; next++)
+			{
+				final int bit = 1 << next;
+				if ((pending & bit) != 0)
+				{
+					end = next;
+				} else if ((my_known_registers & bit) == 0)
+				{
+					break;
+				}
+			}
+
+			final int before = Integer.bitCount(pending);
+			for (int i = start; i <= end; i++)
+			{
+				final int bit = 1 << i;
+				my_write_buffer[i - start] = (pending & bit) != 0 ? my_staged_registers[i] : my_registers[i];
+				pending &= ~bit;
+			}
+
+			coalesced += before - Integer.bitCount(pending) - 1;
+			transmit(start, end - start + 1);
+			address = end + 1;
+		}
+
+		my_dirty_registers = 0;
+		my_metrics.flushed(elided, coalesced);
+	}
+
+	/**
+	 * Forgets the registers whose queued writes failed on the bus owner thread, so they are rewritten.
+	 */
+	private void forgetFailedWrites()
+	{
+		if (my_bus_owner != null)
+		{
+			my_known_registers &= ~my_bus_owner.takeFailedRegisters();
+		}
+	}
+
+	/**
+	 * Sends the write buffer to the device and updates the shadow registers.
+	 * 
+	 * @param the_address The first address to write to.
+	 * @param the_size Number of registers in the write buffer.
+	 */
+	private void transmit(final int the_address, final int the_size)
+	{
+		final int mask = ((1 << the_size) - 1) << the_address;
+		final BrightPiMetrics.Operation operation = the_size == 1
+				? BrightPiMetrics.Operation.WRITE : BrightPiMetrics.Operation.BLOCK_WRITE;
+		final long start = System.nanoTime();
+		try
+		{
+			if (the_size == 1)
+			{
+				my_brightpi.write(the_address, my_write_buffer[0]);
+			} else
+			{
+				my_brightpi.write(the_address, my_write_buffer, 0, the_size);
+			}
+			my_metrics.transaction(operation, the_address, the_size, System.nanoTime() - start, true);
+			System.arraycopy(my_write_buffer, 0, my_registers, the_address, the_size);
+			my_known_registers |= mask;
 		} catch (IOException e)
 		{
-			// TODO Exception handling
-			e.printStackTrace();
+			my_metrics.transaction(operation, the_address, the_size, System.nanoTime() - start, false);
+			failed(e);
+			my_known_registers &= ~mask;
 		}
 	}
 }
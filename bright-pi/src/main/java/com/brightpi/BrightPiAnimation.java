@@ -0,0 +1,316 @@
+/*
+ * MIT License
+ * 
+ * Copyright (c) 2016 Michael Westbrook
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.brightpi;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * An animation of a single LED run by a {@link BrightPiAnimator}. The brightness is computed from the time elapsed
+ * since the animation started, so a late tick never stretches the animation. The animation can be cancelled or waited
+ * on like any other {@link Future}.
+ * 
+ * @author Mike Westbrook
+ *
+ */
+public abstract class BrightPiAnimation implements Future<Void>
+{
+	private static final int RUNNING = 0;
+
+	private static final int DONE = 1;
+
+	private static final int CANCELLED = 2;
+
+	private static final int FAILED = 3;
+
+	/**
+	 * The LED being animated.
+	 */
+	private final BrightPiLED my_led;
+
+	/**
+	 * Length of the animation in nanoseconds, or a negative value if it runs until cancelled.
+	 */
+	private final long my_duration;
+
+	/**
+	 * Released when the animation finishes, fails or is cancelled.
+	 */
+	private final CountDownLatch my_latch = new CountDownLatch(1);
+
+	/**
+	 * Current status of the animation.
+	 */
+	private volatile int my_status = RUNNING;
+
+	/**
+	 * Reason the animation failed.
+	 */
+	private volatile Throwable my_failure;
+
+	/**
+	 * Animator running this animation.
+	 */
+	private volatile BrightPiAnimator my_animator;
+
+	/**
+	 * Time the animation started, from {@link System#nanoTime()}.
+	 */
+	private long my_start;
+
+	/**
+	 * @param the_led The LED to animate.
+	 * @param the_duration Length of the animation in nanoseconds, or a negative value if it runs until cancelled.
+	 */
+	protected BrightPiAnimation(final BrightPiLED the_led, final long the_duration)
+	{
+		my_led = the_led;
+		my_duration = the_duration;
+	}
+
+	/**
+	 * Creates a linear fade.
+	 * 
+	 * @param the_led The LED to fade.
+	 * @param the_start Brightness value to start at.
+	 * @param the_end Brightness value to end at.
+	 * @param the_duration Length of the fade.
+	 * @param the_unit Unit of the_duration.
+	 * @return The fade, not started yet.
+	 * @throws IllegalArgumentException If the duration is negative.
+	 */
+	public static BrightPiAnimation fade(final BrightPiLED the_led, final byte the_start, final byte the_end,
+			final long the_duration, final TimeUnit the_unit)
+	{
+		if (the_duration < 0)
+		{
+			throw new IllegalArgumentException("Negative duration " + the_duration + " " + the_unit);
+		}
+
+		final long duration = the_unit.toNanos(the_duration);
+		return new BrightPiAnimation(the_led, duration)
+		{
+			@Override
+			protected byte valueAt(final long the_elapsed)
+			{
+				if (the_elapsed >= duration)
+				{
+					return the_end;
+				}
+
+				return (byte) (the_start + (the_end - the_start) * the_elapsed / duration);
+			}
+		};
+	}
+
+	/**
+	 * Creates a pulse that ramps from the low to the high brightness and back once per period.
+	 * 
+	 * @param the_led The LED to pulse.
+	 * @param the_low Brightness at the start and end of each period.
+	 * @param the_high Brightness in the middle of each period.
+	 * @param the_period Length of one pulse.
+	 * @param the_unit Unit of the_period.
+	 * @param the_cycles Number of pulses, or 0 to pulse until cancelled.
+	 * @return The pulse, not started yet.
+	 * @throws IllegalArgumentException If the period is not positive, the cycles are negative or the pulse would last
+	 *             longer than {@link Long#MAX_VALUE} nanoseconds.
+	 */
+	public static BrightPiAnimation pulse(final BrightPiLED the_led, final byte the_low, final byte the_high,
+			final long the_period, final TimeUnit the_unit, final int the_cycles)
+	{
+		final long period = the_unit.toNanos(the_period);
+		if (the_period <= 0 || period <= 0)
+		{
+			throw new IllegalArgumentException("Period " + the_period + " " + the_unit + " is not positive");
+		}
+
+		if (the_cycles < 0 || the_cycles > 0 && period > Long.MAX_VALUE / the_cycles)
+		{
+			throw new IllegalArgumentException("Invalid number of cycles " + the_cycles);
+		}
+
+		final long half = Math.max(1, period / 2);
+		return new BrightPiAnimation(the_led, the_cycles > 0 ? period * the_cycles : -1)
+		{
+			@Override
+			protected byte valueAt(final long the_elapsed)
+			{
+				if (isFinished(the_elapsed))
+				{
+					return the_low;
+				}
+
+				final long phase = the_elapsed % period;
+				final long rising = phase < half ? phase : Math.max(0, period - phase);
+				return (byte) (the_low + (the_high - the_low) * Math.min(rising, half) / half);
+			}
+		};
+	}
+
+	/**
+	 * @return The LED being animated.
+	 */
+	public BrightPiLED getLED()
+	{
+		return my_led;
+	}
+
+	/**
+	 * Computes the brightness of the LED.
+	 * 
+	 * @param the_elapsed Nanoseconds since the animation started.
+	 * @return The brightness the LED should have.
+	 */
+	protected abstract byte valueAt(long the_elapsed);
+
+	/**
+	 * @param the_elapsed Nanoseconds since the animation started.
+	 * @return True if the animation has reached its end.
+	 */
+	protected boolean isFinished(final long the_elapsed)
+	{
+		return my_duration >= 0 && the_elapsed >= my_duration;
+	}
+
+	@Override
+	public boolean cancel(final boolean the_interrupt)
+	{
+		if (!finish(CANCELLED, null))
+		{
+			return false;
+		}
+
+		final BrightPiAnimator animator = my_animator;
+		if (animator != null)
+		{
+			animator.remove(this);
+		}
+
+		return true;
+	}
+
+	@Override
+	public boolean isCancelled()
+	{
+		return my_status == CANCELLED;
+	}
+
+	@Override
+	public boolean isDone()
+	{
+		return my_status != RUNNING;
+	}
+
+	@Override
+	public Void get() throws InterruptedException, ExecutionException
+	{
+		my_latch.await();
+		return result();
+	}
+
+	@Override
+	public Void get(final long the_timeout, final TimeUnit the_unit)
+			throws InterruptedException, ExecutionException, TimeoutException
+	{
+		if (!my_latch.await(the_timeout, the_unit))
+		{
+			throw new TimeoutException();
+		}
+
+		return result();
+	}
+
+	/**
+	 * Called by the animator when the animation is started.
+	 */
+	void start(final BrightPiAnimator the_animator, final long the_now)
+	{
+		my_animator = the_animator;
+		my_start = the_now;
+	}
+
+	/**
+	 * @return Nanoseconds since the animation started.
+	 */
+	long elapsed(final long the_now)
+	{
+		return the_now - my_start;
+	}
+
+	/**
+	 * Completes the animation.
+	 * 
+	 * @param the_status How the animation completed.
+	 * @param the_failure Reason the animation failed, if it did.
+	 * @return True if the animation was still running.
+	 */
+	synchronized boolean finish(final int the_status, final Throwable the_failure)
+	{
+		if (my_status != RUNNING)
+		{
+			return false;
+		}
+
+		my_failure = the_failure;
+		my_status = the_status;
+		my_latch.countDown();
+		return true;
+	}
+
+	/**
+	 * Marks the animation as having reached its end.
+	 */
+	void complete()
+	{
+		finish(DONE, null);
+	}
+
+	/**
+	 * Marks the animation as failed.
+	 */
+	void fail(final Throwable the_failure)
+	{
+		finish(FAILED, the_failure);
+	}
+
+	private Void result() throws ExecutionException
+	{
+		if (my_status == CANCELLED)
+		{
+			throw new CancellationException();
+		}
+
+		if (my_status == FAILED)
+		{
+			throw new ExecutionException(my_failure);
+		}
+
+		return null;
+	}
+}
@@ -0,0 +1,349 @@
+/*
+ * MIT License
+ * 
+ * Copyright (c) 2016 Michael Westbrook
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.brightpi;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs animations on any number of LEDs without blocking the caller. A single scheduler thread ticks at a fixed rate,
+ * computes the brightness of every animated LED and writes the results in one {@link BrightPiTransaction}, so only
+ * the registers that changed during the tick reach the bus. The scheduler only ticks while animations are running.
+ * An animation that throws fails on its own, through its {@link BrightPiAnimation#get()}, and the others keep running.
+ * 
+ * @author Mike Westbrook
+ *
+ */
+public class BrightPiAnimator
+{
+	/**
+	 * Default time between ticks in milliseconds.
+	 */
+	public static final long DEFAULT_TICK_MILLIS = 10;
+
+	/**
+	 * Device being animated.
+	 */
+	private final BrightPi my_brightpi;
+
+	/**
+	 * Time between ticks in nanoseconds.
+	 */
+	private final long my_tick;
+
+	/**
+	 * Runs the ticks.
+	 */
+	private final ScheduledExecutorService my_scheduler;
+
+	/**
+	 * Guards the running animations and the ticker. A lock rather than a monitor, so virtual threads starting
+	 * animations park instead of pinning their carriers while a tick copies the animations.
+	 */
+	private final ReentrantLock my_lock = new ReentrantLock();
+
+	/**
+	 * Running animations indexed by LED ordinal. Guarded by my_lock.
+	 */
+	private final BrightPiAnimation[] my_animations = new BrightPiAnimation[BrightPi.LED_COUNT];
+
+	/**
+	 * Copy of the running animations used by the tick thread.
+	 */
+	private final BrightPiAnimation[] my_tick_animations = new BrightPiAnimation[BrightPi.LED_COUNT];
+
+	/**
+	 * Transaction reused by every tick.
+	 */
+	private final BrightPiTransaction my_transaction;
+
+	/**
+	 * Scheduled tick, or null if no animations are running. Guarded by my_lock.
+	 */
+	private ScheduledFuture<?> my_ticker;
+
+	private final Runnable my_tick_task = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			tick();
+		}
+	};
+
+	/**
+	 * Creates an animator that ticks every {@link #DEFAULT_TICK_MILLIS} milliseconds.
+	 * 
+	 * @param the_brightpi Device to animate.
+	 */
+	public BrightPiAnimator(final BrightPi the_brightpi)
+	{
+		this(the_brightpi, DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param the_brightpi Device to animate.
+	 * @param the_tick Time between ticks.
+	 * @param the_unit Unit of the_tick.
+	 */
+	public BrightPiAnimator(final BrightPi the_brightpi, final long the_tick, final TimeUnit the_unit)
+	{
+		my_brightpi = the_brightpi;
+		my_tick = the_unit.toNanos(the_tick);
+		my_transaction = the_brightpi.batch();
+		my_scheduler = Executors.newSingleThreadScheduledExecutor(BrightPiExecutors.threadFactory("BrightPi animator"));
+	}
+
+	/**
+	 * Starts an animation. Any animation already running on the same LED is cancelled.
+	 * 
+	 * @param the_animation The animation to start.
+	 * @return the_animation.
+	 */
+	public BrightPiAnimation play(final BrightPiAnimation the_animation)
+	{
+		my_lock.lock();
+		try
+		{
+			final int channel = the_animation.getLED().ordinal();
+			final BrightPiAnimation previous = my_animations[channel];
+			my_animations[channel] = the_animation;
+			if (previous != null)
+			{
+				previous.cancel(false);
+			}
+
+			the_animation.start(this, System.nanoTime());
+			if (my_ticker == null || my_ticker.isDone())
+			{
+				my_ticker = my_scheduler.scheduleAtFixedRate(my_tick_task, 0, my_tick, TimeUnit.NANOSECONDS);
+			}
+
+			return the_animation;
+		} finally
+		{
+			my_lock.unlock();
+		}
+	}
+
+	/**
+	 * Fades an LED linearly.
+	 * 
+	 * @param the_led The LED to fade.
+	 * @param the_start Brightness value to start at.
+	 * @param the_end Brightness value to end at.
+	 * @param the_duration Length of the fade.
+	 * @param the_unit Unit of the_duration.
+	 * @return The running fade.
+	 */
+	public BrightPiAnimation fade(final BrightPiLED the_led, final byte the_start, final byte the_end,
+			final long the_duration, final TimeUnit the_unit)
+	{
+		return play(BrightPiAnimation.fade(the_led, the_start, the_end, the_duration, the_unit));
+	}
+
+	/**
+	 * Fades an LED linearly from its current brightness.
+	 * 
+	 * @param the_led The LED to ramp.
+	 * @param the_end Brightness value to end at.
+	 * @param the_duration Length of the ramp.
+	 * @param the_unit Unit of the_duration.
+	 * @return The running ramp.
+	 */
+	public BrightPiAnimation ramp(final BrightPiLED the_led, final byte the_end, final long the_duration,
+			final TimeUnit the_unit)
+	{
+		final byte start = my_brightpi.readRegister(the_led.getAddress(), false);
+		return fade(the_led, start, the_end, the_duration, the_unit);
+	}
+
+	/**
+	 * Pulses an LED between two brightness values.
+	 * 
+	 * @param the_led The LED to pulse.
+	 * @param the_low Brightness at the start and end of each period.
+	 * @param the_high Brightness in the middle of each period.
+	 * @param the_period Length of one pulse.
+	 * @param the_unit Unit of the_period.
+	 * @param the_cycles Number of pulses, or 0 to pulse until cancelled.
+	 * @return The running pulse.
+	 */
+	public BrightPiAnimation pulse(final BrightPiLED the_led, final byte the_low, final byte the_high,
+			final long the_period, final TimeUnit the_unit, final int the_cycles)
+	{
+		return play(BrightPiAnimation.pulse(the_led, the_low, the_high, the_period, the_unit, the_cycles));
+	}
+
+	/**
+	 * Cancels all running animations. The LEDs keep their current brightness.
+	 */
+	public void cancelAll()
+	{
+		for (final BrightPiAnimation animation : running())
+		{
+			if (animation != null)
+			{
+				animation.cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * Cancels all running animations and stops the scheduler thread.
+	 */
+	public void shutdown()
+	{
+		cancelAll();
+		my_scheduler.shutdown();
+	}
+
+	/**
+	 * Removes an animation that was cancelled.
+	 */
+	void remove(final BrightPiAnimation the_animation)
+	{
+		my_lock.lock();
+		try
+		{
+			final int channel = the_animation.getLED().ordinal();
+			if (my_animations[channel] == the_animation)
+			{
+				my_animations[channel] = null;
+			}
+		} finally
+		{
+			my_lock.unlock();
+		}
+	}
+
+	/**
+	 * @return A copy of the running animations.
+	 */
+	private BrightPiAnimation[] running()
+	{
+		my_lock.lock();
+		try
+		{
+			return my_animations.clone();
+		} finally
+		{
+			my_lock.unlock();
+		}
+	}
+
+	/**
+	 * Computes every animated LED and writes the changes in one transaction.
+	 */
+	private void tick()
+	{
+		my_lock.lock();
+		try
+		{
+			System.arraycopy(my_animations, 0, my_tick_animations, 0, my_animations.length);
+		} finally
+		{
+			my_lock.unlock();
+		}
+
+		final long now = System.nanoTime();
+		boolean finished = false;
+		for (final BrightPiAnimation animation : my_tick_animations)
+		{
+			if (animation != null && !animation.isDone())
+			{
+				try
+				{
+					final long elapsed = animation.elapsed(now);
+					my_transaction.setLEDBrightness(animation.getLED(), animation.valueAt(elapsed));
+					finished |= animation.isFinished(elapsed);
+				} catch (RuntimeException e)
+				{
+					//An exception escaping the tick would cancel the ticker for every animation.
+					animation.fail(e);
+					remove(animation);
+				}
+			}
+		}
+
+		try
+		{
+			my_transaction.commit();
+		} catch (RuntimeException e)
+		{
+			for (final BrightPiAnimation animation : my_tick_animations)
+			{
+				if (animation != null)
+				{
+					animation.fail(e);
+					remove(animation);
+				}
+			}
+		}
+
+		if (finished)
+		{
+			for (final BrightPiAnimation animation : my_tick_animations)
+			{
+				if (animation != null && !animation.isDone() && animation.isFinished(animation.elapsed(now)))
+				{
+					animation.complete();
+					remove(animation);
+				}
+			}
+		}
+
+		my_lock.lock();
+		try
+		{
+			if (isIdle() && my_ticker != null)
+			{
+				my_ticker.cancel(false);
+				my_ticker = null;
+			}
+		} finally
+		{
+			my_lock.unlock();
+		}
+	}
+
+	/**
+	 * @return True if no animations are running. Call while holding my_lock.
+	 */
+	private boolean isIdle()
+	{
+		for (final BrightPiAnimation animation : my_animations)
+		{
+			if (animation != null)
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+}
@@ -0,0 +1,476 @@
+/*
+ * MIT License
+ * 
+ * Copyright (c) 2016 Michael Westbrook
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.brightpi;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Gives a single thread ownership of a transport. Writes are put in a lock-free ring and return immediately, so a slow
+ * bus never blocks the calling thread; the owner thread drains the ring in batches, merges writes to the same
+ * register and sends contiguous registers as block writes. Reads wait for the writes submitted before them.
+ * <p>
+ * Use it by wrapping the real transport: <code>new BrightPi(new BrightPiBusOwner(transport))</code>. A write that
+ * fails on the owner thread cannot be reported to its caller, so the BrightPi using this transport forgets the
+ * registers involved and rewrites them on the next change. A read that is not answered within {@link #READ_TIMEOUT}
+ * milliseconds fails with a {@link BrightPiTimeoutException}, and once the owner is closed, or its thread has stopped,
+ * every command fails with a {@link BrightPiUnavailableException}.
+ * 
+ * @author Mike Westbrook
+ *
+ */
+public class BrightPiBusOwner implements BrightPiTransport
+{
+	/**
+	 * Default number of commands the ring holds.
+	 */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * Longest a read waits for the owner thread, in milliseconds.
+	 */
+	public static final long READ_TIMEOUT = 1000;
+
+	/**
+	 * Largest number of commands drained before the merged writes are sent.
+	 */
+	private static final int BATCH = 64;
+
+	/**
+	 * Longest the owner thread sleeps before checking the ring again.
+	 */
+	private static final long IDLE_PARK = TimeUnit.MILLISECONDS.toNanos(1);
+
+	/**
+	 * Transport owned by the owner thread.
+	 */
+	private final BrightPiTransport my_transport;
+
+	private final BrightPiCommandRing my_ring;
+
+	private final Thread my_thread;
+
+	/**
+	 * Position of the first command that has not been completed.
+	 */
+	private final AtomicLong my_completed = new AtomicLong();
+
+	/**
+	 * Bit set of the registers whose writes failed and have not been reported yet.
+	 */
+	private final AtomicInteger my_failed_registers = new AtomicInteger();
+
+	private final AtomicLong my_merged = new AtomicLong();
+
+	private final AtomicLong my_errors = new AtomicLong();
+
+	private volatile boolean i_am_running = true;
+
+	private volatile boolean i_am_sleeping;
+
+	/**
+	 * Merged register values waiting to be sent. Only used by the owner thread.
+	 */
+	private final byte[] my_image = new byte[BrightPi.REGISTER_COUNT];
+
+	/**
+	 * Bit set of the merged registers waiting to be sent. Only used by the owner thread.
+	 */
+	private int my_dirty;
+
+	/**
+	 * Creates an owner with a ring of {@link #DEFAULT_CAPACITY} commands.
+	 * 
+	 * @param the_transport The transport to own.
+	 */
+	public BrightPiBusOwner(final BrightPiTransport the_transport)
+	{
+		this(the_transport, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param the_transport The transport to own.
+	 * @param the_capacity Number of commands the ring holds, rounded up to a power of two.
+	 */
+	public BrightPiBusOwner(final BrightPiTransport the_transport, final int the_capacity)
+	{
+		my_transport = the_transport;
+		my_ring = new BrightPiCommandRing(the_capacity);
+		my_thread = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				drainLoop();
+			}
+		}, "BrightPi bus owner");
+		my_thread.setDaemon(true);
+		my_thread.start();
+	}
+
+	@Override
+	public void write(final int the_address, final byte the_data) throws IOException
+	{
+		if (my_ring.offerWrite(the_address, the_data) < 0)
+		{
+			throw closed();
+		}
+
+		wake();
+	}
+
+	@Override
+	public void write(final int the_address, final byte[] the_buffer, final int the_offset, final int the_size)
+			throws IOException
+	{
+		if (my_ring.offerWrite(the_address, the_buffer, the_offset, the_size) < 0)
+		{
+			throw closed();
+		}
+
+		wake();
+	}
+
+	@Override
+	public int read(final int the_address) throws IOException
+	{
+		final ReadRequest request = submitRead(the_address, 1);
+		return request.my_buffer[0] & 0xff;
+	}
+
+	@Override
+	public int read(final int the_address, final byte[] the_buffer, final int the_offset, final int the_size)
+			throws IOException
+	{
+		final ReadRequest request = submitRead(the_address, the_size);
+		System.arraycopy(request.my_buffer, 0, the_buffer, the_offset, the_size);
+		return the_size;
+	}
+
+	/**
+	 * @return Position of the last command submitted so far, to pass to {@link #awaitCompletion(long)}.
+	 */
+	public long lastSubmitted()
+	{
+		return my_ring.tail() - 1;
+	}
+
+	/**
+	 * Waits until a command and every command before it have been sent.
+	 * 
+	 * @param the_position Position of the command, from {@link #lastSubmitted()}.
+	 * @throws InterruptedException If the thread was interrupted while waiting.
+	 * @throws IllegalStateException If the owner thread stopped before the command was sent.
+	 */
+	public void awaitCompletion(final long the_position) throws InterruptedException
+	{
+		int spins = 0;
+		while (my_completed.get() <= the_position)
+		{
+			if (Thread.interrupted())
+			{
+				throw new InterruptedException();
+			}
+
+			if (!my_thread.isAlive() && my_completed.get() <= the_position)
+			{
+				throw new IllegalStateException("Bus owner stopped before command " + the_position + " was sent.");
+			}
+
+			if (++spins > 100)
+			{
+				LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+			}
+		}
+	}
+
+	/**
+	 * Waits until every command submitted so far has been sent.
+	 * 
+	 * @throws InterruptedException If the thread was interrupted while waiting.
+	 */
+	public void flush() throws InterruptedException
+	{
+		awaitCompletion(lastSubmitted());
+	}
+
+	/**
+	 * @return Writes that were merged with a later write to the same register and never sent.
+	 */
+	public long getMergedWrites()
+	{
+		return my_merged.get();
+	}
+
+	/**
+	 * @return Bus transactions that failed on the owner thread.
+	 */
+	public long getErrors()
+	{
+		return my_errors.get();
+	}
+
+	/**
+	 * Sends the commands already submitted and stops the owner thread. Commands submitted afterwards fail.
+	 * 
+	 * @throws InterruptedException If the thread was interrupted while waiting for the owner thread.
+	 */
+	public void close() throws InterruptedException
+	{
+		my_ring.close();
+		i_am_running = false;
+		LockSupport.unpark(my_thread);
+		my_thread.join();
+	}
+
+	/**
+	 * @return Bit set of registers whose writes failed since the last call.
+	 */
+	int takeFailedRegisters()
+	{
+		return my_failed_registers.getAndSet(0);
+	}
+
+	/**
+	 * Submits a read and waits for the answer.
+	 */
+	private ReadRequest submitRead(final int the_address, final int the_size) throws IOException
+	{
+		final ReadRequest request = new ReadRequest(the_size);
+		if (my_ring.offerRead(the_address, the_size, request) < 0)
+		{
+			throw closed();
+		}
+
+		wake();
+		try
+		{
+			if (!request.my_latch.await(READ_TIMEOUT, TimeUnit.MILLISECONDS))
+			{
+				throw new BrightPiTimeoutException("Bus owner did not answer a read in " + READ_TIMEOUT + " ms.");
+			}
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the bus owner.", e);
+		}
+
+		if (request.my_failure != null)
+		{
+			throw request.my_failure;
+		}
+
+		return request;
+	}
+
+	private BrightPiUnavailableException closed()
+	{
+		return new BrightPiUnavailableException("Bus owner is closed.");
+	}
+
+	private void wake()
+	{
+		if (i_am_sleeping)
+		{
+			LockSupport.unpark(my_thread);
+		}
+	}
+
+	/**
+	 * Body of the owner thread. Failures of single commands are handled where they happen, but if the thread stops for
+	 * any reason the ring is closed so callers fail instead of waiting for it.
+	 */
+	private void drainLoop()
+	{
+		try
+		{
+			long head = 0;
+			while (i_am_running || my_ring.isAvailable(head))
+			{
+				final long next = drain(head);
+				if (next == head)
+				{
+					i_am_sleeping = true;
+					if (i_am_running && !my_ring.isAvailable(head))
+					{
+						LockSupport.parkNanos(IDLE_PARK);
+					}
+					i_am_sleeping = false;
+				}
+
+				head = next;
+			}
+		} finally
+		{
+			my_ring.close();
+			i_am_running = false;
+		}
+	}
+
+	/**
+	 * Runs one batch of commands.
+	 * 
+	 * @param the_head Position of the first command to run.
+	 * @return Position of the first command not run.
+	 */
+	private long drain(final long the_head)
+	{
+		long head = the_head;
+		while (head - the_head < BATCH && my_ring.isAvailable(head))
+		{
+			if (my_ring.kind(head) == BrightPiCommandRing.WRITE)
+			{
+				final int address = my_ring.address(head);
+				final int size = my_ring.size(head);
+				for (int i = 0; i < size; i++)
+				{
+					final int bit = 1 << (address + i);
+					if ((my_dirty & bit) != 0)
+					{
+						my_merged.lazySet(my_merged.get() + 1);
+					}
+
+					my_image[address + i] = my_ring.data(head, i);
+					my_dirty |= bit;
+				}
+			} else
+			{
+				//Reads see every write submitted before them.
+				sendImage();
+				read(my_ring.address(head), (ReadRequest) my_ring.request(head));
+			}
+
+			my_ring.release(head);
+			head++;
+		}
+
+		sendImage();
+		my_completed.lazySet(head);
+		return head;
+	}
+
+	/**
+	 * Sends the merged writes, one transaction per run of contiguous registers.
+	 */
+	private void sendImage()
+	{
+		int address = 0;
+		while (my_dirty != 0)
+		{
+			while ((my_dirty & (1 << address)) == 0)
+			{
+				address++;
+			}
+
+			int end = address;
+			while (end + 1 < BrightPi.REGISTER_COUNT && (my_dirty & (1 << (end + 1))) != 0)
+			{
+				end++;
+			}
+
+			final int size = end - address + 1;
+			final int mask = ((1 << size) - 1) << address;
+			try
+			{
+				if (size == 1)
+				{
+					my_transport.write(address, my_image[address]);
+				} else
+				{
+					my_transport.write(address, my_image, address, size);
+				}
+			} catch (IOException e)
+			{
+				writeFailed(mask);
+			} catch (RuntimeException e)
+			{
+				//A broken transport must not stop the only thread that can reach the bus.
+				writeFailed(mask);
+			}
+
+			my_dirty &= ~mask;
+			address = end + 1;
+		}
+	}
+
+	/**
+	 * Records a failed write so the BrightPi using this transport rewrites the registers.
+	 * 
+	 * @param the_mask Bit set of the registers that were not written.
+	 */
+	private void writeFailed(final int the_mask)
+	{
+		my_errors.lazySet(my_errors.get() + 1);
+		int failed;
+		do
+		{
+			failed = my_failed_registers.get();
+		} while (!my_failed_registers.compareAndSet(failed, failed | the_mask));
+	}
+
+	private void read(final int the_address, final ReadRequest the_request)
+	{
+		try
+		{
+			final int size = the_request.my_buffer.length;
+			final int read = my_transport.read(the_address, the_request.my_buffer, 0, size);
+			if (read != size)
+			{
+				throw new BrightPiException("Read " + read + " of " + size + " registers.");
+			}
+		} catch (IOException e)
+		{
+			my_errors.lazySet(my_errors.get() + 1);
+			the_request.my_failure = e;
+		} catch (RuntimeException e)
+		{
+			my_errors.lazySet(my_errors.get() + 1);
+			the_request.my_failure = new BrightPiException("Bus transaction failed.", e);
+		} finally
+		{
+			the_request.my_latch.countDown();
+		}
+	}
+
+	/**
+	 * A read waiting for the owner thread.
+	 */
+	private static final class ReadRequest
+	{
+		private final byte[] my_buffer;
+
+		private final CountDownLatch my_latch = new CountDownLatch(1);
+
+		private IOException my_failure;
+
+		private ReadRequest(final int the_size)
+		{
+			my_buffer = new byte[the_size];
+		}
+	}
+}
@@ -0,0 +1,277 @@
+/*
+ * MIT License
+ * 
+ * Copyright (c) 2016 Michael Westbrook
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.brightpi;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free ring of bus commands with many producers and a single consumer. Every slot is allocated up front
+ * so submitting a write never allocates. Producers claim a position with a compare-and-set on the tail and publish
+ * the slot through its sequence number; the consumer reads slots in order and hands them back the same way.
+ * <p>
+ * A position is valid from the time it is claimed until it is released by the consumer. Producers wait, yielding,
+ * while the ring is full, until the ring is closed.
+ * 
+ * @author Mike Westbrook
+ *
+ */
+final class BrightPiCommandRing
+{
+	static final int WRITE = 0;
+
+	static final int READ = 1;
+
+	private final int my_mask;
+
+	/**
+	 * Sequence of each slot. A slot is free for position p when its sequence is p, and holds the command at position
+	 * p when its sequence is p + 1.
+	 */
+	private final AtomicLongArray my_sequences;
+
+	private final int[] my_kinds;
+
+	private final int[] my_addresses;
+
+	private final int[] my_sizes;
+
+	/**
+	 * Values of each slot, {@link BrightPi#REGISTER_COUNT} bytes per slot.
+	 */
+	private final byte[] my_data;
+
+	/**
+	 * Request waiting on the result of a read, per slot.
+	 */
+	private final Object[] my_requests;
+
+	/**
+	 * Next position to claim.
+	 */
+	private final AtomicLong my_tail = new AtomicLong();
+
+	/**
+	 * Set once no more commands are accepted.
+	 */
+	private volatile boolean i_am_closed;
+
+	/**
+	 * @param the_capacity Number of slots, rounded up to a power of two.
+	 */
+	BrightPiCommandRing(final int the_capacity)
+	{
+		int capacity = Integer.highestOneBit(Math.max(2, the_capacity));
+		if (capacity < the_capacity)
+		{
+			capacity <<= 1;
+		}
+
+		my_mask = capacity - 1;
+		my_sequences = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; i++)
+		{
+			my_sequences.set(i, i);
+		}
+
+		my_kinds = new int[capacity];
+		my_addresses = new int[capacity];
+		my_sizes = new int[capacity];
+		my_data = new byte[capacity * BrightPi.REGISTER_COUNT];
+		my_requests = new Object[capacity];
+	}
+
+	/**
+	 * Submits a single register write.
+	 * 
+	 * @return The position of the command, or -1 if the ring is closed.
+	 * @throws IllegalArgumentException If the register does not exist.
+	 */
+	long offerWrite(final int the_address, final byte the_data)
+	{
+		checkRange(the_address, 1);
+		final long position = claim();
+		if (position < 0)
+		{
+			return position;
+		}
+
+		final int slot = (int) position & my_mask;
+		my_kinds[slot] = WRITE;
+		my_addresses[slot] = the_address;
+		my_sizes[slot] = 1;
+		my_data[slot * BrightPi.REGISTER_COUNT] = the_data;
+		publish(position);
+		return position;
+	}
+
+	/**
+	 * Submits a block write.
+	 * 
+	 * @return The position of the command, or -1 if the ring is closed.
+	 * @throws IllegalArgumentException If any of the registers does not exist.
+	 */
+	long offerWrite(final int the_address, final byte[] the_data, final int the_offset, final int the_size)
+	{
+		checkRange(the_address, the_size);
+		final long position = claim();
+		if (position < 0)
+		{
+			return position;
+		}
+
+		final int slot = (int) position & my_mask;
+		my_kinds[slot] = WRITE;
+		my_addresses[slot] = the_address;
+		my_sizes[slot] = the_size;
+		System.arraycopy(the_data, the_offset, my_data, slot * BrightPi.REGISTER_COUNT, the_size);
+		publish(position);
+		return position;
+	}
+
+	/**
+	 * Submits a read that is answered through the request.
+	 * 
+	 * @return The position of the command, or -1 if the ring is closed.
+	 * @throws IllegalArgumentException If any of the registers does not exist.
+	 */
+	long offerRead(final int the_address, final int the_size, final Object the_request)
+	{
+		checkRange(the_address, the_size);
+		final long position = claim();
+		if (position < 0)
+		{
+			return position;
+		}
+
+		final int slot = (int) position & my_mask;
+		my_kinds[slot] = READ;
+		my_addresses[slot] = the_address;
+		my_sizes[slot] = the_size;
+		my_requests[slot] = the_request;
+		publish(position);
+		return position;
+	}
+
+	/**
+	 * Stops accepting commands. Producers waiting for room give up. Commands already published can still be consumed.
+	 */
+	void close()
+	{
+		i_am_closed = true;
+	}
+
+	/**
+	 * @return The next position that will be claimed.
+	 */
+	long tail()
+	{
+		return my_tail.get();
+	}
+
+	/**
+	 * @return True if the command at the position has been published. Only the consumer may call this.
+	 */
+	boolean isAvailable(final long the_position)
+	{
+		return my_sequences.get((int) the_position & my_mask) == the_position + 1;
+	}
+
+	int kind(final long the_position)
+	{
+		return my_kinds[(int) the_position & my_mask];
+	}
+
+	int address(final long the_position)
+	{
+		return my_addresses[(int) the_position & my_mask];
+	}
+
+	int size(final long the_position)
+	{
+		return my_sizes[(int) the_position & my_mask];
+	}
+
+	byte data(final long the_position, final int the_index)
+	{
+		return my_data[((int) the_position & my_mask) * BrightPi.REGISTER_COUNT + the_index];
+	}
+
+	Object request(final long the_position)
+	{
+		return my_requests[(int) the_position & my_mask];
+	}
+
+	/**
+	 * Hands a consumed slot back to the producers.
+	 */
+	void release(final long the_position)
+	{
+		final int slot = (int) the_position & my_mask;
+		my_requests[slot] = null;
+		my_sequences.lazySet(slot, the_position + my_mask + 1);
+	}
+
+	/**
+	 * @return A free position, waiting while the ring is full, or -1 if the ring is closed.
+	 */
+	private long claim()
+	{
+		while (true)
+		{
+			if (i_am_closed)
+			{
+				return -1;
+			}
+
+			final long position = my_tail.get();
+			final long sequence = my_sequences.get((int) position & my_mask);
+			if (sequence == position)
+			{
+				if (my_tail.compareAndSet(position, position + 1))
+				{
+					return position;
+				}
+			} else if (sequence < position)
+			{
+				//Full, wait for the consumer.
+				Thread.yield();
+			}
+		}
+	}
+
+	private static void checkRange(final int the_address, final int the_size)
+	{
+		if (the_address < 0 || the_size < 1 || the_address + the_size > BrightPi.REGISTER_COUNT)
+		{
+			throw new IllegalArgumentException("Registers " + the_address + " to " + (the_address + the_size - 1)
+					+ " do not exist.");
+		}
+	}
+
+	private void publish(final long the_position)
+	{
+		my_sequences.set((int) the_position & my_mask, the_position + 1);
+	}
+}
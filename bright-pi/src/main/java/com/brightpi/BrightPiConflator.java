@@ -0,0 +1,411 @@
+/*
+ * MIT License
+ * 
+ * Copyright (c) 2016 Michael Westbrook
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.brightpi;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Accepts a stream of brightness, gain, mode and power targets faster than the bus can write them. Offering a target
+ * never blocks: each register keeps only its latest pending target, and a worker thread writes whatever is pending in
+ * one {@link BrightPiTransaction}. When the bus falls behind, intermediate targets are dropped instead of queued, so a
+ * target waits for at most one transaction before it is written.
+ * <p>
+ * Targets pending at the same time are applied in the order they were offered. The offer methods can be called from
+ * any thread, for example from the <code>onNext</code> of a reactive subscriber that requests without limit. On Java
+ * 21 the multi-release jar has BrightPiFlowSubscriber, which does that for a <code>Flow.Publisher</code>.
+ * 
+ * @author Mike Westbrook
+ *
+ */
+public class BrightPiConflator
+{
+	private static final int SLOT_ALL_LEDS = BrightPi.LED_COUNT;
+
+	private static final int SLOT_MODE = SLOT_ALL_LEDS + 1;
+
+	private static final int SLOT_GAIN = SLOT_MODE + 1;
+
+	private static final int SLOT_POWER = SLOT_GAIN + 1;
+
+	private static final int SLOTS = SLOT_POWER + 1;
+
+	/**
+	 * Longest the worker sleeps before checking for targets again.
+	 */
+	private static final long IDLE_PARK = TimeUnit.MILLISECONDS.toNanos(10);
+
+	private static final BrightPiLED[] LEDS = BrightPiLED.values();
+
+	private static final BrightPiMode[] MODES = BrightPiMode.values();
+
+	private static final BrightPiGain[] GAINS = BrightPiGain.values();
+
+	private final BrightPiTransaction my_transaction;
+
+	/**
+	 * Latest pending target of each slot, as the offer sequence shifted left by 8 bits plus the value, or 0 if none.
+	 */
+	private final AtomicLongArray my_pending = new AtomicLongArray(SLOTS);
+
+	private final AtomicLong my_sequence = new AtomicLong();
+
+	private final AtomicLong my_conflated = new AtomicLong();
+
+	private final AtomicLong my_commits = new AtomicLong();
+
+	/**
+	 * Targets taken by the worker, reused for every commit.
+	 */
+	private final long[] my_taken = new long[SLOTS];
+
+	private final int[] my_taken_slots = new int[SLOTS];
+
+	/**
+	 * Sequence of the last target applied to the register of each slot, only used by the worker. The entry of the
+	 * all-LEDs slot is unused, its targets update the entries of the LEDs. A pending target that is not newer than
+	 * the last one applied was overtaken while it was being offered or taken, and is dropped.
+	 */
+	private final long[] my_applied = new long[SLOTS];
+
+	/**
+	 * Mode after the last target applied that changed it, as an index into MODES. Setting a brightness changes it to
+	 * individual.
+	 */
+	private int my_applied_mode = BrightPiMode.INDIVIDUAL.ordinal();
+
+	private final Thread my_thread;
+
+	private volatile boolean i_am_running = true;
+
+	private volatile boolean i_am_sleeping;
+
+	/**
+	 * @param the_brightpi The BrightPi the targets are written to.
+	 */
+	public BrightPiConflator(final BrightPi the_brightpi)
+	{
+		my_transaction = the_brightpi.batch();
+		my_thread = BrightPiExecutors.threadFactory("BrightPi conflator").newThread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				drainLoop();
+			}
+		});
+		my_thread.start();
+	}
+
+	/**
+	 * @param the_led The LED to adjust the brightness of.
+	 * @param the_value The target brightness.
+	 */
+	public void offerLEDBrightness(final BrightPiLED the_led, final byte the_value)
+	{
+		offer(the_led.ordinal(), the_value);
+	}
+
+	/**
+	 * @param the_value The target brightness of all LEDs.
+	 */
+	public void offerLEDBrightness(final byte the_value)
+	{
+		offer(SLOT_ALL_LEDS, the_value);
+	}
+
+	/**
+	 * @param the_mode The target mode.
+	 */
+	public void offerMode(final BrightPiMode the_mode)
+	{
+		offer(SLOT_MODE, the_mode.ordinal());
+	}
+
+	/**
+	 * @param the_gain The target gain.
+	 */
+	public void offerGain(final BrightPiGain the_gain)
+	{
+		offer(SLOT_GAIN, the_gain.ordinal());
+	}
+
+	/**
+	 * @param the_on True to turn the LEDs of the current mode on, false to turn them off.
+	 */
+	public void offerPower(final boolean the_on)
+	{
+		offer(SLOT_POWER, the_on ? 1 : 0);
+	}
+
+	/**
+	 * @return Targets dropped because a newer target for the same register arrived first.
+	 */
+	public long getConflated()
+	{
+		return my_conflated.get();
+	}
+
+	/**
+	 * @return Transactions committed.
+	 */
+	public long getCommits()
+	{
+		return my_commits.get();
+	}
+
+	/**
+	 * Writes the pending targets and stops the worker thread.
+	 * 
+	 * @throws InterruptedException If the thread was interrupted while waiting for the worker.
+	 */
+	public void close() throws InterruptedException
+	{
+		i_am_running = false;
+		LockSupport.unpark(my_thread);
+		my_thread.join();
+	}
+
+	private void offer(final int the_slot, final int the_value)
+	{
+		final long target = (my_sequence.incrementAndGet() << 8) | (the_value & 0xff);
+		while (true)
+		{
+			//Another producer may have stored a newer target since the sequence was taken.
+			final long pending = my_pending.get(the_slot);
+			if (pending > target)
+			{
+				my_conflated.incrementAndGet();
+				break;
+			}
+
+			if (my_pending.compareAndSet(the_slot, pending, target))
+			{
+				if (pending != 0)
+				{
+					my_conflated.incrementAndGet();
+				}
+
+				break;
+			}
+		}
+
+		if (i_am_sleeping)
+		{
+			LockSupport.unpark(my_thread);
+		}
+	}
+
+	/**
+	 * Body of the worker thread.
+	 */
+	private void drainLoop()
+	{
+		while (true)
+		{
+			final boolean running = i_am_running;
+			if (!drain())
+			{
+				if (!running)
+				{
+					return;
+				}
+
+				i_am_sleeping = true;
+				if (!hasPending())
+				{
+					LockSupport.parkNanos(IDLE_PARK);
+				}
+				i_am_sleeping = false;
+			}
+		}
+	}
+
+	/**
+	 * Takes every pending target and commits them in the order they were offered. Slots are taken one at a time, so a
+	 * target offered during the scan can be taken a drain later than a newer one for the same register, in which case
+	 * it is dropped.
+	 * 
+	 * @return False if nothing was pending.
+	 */
+	private boolean drain()
+	{
+		int count = 0;
+		for (int slot = 0; slot < SLOTS; slot++)
+		{
+			final long target = my_pending.getAndSet(slot, 0);
+			if (target != 0)
+			{
+				//Insertion sort by sequence, there are only a handful of slots.
+				int i = count++;
+				while (i > 0 && my_taken[i - 1] > target)
+				{
+					my_taken[i] = my_taken[i - 1];
+					my_taken_slots[i] = my_taken_slots[i - 1];
+					i--;
+				}
+
+				my_taken[i] = target;
+				my_taken_slots[i] = slot;
+			}
+		}
+
+		if (count == 0)
+		{
+			return false;
+		}
+
+		boolean changed = false;
+		for (int i = 0; i < count; i++)
+		{
+			final long sequence = my_taken[i] >>> 8;
+			final int value = (int) (my_taken[i] & 0xff);
+			final int slot = my_taken_slots[i];
+			final boolean applied;
+			if (slot < BrightPi.LED_COUNT)
+			{
+				applied = sequence > my_applied[slot];
+				if (applied)
+				{
+					my_transaction.setLEDBrightness(LEDS[slot], (byte) value);
+					my_applied[slot] = sequence;
+					brightnessApplied(sequence);
+				}
+			} else if (slot == SLOT_ALL_LEDS)
+			{
+				applied = applyAllLEDs(sequence, (byte) value);
+			} else
+			{
+				applied = sequence > my_applied[slot];
+				if (applied)
+				{
+					my_applied[slot] = sequence;
+					if (slot == SLOT_MODE)
+					{
+						my_transaction.setMode(MODES[value]);
+						my_applied_mode = value;
+					} else if (slot == SLOT_GAIN)
+					{
+						my_transaction.setGain(GAINS[value]);
+					} else if (value != 0)
+					{
+						my_transaction.on();
+					} else
+					{
+						my_transaction.off();
+					}
+				}
+			}
+
+			if (applied)
+			{
+				changed = true;
+			} else
+			{
+				my_conflated.incrementAndGet();
+			}
+		}
+
+		if (changed)
+		{
+			my_transaction.commit();
+			my_commits.lazySet(my_commits.get() + 1);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Sets the LEDs whose last applied target is older than an all-LEDs target.
+	 * 
+	 * @return False if every LED has a newer target.
+	 */
+	private boolean applyAllLEDs(final long the_sequence, final byte the_value)
+	{
+		int newer = 0;
+		for (int led = 0; led < BrightPi.LED_COUNT; led++)
+		{
+			if (my_applied[led] >= the_sequence)
+			{
+				newer++;
+			}
+		}
+
+		if (newer == BrightPi.LED_COUNT)
+		{
+			return false;
+		}
+
+		if (newer == 0)
+		{
+			my_transaction.setLEDBrightness(the_value);
+		}
+
+		for (int led = 0; led < BrightPi.LED_COUNT; led++)
+		{
+			if (my_applied[led] < the_sequence)
+			{
+				if (newer > 0)
+				{
+					my_transaction.setLEDBrightness(LEDS[led], the_value);
+				}
+
+				my_applied[led] = the_sequence;
+			}
+		}
+
+		brightnessApplied(the_sequence);
+		return true;
+	}
+
+	/**
+	 * Setting a brightness switches to individual mode. If a newer mode was already applied it is set again.
+	 */
+	private void brightnessApplied(final long the_sequence)
+	{
+		if (the_sequence > my_applied[SLOT_MODE])
+		{
+			my_applied[SLOT_MODE] = the_sequence;
+			my_applied_mode = BrightPiMode.INDIVIDUAL.ordinal();
+		} else if (my_applied_mode != BrightPiMode.INDIVIDUAL.ordinal())
+		{
+			my_transaction.setMode(MODES[my_applied_mode]);
+		}
+	}
+
+	private boolean hasPending()
+	{
+		for (int slot = 0; slot < SLOTS; slot++)
+		{
+			if (my_pending.get(slot) != 0)
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+}
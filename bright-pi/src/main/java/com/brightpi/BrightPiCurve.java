@@ -0,0 +1,153 @@
+/*
+ * MIT License
+ * 
+ * Copyright (c) 2016 Michael Westbrook
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.brightpi;
+
+/**
+ * Maps perceptual brightness levels to gain and brightness register pairs. The light output of an LED is roughly the
+ * product of the gain and its brightness register, so combining all 15 gain steps with the brightness range gives far
+ * more usable levels than either register alone. Levels are gamma corrected so equal steps look equally large, and
+ * each level uses the smallest gain that reaches it, which keeps the gain register steady across most of a ramp.
+ * <p>
+ * The table is computed once when the curve is created.
+ * 
+ * @author Mike Westbrook
+ *
+ */
+public final class BrightPiCurve
+{
+	/**
+	 * Default number of levels.
+	 */
+	public static final int DEFAULT_LEVELS = 1024;
+
+	/**
+	 * Default gamma, close to the response of the eye.
+	 */
+	public static final double DEFAULT_GAMMA = 2.2;
+
+	/**
+	 * Curve with {@link #DEFAULT_LEVELS} levels and {@link #DEFAULT_GAMMA}.
+	 */
+	public static final BrightPiCurve DEFAULT = new BrightPiCurve(DEFAULT_LEVELS, DEFAULT_GAMMA);
+
+	/**
+	 * Gain in the upper byte and brightness in the lower byte of each level.
+	 */
+	private final short[] my_table;
+
+	/**
+	 * @param the_levels Number of levels, level 0 is off.
+	 * @param the_gamma Gamma of the curve, 1 for a linear curve.
+	 */
+	public BrightPiCurve(final int the_levels, final double the_gamma)
+	{
+		if (the_levels < 2)
+		{
+			throw new IllegalArgumentException("A curve needs at least 2 levels.");
+		}
+
+		my_table = new short[the_levels];
+		final int max_output = BrightPiGain.MAX_GAIN * BrightPiBrightness.LED_MAX;
+		for (int level = 0; level < the_levels; level++)
+		{
+			final double target = max_output * Math.pow((double) level / (the_levels - 1), the_gamma);
+			my_table[level] = closest(target);
+		}
+	}
+
+	/**
+	 * @return The highest level.
+	 */
+	public int getMaxLevel()
+	{
+		return my_table.length - 1;
+	}
+
+	/**
+	 * @param the_level A level from 0 to {@link #getMaxLevel()}.
+	 * @return The gain register value for the level.
+	 */
+	public byte getGain(final int the_level)
+	{
+		return (byte) (my_table[the_level] >> 8);
+	}
+
+	/**
+	 * @param the_level A level from 0 to {@link #getMaxLevel()}.
+	 * @return The LED brightness register value for the level.
+	 */
+	public byte getDuty(final int the_level)
+	{
+		return (byte) my_table[the_level];
+	}
+
+	/**
+	 * Finds the brightness that comes closest to a level when the gain cannot change, for example when other LEDs are
+	 * using it.
+	 * 
+	 * @param the_level A level from 0 to {@link #getMaxLevel()}.
+	 * @param the_gain The gain register value in use.
+	 * @return The LED brightness register value.
+	 */
+	public byte getDuty(final int the_level, final byte the_gain)
+	{
+		final int output = getGain(the_level) * getDuty(the_level);
+		return (byte) Math.min(BrightPiBrightness.LED_MAX, Math.round((float) output / Math.max(1, the_gain)));
+	}
+
+	/**
+	 * @param the_level A level from 0 to {@link #getMaxLevel()}.
+	 * @param the_other Another level.
+	 * @return True if both levels use the same registers.
+	 */
+	public boolean isSame(final int the_level, final int the_other)
+	{
+		return my_table[the_level] == my_table[the_other];
+	}
+
+	/**
+	 * @param the_target Light output as gain times brightness.
+	 * @return The register pair closest to the output, preferring the smaller gain.
+	 */
+	private static short closest(final double the_target)
+	{
+		final int smallest = Math.max(BrightPiGain.MIN_GAIN, (int) Math.ceil(the_target / BrightPiBrightness.LED_MAX));
+		int best_gain = smallest;
+		int best_duty = 0;
+		double best_error = Double.MAX_VALUE;
+		for (int gain = smallest; gain <= Math.min(smallest + 1, BrightPiGain.MAX_GAIN); gain++)
+		{
+			final int duty = (int) Math.min(BrightPiBrightness.LED_MAX, Math.round(the_target / gain));
+			final double error = Math.abs(gain * duty - the_target);
+			if (error < best_error)
+			{
+				best_gain = gain;
+				best_duty = duty;
+				best_error = error;
+			}
+		}
+
+		return (short) ((best_gain << 8) | best_duty);
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * MIT License
+ * 
+ * Copyright (c) 2016 Michael Westbrook
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.brightpi;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the threads BrightPi runs animations, dispatchers and background work on. On Java 21 and later these are
+ * virtual threads, so thousands of tasks can drive devices without tying up platform threads. The device lock, the
+ * multiplexer locks of {@link BrightPiRegistry} and the animator's lock park instead of holding a monitor, so a
+ * virtual thread waiting for the bus unmounts from its carrier. Only the thread inside a native I2C call pins its
+ * carrier, for the length of that call. On older releases they are daemon platform threads. Threads that spin for
+ * timing accuracy or may be stuck in the kernel, like those of {@link BrightPiStrobe} and {@link ResilientTransport},
+ * stay platform threads.
+ * 
+ * @author Mike Westbrook
+ *
+ */
+public final class BrightPiExecutors
+{
+	/**
+	 * System property that turns virtual threads off when set to "false". Ignored before Java 21.
+	 */
+	public static final String VIRTUAL_THREADS_PROPERTY = "brightpi.virtualThreads";
+
+	private BrightPiExecutors()
+	{
+	}
+
+	/**
+	 * @return True if the threads are virtual threads.
+	 */
+	public static boolean isVirtual()
+	{
+		return false;
+	}
+
+	/**
+	 * @param the_name Name of the threads.
+	 * @return A factory of daemon threads with the given name.
+	 */
+	public static ThreadFactory threadFactory(final String the_name)
+	{
+		return new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(final Runnable the_runnable)
+			{
+				final Thread thread = new Thread(the_runnable, the_name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * Creates an executor for blocking tasks, such as commands to a device or fades. Each task gets its own virtual
+	 * thread on Java 21, otherwise idle platform threads are reused.
+	 * 
+	 * @param the_name Name of the threads.
+	 * @return A new executor, which the caller shuts down.
+	 */
+	public static ExecutorService newTaskExecutor(final String the_name)
+	{
+		return Executors.newCachedThreadPool(threadFactory(the_name));
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * MIT License
+ * 
+ * Copyright (c) 2016 Michael Westbrook
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.brightpi;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+
+/**
+ * Memory fences for data shared outside the Java heap, such as the mapped file of {@link BrightPiSharedState}, where
+ * volatile fields give no ordering. Java 7 has no public fences, so this version calls the fences of
+ * sun.misc.Unsafe, which Java 8 added, and reports them unavailable on older releases. The Java 21 version in the
+ * multi-release jar uses {@link java.lang.invoke.VarHandle} instead.
+ * 
+ * @author Mike Westbrook
+ *
+ */
+final class BrightPiFences
+{
+	private static final MethodHandle LOAD_FENCE;
+
+	private static final MethodHandle STORE_FENCE;
+
+	static
+	{
+		MethodHandle load = null;
+		MethodHandle store = null;
+		try
+		{
+			final Class<?> type = Class.forName("sun.misc.Unsafe");
+			final Field field = type.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			final Object unsafe = field.get(null);
+			final MethodType signature = MethodType.methodType(void.class);
+			load = MethodHandles.lookup().findVirtual(type, "loadFence", signature).bindTo(unsafe);
+			store = MethodHandles.lookup().findVirtual(type, "storeFence", signature).bindTo(unsafe);
+		} catch (ReflectiveOperationException e)
+		{
+			//Before Java 8, readers lock instead.
+			load = null;
+			store = null;
+		} catch (RuntimeException e)
+		{
+			//Access denied, for example by a security manager.
+			load = null;
+			store = null;
+		}
+
+		LOAD_FENCE = load;
+		STORE_FENCE = store;
+	}
+
+	private BrightPiFences()
+	{
+	}
+
+	/**
+	 * @return True if the fences can be used. If not, the shared data must be guarded by a lock instead.
+	 */
+	static boolean isAvailable()
+	{
+		return LOAD_FENCE != null && STORE_FENCE != null;
+	}
+
+	/**
+	 * Keeps loads before the fence from moving after loads and stores after it.
+	 */
+	static void acquireFence()
+	{
+		try
+		{
+			LOAD_FENCE.invokeExact();
+		} catch (RuntimeException e)
+		{
+			throw e;
+		} catch (Error e)
+		{
+			throw e;
+		} catch (Throwable e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Keeps loads and stores before the fence from moving after stores after it.
+	 */
+	static void releaseFence()
+	{
+		try
+		{
+			STORE_FENCE.invokeExact();
+		} catch (RuntimeException e)
+		{
+			throw e;
+		} catch (Error e)
+		{
+			throw e;
+		} catch (Throwable e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+}
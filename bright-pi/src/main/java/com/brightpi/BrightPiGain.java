@@ -25,7 +25,7 @@
 package com.brightpi;
 
 /**
- * Currently only supports low, medium, or high. With slight modification any value from 0x01 to 0x0f can be used.
+ * Common gain settings. Any value from {@link #MIN_GAIN} to {@link #MAX_GAIN} can be set with {@link BrightPi#setGain(byte)}.
  * 
  * @author Mike Westbrook
  *
@@ -35,7 +35,19 @@ public enum BrightPiGain
 	LOW_GAIN((byte) 0x01), MEDIUM_GAIN((byte) 0x09), HIGH_GAIN((byte) 0x0f);
 	
 	public static final int GAIN_CHIP_ADDRESS = 0x09;
+
+	/**
+	 * Smallest value of the gain register.
+	 */
+	public static final byte MIN_GAIN = (byte) 0x01;
+
+	/**
+	 * Largest value of the gain register.
+	 */
+	public static final byte MAX_GAIN = (byte) 0x0f;
 	
+	private static final BrightPiGain[] GAINS = values();
+
 	/**
 	 * This value is multiplied by by the decimal multiplier in each dimming control register.
 	 */
@@ -46,6 +58,41 @@ public enum BrightPiGain
 		my_brightness = the_brightness;
 	}
 	
+	/**
+	 * @param the_gain A gain register value.
+	 * @return The gain setting with that value, or null if it is not one of the settings.
+	 */
+	public static BrightPiGain fromGain(final byte the_gain)
+	{
+		for (final BrightPiGain gain : GAINS)
+		{
+			if (gain.my_brightness == the_gain)
+			{
+				return gain;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * @param the_gain A gain register value.
+	 * @return The gain setting closest to that value, the lower one if two are equally close.
+	 */
+	public static BrightPiGain nearest(final byte the_gain)
+	{
+		BrightPiGain nearest = GAINS[0];
+		for (final BrightPiGain gain : GAINS)
+		{
+			if (Math.abs(gain.my_brightness - the_gain) < Math.abs(nearest.my_brightness - the_gain))
+			{
+				nearest = gain;
+			}
+		}
+
+		return nearest;
+	}
+
 	/**
 	 * 
 	 * @return The byte value for this gain setting.
@@ -0,0 +1,182 @@
+/*
+ * MIT License
+ * 
+ * Copyright (c) 2016 Michael Westbrook
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.brightpi;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram of durations in nanoseconds, in the style of HdrHistogram. Each power of two is split into 16
+ * buckets, so recorded values are accurate to about 6%. Recording never allocates.
+ * <p>
+ * A histogram recorded to with {@link #record(long)} must only be recorded to by one thread at a time, such as the
+ * thread holding the device lock. {@link #recordConcurrently(long)} may be called from any number of threads at once,
+ * at the cost of atomic updates. Any thread may read it.
+ * 
+ * @author Mike Westbrook
+ *
+ */
+public class BrightPiHistogram
+{
+	private static final int SUB_BUCKET_BITS = 4;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray my_counts = new AtomicLongArray(BUCKETS);
+
+	private final AtomicLong my_count = new AtomicLong();
+
+	private final AtomicLong my_total = new AtomicLong();
+
+	private final AtomicLong my_max = new AtomicLong();
+
+	/**
+	 * Records a value. Only call this from one thread at a time.
+	 * 
+	 * @param the_value The duration in nanoseconds, negative values are recorded as 0.
+	 */
+	public void record(final long the_value)
+	{
+		final long value = Math.max(0, the_value);
+		final int index = index(value);
+		my_counts.lazySet(index, my_counts.get(index) + 1);
+		my_count.lazySet(my_count.get() + 1);
+		my_total.lazySet(my_total.get() + value);
+		if (value > my_max.get())
+		{
+			my_max.lazySet(value);
+		}
+	}
+
+	/**
+	 * Records a value from any thread, without locking. Do not mix with {@link #record(long)} on the same histogram.
+	 * 
+	 * @param the_value The duration in nanoseconds, negative values are recorded as 0.
+	 */
+	public void recordConcurrently(final long the_value)
+	{
+		final long value = Math.max(0, the_value);
+		my_counts.incrementAndGet(index(value));
+		my_count.incrementAndGet();
+		my_total.addAndGet(value);
+		long max = my_max.get();
+		while (value > max && !my_max.compareAndSet(max, value))
+		{
+			max = my_max.get();
+		}
+	}
+
+	/**
+	 * @return Number of values recorded.
+	 */
+	public long getCount()
+	{
+		return my_count.get();
+	}
+
+	/**
+	 * @return Sum of the values recorded.
+	 */
+	public long getTotal()
+	{
+		return my_total.get();
+	}
+
+	/**
+	 * @return Largest value recorded.
+	 */
+	public long getMax()
+	{
+		return my_max.get();
+	}
+
+	/**
+	 * @return Mean of the values recorded, or 0 if there are none.
+	 */
+	public double getMean()
+	{
+		final long count = getCount();
+		return count == 0 ? 0 : (double) getTotal() / count;
+	}
+
+	/**
+	 * @param the_percentile Percentile from 0 to 100.
+	 * @return The upper bound of the bucket holding the percentile, or 0 if there are no values.
+	 */
+	public long getValueAtPercentile(final double the_percentile)
+	{
+		final long count = getCount();
+		if (count == 0)
+		{
+			return 0;
+		}
+
+		final long rank = Math.max(1, (long) Math.ceil(the_percentile / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			seen += my_counts.get(i);
+			if (seen >= rank)
+			{
+				return Math.min(upperBound(i), getMax());
+			}
+		}
+
+		return getMax();
+	}
+
+	/**
+	 * @param the_value A value in nanoseconds.
+	 * @return The bucket holding the value.
+	 */
+	private static int index(final long the_value)
+	{
+		if (the_value < SUB_BUCKETS)
+		{
+			return (int) the_value;
+		}
+
+		final int magnitude = 63 - Long.numberOfLeadingZeros(the_value);
+		final int shift = magnitude - SUB_BUCKET_BITS;
+		return SUB_BUCKETS + shift * SUB_BUCKETS + (int) (the_value >>> shift) - SUB_BUCKETS;
+	}
+
+	/**
+	 * @param the_index A bucket.
+	 * @return The largest value held by the bucket.
+	 */
+	private static long upperBound(final int the_index)
+	{
+		if (the_index < SUB_BUCKETS)
+		{
+			return the_index;
+		}
+
+		final int shift = (the_index - SUB_BUCKETS) / SUB_BUCKETS;
+		final long sub = SUB_BUCKETS + (the_index - SUB_BUCKETS) % SUB_BUCKETS;
+		return ((sub + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,488 @@
+/*
+ * MIT License
+ * 
+ * Copyright (c) 2016 Michael Westbrook
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.brightpi;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Transport that records every bus transaction of another transport into a journal file, for replay with
+ * {@link BrightPiReplayer}. Each transaction is written as a fixed size record holding when it started, how long it
+ * took, the operation, the address and the values into a ring buffer allocated outside the heap. A background thread
+ * copies the ring to the file at a fixed interval, or sooner once it is half full, so the bus never waits for the
+ * disk. If the disk falls so far behind that the ring fills up, new records are dropped and counted.
+ * 
+ * <pre>
+ * BrightPiJournal journal = new BrightPiJournal(I2CTransport.open(I2CBus.BUS_1, BrightPi.BRIGHTPI_ADDRESS),
+ * 		new File("brightpi.journal"));
+ * BrightPi brightpi = new BrightPi(journal);
+ * </pre>
+ * 
+ * @author Mike Westbrook
+ *
+ */
+public class BrightPiJournal implements BrightPiTransport, Closeable
+{
+	/**
+	 * Marks a journal file.
+	 */
+	static final int MAGIC = 0x42504a31;
+
+	static final int VERSION = 1;
+
+	/**
+	 * Bytes of the file header: magic, version, record size, padding and the wall clock time of the first record in
+	 * milliseconds.
+	 */
+	static final int HEADER_SIZE = 24;
+
+	/**
+	 * Bytes of each record.
+	 */
+	static final int RECORD_SIZE = 32;
+
+	/**
+	 * Nanoseconds from the start of the journal to the start of the transaction, a long.
+	 */
+	static final int TIME_OFFSET = 0;
+
+	/**
+	 * Nanoseconds the transaction took, an int.
+	 */
+	static final int LATENCY_OFFSET = 8;
+
+	/**
+	 * Ordinal of the {@link BrightPiMetrics.Operation}.
+	 */
+	static final int OPERATION_OFFSET = 12;
+
+	/**
+	 * 1 if the transaction failed, 0 otherwise.
+	 */
+	static final int FAILED_OFFSET = 13;
+
+	static final int ADDRESS_OFFSET = 14;
+
+	/**
+	 * Number of registers in the transaction.
+	 */
+	static final int SIZE_OFFSET = 15;
+
+	/**
+	 * The values written or read, as many as fit.
+	 */
+	static final int DATA_OFFSET = 16;
+
+	static final int MAX_DATA = RECORD_SIZE - DATA_OFFSET;
+
+	/**
+	 * Default number of records the ring holds.
+	 */
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	/**
+	 * Default milliseconds between copies of the ring to the file.
+	 */
+	public static final long DEFAULT_FLUSH_INTERVAL = 100;
+
+	/**
+	 * Transport being recorded.
+	 */
+	private final BrightPiTransport my_transport;
+
+	/**
+	 * The journal file.
+	 */
+	private final FileChannel my_channel;
+
+	/**
+	 * Records not yet copied to the file.
+	 */
+	private final ByteBuffer my_ring;
+
+	/**
+	 * Number of records the ring holds.
+	 */
+	private final int my_capacity;
+
+	/**
+	 * Time of the start of the journal, from {@link System#nanoTime()}.
+	 */
+	private final long my_start = System.nanoTime();
+
+	/**
+	 * Guards the ring positions. Taken for every transaction while the device lock is held, so it is a lock rather
+	 * than a monitor, and a virtual thread waiting for it parks instead of pinning its carrier.
+	 */
+	private final ReentrantLock my_lock = new ReentrantLock();
+
+	/**
+	 * Held while copying the ring to the file, so only one copy runs at a time.
+	 */
+	private final ReentrantLock my_flush_lock = new ReentrantLock();
+
+	/**
+	 * Number of records added to the ring. Guarded by my_lock.
+	 */
+	private long my_tail;
+
+	/**
+	 * Number of records copied to the file. Guarded by my_lock.
+	 */
+	private long my_flushed;
+
+	/**
+	 * Number of records dropped because the ring was full. Guarded by my_lock.
+	 */
+	private long my_dropped;
+
+	/**
+	 * Copies the ring to the file in the background.
+	 */
+	private final Thread my_flusher;
+
+	private volatile boolean i_am_open = true;
+
+	/**
+	 * Last failure to write the file, or null.
+	 */
+	private volatile IOException my_last_error;
+
+	/**
+	 * Records into a new journal with the default capacity and flush interval.
+	 * 
+	 * @param the_transport The transport to record.
+	 * @param the_file The journal file, replaced if it exists.
+	 * @throws IOException If the file cannot be created.
+	 */
+	public BrightPiJournal(final BrightPiTransport the_transport, final File the_file) throws IOException
+	{
+		this(the_transport, the_file, DEFAULT_CAPACITY, DEFAULT_FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param the_transport The transport to record.
+	 * @param the_file The journal file, replaced if it exists.
+	 * @param the_capacity Number of records the ring holds.
+	 * @param the_interval Time between copies of the ring to the file.
+	 * @param the_unit Unit of the_interval.
+	 * @throws IOException If the file cannot be created.
+	 */
+	public BrightPiJournal(final BrightPiTransport the_transport, final File the_file, final int the_capacity,
+			final long the_interval, final TimeUnit the_unit) throws IOException
+	{
+		if (the_capacity < 2)
+		{
+			throw new IllegalArgumentException("The ring needs room for at least 2 records.");
+		}
+
+		my_transport = the_transport;
+		my_capacity = the_capacity;
+		my_ring = ByteBuffer.allocateDirect(the_capacity * RECORD_SIZE);
+		final RandomAccessFile file = new RandomAccessFile(the_file, "rw");
+		my_channel = file.getChannel();
+		try
+		{
+			my_channel.truncate(0);
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).putInt(0).putLong(System.currentTimeMillis());
+			header.flip();
+			while (header.hasRemaining())
+			{
+				my_channel.write(header);
+			}
+		} catch (IOException e)
+		{
+			file.close();
+			throw e;
+		}
+
+		final long interval = the_unit.toNanos(the_interval);
+		my_flusher = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				while (i_am_open)
+				{
+					LockSupport.parkNanos(interval);
+					try
+					{
+						flush();
+					} catch (IOException e)
+					{
+						my_last_error = e;
+					}
+				}
+			}
+		}, "BrightPi journal");
+		my_flusher.setDaemon(true);
+		my_flusher.start();
+	}
+
+	@Override
+	public int read(final int the_address) throws IOException
+	{
+		final long start = System.nanoTime();
+		try
+		{
+			final int value = my_transport.read(the_address);
+			record(BrightPiMetrics.Operation.READ, the_address, start, false, (byte) value, null, 0, 1);
+			return value;
+		} catch (IOException e)
+		{
+			record(BrightPiMetrics.Operation.READ, the_address, start, true, (byte) 0, null, 0, 1);
+			throw e;
+		}
+	}
+
+	@Override
+	public int read(final int the_address, final byte[] the_buffer, final int the_offset, final int the_size)
+			throws IOException
+	{
+		final long start = System.nanoTime();
+		try
+		{
+			final int read = my_transport.read(the_address, the_buffer, the_offset, the_size);
+			record(BrightPiMetrics.Operation.BLOCK_READ, the_address, start, false, (byte) 0, the_buffer, the_offset,
+					the_size);
+			return read;
+		} catch (IOException e)
+		{
+			record(BrightPiMetrics.Operation.BLOCK_READ, the_address, start, true, (byte) 0, null, 0, the_size);
+			throw e;
+		}
+	}
+
+	@Override
+	public void write(final int the_address, final byte the_data) throws IOException
+	{
+		final long start = System.nanoTime();
+		boolean failed = true;
+		try
+		{
+			my_transport.write(the_address, the_data);
+			failed = false;
+		} finally
+		{
+			record(BrightPiMetrics.Operation.WRITE, the_address, start, failed, the_data, null, 0, 1);
+		}
+	}
+
+	@Override
+	public void write(final int the_address, final byte[] the_buffer, final int the_offset, final int the_size)
+			throws IOException
+	{
+		final long start = System.nanoTime();
+		boolean failed = true;
+		try
+		{
+			my_transport.write(the_address, the_buffer, the_offset, the_size);
+			failed = false;
+		} finally
+		{
+			record(BrightPiMetrics.Operation.BLOCK_WRITE, the_address, start, failed, (byte) 0, the_buffer,
+					the_offset, the_size);
+		}
+	}
+
+	/**
+	 * @return Number of transactions recorded, including dropped ones.
+	 */
+	public long getRecorded()
+	{
+		my_lock.lock();
+		try
+		{
+			return my_tail + my_dropped;
+		} finally
+		{
+			my_lock.unlock();
+		}
+	}
+
+	/**
+	 * @return Number of transactions dropped because the ring was full.
+	 */
+	public long getDropped()
+	{
+		my_lock.lock();
+		try
+		{
+			return my_dropped;
+		} finally
+		{
+			my_lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The last failure of the background thread to write the file, or null if none failed.
+	 */
+	public IOException getLastError()
+	{
+		return my_last_error;
+	}
+
+	/**
+	 * Copies the records in the ring to the file. Called by the background thread, and safe to call from any thread.
+	 * 
+	 * @throws IOException If the file cannot be written.
+	 */
+	public void flush() throws IOException
+	{
+		my_flush_lock.lock();
+		try
+		{
+			final long head;
+			final long tail;
+			my_lock.lock();
+			try
+			{
+				head = my_flushed;
+				tail = my_tail;
+			} finally
+			{
+				my_lock.unlock();
+			}
+
+			//The records between head and tail are not overwritten until my_flushed moves past them.
+			final ByteBuffer ring = my_ring.duplicate();
+			long next = head;
+			while (next < tail)
+			{
+				final int index = (int) (next % my_capacity);
+				final int count = (int) Math.min(tail - next, my_capacity - index);
+				ring.limit((index + count) * RECORD_SIZE).position(index * RECORD_SIZE);
+				while (ring.hasRemaining())
+				{
+					my_channel.write(ring);
+				}
+
+				next += count;
+			}
+
+			my_lock.lock();
+			try
+			{
+				my_flushed = tail;
+			} finally
+			{
+				my_lock.unlock();
+			}
+		} finally
+		{
+			my_flush_lock.unlock();
+		}
+	}
+
+	/**
+	 * Stops the background thread, copies the remaining records and closes the file. The recorded transport stays
+	 * open.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		i_am_open = false;
+		LockSupport.unpark(my_flusher);
+		try
+		{
+			my_flusher.join();
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		try
+		{
+			flush();
+			my_channel.force(false);
+		} finally
+		{
+			my_channel.close();
+		}
+	}
+
+	/**
+	 * Adds a record to the ring.
+	 * 
+	 * @param the_operation The kind of transaction.
+	 * @param the_address The first register.
+	 * @param the_start When the transaction started, from {@link System#nanoTime()}.
+	 * @param the_failed True if the transaction failed.
+	 * @param the_value The value of a single register, used if the_buffer is null.
+	 * @param the_buffer The values of a block, or null.
+	 * @param the_offset Offset in the_buffer of the first value.
+	 * @param the_size Number of registers.
+	 */
+	private void record(final BrightPiMetrics.Operation the_operation, final int the_address,
+			final long the_start, final boolean the_failed, final byte the_value, final byte[] the_buffer,
+			final int the_offset, final int the_size)
+	{
+		final long latency = System.nanoTime() - the_start;
+		my_lock.lock();
+		try
+		{
+			if (my_tail - my_flushed == my_capacity)
+			{
+				my_dropped++;
+				return;
+			}
+
+			final int record = (int) (my_tail % my_capacity) * RECORD_SIZE;
+			my_ring.putLong(record + TIME_OFFSET, the_start - my_start);
+			my_ring.putInt(record + LATENCY_OFFSET, (int) Math.min(latency, Integer.MAX_VALUE));
+			my_ring.put(record + OPERATION_OFFSET, (byte) the_operation.ordinal());
+			my_ring.put(record + FAILED_OFFSET, (byte) (the_failed ? 1 : 0));
+			my_ring.put(record + ADDRESS_OFFSET, (byte) the_address);
+			my_ring.put(record + SIZE_OFFSET, (byte) the_size);
+			if (the_buffer == null)
+			{
+				my_ring.put(record + DATA_OFFSET, the_value);
+			} else
+			{
+				for (int i = 0; i < Math.min(the_size, MAX_DATA); i++)
+				{
+					my_ring.put(record + DATA_OFFSET + i, the_buffer[the_offset + i]);
+				}
+			}
+
+			my_tail++;
+			if (my_tail - my_flushed == my_capacity / 2)
+			{
+				LockSupport.unpark(my_flusher);
+			}
+		} finally
+		{
+			my_lock.unlock();
+		}
+	}
+}
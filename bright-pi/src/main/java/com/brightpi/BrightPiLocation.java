@@ -0,0 +1,152 @@
+/*
+ * MIT License
+ * 
+ * Copyright (c) 2016 Michael Westbrook
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.brightpi;
+
+/**
+ * Where a BrightPi is attached: its I2C bus and address, and optionally the multiplexer channel it sits behind.
+ * Locations sort by bus, then multiplexer and channel, then address, which is the order that needs the fewest
+ * multiplexer channel switches.
+ * 
+ * @author Mike Westbrook
+ *
+ */
+public final class BrightPiLocation implements Comparable<BrightPiLocation>
+{
+	/**
+	 * Multiplexer address or channel of a BrightPi that is not behind a multiplexer.
+	 */
+	public static final int NONE = -1;
+
+	private final int my_bus;
+
+	private final int my_address;
+
+	private final int my_mux_address;
+
+	private final int my_channel;
+
+	/**
+	 * @param the_bus The I2C bus number.
+	 * @param the_address The I2C address of the BrightPi.
+	 */
+	public BrightPiLocation(final int the_bus, final int the_address)
+	{
+		this(the_bus, the_address, NONE, NONE);
+	}
+
+	/**
+	 * @param the_bus The I2C bus number.
+	 * @param the_address The I2C address of the BrightPi.
+	 * @param the_mux_address The I2C address of the multiplexer, or {@link #NONE}.
+	 * @param the_channel The multiplexer channel from 0 to 7, or {@link #NONE}.
+	 */
+	public BrightPiLocation(final int the_bus, final int the_address, final int the_mux_address, final int the_channel)
+	{
+		if ((the_mux_address == NONE) != (the_channel == NONE) || the_channel < NONE || the_channel > 7)
+		{
+			throw new IllegalArgumentException("Invalid multiplexer " + the_mux_address + " channel " + the_channel);
+		}
+
+		my_bus = the_bus;
+		my_address = the_address;
+		my_mux_address = the_mux_address;
+		my_channel = the_channel;
+	}
+
+	/**
+	 * @return The I2C bus number.
+	 */
+	public int getBus()
+	{
+		return my_bus;
+	}
+
+	/**
+	 * @return The I2C address of the BrightPi.
+	 */
+	public int getAddress()
+	{
+		return my_address;
+	}
+
+	/**
+	 * @return The I2C address of the multiplexer, or {@link #NONE}.
+	 */
+	public int getMuxAddress()
+	{
+		return my_mux_address;
+	}
+
+	/**
+	 * @return The multiplexer channel, or {@link #NONE}.
+	 */
+	public int getChannel()
+	{
+		return my_channel;
+	}
+
+	/**
+	 * @return True if the BrightPi is behind a multiplexer.
+	 */
+	public boolean isMuxed()
+	{
+		return my_mux_address != NONE;
+	}
+
+	@Override
+	public int compareTo(final BrightPiLocation the_other)
+	{
+		int result = Integer.compare(my_bus, the_other.my_bus);
+		if (result == 0)
+		{
+			result = Integer.compare(my_mux_address, the_other.my_mux_address);
+		}
+
+		if (result == 0)
+		{
+			result = Integer.compare(my_channel, the_other.my_channel);
+		}
+
+		return result == 0 ? Integer.compare(my_address, the_other.my_address) : result;
+	}
+
+	@Override
+	public boolean equals(final Object the_other)
+	{
+		return the_other instanceof BrightPiLocation && compareTo((BrightPiLocation) the_other) == 0;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return ((my_bus * 31 + my_address) * 31 + my_mux_address) * 31 + my_channel;
+	}
+
+	@Override
+	public String toString()
+	{
+		final String device = "bus " + my_bus + " address 0x" + Integer.toHexString(my_address);
+		return isMuxed() ? device + " via 0x" + Integer.toHexString(my_mux_address) + " channel " + my_channel : device;
+	}
+}
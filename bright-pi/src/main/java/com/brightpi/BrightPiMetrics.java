@@ -0,0 +1,295 @@
+/*
+ * MIT License
+ * 
+ * Copyright (c) 2016 Michael Westbrook
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.brightpi;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms for the bus traffic of a BrightPi. The values are only updated by the thread holding
+ * the device lock, so updates are plain ordered stores with no compare-and-set and no allocation, and are cheap enough
+ * to leave on. Any thread may read them, or they can be published with {@link #registerMBean(String)}.
+ * 
+ * @author Mike Westbrook
+ *
+ */
+public class BrightPiMetrics implements BrightPiMetricsMBean
+{
+	/**
+	 * Kinds of bus transaction.
+	 */
+	public enum Operation
+	{
+		READ, BLOCK_READ, WRITE, BLOCK_WRITE
+	}
+
+	private final AtomicLongArray my_register_writes = new AtomicLongArray(BrightPi.REGISTER_COUNT);
+
+	private final AtomicLongArray my_register_reads = new AtomicLongArray(BrightPi.REGISTER_COUNT);
+
+	private final AtomicLongArray my_errors = new AtomicLongArray(Operation.values().length);
+
+	private final BrightPiHistogram[] my_latencies = new BrightPiHistogram[Operation.values().length];
+
+	private final BrightPiHistogram my_lock_wait = new BrightPiHistogram();
+
+	private final AtomicLong my_elided = new AtomicLong();
+
+	private final AtomicLong my_coalesced = new AtomicLong();
+
+	BrightPiMetrics()
+	{
+		for (int i = 0; i < my_latencies.length; i++)
+		{
+			my_latencies[i] = new BrightPiHistogram();
+		}
+	}
+
+	/**
+	 * @param the_address A register address.
+	 * @return Successful writes to the register.
+	 */
+	public long getRegisterWrites(final int the_address)
+	{
+		return my_register_writes.get(the_address);
+	}
+
+	/**
+	 * @param the_address A register address.
+	 * @return Successful reads of the register.
+	 */
+	public long getRegisterReads(final int the_address)
+	{
+		return my_register_reads.get(the_address);
+	}
+
+	/**
+	 * @param the_operation A kind of bus transaction.
+	 * @return Transactions of that kind that failed.
+	 */
+	public long getErrors(final Operation the_operation)
+	{
+		return my_errors.get(the_operation.ordinal());
+	}
+
+	/**
+	 * @param the_operation A kind of bus transaction.
+	 * @return Latency of transactions of that kind, including failed ones.
+	 */
+	public BrightPiHistogram getLatency(final Operation the_operation)
+	{
+		return my_latencies[the_operation.ordinal()];
+	}
+
+	/**
+	 * @return Time spent waiting for the device lock.
+	 */
+	public BrightPiHistogram getLockWait()
+	{
+		return my_lock_wait;
+	}
+
+	@Override
+	public long[] getRegisterWrites()
+	{
+		return toArray(my_register_writes);
+	}
+
+	@Override
+	public long[] getRegisterReads()
+	{
+		return toArray(my_register_reads);
+	}
+
+	@Override
+	public long getErrors()
+	{
+		long errors = 0;
+		for (final Operation operation : Operation.values())
+		{
+			errors += getErrors(operation);
+		}
+
+		return errors;
+	}
+
+	@Override
+	public long getElidedWrites()
+	{
+		return my_elided.get();
+	}
+
+	@Override
+	public long getCoalescedWrites()
+	{
+		return my_coalesced.get();
+	}
+
+	@Override
+	public long getTransactions()
+	{
+		long transactions = 0;
+		for (final BrightPiHistogram latency : my_latencies)
+		{
+			transactions += latency.getCount();
+		}
+
+		return transactions;
+	}
+
+	@Override
+	public double getMeanLatency()
+	{
+		final long transactions = getTransactions();
+		long total = 0;
+		for (final BrightPiHistogram latency : my_latencies)
+		{
+			total += latency.getTotal();
+		}
+
+		return transactions == 0 ? 0 : (double) total / transactions;
+	}
+
+	@Override
+	public long getLatency99thPercentile()
+	{
+		long latency = 0;
+		for (final BrightPiHistogram histogram : my_latencies)
+		{
+			latency = Math.max(latency, histogram.getValueAtPercentile(99));
+		}
+
+		return latency;
+	}
+
+	@Override
+	public long getMaxLatency()
+	{
+		long latency = 0;
+		for (final BrightPiHistogram histogram : my_latencies)
+		{
+			latency = Math.max(latency, histogram.getMax());
+		}
+
+		return latency;
+	}
+
+	@Override
+	public long getLockWaitTotal()
+	{
+		return my_lock_wait.getTotal();
+	}
+
+	@Override
+	public long getLockWait99thPercentile()
+	{
+		return my_lock_wait.getValueAtPercentile(99);
+	}
+
+	/**
+	 * Publishes these metrics in the platform MBean server.
+	 * 
+	 * @param the_name Name that tells this device apart from others, such as its bus and address.
+	 * @return The name the metrics were registered under.
+	 * @throws JMException If the metrics could not be registered.
+	 */
+	public ObjectName registerMBean(final String the_name) throws JMException
+	{
+		final ObjectName name = new ObjectName("com.brightpi:type=BrightPi,name=" + ObjectName.quote(the_name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+		return name;
+	}
+
+	/**
+	 * Records a bus transaction.
+	 * 
+	 * @param the_operation The kind of transaction.
+	 * @param the_address The first register of the transaction.
+	 * @param the_size Number of registers in the transaction.
+	 * @param the_latency Duration of the transaction in nanoseconds.
+	 * @param the_success False if the transaction failed.
+	 */
+	void transaction(final Operation the_operation, final int the_address, final int the_size, final long the_latency,
+			final boolean the_success)
+	{
+		my_latencies[the_operation.ordinal()].record(the_latency);
+		if (!the_success)
+		{
+			increment(my_errors, the_operation.ordinal());
+			return;
+		}
+
+		final AtomicLongArray counts = the_operation == Operation.READ || the_operation == Operation.BLOCK_READ
+				? my_register_reads : my_register_writes;
+		for (int i = 0; i < the_size; i++)
+		{
+			increment(counts, the_address + i);
+		}
+	}
+
+	/**
+	 * @param the_wait Nanoseconds spent waiting for the device lock.
+	 */
+	void lockWait(final long the_wait)
+	{
+		my_lock_wait.record(the_wait);
+	}
+
+	/**
+	 * @param the_elided Register writes skipped because the device already held the value.
+	 * @param the_coalesced Register writes that shared a block transaction with another register.
+	 */
+	void flushed(final int the_elided, final int the_coalesced)
+	{
+		if (the_elided != 0)
+		{
+			my_elided.lazySet(my_elided.get() + the_elided);
+		}
+
+		if (the_coalesced != 0)
+		{
+			my_coalesced.lazySet(my_coalesced.get() + the_coalesced);
+		}
+	}
+
+	private static void increment(final AtomicLongArray the_counts, final int the_index)
+	{
+		the_counts.lazySet(the_index, the_counts.get(the_index) + 1);
+	}
+
+	private static long[] toArray(final AtomicLongArray the_counts)
+	{
+		final long[] values = new long[the_counts.length()];
+		for (int i = 0; i < values.length; i++)
+		{
+			values[i] = the_counts.get(i);
+		}
+
+		return values;
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * MIT License
+ * 
+ * Copyright (c) 2016 Michael Westbrook
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.brightpi;
+
+/**
+ * JMX view of {@link BrightPiMetrics}. Latencies are in nanoseconds.
+ * 
+ * @author Mike Westbrook
+ *
+ */
+public interface BrightPiMetricsMBean
+{
+	/**
+	 * @return Successful writes to each register, indexed by address.
+	 */
+	long[] getRegisterWrites();
+
+	/**
+	 * @return Successful reads of each register, indexed by address.
+	 */
+	long[] getRegisterReads();
+
+	/**
+	 * @return Bus transactions that failed.
+	 */
+	long getErrors();
+
+	/**
+	 * @return Register writes skipped because the device already held the value.
+	 */
+	long getElidedWrites();
+
+	/**
+	 * @return Register writes that shared a block transaction with another register.
+	 */
+	long getCoalescedWrites();
+
+	/**
+	 * @return Bus transactions, including failed ones.
+	 */
+	long getTransactions();
+
+	/**
+	 * @return Mean bus transaction latency.
+	 */
+	double getMeanLatency();
+
+	/**
+	 * @return 99th percentile bus transaction latency.
+	 */
+	long getLatency99thPercentile();
+
+	/**
+	 * @return Largest bus transaction latency.
+	 */
+	long getMaxLatency();
+
+	/**
+	 * @return Total time spent waiting for the device lock.
+	 */
+	long getLockWaitTotal();
+
+	/**
+	 * @return 99th percentile wait for the device lock.
+	 */
+	long getLockWait99thPercentile();
+}
@@ -0,0 +1,539 @@
+/*
+ * MIT License
+ * 
+ * Copyright (c) 2016 Michael Westbrook
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.brightpi;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.pi4j.io.i2c.I2CBus;
+import com.pi4j.io.i2c.I2CDevice;
+import com.pi4j.io.i2c.I2CFactory;
+import com.pi4j.io.i2c.I2CFactory.UnsupportedBusNumberException;
+
+/**
+ * Opens and controls several BrightPis on any number of I2C buses, including BrightPis behind a TCA9548A style
+ * multiplexer. Commands sent to a group run on one dispatcher thread per bus, so buses work in parallel; on each bus
+ * the BrightPis are visited in {@link BrightPiLocation} order to keep multiplexer channel switches to a minimum.
+ * Before a channel of one multiplexer is selected, every other multiplexer on the bus is switched off, so BrightPis
+ * at the same address behind different multiplexers never answer together. BrightPis wired to the bus directly switch
+ * every multiplexer off before each transaction, for the same reason.
+ * 
+ * @author Mike Westbrook
+ *
+ */
+public class BrightPiRegistry
+{
+	/**
+	 * Open BrightPis in location order.
+	 */
+	private final Map<BrightPiLocation, BrightPi> my_devices = new TreeMap<BrightPiLocation, BrightPi>();
+
+	/**
+	 * Named groups of locations.
+	 */
+	private final Map<String, Collection<BrightPiLocation>> my_groups = new HashMap<String, Collection<BrightPiLocation>>();
+
+	/**
+	 * Dispatcher of each bus.
+	 */
+	private final Map<Integer, ExecutorService> my_dispatchers = new HashMap<Integer, ExecutorService>();
+
+	/**
+	 * Multiplexers by bus and address.
+	 */
+	private final Map<Long, Mux> my_muxes = new HashMap<Long, Mux>();
+
+	/**
+	 * Lock and multiplexers of each bus that has multiplexers or BrightPis wired to it directly.
+	 */
+	private final Map<Integer, Bus> my_buses = new HashMap<Integer, Bus>();
+
+	/**
+	 * The control register of an I2C multiplexer.
+	 */
+	public interface Multiplexer
+	{
+		/**
+		 * @param the_channels Bit-mask of the channels to enable, 0 to disconnect every channel.
+		 * @throws IOException If the multiplexer could not be written.
+		 */
+		void write(byte the_channels) throws IOException;
+	}
+
+	/**
+	 * Opens a BrightPi through pi4j and resets it. Opening a location that is already open returns the same BrightPi.
+	 * 
+	 * @param the_location Where the BrightPi is attached.
+	 * @return The BrightPi.
+	 * @throws UnsupportedBusNumberException If the bus does not exist.
+	 * @throws IOException If the bus or device could not be opened.
+	 */
+	public synchronized BrightPi open(final BrightPiLocation the_location)
+			throws UnsupportedBusNumberException, IOException
+	{
+		BrightPi brightpi = my_devices.get(the_location);
+		if (brightpi == null)
+		{
+			final I2CBus bus = I2CFactory.getInstance(the_location.getBus());
+			final BrightPiTransport transport = new I2CTransport(bus.getDevice(the_location.getAddress()));
+			if (the_location.isMuxed() && !my_muxes.containsKey(muxKey(the_location)))
+			{
+				final I2CDevice device = bus.getDevice(the_location.getMuxAddress());
+				addMultiplexer(the_location.getBus(), the_location.getMuxAddress(), new Multiplexer()
+				{
+					@Override
+					public void write(final byte the_channels) throws IOException
+					{
+						device.write(the_channels);
+					}
+				});
+			}
+
+			brightpi = register(the_location, transport);
+		}
+
+		return brightpi;
+	}
+
+	/**
+	 * Adds a multiplexer, for BrightPis behind it that are then added with {@link #register}. {@link #open} adds the
+	 * multiplexers it needs itself.
+	 * 
+	 * @param the_bus The I2C bus number.
+	 * @param the_address The I2C address of the multiplexer.
+	 * @param the_multiplexer Writes the control register of the multiplexer.
+	 */
+	public synchronized void addMultiplexer(final int the_bus, final int the_address, final Multiplexer the_multiplexer)
+	{
+		final Long key = muxKey(the_bus, the_address);
+		if (my_muxes.containsKey(key))
+		{
+			throw new IllegalStateException("Multiplexer 0x" + Integer.toHexString(the_address) + " on bus " + the_bus
+					+ " was already added.");
+		}
+
+		final Bus bus = bus(the_bus);
+		final Mux mux = new Mux(bus, the_multiplexer);
+		bus.add(mux);
+		my_muxes.put(key, mux);
+	}
+
+	/**
+	 * Adds a BrightPi reached through the given transport, such as a {@link SimulatedBrightPi}. If the location is
+	 * behind a multiplexer added with {@link #addMultiplexer}, its channel is selected before every transaction. If it
+	 * is wired to the bus directly, every multiplexer added on the bus is switched off before every transaction.
+	 * Otherwise the transport must select any multiplexer channel itself.
+	 * 
+	 * @param the_location Where the BrightPi is attached.
+	 * @param the_transport Transport used to reach the BrightPi.
+	 * @return The BrightPi.
+	 */
+	public synchronized BrightPi register(final BrightPiLocation the_location, final BrightPiTransport the_transport)
+	{
+		if (my_devices.containsKey(the_location))
+		{
+			throw new IllegalStateException(the_location + " is already open.");
+		}
+
+		final BrightPiTransport transport;
+		if (!the_location.isMuxed())
+		{
+			transport = new BusTransport(bus(the_location.getBus()), null, BrightPiLocation.NONE, the_transport);
+		} else
+		{
+			final Mux mux = my_muxes.get(muxKey(the_location));
+			transport = mux == null ? the_transport
+					: new BusTransport(mux.my_bus, mux, the_location.getChannel(), the_transport);
+		}
+
+		final BrightPi brightpi = new BrightPi(transport);
+		my_devices.put(the_location, brightpi);
+		return brightpi;
+	}
+
+	/**
+	 * @param the_location Where the BrightPi is attached.
+	 * @return The BrightPi at the location, or null if it is not open.
+	 */
+	public synchronized BrightPi get(final BrightPiLocation the_location)
+	{
+		return my_devices.get(the_location);
+	}
+
+	/**
+	 * @return The locations of every open BrightPi.
+	 */
+	public synchronized Collection<BrightPiLocation> getLocations()
+	{
+		return new ArrayList<BrightPiLocation>(my_devices.keySet());
+	}
+
+	/**
+	 * Adds a location to a named group, creating the group if needed.
+	 * 
+	 * @param the_group Name of the group.
+	 * @param the_location Location of an open BrightPi.
+	 */
+	public synchronized void addToGroup(final String the_group, final BrightPiLocation the_location)
+	{
+		Collection<BrightPiLocation> group = my_groups.get(the_group);
+		if (group == null)
+		{
+			group = new TreeSet<BrightPiLocation>();
+			my_groups.put(the_group, group);
+		}
+
+		group.add(the_location);
+	}
+
+	/**
+	 * Sends a command to every BrightPi in a named group and waits for it to finish on all of them.
+	 * 
+	 * @param the_group Name of the group.
+	 * @param the_command The command to send.
+	 * @throws ExecutionException If the command failed on any BrightPi.
+	 * @throws InterruptedException If the thread was interrupted while waiting.
+	 */
+	public void broadcast(final String the_group, final BrightPiCommand the_command)
+			throws ExecutionException, InterruptedException
+	{
+		final Collection<BrightPiLocation> group;
+		synchronized (this)
+		{
+			group = my_groups.get(the_group);
+			if (group == null)
+			{
+				throw new IllegalArgumentException("No group named " + the_group);
+			}
+		}
+
+		broadcast(group, the_command);
+	}
+
+	/**
+	 * Sends a command to every BrightPi at the given locations and waits for it to finish on all of them.
+	 * 
+	 * @param the_locations Locations of open BrightPis.
+	 * @param the_command The command to send.
+	 * @throws ExecutionException If the command failed on any BrightPi.
+	 * @throws InterruptedException If the thread was interrupted while waiting.
+	 */
+	public void broadcast(final Collection<BrightPiLocation> the_locations, final BrightPiCommand the_command)
+			throws ExecutionException, InterruptedException
+	{
+		for (final Future<?> future : submit(the_locations, the_command))
+		{
+			future.get();
+		}
+	}
+
+	/**
+	 * Sends a command to every BrightPi at the given locations without waiting.
+	 * 
+	 * @param the_locations Locations of open BrightPis.
+	 * @param the_command The command to send.
+	 * @return One future per bus, done when the command has been applied to every BrightPi on that bus.
+	 */
+	public synchronized List<Future<?>> submit(final Collection<BrightPiLocation> the_locations,
+			final BrightPiCommand the_command)
+	{
+		final Map<Integer, List<BrightPi>> by_bus = new TreeMap<Integer, List<BrightPi>>();
+		for (final BrightPiLocation location : new TreeSet<BrightPiLocation>(the_locations))
+		{
+			final BrightPi brightpi = my_devices.get(location);
+			if (brightpi == null)
+			{
+				throw new IllegalArgumentException(location + " is not open.");
+			}
+
+			List<BrightPi> devices = by_bus.get(location.getBus());
+			if (devices == null)
+			{
+				devices = new ArrayList<BrightPi>();
+				by_bus.put(location.getBus(), devices);
+			}
+
+			devices.add(brightpi);
+		}
+
+		final List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (final Map.Entry<Integer, List<BrightPi>> entry : by_bus.entrySet())
+		{
+			final List<BrightPi> devices = entry.getValue();
+			futures.add(dispatcher(entry.getKey()).submit(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					for (final BrightPi brightpi : devices)
+					{
+						the_command.apply(brightpi);
+					}
+				}
+			}));
+		}
+
+		return futures;
+	}
+
+	/**
+	 * Stops the dispatcher threads. The BrightPis stay usable directly.
+	 */
+	public synchronized void shutdown()
+	{
+		for (final ExecutorService dispatcher : my_dispatchers.values())
+		{
+			dispatcher.shutdown();
+		}
+
+		my_dispatchers.clear();
+	}
+
+	/**
+	 * @return The dispatcher of a bus, created when first used.
+	 */
+	private ExecutorService dispatcher(final int the_bus)
+	{
+		ExecutorService dispatcher = my_dispatchers.get(the_bus);
+		if (dispatcher == null)
+		{
+			dispatcher = Executors.newSingleThreadExecutor(BrightPiExecutors.threadFactory("BrightPi bus " + the_bus));
+			my_dispatchers.put(the_bus, dispatcher);
+		}
+
+		return dispatcher;
+	}
+
+	/**
+	 * @return The state of a bus, created when first used.
+	 */
+	private Bus bus(final int the_bus)
+	{
+		Bus bus = my_buses.get(the_bus);
+		if (bus == null)
+		{
+			bus = new Bus();
+			my_buses.put(the_bus, bus);
+		}
+
+		return bus;
+	}
+
+	private static Long muxKey(final BrightPiLocation the_location)
+	{
+		return muxKey(the_location.getBus(), the_location.getMuxAddress());
+	}
+
+	private static Long muxKey(final int the_bus, final int the_address)
+	{
+		return ((long) the_bus << 32) | the_address;
+	}
+
+	/**
+	 * The multiplexers of one bus, which share its lock with the BrightPis on it because a channel left enabled on one
+	 * of them would put its BrightPis on the bus next to those behind another, or next to those wired directly.
+	 */
+	private static final class Bus
+	{
+		/**
+		 * Held while selecting a channel and using the device behind it. A lock rather than a monitor, so virtual
+		 * threads waiting for the bus park instead of pinning their carriers.
+		 */
+		private final ReentrantLock my_lock = new ReentrantLock();
+
+		/**
+		 * Multiplexers of the bus. Guarded by my_lock.
+		 */
+		private final List<Mux> my_muxes = new ArrayList<Mux>();
+
+		private void add(final Mux the_mux)
+		{
+			my_lock.lock();
+			try
+			{
+				my_muxes.add(the_mux);
+			} finally
+			{
+				my_lock.unlock();
+			}
+		}
+
+		/**
+		 * Disconnects every other multiplexer, then selects a channel. Call while holding my_lock.
+		 * 
+		 * @param the_mux The multiplexer to select a channel of, or null to disconnect them all.
+		 */
+		private void select(final Mux the_mux, final int the_channel) throws IOException
+		{
+			for (final Mux mux : my_muxes)
+			{
+				if (mux != the_mux)
+				{
+					mux.select(BrightPiLocation.NONE);
+				}
+			}
+
+			if (the_mux != null)
+			{
+				the_mux.select(the_channel);
+			}
+		}
+	}
+
+	/**
+	 * An I2C multiplexer that remembers its selected channel so it is only switched when needed.
+	 */
+	private static final class Mux
+	{
+		/**
+		 * Channel of a multiplexer in an unknown state, after it was added or a write to it failed.
+		 */
+		private static final int UNKNOWN = -2;
+
+		private final Bus my_bus;
+
+		private final Multiplexer my_device;
+
+		/**
+		 * Selected channel, {@link BrightPiLocation#NONE} if disconnected or {@link #UNKNOWN}. Guarded by the lock of
+		 * my_bus.
+		 */
+		private int my_channel = UNKNOWN;
+
+		private Mux(final Bus the_bus, final Multiplexer the_device)
+		{
+			my_bus = the_bus;
+			my_device = the_device;
+		}
+
+		/**
+		 * Selects a channel, or disconnects every channel for {@link BrightPiLocation#NONE}.
+		 */
+		private void select(final int the_channel) throws IOException
+		{
+			if (my_channel != the_channel)
+			{
+				my_channel = UNKNOWN;
+				my_device.write(the_channel == BrightPiLocation.NONE ? 0 : (byte) (1 << the_channel));
+				my_channel = the_channel;
+			}
+		}
+	}
+
+	/**
+	 * Holds the lock of the bus of a BrightPi during every transaction, and selects its multiplexer channel or, for a
+	 * BrightPi wired directly, disconnects every multiplexer first.
+	 */
+	private static final class BusTransport implements BrightPiTransport
+	{
+		private final Bus my_bus;
+
+		/**
+		 * Multiplexer the BrightPi is behind, or null if it is wired to the bus directly.
+		 */
+		private final Mux my_mux;
+
+		private final int my_channel;
+
+		private final BrightPiTransport my_transport;
+
+		private BusTransport(final Bus the_bus, final Mux the_mux, final int the_channel,
+				final BrightPiTransport the_transport)
+		{
+			my_bus = the_bus;
+			my_mux = the_mux;
+			my_channel = the_channel;
+			my_transport = the_transport;
+		}
+
+		@Override
+		public int read(final int the_address) throws IOException
+		{
+			my_bus.my_lock.lock();
+			try
+			{
+				my_bus.select(my_mux, my_channel);
+				return my_transport.read(the_address);
+			} finally
+			{
+				my_bus.my_lock.unlock();
+			}
+		}
+
+		@Override
+		public int read(final int the_address, final byte[] the_buffer, final int the_offset, final int the_size)
+				throws IOException
+		{
+			my_bus.my_lock.lock();
+			try
+			{
+				my_bus.select(my_mux, my_channel);
+				return my_transport.read(the_address, the_buffer, the_offset, the_size);
+			} finally
+			{
+				my_bus.my_lock.unlock();
+			}
+		}
+
+		@Override
+		public void write(final int the_address, final byte the_data) throws IOException
+		{
+			my_bus.my_lock.lock();
+			try
+			{
+				my_bus.select(my_mux, my_channel);
+				my_transport.write(the_address, the_data);
+			} finally
+			{
+				my_bus.my_lock.unlock();
+			}
+		}
+
+		@Override
+		public void write(final int the_address, final byte[] the_buffer, final int the_offset, final int the_size)
+				throws IOException
+		{
+			my_bus.my_lock.lock();
+			try
+			{
+				my_bus.select(my_mux, my_channel);
+				my_transport.write(the_address, the_buffer, the_offset, the_size);
+			} finally
+			{
+				my_bus.my_lock.unlock();
+			}
+		}
+	}
+}
@@ -0,0 +1,218 @@
+/*
+ * MIT License
+ * 
+ * Copyright (c) 2016 Michael Westbrook
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.brightpi;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+import com.pi4j.io.i2c.I2CBus;
+
+/**
+ * Plays a journal recorded by {@link BrightPiJournal} back against any transport, such as the real device or a
+ * {@link SimulatedBrightPi}. In real time each transaction starts at the same offset from the start as it was
+ * recorded, otherwise the transactions are sent back to back, which makes the journal a repeatable load. Failed
+ * replayed transactions are counted and the replay goes on.
+ * 
+ * @author Mike Westbrook
+ *
+ */
+public class BrightPiReplayer
+{
+	private static final BrightPiMetrics.Operation[] OPERATIONS = BrightPiMetrics.Operation.values();
+
+	/**
+	 * The records of the journal.
+	 */
+	private final ByteBuffer my_records;
+
+	/**
+	 * Wall clock time of the start of the journal in milliseconds.
+	 */
+	private final long my_recorded_at;
+
+	/**
+	 * Holds the values of block transactions.
+	 */
+	private final byte[] my_buffer = new byte[BrightPiJournal.MAX_DATA];
+
+	/**
+	 * Number of transactions that failed during the last replay.
+	 */
+	private long my_errors;
+
+	/**
+	 * Maps a journal file.
+	 * 
+	 * @param the_file The journal.
+	 * @throws IOException If the file cannot be read or is not a journal.
+	 */
+	public BrightPiReplayer(final File the_file) throws IOException
+	{
+		final RandomAccessFile file = new RandomAccessFile(the_file, "r");
+		try
+		{
+			final FileChannel channel = file.getChannel();
+			final ByteBuffer journal = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (journal.remaining() < BrightPiJournal.HEADER_SIZE || journal.getInt(0) != BrightPiJournal.MAGIC)
+			{
+				throw new IOException(the_file + " is not a BrightPi journal.");
+			}
+
+			if (journal.getInt(4) != BrightPiJournal.VERSION || journal.getInt(8) != BrightPiJournal.RECORD_SIZE)
+			{
+				throw new IOException(the_file + " has an unsupported journal version.");
+			}
+
+			my_recorded_at = journal.getLong(16);
+			journal.position(BrightPiJournal.HEADER_SIZE);
+			my_records = journal.slice();
+		} finally
+		{
+			//The mapping stays valid after the file is closed.
+			file.close();
+		}
+	}
+
+	/**
+	 * Replays a journal against a simulator or the BrightPi at the default bus and address.
+	 * 
+	 * @param the_args The journal file, then optionally <code>--fast</code> to replay back to back and
+	 *            <code>--simulate</code> to replay against a {@link SimulatedBrightPi}.
+	 * @throws Exception If the journal or the device cannot be opened.
+	 */
+	public static void main(final String[] the_args) throws Exception
+	{
+		boolean fast = false;
+		boolean simulate = false;
+		for (int i = 1; i < the_args.length; i++)
+		{
+			fast |= "--fast".equals(the_args[i]);
+			simulate |= "--simulate".equals(the_args[i]);
+		}
+
+		final BrightPiReplayer replayer = new BrightPiReplayer(new File(the_args[0]));
+		final BrightPiTransport target = simulate ? new SimulatedBrightPi()
+				: I2CTransport.open(I2CBus.BUS_1, BrightPi.BRIGHTPI_ADDRESS);
+		final long start = System.nanoTime();
+		final long replayed = replayer.replay(target, !fast);
+		final double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("%d transactions in %.3f s, %.0f transactions/s, %d errors%n", replayed, seconds,
+				replayed / seconds, replayer.getErrors());
+	}
+
+	/**
+	 * @return Number of records in the journal.
+	 */
+	public int getRecordCount()
+	{
+		return my_records.capacity() / BrightPiJournal.RECORD_SIZE;
+	}
+
+	/**
+	 * @return Wall clock time the journal was started, in milliseconds since the epoch.
+	 */
+	public long getRecordedAt()
+	{
+		return my_recorded_at;
+	}
+
+	/**
+	 * @return Number of transactions that failed or had an unknown operation during the last replay.
+	 */
+	public long getErrors()
+	{
+		return my_errors;
+	}
+
+	/**
+	 * Sends every recorded transaction to a transport, including reads and transactions that failed when recorded,
+	 * so the bus sees the same traffic.
+	 * 
+	 * @param the_target The transport to replay against.
+	 * @param the_real_time True to keep the recorded timing, false to send transactions back to back.
+	 * @return Number of transactions replayed.
+	 */
+	public long replay(final BrightPiTransport the_target, final boolean the_real_time)
+	{
+		my_errors = 0;
+		final int count = getRecordCount();
+		final long start = System.nanoTime();
+		final long first = count == 0 ? 0 : my_records.getLong(BrightPiJournal.TIME_OFFSET);
+		for (int i = 0; i < count; i++)
+		{
+			final int record = i * BrightPiJournal.RECORD_SIZE;
+			if (the_real_time)
+			{
+				final long due = start + my_records.getLong(record + BrightPiJournal.TIME_OFFSET) - first;
+				for (long remaining = due - System.nanoTime(); remaining > 0; remaining = due - System.nanoTime())
+				{
+					LockSupport.parkNanos(remaining);
+				}
+			}
+
+			//A corrupt operation is skipped and counted like a transaction the target rejected.
+			final int operation = my_records.get(record + BrightPiJournal.OPERATION_OFFSET) & 0xff;
+			if (operation >= OPERATIONS.length)
+			{
+				my_errors++;
+				continue;
+			}
+
+			final int address = my_records.get(record + BrightPiJournal.ADDRESS_OFFSET) & 0xff;
+			final int size = Math.min(my_records.get(record + BrightPiJournal.SIZE_OFFSET) & 0xff,
+					BrightPiJournal.MAX_DATA);
+			try
+			{
+				switch (OPERATIONS[operation])
+				{
+					case READ:
+						the_target.read(address);
+						break;
+					case BLOCK_READ:
+						the_target.read(address, my_buffer, 0, size);
+						break;
+					case WRITE:
+						the_target.write(address, my_records.get(record + BrightPiJournal.DATA_OFFSET));
+						break;
+					case BLOCK_WRITE:
+						for (int j = 0; j < size; j++)
+						{
+							my_buffer[j] = my_records.get(record + BrightPiJournal.DATA_OFFSET + j);
+						}
+						the_target.write(address, my_buffer, 0, size);
+						break;
+				}
+			} catch (IOException e)
+			{
+				my_errors++;
+			}
+		}
+
+		return count;
+	}
+}
@@ -0,0 +1,157 @@
+/*
+ * MIT License
+ * 
+ * Copyright (c) 2016 Michael Westbrook
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.brightpi;
+
+import java.util.Arrays;
+
+/**
+ * A named lighting preset compiled once into the full register image of the device. Applying a scene with
+ * {@link BrightPi#apply(BrightPiScene)} compares the image to the registers the device already has, so no reads are
+ * needed and only the differences are written.
+ * 
+ * <pre>
+ * BrightPiScene night = BrightPiScene.compile("night", BrightPiScene.define()
+ * 		.setMode(BrightPiMode.IR).setGain(BrightPiGain.HIGH_GAIN).on());
+ * brightpi.apply(night);
+ * </pre>
+ * 
+ * @author Mike Westbrook
+ *
+ */
+public final class BrightPiScene
+{
+	/**
+	 * Name of the scene.
+	 */
+	private final String my_name;
+
+	/**
+	 * State the device is in after applying the scene.
+	 */
+	private final BrightPiState my_state;
+
+	/**
+	 * Register image of the state.
+	 */
+	private final byte[] my_image;
+
+	/**
+	 * @param the_name Name of the scene.
+	 * @param the_state State the device is in after applying the scene.
+	 */
+	private BrightPiScene(final String the_name, final BrightPiState the_state)
+	{
+		if (the_name == null)
+		{
+			throw new IllegalArgumentException("A scene needs a name.");
+		}
+
+		my_name = the_name;
+		my_state = the_state;
+		my_image = the_state.getRegisters();
+	}
+
+	/**
+	 * Starts a scene definition. The returned transaction records changes like {@link BrightPi#batch()} but is never
+	 * committed, pass it to {@link #compile(String, BrightPiTransaction)} instead.
+	 * 
+	 * @return An empty definition.
+	 */
+	public static BrightPiTransaction define()
+	{
+		return new BrightPiTransaction(null);
+	}
+
+	/**
+	 * Compiles a definition by applying its changes to the state of a cleared device.
+	 * 
+	 * @param the_name Name of the scene.
+	 * @param the_definition The changes that make up the scene, see {@link #define()}.
+	 * @return The scene.
+	 */
+	public static BrightPiScene compile(final String the_name, final BrightPiTransaction the_definition)
+	{
+		return new BrightPiScene(the_name, the_definition.applyTo(BrightPiState.DEFAULT));
+	}
+
+	/**
+	 * Saves a state as a scene, for example the current {@link BrightPi#snapshot()}.
+	 * 
+	 * @param the_name Name of the scene.
+	 * @param the_state The state to save.
+	 * @return The scene.
+	 */
+	public static BrightPiScene capture(final String the_name, final BrightPiState the_state)
+	{
+		return new BrightPiScene(the_name, the_state);
+	}
+
+	/**
+	 * @return Name of the scene.
+	 */
+	public String getName()
+	{
+		return my_name;
+	}
+
+	/**
+	 * @return State the device is in after applying the scene.
+	 */
+	public BrightPiState getState()
+	{
+		return my_state;
+	}
+
+	/**
+	 * @return A copy of the register image, indexed by register address.
+	 */
+	public byte[] getImage()
+	{
+		return my_image.clone();
+	}
+
+	@Override
+	public boolean equals(final Object the_other)
+	{
+		if (!(the_other instanceof BrightPiScene))
+		{
+			return false;
+		}
+
+		final BrightPiScene other = (BrightPiScene) the_other;
+		return my_name.equals(other.my_name) && my_state.equals(other.my_state);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return my_name.hashCode() * 31 + my_state.hashCode();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "BrightPiScene[" + my_name + ", image=" + Arrays.toString(my_image) + "]";
+	}
+}
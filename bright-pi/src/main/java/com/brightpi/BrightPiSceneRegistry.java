@@ -0,0 +1,175 @@
+/*
+ * MIT License
+ * 
+ * Copyright (c) 2016 Michael Westbrook
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.brightpi;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Named scene definitions with a bounded cache of their compiled register images. Definitions are kept until they are
+ * removed. Once more scenes are in use than the capacity allows, the image of the least recently used one is dropped
+ * and compiled again from its definition when it is next needed.
+ * 
+ * @author Mike Westbrook
+ *
+ */
+public class BrightPiSceneRegistry
+{
+	/**
+	 * Default number of compiled scenes to keep.
+	 */
+	public static final int DEFAULT_CAPACITY = 32;
+
+	/**
+	 * Detached copies of the definitions by name.
+	 */
+	private final Map<String, BrightPiTransaction> my_definitions = new HashMap<String, BrightPiTransaction>();
+
+	/**
+	 * Compiled scenes by name, in order of use.
+	 */
+	private final Map<String, BrightPiScene> my_scenes;
+
+	/**
+	 * Number of compiled scenes dropped to make room for others.
+	 */
+	private long my_evictions;
+
+	/**
+	 * Creates a registry caching {@link #DEFAULT_CAPACITY} compiled scenes.
+	 */
+	public BrightPiSceneRegistry()
+	{
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param the_capacity Number of compiled scenes to keep.
+	 */
+	public BrightPiSceneRegistry(final int the_capacity)
+	{
+		if (the_capacity < 1)
+		{
+			throw new IllegalArgumentException("The registry needs room for at least one scene.");
+		}
+
+		my_scenes = new LinkedHashMap<String, BrightPiScene>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<String, BrightPiScene> the_eldest)
+			{
+				if (size() > the_capacity)
+				{
+					my_evictions++;
+					return true;
+				}
+
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Compiles and adds a scene, replacing any scene with the same name. Later changes to the definition do not affect
+	 * the registry.
+	 * 
+	 * @param the_name Name of the scene.
+	 * @param the_definition The changes that make up the scene, see {@link BrightPiScene#define()}.
+	 * @return The compiled scene.
+	 */
+	public synchronized BrightPiScene define(final String the_name, final BrightPiTransaction the_definition)
+	{
+		final BrightPiTransaction definition = the_definition.copy();
+		final BrightPiScene scene = BrightPiScene.compile(the_name, definition);
+		my_definitions.put(the_name, definition);
+		my_scenes.put(the_name, scene);
+		return scene;
+	}
+
+	/**
+	 * @param the_name Name of the scene.
+	 * @return True if the scene was defined.
+	 */
+	public synchronized boolean remove(final String the_name)
+	{
+		my_scenes.remove(the_name);
+		return my_definitions.remove(the_name) != null;
+	}
+
+	/**
+	 * @param the_name Name of the scene.
+	 * @return The compiled scene, compiled again if it was dropped from the cache.
+	 * @throws IllegalArgumentException If no scene has the name.
+	 */
+	public synchronized BrightPiScene get(final String the_name)
+	{
+		BrightPiScene scene = my_scenes.get(the_name);
+		if (scene == null)
+		{
+			final BrightPiTransaction definition = my_definitions.get(the_name);
+			if (definition == null)
+			{
+				throw new IllegalArgumentException("No scene named " + the_name);
+			}
+
+			scene = BrightPiScene.compile(the_name, definition);
+			my_scenes.put(the_name, scene);
+		}
+
+		return scene;
+	}
+
+	/**
+	 * Switches a device to a scene.
+	 * 
+	 * @param the_brightpi The device.
+	 * @param the_name Name of the scene.
+	 */
+	public void apply(final BrightPi the_brightpi, final String the_name)
+	{
+		the_brightpi.apply(get(the_name));
+	}
+
+	/**
+	 * @return Names of all scenes defined, sorted.
+	 */
+	public synchronized Set<String> getNames()
+	{
+		return new TreeSet<String>(my_definitions.keySet());
+	}
+
+	/**
+	 * @return Number of compiled scenes dropped to make room for others. A count that keeps growing means the capacity
+	 *         is too small for the scenes in use, which are then compiled again on every switch.
+	 */
+	public synchronized long getEvictions()
+	{
+		return my_evictions;
+	}
+}
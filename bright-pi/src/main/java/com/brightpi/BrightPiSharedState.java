@@ -0,0 +1,343 @@
+/*
+ * MIT License
+ * 
+ * Copyright (c) 2016 Michael Westbrook
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.brightpi;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Register image of a BrightPi shared by every process on the Raspberry Pi through a memory-mapped file. Processes
+ * that write to the device take a lock on the file, so they never interleave their writes and each one picks up the
+ * changes the others made before making its own. Processes that only want to know the state read it straight from
+ * the mapped file with {@link #read()}, without touching the bus or making a system call.
+ * <p>
+ * The image is guarded by a 32-bit sequence counter, so it is updated atomically even on 32-bit ARM, that is odd while
+ * a write is in progress. Readers retry until they copy the image between two equal, even values of the counter, with
+ * fences from {@link BrightPiFences} ordering the copy against the counter. Without fences, on Java 7, or if a writer
+ * keeps the image busy or died in the middle of a write, readers take the file lock instead. Open one instance per
+ * file in each process and pass it to every {@link BrightPi} using the file.
+ * 
+ * @author Mike Westbrook
+ *
+ */
+public class BrightPiSharedState implements Closeable
+{
+	/**
+	 * Marks a file holding a register image with a 32-bit sequence counter.
+	 */
+	private static final int MAGIC = 0x42504932;
+
+	private static final int MAGIC_OFFSET = 0;
+
+	private static final int SEQUENCE_OFFSET = 8;
+
+	private static final int REGISTERS_OFFSET = 16;
+
+	/**
+	 * Size of an image: the registers, the individual LED mask, and the mode with the on flag in the top bit.
+	 */
+	static final int IMAGE_SIZE = BrightPi.REGISTER_COUNT + 2;
+
+	private static final int ON_FLAG = 0x80;
+
+	private static final BrightPiMode[] MODES = BrightPiMode.values();
+
+	/**
+	 * Copies tried without the lock before a reader takes it.
+	 */
+	private static final int OPTIMISTIC_READS = 100;
+
+	/**
+	 * Size of the file, one cache line.
+	 */
+	private static final int SIZE = 64;
+
+	/**
+	 * The open file.
+	 */
+	private final RandomAccessFile my_file;
+
+	/**
+	 * The mapped file.
+	 */
+	private final MappedByteBuffer my_buffer;
+
+	/**
+	 * Keeps threads of this process from asking for the file lock twice, which the file channel does not allow.
+	 */
+	private final ReentrantLock my_lock = new ReentrantLock();
+
+	/**
+	 * Lock on the file while a writer of this process holds it.
+	 */
+	private FileLock my_file_lock;
+
+	/**
+	 * Maps a shared state file, creating it if needed.
+	 * 
+	 * @param the_file The file, usually in a memory-backed directory such as /dev/shm.
+	 * @throws IOException If the file cannot be opened or mapped.
+	 */
+	public BrightPiSharedState(final File the_file) throws IOException
+	{
+		my_file = new RandomAccessFile(the_file, "rw");
+		try
+		{
+			final FileChannel channel = my_file.getChannel();
+			final FileLock lock = channel.lock();
+			try
+			{
+				if (my_file.length() < SIZE)
+				{
+					my_file.setLength(SIZE);
+				}
+
+				my_buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+				my_buffer.order(ByteOrder.nativeOrder());
+			} finally
+			{
+				lock.release();
+			}
+		} catch (IOException e)
+		{
+			my_file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return True once some process has written an image.
+	 */
+	public boolean isInitialized()
+	{
+		return my_buffer.getInt(MAGIC_OFFSET) == MAGIC;
+	}
+
+	/**
+	 * @return The sequence counter, which changes every time the image is written.
+	 */
+	public long getSequence()
+	{
+		return my_buffer.getInt(SEQUENCE_OFFSET) & 0xffffffffL;
+	}
+
+	/**
+	 * Reads the state without locking or touching the bus.
+	 * 
+	 * @return The last state written by any process, or null if none has been written or the image is not valid.
+	 */
+	public BrightPiState read()
+	{
+		final byte[] image = new byte[IMAGE_SIZE];
+		return read(image) < 0 ? null : decode(image);
+	}
+
+	/**
+	 * @param the_image An image copied by {@link #read(byte[])}.
+	 * @return The state the image holds.
+	 */
+	static BrightPiState decode(final byte[] the_image)
+	{
+		final int flags = the_image[BrightPi.REGISTER_COUNT + 1];
+		return BrightPiState.fromRegisters(the_image, the_image[BrightPi.REGISTER_COUNT], (flags & ON_FLAG) != 0,
+				MODES[flags & ~ON_FLAG & 0xff]);
+	}
+
+	/**
+	 * Copies a consistent image.
+	 * 
+	 * @param the_image Receives {@link #IMAGE_SIZE} bytes.
+	 * @return The sequence counter of the image, or -1 if no image has been written or the image is not valid.
+	 */
+	long read(final byte[] the_image)
+	{
+		if (BrightPiFences.isAvailable())
+		{
+			for (int attempt = 0; attempt < OPTIMISTIC_READS; attempt++)
+			{
+				final long before = getSequence();
+				BrightPiFences.acquireFence();
+				if ((before & 1) != 0)
+				{
+					//A writer is in the middle of an update.
+					Thread.yield();
+					continue;
+				}
+
+				if (!isInitialized())
+				{
+					return -1;
+				}
+
+				copy(the_image);
+				BrightPiFences.acquireFence();
+				if (getSequence() == before && isValid(the_image))
+				{
+					return before;
+				}
+			}
+		}
+
+		return readLocked(the_image);
+	}
+
+	/**
+	 * Copies the image while holding the file lock, so no writer can be in the middle of an update. An odd counter then
+	 * means a writer died during an update, and the image is used if it is valid.
+	 */
+	private long readLocked(final byte[] the_image)
+	{
+		final boolean locked = my_lock.isHeldByCurrentThread();
+		if (!locked)
+		{
+			try
+			{
+				lock();
+			} catch (IOException e)
+			{
+				return -1;
+			}
+		}
+
+		try
+		{
+			if (!isInitialized())
+			{
+				return -1;
+			}
+
+			copy(the_image);
+			return isValid(the_image) ? getSequence() : -1;
+		} finally
+		{
+			if (!locked)
+			{
+				unlock();
+			}
+		}
+	}
+
+	private void copy(final byte[] the_image)
+	{
+		for (int i = 0; i < IMAGE_SIZE; i++)
+		{
+			the_image[i] = my_buffer.get(REGISTERS_OFFSET + i);
+		}
+	}
+
+	/**
+	 * @return False if the image does not hold a mode. Any process can write the file, so a copy that passed the
+	 *         sequence check is still checked before it is decoded.
+	 */
+	private static boolean isValid(final byte[] the_image)
+	{
+		return (the_image[BrightPi.REGISTER_COUNT + 1] & ~ON_FLAG & 0xff) < MODES.length;
+	}
+
+	/**
+	 * Stores an image. Only call while holding the lock.
+	 * 
+	 * @param the_state The state to store.
+	 * @return The new sequence counter.
+	 */
+	long write(final BrightPiState the_state)
+	{
+		//Odd while writing. A counter left odd by a writer that died is already odd.
+		final int sequence = my_buffer.getInt(SEQUENCE_OFFSET) | 1;
+		my_buffer.putInt(SEQUENCE_OFFSET, sequence);
+		if (BrightPiFences.isAvailable())
+		{
+			BrightPiFences.releaseFence();
+		}
+
+		for (int address = 0; address < BrightPi.REGISTER_COUNT; address++)
+		{
+			my_buffer.put(REGISTERS_OFFSET + address, the_state.getRegister(address));
+		}
+
+		my_buffer.put(REGISTERS_OFFSET + BrightPi.REGISTER_COUNT, the_state.getIndividualMask());
+		my_buffer.put(REGISTERS_OFFSET + BrightPi.REGISTER_COUNT + 1,
+				(byte) (the_state.getMode().ordinal() | (the_state.isOn() ? ON_FLAG : 0)));
+		my_buffer.putInt(MAGIC_OFFSET, MAGIC);
+		if (BrightPiFences.isAvailable())
+		{
+			BrightPiFences.releaseFence();
+		}
+
+		my_buffer.putInt(SEQUENCE_OFFSET, sequence + 1);
+		return (sequence + 1) & 0xffffffffL;
+	}
+
+	/**
+	 * Waits until no other thread or process is writing.
+	 * 
+	 * @throws IOException If the file cannot be locked.
+	 */
+	void lock() throws IOException
+	{
+		my_lock.lock();
+		try
+		{
+			my_file_lock = my_file.getChannel().lock();
+		} catch (IOException e)
+		{
+			my_lock.unlock();
+			throw e;
+		}
+	}
+
+	/**
+	 * Lets other writers in.
+	 */
+	void unlock()
+	{
+		try
+		{
+			my_file_lock.release();
+		} catch (IOException e)
+		{
+			//The lock goes away with the channel at the latest.
+		} finally
+		{
+			my_file_lock = null;
+			my_lock.unlock();
+		}
+	}
+
+	/**
+	 * Closes the file. The image stays for the other processes.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		my_file.close();
+	}
+}
@@ -0,0 +1,455 @@
+/*
+ * MIT License
+ * 
+ * Copyright (c) 2016 Michael Westbrook
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.brightpi;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Immutable view of the whole state of a BrightPi: whether it is on, its mode, gain and the brightness of every LED.
+ * A state is never changed after it is created, so it can be shared between threads and read without locking.
+ * 
+ * @author Mike Westbrook
+ *
+ */
+public final class BrightPiState
+{
+	/**
+	 * State of a BrightPi after {@link BrightPi#clear()}.
+	 */
+	static final BrightPiState DEFAULT = new BrightPiState(false, BrightPi.DEFAULT_MODE,
+			BrightPiMode.INDIVIDUAL.getLeds(), BrightPi.DEFAULT_GAIN.getGain(), defaultLevels());
+
+	private static final BrightPiMode[] MODES = BrightPiMode.values();
+
+	private static final BrightPiGain[] GAINS = BrightPiGain.values();
+
+	private static final BrightPiLED[] LEDS = BrightPiLED.values();
+
+	private final boolean i_am_on;
+
+	private final BrightPiMode my_mode;
+
+	/**
+	 * LEDs used in individual mode.
+	 */
+	private final byte my_individual_mask;
+
+	private final byte my_gain;
+
+	/**
+	 * Brightness of each LED, one byte each, the lowest for the LED at {@link BrightPi#FIRST_LED_ADDRESS}. Packed in a
+	 * long so that a change of brightness allocates the new state and nothing else.
+	 */
+	private final long my_levels;
+
+	/**
+	 * The same state with the LEDs turned on or off the other way, once it has been needed, so that switching back
+	 * and forth does not allocate. Set without synchronization: a thread that does not see it creates an equal state.
+	 */
+	private BrightPiState my_toggled;
+
+	private BrightPiState(final boolean the_on, final BrightPiMode the_mode, final byte the_individual_mask,
+			final byte the_gain, final long the_levels)
+	{
+		i_am_on = the_on;
+		my_mode = the_mode;
+		my_individual_mask = the_individual_mask;
+		my_gain = the_gain;
+		my_levels = the_levels;
+	}
+
+	/**
+	 * Decodes the registers of a device. A mask matching a mode is taken as that mode turned on, an empty mask as the
+	 * default mode turned off, and any other mask as individual mode.
+	 * 
+	 * @param the_registers The value of every register, indexed by address.
+	 * @param the_individual_mask LEDs to use in individual mode if the mask does not say.
+	 * @return The state the registers hold.
+	 */
+	static BrightPiState fromRegisters(final byte[] the_registers, final byte the_individual_mask)
+	{
+		final byte mask = the_registers[0];
+		boolean on = true;
+		BrightPiMode mode = BrightPiMode.INDIVIDUAL;
+		byte individual_mask = mask;
+		if (mask == BrightPiMode.OFF.getLeds())
+		{
+			on = false;
+			mode = BrightPi.DEFAULT_MODE;
+			individual_mask = the_individual_mask;
+		} else
+		{
+			for (final BrightPiMode candidate : MODES)
+			{
+				if (candidate != BrightPiMode.INDIVIDUAL && candidate.getLeds() == mask)
+				{
+					mode = candidate;
+					individual_mask = the_individual_mask;
+				}
+			}
+		}
+
+		return new BrightPiState(on, mode, individual_mask, the_registers[BrightPiGain.GAIN_CHIP_ADDRESS],
+				pack(the_registers));
+	}
+
+	/**
+	 * Builds a state from registers together with the parts the registers cannot tell, such as the mode of a device
+	 * that is off.
+	 * 
+	 * @param the_registers The value of every register, indexed by address.
+	 * @param the_individual_mask LEDs used in individual mode.
+	 * @param the_on True if the LEDs of the mode are on.
+	 * @param the_mode The mode.
+	 * @return The state.
+	 */
+	static BrightPiState fromRegisters(final byte[] the_registers, final byte the_individual_mask,
+			final boolean the_on, final BrightPiMode the_mode)
+	{
+		return new BrightPiState(the_on, the_mode, the_individual_mask, the_registers[BrightPiGain.GAIN_CHIP_ADDRESS],
+				pack(the_registers));
+	}
+
+	/**
+	 * @return True if the LEDs of the current mode are on.
+	 */
+	public boolean isOn()
+	{
+		return i_am_on;
+	}
+
+	/**
+	 * @return The current mode.
+	 */
+	public BrightPiMode getMode()
+	{
+		return my_mode;
+	}
+
+	/**
+	 * @return The gain setting closest to the gain register, never null. The register can hold values between the
+	 *         settings, set with {@link BrightPi#setGain(byte)} or a {@link BrightPiCurve}; {@link #getGainValue()}
+	 *         returns it exactly.
+	 */
+	public BrightPiGain getGain()
+	{
+		return BrightPiGain.nearest(my_gain);
+	}
+
+	/**
+	 * @return The value of the gain register.
+	 */
+	public byte getGainValue()
+	{
+		return my_gain;
+	}
+
+	/**
+	 * @return A bit-mask of the LEDs used in individual mode.
+	 */
+	public byte getIndividualMask()
+	{
+		return my_individual_mask;
+	}
+
+	/**
+	 * @return A bit-mask of the LEDs that are lit, the value of the LED mask register.
+	 */
+	public byte getMask()
+	{
+		if (!i_am_on)
+		{
+			return BrightPiMode.OFF.getLeds();
+		}
+
+		return my_mode == BrightPiMode.INDIVIDUAL ? my_individual_mask : my_mode.getLeds();
+	}
+
+	/**
+	 * @param the_led An LED.
+	 * @return True if the LED is lit.
+	 */
+	public boolean isLit(final BrightPiLED the_led)
+	{
+		return (getMask() & (1 << (the_led.getAddress() - BrightPi.FIRST_LED_ADDRESS))) != 0;
+	}
+
+	/**
+	 * @return The LEDs that are lit.
+	 */
+	public Set<BrightPiLED> getLitLEDs()
+	{
+		final Set<BrightPiLED> leds = EnumSet.noneOf(BrightPiLED.class);
+		for (final BrightPiLED led : LEDS)
+		{
+			if (isLit(led))
+			{
+				leds.add(led);
+			}
+		}
+
+		return leds;
+	}
+
+	/**
+	 * @param the_led An LED.
+	 * @return The brightness of the LED.
+	 */
+	public byte getLEDBrightness(final BrightPiLED the_led)
+	{
+		return level(the_led.getAddress() - BrightPi.FIRST_LED_ADDRESS);
+	}
+
+	/**
+	 * @param the_address A register address.
+	 * @return The value the register holds in this state.
+	 */
+	public byte getRegister(final int the_address)
+	{
+		if (the_address == BrightPiGain.GAIN_CHIP_ADDRESS)
+		{
+			return my_gain;
+		}
+
+		if (the_address >= BrightPi.FIRST_LED_ADDRESS)
+		{
+			return level(the_address - BrightPi.FIRST_LED_ADDRESS);
+		}
+
+		return getMask();
+	}
+
+	/**
+	 * @return The value of every register, indexed by address.
+	 */
+	public byte[] getRegisters()
+	{
+		final byte[] registers = new byte[BrightPi.REGISTER_COUNT];
+		for (int address = 0; address < registers.length; address++)
+		{
+			registers[address] = getRegister(address);
+		}
+
+		return registers;
+	}
+
+	/**
+	 * Computes the state after an operation. An operation that changes nothing returns this state, so repeating a
+	 * command allocates nothing.
+	 * 
+	 * @param the_op An operation, see {@link BrightPiTransaction}.
+	 * @param the_arg The enum ordinal of the operation.
+	 * @param the_value The value of the operation.
+	 * @return The new state.
+	 */
+	BrightPiState apply(final int the_op, final int the_arg, final byte the_value)
+	{
+		switch (the_op)
+		{
+			case BrightPiTransaction.OP_ON:
+				return i_am_on ? this : toggled();
+			case BrightPiTransaction.OP_OFF:
+				return i_am_on ? toggled() : this;
+			case BrightPiTransaction.OP_MODE:
+			{
+				final BrightPiMode mode = MODES[the_arg];
+				return mode == my_mode ? this
+						: new BrightPiState(i_am_on, mode, my_individual_mask, my_gain, my_levels);
+			}
+			case BrightPiTransaction.OP_GAIN:
+				return gain(GAINS[the_arg].getGain());
+			case BrightPiTransaction.OP_GAIN_VALUE:
+				return gain(the_value);
+			case BrightPiTransaction.OP_MASK:
+				if (my_mode == BrightPiMode.INDIVIDUAL && my_individual_mask == the_value)
+				{
+					return this;
+				}
+
+				return new BrightPiState(i_am_on, BrightPiMode.INDIVIDUAL, the_value, my_gain, my_levels);
+			case BrightPiTransaction.OP_LED:
+			{
+				final int index = LEDS[the_arg].getAddress() - BrightPi.FIRST_LED_ADDRESS;
+				if (my_mode == BrightPiMode.INDIVIDUAL && level(index) == the_value)
+				{
+					return this;
+				}
+
+				final int shift = index * Byte.SIZE;
+				return individual((my_levels & ~(0xffL << shift)) | ((the_value & 0xffL) << shift));
+			}
+			case BrightPiTransaction.OP_ALL_LEDS:
+			{
+				final long levels = fill(the_value);
+				if (my_mode == BrightPiMode.INDIVIDUAL && my_levels == levels)
+				{
+					return this;
+				}
+
+				return individual(levels);
+			}
+			case BrightPiTransaction.OP_CLEAR:
+				if (!i_am_on && my_mode == DEFAULT.my_mode && my_gain == DEFAULT.my_gain
+						&& my_levels == DEFAULT.my_levels)
+				{
+					return this;
+				}
+
+				return new BrightPiState(false, DEFAULT.my_mode, my_individual_mask, DEFAULT.my_gain,
+						DEFAULT.my_levels);
+			default:
+				throw new IllegalArgumentException("Unknown operation " + the_op);
+		}
+	}
+
+	/**
+	 * @param the_op An operation, see {@link BrightPiTransaction}.
+	 * @param the_arg The enum ordinal of the operation.
+	 * @return Bit set of the register addresses the operation can change.
+	 */
+	static int registersChanged(final int the_op, final int the_arg)
+	{
+		switch (the_op)
+		{
+			case BrightPiTransaction.OP_GAIN:
+			case BrightPiTransaction.OP_GAIN_VALUE:
+				return 1 << BrightPiGain.GAIN_CHIP_ADDRESS;
+			case BrightPiTransaction.OP_LED:
+				return 1 << LEDS[the_arg].getAddress();
+			case BrightPiTransaction.OP_ALL_LEDS:
+				return ((1 << BrightPi.LED_COUNT) - 1) << BrightPi.FIRST_LED_ADDRESS;
+			case BrightPiTransaction.OP_CLEAR:
+				return (1 << BrightPi.REGISTER_COUNT) - 1;
+			default:
+				return 1;
+		}
+	}
+
+	/**
+	 * Switches to individual mode, keeping the LEDs that are lit, with new brightness levels.
+	 */
+	private BrightPiState individual(final long the_levels)
+	{
+		final byte mask = my_mode == BrightPiMode.INDIVIDUAL ? my_individual_mask : getMask();
+		return new BrightPiState(i_am_on, BrightPiMode.INDIVIDUAL, mask, my_gain, the_levels);
+	}
+
+	/**
+	 * @return The same state with the LEDs turned on or off the other way.
+	 */
+	private BrightPiState toggled()
+	{
+		BrightPiState toggled = my_toggled;
+		if (toggled == null)
+		{
+			toggled = new BrightPiState(!i_am_on, my_mode, my_individual_mask, my_gain, my_levels);
+			toggled.my_toggled = this;
+			my_toggled = toggled;
+		}
+
+		return toggled;
+	}
+
+	/**
+	 * @return The state with a gain register value.
+	 */
+	private BrightPiState gain(final byte the_gain)
+	{
+		return the_gain == my_gain ? this
+				: new BrightPiState(i_am_on, my_mode, my_individual_mask, the_gain, my_levels);
+	}
+
+	/**
+	 * @param the_index Register address minus {@link BrightPi#FIRST_LED_ADDRESS}.
+	 * @return The brightness of that LED.
+	 */
+	private byte level(final int the_index)
+	{
+		return (byte) (my_levels >>> (the_index * Byte.SIZE));
+	}
+
+	/**
+	 * @return The brightness registers packed as in {@link #my_levels}.
+	 */
+	private static long pack(final byte[] the_registers)
+	{
+		long levels = 0;
+		for (int i = BrightPi.LED_COUNT - 1; i >= 0; i--)
+		{
+			levels = (levels << Byte.SIZE) | (the_registers[BrightPi.FIRST_LED_ADDRESS + i] & 0xffL);
+		}
+
+		return levels;
+	}
+
+	/**
+	 * @return Every LED at the brightness, packed as in {@link #my_levels}.
+	 */
+	private static long fill(final byte the_value)
+	{
+		return (the_value & 0xffL) * 0x0101010101010101L;
+	}
+
+	private static long defaultLevels()
+	{
+		return fill(BrightPi.DEFAULT_LED_BRIGHTNESS);
+	}
+
+	@Override
+	public boolean equals(final Object the_other)
+	{
+		if (!(the_other instanceof BrightPiState))
+		{
+			return false;
+		}
+
+		final BrightPiState other = (BrightPiState) the_other;
+		return i_am_on == other.i_am_on && my_mode == other.my_mode && my_individual_mask == other.my_individual_mask
+				&& my_gain == other.my_gain && my_levels == other.my_levels;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		int hash = (int) (my_levels ^ (my_levels >>> 32));
+		hash = 31 * hash + (i_am_on ? 1 : 0);
+		hash = 31 * hash + my_mode.hashCode();
+		hash = 31 * hash + my_individual_mask;
+		return 31 * hash + my_gain;
+	}
+
+	@Override
+	public String toString()
+	{
+		final StringBuilder levels = new StringBuilder();
+		for (int i = 0; i < BrightPi.LED_COUNT; i++)
+		{
+			levels.append(i == 0 ? "[" : ", ").append(level(i));
+		}
+
+		return "BrightPiState[on=" + i_am_on + ", mode=" + my_mode + ", mask=" + (getMask() & 0xff) + ", gain="
+				+ my_gain + ", levels=" + levels.append(']') + "]";
+	}
+}
@@ -0,0 +1,264 @@
+/*
+ * MIT License
+ * 
+ * Copyright (c) 2016 Michael Westbrook
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.brightpi;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Camera strobe with a minimal, fixed trigger path. {@link #arm(BrightPiState)} writes the brightness and gain ahead of
+ * time; after that {@link #fire()} and {@link #release()} each write only the LED mask register, from states prepared
+ * when the strobe was armed, so triggering never allocates.
+ * <p>
+ * Firing and releasing only replace the state of the BrightPi if it is still the one the strobe left, so a change
+ * made by another thread since is never undone. The LEDs are then switched on or off on top of that change instead,
+ * and the strobe re-arms from the result, which allocates. The strobe can be fired by the caller, for example from a
+ * frame-start callback, or on a fixed frame period with {@link #start(long, long, TimeUnit)}.
+ * 
+ * @author Mike Westbrook
+ *
+ */
+public class BrightPiStrobe
+{
+	/**
+	 * Waits shorter than this are spun instead of parked, since parking can overshoot by tens of microseconds.
+	 */
+	private static final long SPIN_LIMIT = TimeUnit.MICROSECONDS.toNanos(200);
+
+	private final BrightPi my_brightpi;
+
+	/**
+	 * Time from trigger to the mask write completing. Recorded without a lock, since the strobe thread and callers of
+	 * {@link #fire(long)} may trigger at once.
+	 */
+	private final BrightPiHistogram my_trigger_latency = new BrightPiHistogram();
+
+	/**
+	 * State written by {@link #fire()}.
+	 */
+	private volatile BrightPiState my_fired;
+
+	/**
+	 * State written by {@link #release()}.
+	 */
+	private volatile BrightPiState my_released;
+
+	/**
+	 * Thread firing on a frame period, or null.
+	 */
+	private Thread my_thread;
+
+	private volatile boolean i_am_running;
+
+	/**
+	 * @param the_brightpi The BrightPi to strobe.
+	 */
+	public BrightPiStrobe(final BrightPi the_brightpi)
+	{
+		my_brightpi = the_brightpi;
+	}
+
+	/**
+	 * Writes the brightness and gain of a state with the LEDs off, ready to fire.
+	 * 
+	 * @param the_state The state the BrightPi should be in while fired. Whether it is on is ignored.
+	 */
+	public void arm(final BrightPiState the_state)
+	{
+		final BrightPiState released = the_state.apply(BrightPiTransaction.OP_OFF, 0, (byte) 0);
+		my_fired = the_state.apply(BrightPiTransaction.OP_ON, 0, (byte) 0);
+		my_released = released;
+		my_brightpi.publish(released, (1 << BrightPi.REGISTER_COUNT) - 1);
+	}
+
+	/**
+	 * @return True if the strobe has been armed.
+	 */
+	public boolean isArmed()
+	{
+		return my_fired != null;
+	}
+
+	/**
+	 * Turns the armed LEDs on.
+	 */
+	public void fire()
+	{
+		fire(System.nanoTime());
+	}
+
+	/**
+	 * Turns the armed LEDs on and records the latency from the trigger.
+	 * 
+	 * @param the_trigger When the trigger happened, from {@link System#nanoTime()}.
+	 */
+	public void fire(final long the_trigger)
+	{
+		final BrightPiState fired = my_fired;
+		if (fired == null)
+		{
+			throw new IllegalStateException("Strobe is not armed.");
+		}
+
+		if (!my_brightpi.publish(my_released, fired, 1))
+		{
+			my_brightpi.on();
+			rearm();
+		}
+
+		my_trigger_latency.recordConcurrently(System.nanoTime() - the_trigger);
+	}
+
+	/**
+	 * Turns the armed LEDs off.
+	 */
+	public void release()
+	{
+		final BrightPiState released = my_released;
+		if (released == null)
+		{
+			throw new IllegalStateException("Strobe is not armed.");
+		}
+
+		if (!my_brightpi.publish(my_fired, released, 1))
+		{
+			my_brightpi.off();
+			rearm();
+		}
+	}
+
+	/**
+	 * Prepares the states to fire and release from the current state, after another thread changed it.
+	 */
+	private void rearm()
+	{
+		final BrightPiState current = my_brightpi.snapshot();
+		my_fired = current.apply(BrightPiTransaction.OP_ON, 0, (byte) 0);
+		my_released = current.apply(BrightPiTransaction.OP_OFF, 0, (byte) 0);
+	}
+
+	/**
+	 * @return Time from trigger to the mask write completing, in nanoseconds.
+	 */
+	public BrightPiHistogram getTriggerLatency()
+	{
+		return my_trigger_latency;
+	}
+
+	/**
+	 * Fires on a fixed frame period from a dedicated thread. Frames that are missed because the thread ran late are
+	 * skipped rather than fired late.
+	 * 
+	 * @param the_period Time between frames.
+	 * @param the_on_time Time the LEDs stay on each frame, at most the period.
+	 * @param the_unit Unit of the_period and the_on_time.
+	 * @throws IllegalArgumentException If the period is not positive or the on time is negative.
+	 */
+	public synchronized void start(final long the_period, final long the_on_time, final TimeUnit the_unit)
+	{
+		final long period = the_unit.toNanos(the_period);
+		if (the_period <= 0 || period <= 0)
+		{
+			throw new IllegalArgumentException("Period " + the_period + " " + the_unit + " is not positive");
+		}
+
+		if (the_on_time < 0)
+		{
+			throw new IllegalArgumentException("Negative on time " + the_on_time + " " + the_unit);
+		}
+
+		if (my_thread != null)
+		{
+			throw new IllegalStateException("Strobe is already running.");
+		}
+
+		if (!isArmed())
+		{
+			throw new IllegalStateException("Strobe is not armed.");
+		}
+
+		final long on_time = Math.min(the_unit.toNanos(the_on_time), period);
+		i_am_running = true;
+		my_thread = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				long frame = System.nanoTime();
+				while (i_am_running)
+				{
+					waitUntil(frame);
+					fire(frame);
+					waitUntil(frame + on_time);
+					release();
+
+					frame += period;
+					final long now = System.nanoTime();
+					if (now - frame > 0)
+					{
+						frame += ((now - frame) / period + 1) * period;
+					}
+				}
+			}
+		}, "BrightPi strobe");
+		my_thread.setDaemon(true);
+		my_thread.setPriority(Thread.MAX_PRIORITY);
+		my_thread.start();
+	}
+
+	/**
+	 * Stops firing on a frame period and leaves the LEDs off.
+	 * 
+	 * @throws InterruptedException If the thread was interrupted while waiting for the strobe thread.
+	 */
+	public synchronized void stop() throws InterruptedException
+	{
+		if (my_thread != null)
+		{
+			i_am_running = false;
+			my_thread.join();
+			my_thread = null;
+		}
+	}
+
+	/**
+	 * Parks until shortly before the deadline and spins for the rest.
+	 * 
+	 * @param the_deadline The time to wait until, from {@link System#nanoTime()}.
+	 */
+	private static void waitUntil(final long the_deadline)
+	{
+		long remaining = the_deadline - System.nanoTime();
+		while (remaining > SPIN_LIMIT)
+		{
+			LockSupport.parkNanos(remaining - SPIN_LIMIT);
+			remaining = the_deadline - System.nanoTime();
+		}
+
+		while (the_deadline - System.nanoTime() > 0)
+		{
+			//Spin for an accurate trigger.
+		}
+	}
+}
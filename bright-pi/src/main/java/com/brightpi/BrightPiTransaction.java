@@ -0,0 +1,241 @@
+/*
+ * MIT License
+ * 
+ * Copyright (c) 2016 Michael Westbrook
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.brightpi;
+
+import java.util.Arrays;
+
+/**
+ * Collects changes to a BrightPi and writes them together. The changes are applied in the order they were made, with
+ * the same meaning as the matching {@link BrightPi} methods, and become visible in {@link BrightPi#snapshot()} all at
+ * once. Only the registers that end up different are written and contiguous registers are written in one bus
+ * transaction.
+ * 
+ * @author Mike Westbrook
+ *
+ */
+public class BrightPiTransaction
+{
+	static final int OP_ON = 1;
+
+	static final int OP_OFF = 2;
+
+	static final int OP_MODE = 3;
+
+	static final int OP_GAIN = 4;
+
+	static final int OP_MASK = 5;
+
+	static final int OP_LED = 6;
+
+	static final int OP_ALL_LEDS = 7;
+
+	static final int OP_CLEAR = 8;
+
+	static final int OP_GAIN_VALUE = 9;
+
+	/**
+	 * Device the transaction is committed to.
+	 */
+	private final BrightPi my_brightpi;
+
+	/**
+	 * Operations encoded as the operation in the upper 16 bits, an enum ordinal in bits 8-15 and a value in bits 0-7.
+	 */
+	private int[] my_ops = new int[16];
+
+	/**
+	 * Number of operations recorded.
+	 */
+	private int my_count;
+
+	/**
+	 * @param the_brightpi Device the transaction is committed to, or null for a scene definition.
+	 */
+	BrightPiTransaction(final BrightPi the_brightpi)
+	{
+		my_brightpi = the_brightpi;
+	}
+
+	/**
+	 * Turns all LEDs for the current mode on.
+	 * 
+	 * @return This transaction.
+	 */
+	public BrightPiTransaction on()
+	{
+		return add(OP_ON, 0, (byte) 0);
+	}
+
+	/**
+	 * Turns all LEDs off.
+	 * 
+	 * @return This transaction.
+	 */
+	public BrightPiTransaction off()
+	{
+		return add(OP_OFF, 0, (byte) 0);
+	}
+
+	/**
+	 * @param the_mode The mode to set the device to.
+	 * @return This transaction.
+	 */
+	public BrightPiTransaction setMode(final BrightPiMode the_mode)
+	{
+		return add(OP_MODE, the_mode.ordinal(), (byte) 0);
+	}
+
+	/**
+	 * @param the_gain The gain to set the device to.
+	 * @return This transaction.
+	 */
+	public BrightPiTransaction setGain(final BrightPiGain the_gain)
+	{
+		return add(OP_GAIN, the_gain.ordinal(), (byte) 0);
+	}
+
+	/**
+	 * @param the_gain The gain register value, from {@link BrightPiGain#MIN_GAIN} to {@link BrightPiGain#MAX_GAIN}.
+	 * @return This transaction.
+	 */
+	public BrightPiTransaction setGain(final byte the_gain)
+	{
+		BrightPi.checkGain(the_gain);
+		return add(OP_GAIN_VALUE, 0, the_gain);
+	}
+
+	/**
+	 * Sets all LEDs to a perceptual brightness level, choosing the gain and brightness from a curve.
+	 * 
+	 * @param the_curve The curve to use.
+	 * @param the_level The level from 0 to {@link BrightPiCurve#getMaxLevel()}.
+	 * @return This transaction.
+	 */
+	public BrightPiTransaction setBrightnessLevel(final BrightPiCurve the_curve, final int the_level)
+	{
+		setGain(the_curve.getGain(the_level));
+		return setLEDBrightness(the_curve.getDuty(the_level));
+	}
+
+	/**
+	 * Switches to individual mode with the given LEDs.
+	 * 
+	 * @param the_mask A bit-mask of the LEDs to use.
+	 * @return This transaction.
+	 */
+	public BrightPiTransaction setMask(final byte the_mask)
+	{
+		return add(OP_MASK, 0, the_mask);
+	}
+
+	/**
+	 * @param the_led The LED to adjust the brightness of.
+	 * @param the_value The value to set the brightness to.
+	 * @return This transaction.
+	 */
+	public BrightPiTransaction setLEDBrightness(final BrightPiLED the_led, final byte the_value)
+	{
+		return add(OP_LED, the_led.ordinal(), the_value);
+	}
+
+	/**
+	 * @param the_value Brightness to set all LEDs to.
+	 * @return This transaction.
+	 */
+	public BrightPiTransaction setLEDBrightness(final byte the_value)
+	{
+		return add(OP_ALL_LEDS, 0, the_value);
+	}
+
+	/**
+	 * Resets the device to the default state.
+	 * 
+	 * @return This transaction.
+	 */
+	public BrightPiTransaction clear()
+	{
+		return add(OP_CLEAR, 0, (byte) 0);
+	}
+
+	/**
+	 * Writes the changes to the device. The transaction is empty afterwards and can be reused.
+	 * 
+	 * @throws IllegalStateException If this is a scene definition from {@link BrightPiScene#define()}.
+	 */
+	public void commit()
+	{
+		if (my_brightpi == null)
+		{
+			throw new IllegalStateException("Scene definitions are compiled with BrightPiScene, not committed.");
+		}
+
+		try
+		{
+			my_brightpi.commit(my_ops, my_count);
+		} finally
+		{
+			my_count = 0;
+		}
+	}
+
+	/**
+	 * @param the_state The state to start from.
+	 * @return The state after applying the operations in order.
+	 */
+	BrightPiState applyTo(final BrightPiState the_state)
+	{
+		BrightPiState next = the_state;
+		for (int i = 0; i < my_count; i++)
+		{
+			next = next.apply(my_ops[i] >>> 16, (my_ops[i] >> 8) & 0xff, (byte) my_ops[i]);
+		}
+
+		return next;
+	}
+
+	/**
+	 * @return A detached copy of the operations, which later changes to this transaction do not affect.
+	 */
+	BrightPiTransaction copy()
+	{
+		final BrightPiTransaction copy = new BrightPiTransaction(null);
+		copy.my_ops = Arrays.copyOf(my_ops, Math.max(1, my_count));
+		copy.my_count = my_count;
+		return copy;
+	}
+
+	/**
+	 * Records an operation.
+	 */
+	private BrightPiTransaction add(final int the_op, final int the_arg, final byte the_value)
+	{
+		if (my_count == my_ops.length)
+		{
+			my_ops = Arrays.copyOf(my_ops, my_count * 2);
+		}
+
+		my_ops[my_count++] = (the_op << 16) | (the_arg << 8) | (the_value & 0xff);
+		return this;
+	}
+}
@@ -0,0 +1,69 @@
+/*
+ * MIT License
+ * 
+ * Copyright (c) 2016 Michael Westbrook
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.brightpi;
+
+import java.io.IOException;
+
+/**
+ * Bus used to reach the registers of a BrightPi. Register addresses are the chip addresses, from the LED mask at 0x00
+ * to the gain at 0x09. Block reads and writes cover contiguous registers starting at the given address.
+ * 
+ * @author Mike Westbrook
+ *
+ */
+public interface BrightPiTransport
+{
+	/**
+	 * @param the_address The register to read.
+	 * @return The value of the register.
+	 * @throws IOException If the bus transaction failed.
+	 */
+	int read(int the_address) throws IOException;
+
+	/**
+	 * @param the_address The first register to read.
+	 * @param the_buffer Buffer the values are read into.
+	 * @param the_offset Offset in the_buffer of the first value.
+	 * @param the_size Number of registers to read.
+	 * @return Number of registers read.
+	 * @throws IOException If the bus transaction failed.
+	 */
+	int read(int the_address, byte[] the_buffer, int the_offset, int the_size) throws IOException;
+
+	/**
+	 * @param the_address The register to write.
+	 * @param the_data The value to write.
+	 * @throws IOException If the bus transaction failed.
+	 */
+	void write(int the_address, byte the_data) throws IOException;
+
+	/**
+	 * @param the_address The first register to write.
+	 * @param the_buffer Buffer holding the values.
+	 * @param the_offset Offset in the_buffer of the first value.
+	 * @param the_size Number of registers to write.
+	 * @throws IOException If the bus transaction failed.
+	 */
+	void write(int the_address, byte[] the_buffer, int the_offset, int the_size) throws IOException;
+}
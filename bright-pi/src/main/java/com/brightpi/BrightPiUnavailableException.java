@@ -0,0 +1,53 @@
+/*
+ * MIT License
+ * 
+ * Copyright (c) 2016 Michael Westbrook
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.brightpi;
+
+/**
+ * The BrightPi cannot be reached, because it could not be opened or because {@link ResilientTransport} stopped
+ * trying after repeated failures.
+ * 
+ * @author Mike Westbrook
+ *
+ */
+public class BrightPiUnavailableException extends BrightPiException
+{
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * @param the_message What failed.
+	 */
+	public BrightPiUnavailableException(final String the_message)
+	{
+		super(the_message);
+	}
+
+	/**
+	 * @param the_message What failed.
+	 * @param the_cause Why it failed.
+	 */
+	public BrightPiUnavailableException(final String the_message, final Throwable the_cause)
+	{
+		super(the_message, the_cause);
+	}
+}
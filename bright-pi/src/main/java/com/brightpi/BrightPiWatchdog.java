@@ -0,0 +1,248 @@
+/*
+ * MIT License
+ * 
+ * Copyright (c) 2016 Michael Westbrook
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.brightpi;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Checks in the background that the device still holds the registers BrightPi wrote, and rewrites any that drifted,
+ * for example after a brown-out reset the chip or another bus master wrote to it. Each check is one block read.
+ * <p>
+ * The interval between checks doubles while the device is stable, up to a maximum, and drops back to the minimum
+ * after drift or a failed read. A check is put off while callers are using the device, so it does not hold the
+ * device lock while a command waits for it, unless the device has been busy for longer than the maximum interval.
+ * 
+ * @author Mike Westbrook
+ *
+ */
+public class BrightPiWatchdog
+{
+	/**
+	 * Default shortest time between checks in milliseconds.
+	 */
+	public static final long DEFAULT_MIN_INTERVAL = 100;
+
+	/**
+	 * Default longest time between checks in milliseconds.
+	 */
+	public static final long DEFAULT_MAX_INTERVAL = 10000;
+
+	private final BrightPi my_brightpi;
+
+	/**
+	 * Shortest time between checks in nanoseconds, also how long the device must be idle before a check.
+	 */
+	private final long my_min_interval;
+
+	/**
+	 * Longest time between checks in nanoseconds.
+	 */
+	private final long my_max_interval;
+
+	/**
+	 * Held for the whole of a check, so checks made directly and by the watchdog thread do not overlap. Not the monitor
+	 * of the watchdog, which {@link #stop()} holds while it waits for the thread.
+	 */
+	private final ReentrantLock my_lock = new ReentrantLock();
+
+	/**
+	 * Current time between checks in nanoseconds. Written while holding my_lock.
+	 */
+	private volatile long my_interval;
+
+	/**
+	 * Number of checks made. Written while holding my_lock.
+	 */
+	private volatile long my_checks;
+
+	/**
+	 * Number of registers rewritten. Written while holding my_lock.
+	 */
+	private volatile long my_repairs;
+
+	/**
+	 * Number of checks that could not read the device. Written while holding my_lock.
+	 */
+	private volatile long my_failures;
+
+	/**
+	 * Thread making the checks, or null.
+	 */
+	private Thread my_thread;
+
+	private volatile boolean i_am_running;
+
+	/**
+	 * Creates a watchdog checking between {@link #DEFAULT_MIN_INTERVAL} and {@link #DEFAULT_MAX_INTERVAL}
+	 * milliseconds apart.
+	 * 
+	 * @param the_brightpi The BrightPi to watch.
+	 */
+	public BrightPiWatchdog(final BrightPi the_brightpi)
+	{
+		this(the_brightpi, DEFAULT_MIN_INTERVAL, DEFAULT_MAX_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param the_brightpi The BrightPi to watch.
+	 * @param the_min_interval Shortest time between checks.
+	 * @param the_max_interval Longest time between checks.
+	 * @param the_unit Unit of the intervals.
+	 */
+	public BrightPiWatchdog(final BrightPi the_brightpi, final long the_min_interval, final long the_max_interval,
+			final TimeUnit the_unit)
+	{
+		if (the_min_interval <= 0 || the_max_interval < the_min_interval)
+		{
+			throw new IllegalArgumentException("Intervals must be positive with the minimum at most the maximum.");
+		}
+
+		my_brightpi = the_brightpi;
+		my_min_interval = the_unit.toNanos(the_min_interval);
+		my_max_interval = the_unit.toNanos(the_max_interval);
+		my_interval = my_min_interval;
+	}
+
+	/**
+	 * Starts checking on a background thread.
+	 */
+	public synchronized void start()
+	{
+		if (my_thread != null)
+		{
+			throw new IllegalStateException("Watchdog is already running.");
+		}
+
+		i_am_running = true;
+		my_thread = BrightPiExecutors.threadFactory("BrightPi watchdog").newThread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				long due = System.nanoTime() + my_interval;
+				while (i_am_running)
+				{
+					final long now = System.nanoTime();
+					if (due - now > 0)
+					{
+						LockSupport.parkNanos(due - now);
+						continue;
+					}
+
+					//Wait for the device to go quiet, but not forever.
+					final long quiet = my_brightpi.lastActivity() + my_min_interval;
+					if (quiet - now > 0 && now - due < my_max_interval)
+					{
+						LockSupport.parkNanos(quiet - now);
+						continue;
+					}
+
+					check();
+					due = System.nanoTime() + my_interval;
+				}
+			}
+		});
+		my_thread.start();
+	}
+
+	/**
+	 * Stops checking.
+	 * 
+	 * @throws InterruptedException If the thread was interrupted while waiting for the watchdog thread.
+	 */
+	public synchronized void stop() throws InterruptedException
+	{
+		if (my_thread != null)
+		{
+			i_am_running = false;
+			LockSupport.unpark(my_thread);
+			my_thread.join();
+			my_thread = null;
+		}
+	}
+
+	/**
+	 * Checks the device now and adapts the interval. Called by the watchdog thread, and can be called directly from
+	 * any thread, whether or not the watchdog thread is running.
+	 * 
+	 * @return Number of registers that had drifted, or -1 if the device could not be read.
+	 */
+	public int check()
+	{
+		my_lock.lock();
+		try
+		{
+			final int drifted = my_brightpi.repair();
+			my_checks++;
+			if (drifted < 0)
+			{
+				my_failures++;
+			} else
+			{
+				my_repairs += drifted;
+			}
+
+			my_interval = drifted == 0 ? Math.min(my_interval * 2, my_max_interval) : my_min_interval;
+			return drifted;
+		} finally
+		{
+			my_lock.unlock();
+		}
+	}
+
+	/**
+	 * @param the_unit Unit of the result.
+	 * @return Current time between checks.
+	 */
+	public long getInterval(final TimeUnit the_unit)
+	{
+		return the_unit.convert(my_interval, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @return Number of checks made.
+	 */
+	public long getChecks()
+	{
+		return my_checks;
+	}
+
+	/**
+	 * @return Number of registers rewritten because they drifted.
+	 */
+	public long getRepairs()
+	{
+		return my_repairs;
+	}
+
+	/**
+	 * @return Number of checks that could not read the device.
+	 */
+	public long getFailures()
+	{
+		return my_failures;
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ * MIT License
+ * 
+ * Copyright (c) 2016 Michael Westbrook
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.brightpi;
+
+import java.io.IOException;
+
+import com.pi4j.io.i2c.I2CBus;
+import com.pi4j.io.i2c.I2CDevice;
+import com.pi4j.io.i2c.I2CFactory;
+import com.pi4j.io.i2c.I2CFactory.UnsupportedBusNumberException;
+
+/**
+ * Reaches a BrightPi through a pi4j I2C device.
+ * 
+ * @author Mike Westbrook
+ *
+ */
+public class I2CTransport implements BrightPiTransport
+{
+	/**
+	 * Actual BrightPi I2C device.
+	 */
+	private final I2CDevice my_device;
+
+	/**
+	 * @param the_device The I2C device of the BrightPi.
+	 */
+	public I2CTransport(final I2CDevice the_device)
+	{
+		my_device = the_device;
+	}
+
+	/**
+	 * Opens a BrightPi on an I2C bus.
+	 * 
+	 * @param the_bus The bus number, such as {@link I2CBus#BUS_1}.
+	 * @param the_address The I2C address of the BrightPi.
+	 * @return The transport.
+	 * @throws UnsupportedBusNumberException If the bus does not exist.
+	 * @throws IOException If the bus could not be opened.
+	 */
+	public static I2CTransport open(final int the_bus, final int the_address)
+			throws UnsupportedBusNumberException, IOException
+	{
+		final I2CBus i2c = I2CFactory.getInstance(the_bus);
+		return new I2CTransport(i2c.getDevice(the_address));
+	}
+
+	/**
+	 * @return The I2C device of the BrightPi.
+	 */
+	public I2CDevice getDevice()
+	{
+		return my_device;
+	}
+
+	@Override
+	public int read(final int the_address) throws IOException
+	{
+		return my_device.read(the_address);
+	}
+
+	@Override
+	public int read(final int the_address, final byte[] the_buffer, final int the_offset, final int the_size)
+			throws IOException
+	{
+		return my_device.read(the_address, the_buffer, the_offset, the_size);
+	}
+
+	@Override
+	public void write(final int the_address, final byte the_data) throws IOException
+	{
+		my_device.write(the_address, the_data);
+	}
+
+	@Override
+	public void write(final int the_address, final byte[] the_buffer, final int the_offset, final int the_size)
+			throws IOException
+	{
+		my_device.write(the_address, the_buffer, the_offset, the_size);
+	}
+}
@@ -0,0 +1,550 @@
+/*
+ * MIT License
+ * 
+ * Copyright (c) 2016 Michael Westbrook
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.brightpi;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Transport that keeps a misbehaving bus from stalling or flooding its callers.
+ * <ul>
+ * <li>Each transaction has a deadline. Transactions run on a dedicated thread and the caller stops waiting with a
+ * {@link BrightPiTimeoutException} when the deadline passes, even if the kernel never returns.</li>
+ * <li>Failed transactions are retried a bounded number of times with jittered, exponentially growing backoff.</li>
+ * <li>After a number of operations in a row fail, a circuit breaker opens and every call fails at once with a
+ * {@link BrightPiUnavailableException}. After a cool-down one trial call is let through, which closes the breaker if
+ * it succeeds.</li>
+ * </ul>
+ * The longest a call can take is the attempts times the deadline plus the backoff between them.
+ * 
+ * @author Mike Westbrook
+ *
+ */
+public class ResilientTransport implements BrightPiTransport, Closeable
+{
+	/**
+	 * State of the circuit breaker.
+	 */
+	public enum Circuit
+	{
+		/**
+		 * Calls go through.
+		 */
+		CLOSED,
+
+		/**
+		 * Calls fail without reaching the bus.
+		 */
+		OPEN,
+
+		/**
+		 * The cool-down is over and the next call is a trial.
+		 */
+		HALF_OPEN
+	}
+
+	/**
+	 * Default deadline of a transaction in milliseconds.
+	 */
+	public static final long DEFAULT_DEADLINE = 50;
+
+	/**
+	 * Default number of times a transaction is tried.
+	 */
+	public static final int DEFAULT_ATTEMPTS = 3;
+
+	/**
+	 * Default backoff before the first retry in milliseconds.
+	 */
+	public static final long DEFAULT_BACKOFF = 1;
+
+	/**
+	 * Default number of failed operations in a row that opens the circuit breaker.
+	 */
+	public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+
+	/**
+	 * Default time the circuit breaker stays open in milliseconds.
+	 */
+	public static final long DEFAULT_OPEN_TIME = 1000;
+
+	private static final int OP_READ = 1;
+
+	private static final int OP_BLOCK_READ = 2;
+
+	private static final int OP_WRITE = 3;
+
+	private static final int OP_BLOCK_WRITE = 4;
+
+	/**
+	 * Transport being protected.
+	 */
+	private final BrightPiTransport my_transport;
+
+	private volatile long my_deadline = TimeUnit.MILLISECONDS.toNanos(DEFAULT_DEADLINE);
+
+	private volatile int my_attempts = DEFAULT_ATTEMPTS;
+
+	private volatile long my_backoff = TimeUnit.MILLISECONDS.toNanos(DEFAULT_BACKOFF);
+
+	private volatile int my_failure_threshold = DEFAULT_FAILURE_THRESHOLD;
+
+	private volatile long my_open_time = TimeUnit.MILLISECONDS.toNanos(DEFAULT_OPEN_TIME);
+
+	/**
+	 * Serializes callers, so only one transaction is handed to the worker at a time. A lock rather than a monitor,
+	 * since callers park while holding it.
+	 */
+	private final ReentrantLock my_lock = new ReentrantLock();
+
+	/**
+	 * State of the circuit breaker. Guarded by my_lock.
+	 */
+	private Circuit my_circuit = Circuit.CLOSED;
+
+	/**
+	 * Operations failed in a row. Guarded by my_lock.
+	 */
+	private int my_failures;
+
+	/**
+	 * When the circuit breaker last opened, from {@link System#nanoTime()}. Guarded by my_lock.
+	 */
+	private long my_opened_at;
+
+	private volatile long my_retries;
+
+	private volatile long my_timeouts;
+
+	private volatile long my_rejections;
+
+	/**
+	 * Runs the transactions, or null until the first one with a deadline.
+	 */
+	private Thread my_worker;
+
+	private volatile boolean i_am_open = true;
+
+	/**
+	 * Copy of the values of the request, so a transaction that outlives its caller never touches the caller's buffer.
+	 */
+	private final byte[] my_buffer = new byte[BrightPi.REGISTER_COUNT];
+
+	private volatile int my_op;
+
+	private volatile int my_address;
+
+	private volatile int my_size;
+
+	private volatile byte my_data;
+
+	/**
+	 * Number of the last transaction handed to the worker.
+	 */
+	private volatile long my_requested;
+
+	/**
+	 * Number of the last transaction the worker finished.
+	 */
+	private volatile long my_completed;
+
+	private volatile int my_result;
+
+	private volatile IOException my_error;
+
+	/**
+	 * Thread waiting for the worker.
+	 */
+	private volatile Thread my_caller;
+
+	/**
+	 * Protects a transport with the default deadline, retries and circuit breaker.
+	 * 
+	 * @param the_transport The transport to protect.
+	 */
+	public ResilientTransport(final BrightPiTransport the_transport)
+	{
+		my_transport = the_transport;
+	}
+
+	/**
+	 * @param the_deadline Longest time to wait for each transaction, or 0 to wait as long as the transaction takes
+	 *            and run it on the calling thread.
+	 * @param the_unit Unit of the_deadline.
+	 */
+	public void setDeadline(final long the_deadline, final TimeUnit the_unit)
+	{
+		my_deadline = the_unit.toNanos(the_deadline);
+	}
+
+	/**
+	 * @param the_attempts Number of times each transaction is tried, at least 1.
+	 * @param the_backoff Wait before the first retry, doubled for each further retry and jittered.
+	 * @param the_unit Unit of the_backoff.
+	 */
+	public void setRetries(final int the_attempts, final long the_backoff, final TimeUnit the_unit)
+	{
+		if (the_attempts < 1)
+		{
+			throw new IllegalArgumentException("A transaction must be tried at least once.");
+		}
+
+		my_attempts = the_attempts;
+		my_backoff = the_unit.toNanos(the_backoff);
+	}
+
+	/**
+	 * @param the_threshold Number of failed operations in a row that opens the circuit breaker.
+	 * @param the_open_time Time the circuit breaker stays open before a trial call.
+	 * @param the_unit Unit of the_open_time.
+	 */
+	public void setCircuitBreaker(final int the_threshold, final long the_open_time, final TimeUnit the_unit)
+	{
+		if (the_threshold < 1)
+		{
+			throw new IllegalArgumentException("The threshold must be at least 1.");
+		}
+
+		my_failure_threshold = the_threshold;
+		my_open_time = the_unit.toNanos(the_open_time);
+	}
+
+	/**
+	 * @return State of the circuit breaker.
+	 */
+	public Circuit getCircuit()
+	{
+		my_lock.lock();
+		try
+		{
+			return my_circuit;
+		} finally
+		{
+			my_lock.unlock();
+		}
+	}
+
+	/**
+	 * @return Number of transactions tried again after failing.
+	 */
+	public long getRetries()
+	{
+		return my_retries;
+	}
+
+	/**
+	 * @return Number of transactions that passed their deadline.
+	 */
+	public long getTimeouts()
+	{
+		return my_timeouts;
+	}
+
+	/**
+	 * @return Number of calls failed at once by the open circuit breaker.
+	 */
+	public long getRejections()
+	{
+		return my_rejections;
+	}
+
+	@Override
+	public int read(final int the_address) throws IOException
+	{
+		return call(OP_READ, the_address, null, 0, 1, (byte) 0);
+	}
+
+	@Override
+	public int read(final int the_address, final byte[] the_buffer, final int the_offset, final int the_size)
+			throws IOException
+	{
+		return call(OP_BLOCK_READ, the_address, the_buffer, the_offset, the_size, (byte) 0);
+	}
+
+	@Override
+	public void write(final int the_address, final byte the_data) throws IOException
+	{
+		call(OP_WRITE, the_address, null, 0, 1, the_data);
+	}
+
+	@Override
+	public void write(final int the_address, final byte[] the_buffer, final int the_offset, final int the_size)
+			throws IOException
+	{
+		call(OP_BLOCK_WRITE, the_address, the_buffer, the_offset, the_size, (byte) 0);
+	}
+
+	/**
+	 * Stops the worker thread. A transaction stuck in the kernel keeps it alive until it returns. The protected
+	 * transport stays open.
+	 */
+	@Override
+	public void close()
+	{
+		my_lock.lock();
+		try
+		{
+			i_am_open = false;
+			if (my_worker != null)
+			{
+				LockSupport.unpark(my_worker);
+			}
+		} finally
+		{
+			my_lock.unlock();
+		}
+	}
+
+	/**
+	 * Runs a transaction with retries, behind the circuit breaker.
+	 */
+	private int call(final int the_op, final int the_address, final byte[] the_buffer,
+			final int the_offset, final int the_size, final byte the_data) throws IOException
+	{
+		my_lock.lock();
+		try
+		{
+			if (!i_am_open)
+			{
+				throw new BrightPiUnavailableException("Transport is closed.");
+			}
+
+			if (the_size > my_buffer.length)
+			{
+				throw new IllegalArgumentException("At most " + my_buffer.length + " registers per transaction.");
+			}
+
+			final boolean trial = admit();
+			final int attempts = trial ? 1 : my_attempts;
+			IOException failure = null;
+			for (int attempt = 0; attempt < attempts; attempt++)
+			{
+				if (attempt > 0)
+				{
+					my_retries++;
+					final long backoff = my_backoff << (attempt - 1);
+					LockSupport.parkNanos(backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1));
+				}
+
+				try
+				{
+					final int result = attempt(the_op, the_address, the_buffer, the_offset, the_size, the_data);
+					my_failures = 0;
+					my_circuit = Circuit.CLOSED;
+					return result;
+				} catch (BrightPiTimeoutException e)
+				{
+					//The worker is still busy with this transaction, so a retry would only wait for it.
+					failure = e;
+					break;
+				} catch (IOException e)
+				{
+					failure = e;
+				}
+			}
+
+			my_failures++;
+			if (trial || my_failures >= my_failure_threshold)
+			{
+				my_circuit = Circuit.OPEN;
+				my_opened_at = System.nanoTime();
+			}
+
+			throw failure instanceof BrightPiException ? (BrightPiException) failure
+					: new BrightPiException("Bus transaction at 0x" + Integer.toHexString(the_address) + " failed after "
+							+ attempts + " attempts.", failure);
+		} finally
+		{
+			my_lock.unlock();
+		}
+	}
+
+	/**
+	 * Checks the circuit breaker.
+	 * 
+	 * @return True if this call is the trial after the cool-down.
+	 * @throws BrightPiUnavailableException If the circuit breaker is open.
+	 */
+	private boolean admit() throws BrightPiUnavailableException
+	{
+		if (my_circuit == Circuit.CLOSED)
+		{
+			return false;
+		}
+
+		if (my_circuit == Circuit.OPEN && System.nanoTime() - my_opened_at < my_open_time)
+		{
+			my_rejections++;
+			throw new BrightPiUnavailableException("BrightPi is unreachable after " + my_failures
+					+ " failed operations in a row.");
+		}
+
+		my_circuit = Circuit.HALF_OPEN;
+		return true;
+	}
+
+	/**
+	 * Runs one transaction within the deadline.
+	 */
+	private int attempt(final int the_op, final int the_address, final byte[] the_buffer, final int the_offset,
+			final int the_size, final byte the_data) throws IOException
+	{
+		final long deadline_length = my_deadline;
+		if (deadline_length <= 0)
+		{
+			return execute(my_transport, the_op, the_address, the_buffer, the_offset, the_size, the_data);
+		}
+
+		final long deadline = System.nanoTime() + deadline_length;
+		startWorker();
+
+		//A transaction that passed its deadline may still hold the worker.
+		awaitWorker(my_requested, deadline);
+
+		my_op = the_op;
+		my_address = the_address;
+		my_size = the_size;
+		my_data = the_data;
+		if (the_op == OP_BLOCK_WRITE)
+		{
+			System.arraycopy(the_buffer, the_offset, my_buffer, 0, the_size);
+		}
+
+		my_caller = Thread.currentThread();
+		final long request = my_requested + 1;
+		my_requested = request;
+		LockSupport.unpark(my_worker);
+		awaitWorker(request, deadline);
+
+		final IOException error = my_error;
+		if (error != null)
+		{
+			throw error;
+		}
+
+		if (the_op == OP_BLOCK_READ)
+		{
+			System.arraycopy(my_buffer, 0, the_buffer, the_offset, the_size);
+		}
+
+		return my_result;
+	}
+
+	/**
+	 * Waits until the worker has finished a transaction.
+	 * 
+	 * @param the_request Number of the transaction.
+	 * @param the_deadline When to give up, from {@link System#nanoTime()}.
+	 * @throws BrightPiTimeoutException If the deadline passed.
+	 */
+	private void awaitWorker(final long the_request, final long the_deadline) throws BrightPiTimeoutException
+	{
+		while (my_completed != the_request)
+		{
+			final long remaining = the_deadline - System.nanoTime();
+			if (remaining <= 0)
+			{
+				my_timeouts++;
+				throw new BrightPiTimeoutException("Bus transaction did not finish in "
+						+ TimeUnit.NANOSECONDS.toMicros(my_deadline) + " us.");
+			}
+
+			my_caller = Thread.currentThread();
+			LockSupport.parkNanos(this, remaining);
+		}
+	}
+
+	/**
+	 * Starts the worker thread if it is not running.
+	 */
+	private void startWorker()
+	{
+		if (my_worker != null)
+		{
+			return;
+		}
+
+		//A platform thread, since a transaction stuck in the kernel would hold on to the carrier of a virtual thread.
+		my_worker = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				long done = my_completed;
+				while (i_am_open)
+				{
+					final long request = my_requested;
+					if (request == done)
+					{
+						LockSupport.park(this);
+						continue;
+					}
+
+					try
+					{
+						my_result = execute(my_transport, my_op, my_address, my_buffer, 0, my_size, my_data);
+						my_error = null;
+					} catch (IOException e)
+					{
+						my_error = e;
+					} catch (RuntimeException e)
+					{
+						my_error = new BrightPiException("Bus transaction failed.", e);
+					}
+
+					done = request;
+					my_completed = request;
+					LockSupport.unpark(my_caller);
+				}
+			}
+		}, "BrightPi I/O");
+		my_worker.setDaemon(true);
+		my_worker.start();
+	}
+
+	/**
+	 * Runs a transaction on a transport.
+	 */
+	private static int execute(final BrightPiTransport the_transport, final int the_op, final int the_address,
+			final byte[] the_buffer, final int the_offset, final int the_size, final byte the_data) throws IOException
+	{
+		switch (the_op)
+		{
+			case OP_READ:
+				return the_transport.read(the_address);
+			case OP_BLOCK_READ:
+				return the_transport.read(the_address, the_buffer, the_offset, the_size);
+			case OP_WRITE:
+				the_transport.write(the_address, the_data);
+				return 1;
+			default:
+				the_transport.write(the_address, the_buffer, the_offset, the_size);
+				return the_size;
+		}
+	}
+}
@@ -0,0 +1,294 @@
+/*
+ * MIT License
+ * 
+ * Copyright (c) 2016 Michael Westbrook
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.brightpi;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In-memory model of the BrightPi register file for machines without the hardware. Each transaction can be delayed by
+ * a fixed latency plus random jitter, and can fail at a configurable rate, to mimic a real bus.
+ * 
+ * @author Mike Westbrook
+ *
+ */
+public class SimulatedBrightPi implements BrightPiTransport
+{
+	/**
+	 * Delays at least this long are slept, shorter delays are spun for accuracy.
+	 */
+	private static final long SPIN_LIMIT = TimeUnit.MICROSECONDS.toNanos(100);
+
+	/**
+	 * Guards the registers, the random source and the transaction count, and is held for the simulated time of a
+	 * transaction. A lock rather than a monitor, so a virtual thread waiting for the bus parks instead of pinning its
+	 * carrier.
+	 */
+	private final ReentrantLock my_lock = new ReentrantLock();
+
+	/**
+	 * Register values indexed by address.
+	 */
+	private final byte[] my_registers = new byte[BrightPi.REGISTER_COUNT];
+
+	/**
+	 * Source of jitter and injected errors.
+	 */
+	private final Random my_random;
+
+	/**
+	 * Fixed delay of each transaction in nanoseconds.
+	 */
+	private volatile long my_latency;
+
+	/**
+	 * Largest random delay added to each transaction in nanoseconds.
+	 */
+	private volatile long my_jitter;
+
+	/**
+	 * Chance from 0 to 1 that a transaction fails.
+	 */
+	private volatile double my_error_rate;
+
+	/**
+	 * Number of transactions, including failed ones.
+	 */
+	private long my_transactions;
+
+	/**
+	 * Creates a simulator with no latency and no errors.
+	 */
+	public SimulatedBrightPi()
+	{
+		this(new Random());
+	}
+
+	/**
+	 * @param the_random Source of jitter and injected errors, seeded for repeatable runs.
+	 */
+	public SimulatedBrightPi(final Random the_random)
+	{
+		my_random = the_random;
+	}
+
+	/**
+	 * @param the_latency Fixed delay of each transaction.
+	 * @param the_unit Unit of the_latency.
+	 */
+	public void setLatency(final long the_latency, final TimeUnit the_unit)
+	{
+		my_latency = the_unit.toNanos(the_latency);
+	}
+
+	/**
+	 * @param the_jitter Largest random delay added to each transaction.
+	 * @param the_unit Unit of the_jitter.
+	 */
+	public void setJitter(final long the_jitter, final TimeUnit the_unit)
+	{
+		my_jitter = the_unit.toNanos(the_jitter);
+	}
+
+	/**
+	 * @param the_error_rate Chance from 0 to 1 that a transaction throws an IOException.
+	 */
+	public void setErrorRate(final double the_error_rate)
+	{
+		my_error_rate = the_error_rate;
+	}
+
+	/**
+	 * @param the_address The register to inspect.
+	 * @return The value of the register, without simulating a transaction.
+	 */
+	public byte getRegister(final int the_address)
+	{
+		my_lock.lock();
+		try
+		{
+			return my_registers[the_address];
+		} finally
+		{
+			my_lock.unlock();
+		}
+	}
+
+	/**
+	 * @return A copy of all registers, without simulating a transaction.
+	 */
+	public byte[] getRegisters()
+	{
+		my_lock.lock();
+		try
+		{
+			return my_registers.clone();
+		} finally
+		{
+			my_lock.unlock();
+		}
+	}
+
+	/**
+	 * @return Number of transactions, including failed ones.
+	 */
+	public long getTransactionCount()
+	{
+		my_lock.lock();
+		try
+		{
+			return my_transactions;
+		} finally
+		{
+			my_lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the registers to their power-on value and resets the transaction count.
+	 */
+	public void reset()
+	{
+		my_lock.lock();
+		try
+		{
+			Arrays.fill(my_registers, (byte) 0);
+			my_transactions = 0;
+		} finally
+		{
+			my_lock.unlock();
+		}
+	}
+
+	@Override
+	public int read(final int the_address) throws IOException
+	{
+		my_lock.lock();
+		try
+		{
+			transaction(the_address, 1);
+			return my_registers[the_address] & 0xff;
+		} finally
+		{
+			my_lock.unlock();
+		}
+	}
+
+	@Override
+	public int read(final int the_address, final byte[] the_buffer, final int the_offset, final int the_size)
+			throws IOException
+	{
+		my_lock.lock();
+		try
+		{
+			transaction(the_address, the_size);
+			System.arraycopy(my_registers, the_address, the_buffer, the_offset, the_size);
+			return the_size;
+		} finally
+		{
+			my_lock.unlock();
+		}
+	}
+
+	@Override
+	public void write(final int the_address, final byte the_data) throws IOException
+	{
+		my_lock.lock();
+		try
+		{
+			transaction(the_address, 1);
+			my_registers[the_address] = the_data;
+		} finally
+		{
+			my_lock.unlock();
+		}
+	}
+
+	@Override
+	public void write(final int the_address, final byte[] the_buffer, final int the_offset,
+			final int the_size) throws IOException
+	{
+		my_lock.lock();
+		try
+		{
+			transaction(the_address, the_size);
+			System.arraycopy(the_buffer, the_offset, my_registers, the_address, the_size);
+		} finally
+		{
+			my_lock.unlock();
+		}
+	}
+
+	/**
+	 * Simulates the cost and failures of a transaction.
+	 * 
+	 * @param the_address The first register of the transaction.
+	 * @param the_size Number of registers in the transaction.
+	 * @throws IOException If the registers do not exist or an error is injected.
+	 */
+	private void transaction(final int the_address, final int the_size) throws IOException
+	{
+		my_transactions++;
+		if (the_address < 0 || the_size < 1 || the_address + the_size > my_registers.length)
+		{
+			throw new IOException("No registers at " + the_address + " to " + (the_address + the_size - 1));
+		}
+
+		long delay = my_latency;
+		if (my_jitter > 0)
+		{
+			delay += (long) (my_random.nextDouble() * my_jitter);
+		}
+
+		pause(delay);
+		if (my_error_rate > 0 && my_random.nextDouble() < my_error_rate)
+		{
+			throw new IOException("Simulated bus error");
+		}
+	}
+
+	/**
+	 * Waits for the simulated bus.
+	 * 
+	 * @param the_delay Nanoseconds to wait.
+	 */
+	private static void pause(final long the_delay)
+	{
+		if (the_delay >= SPIN_LIMIT)
+		{
+			LockSupport.parkNanos(the_delay);
+			return;
+		}
+
+		final long end = System.nanoTime() + the_delay;
+		while (the_delay > 0 && System.nanoTime() < end)
+		{
+			//Spin, parking is not accurate enough for short delays.
+		}
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * MIT License
+ * 
+ * Copyright (c) 2016 Michael Westbrook
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.brightpi;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the threads BrightPi runs animations, dispatchers and background work on. This is the Java 21 version from
+ * the multi-release jar, which uses virtual threads unless {@link #VIRTUAL_THREADS_PROPERTY} is "false".
+ * 
+ * @author Mike Westbrook
+ *
+ */
+public final class BrightPiExecutors
+{
+	/**
+	 * System property that turns virtual threads off when set to "false". Ignored before Java 21.
+	 */
+	public static final String VIRTUAL_THREADS_PROPERTY = "brightpi.virtualThreads";
+
+	private static final boolean VIRTUAL = !"false".equalsIgnoreCase(System.getProperty(VIRTUAL_THREADS_PROPERTY));
+
+	private BrightPiExecutors()
+	{
+	}
+
+	/**
+	 * @return True if the threads are virtual threads.
+	 */
+	public static boolean isVirtual()
+	{
+		return VIRTUAL;
+	}
+
+	/**
+	 * @param the_name Name of the threads.
+	 * @return A factory of virtual threads, or daemon platform threads, with the given name.
+	 */
+	public static ThreadFactory threadFactory(final String the_name)
+	{
+		if (VIRTUAL)
+		{
+			return Thread.ofVirtual().name(the_name).factory();
+		}
+
+		return Thread.ofPlatform().name(the_name).daemon(true).factory();
+	}
+
+	/**
+	 * Creates an executor for blocking tasks, such as commands to a device or fades. Each task gets its own virtual
+	 * thread, otherwise idle platform threads are reused.
+	 * 
+	 * @param the_name Name of the threads.
+	 * @return A new executor, which the caller shuts down.
+	 */
+	public static ExecutorService newTaskExecutor(final String the_name)
+	{
+		if (VIRTUAL)
+		{
+			return Executors.newThreadPerTaskExecutor(threadFactory(the_name));
+		}
+
+		return Executors.newCachedThreadPool(threadFactory(the_name));
+	}
+}
@@ -0,0 +1,64 @@
+/*
+ * MIT License
+ * 
+ * Copyright (c) 2016 Michael Westbrook
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.brightpi;
+
+import java.lang.invoke.VarHandle;
+
+/**
+ * Memory fences for data shared outside the Java heap, such as the mapped file of {@link BrightPiSharedState}, where
+ * volatile fields give no ordering. This is the Java 21 version from the multi-release jar.
+ * 
+ * @author Mike Westbrook
+ *
+ */
+final class BrightPiFences
+{
+	private BrightPiFences()
+	{
+	}
+
+	/**
+	 * @return True if the fences can be used. If not, the shared data must be guarded by a lock instead.
+	 */
+	static boolean isAvailable()
+	{
+		return true;
+	}
+
+	/**
+	 * Keeps loads before the fence from moving after loads and stores after it.
+	 */
+	static void acquireFence()
+	{
+		VarHandle.acquireFence();
+	}
+
+	/**
+	 * Keeps loads and stores before the fence from moving after stores after it.
+	 */
+	static void releaseFence()
+	{
+		VarHandle.releaseFence();
+	}
+}
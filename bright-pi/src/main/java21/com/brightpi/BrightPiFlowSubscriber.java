@@ -0,0 +1,177 @@
+/*
+ * MIT License
+ * 
+ * Copyright (c) 2016 Michael Westbrook
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.brightpi;
+
+import java.util.concurrent.Flow;
+
+/**
+ * Subscribes a {@link BrightPiConflator} to a {@link Flow.Publisher} of targets. Every target is offered to the
+ * conflator as it arrives and the subscription requests without limit, since the conflator never blocks and keeps
+ * only the latest target of each register. Backpressure is handled by dropping stale targets rather than by slowing
+ * the publisher down.
+ * <p>
+ * Only in the Java 21 classes of the multi-release jar, as Flow needs Java 9. The conflator can be fed directly from
+ * any other reactive library.
+ * 
+ * @author Mike Westbrook
+ *
+ */
+public final class BrightPiFlowSubscriber implements Flow.Subscriber<BrightPiFlowSubscriber.Target>
+{
+	private final BrightPiConflator my_conflator;
+
+	private volatile Flow.Subscription my_subscription;
+
+	private volatile boolean i_am_done;
+
+	private volatile Throwable my_error;
+
+	/**
+	 * @param the_conflator Receives the targets. It is not closed when the stream ends.
+	 */
+	public BrightPiFlowSubscriber(final BrightPiConflator the_conflator)
+	{
+		my_conflator = the_conflator;
+	}
+
+	/**
+	 * @param the_led The LED to adjust the brightness of.
+	 * @param the_value The target brightness.
+	 * @return A target for the LED.
+	 */
+	public static Target brightness(final BrightPiLED the_led, final byte the_value)
+	{
+		return the_conflator -> the_conflator.offerLEDBrightness(the_led, the_value);
+	}
+
+	/**
+	 * @param the_value The target brightness of all LEDs.
+	 * @return A target for all LEDs.
+	 */
+	public static Target brightness(final byte the_value)
+	{
+		return the_conflator -> the_conflator.offerLEDBrightness(the_value);
+	}
+
+	/**
+	 * @param the_mode The target mode.
+	 * @return A target for the mode.
+	 */
+	public static Target mode(final BrightPiMode the_mode)
+	{
+		return the_conflator -> the_conflator.offerMode(the_mode);
+	}
+
+	/**
+	 * @param the_gain The target gain.
+	 * @return A target for the gain.
+	 */
+	public static Target gain(final BrightPiGain the_gain)
+	{
+		return the_conflator -> the_conflator.offerGain(the_gain);
+	}
+
+	/**
+	 * @param the_on True to turn the LEDs of the current mode on, false to turn them off.
+	 * @return A target for the power.
+	 */
+	public static Target power(final boolean the_on)
+	{
+		return the_conflator -> the_conflator.offerPower(the_on);
+	}
+
+	@Override
+	public void onSubscribe(final Flow.Subscription the_subscription)
+	{
+		if (my_subscription != null || i_am_done)
+		{
+			//Only one publisher per subscriber.
+			the_subscription.cancel();
+			return;
+		}
+
+		my_subscription = the_subscription;
+		the_subscription.request(Long.MAX_VALUE);
+	}
+
+	@Override
+	public void onNext(final Target the_target)
+	{
+		the_target.offerTo(my_conflator);
+	}
+
+	@Override
+	public void onError(final Throwable the_error)
+	{
+		my_error = the_error;
+		i_am_done = true;
+	}
+
+	@Override
+	public void onComplete()
+	{
+		i_am_done = true;
+	}
+
+	/**
+	 * Stops receiving targets. Targets already offered are still written.
+	 */
+	public void cancel()
+	{
+		i_am_done = true;
+		final Flow.Subscription subscription = my_subscription;
+		if (subscription != null)
+		{
+			subscription.cancel();
+		}
+	}
+
+	/**
+	 * @return True once the publisher completed or failed, or the subscription was cancelled.
+	 */
+	public boolean isDone()
+	{
+		return i_am_done;
+	}
+
+	/**
+	 * @return The failure the publisher ended with, or null.
+	 */
+	public Throwable getError()
+	{
+		return my_error;
+	}
+
+	/**
+	 * A brightness, mode, gain or power target from the stream.
+	 */
+	@FunctionalInterface
+	public interface Target
+	{
+		/**
+		 * @param the_conflator The conflator to offer the target to.
+		 */
+		void offerTo(BrightPiConflator the_conflator);
+	}
+}
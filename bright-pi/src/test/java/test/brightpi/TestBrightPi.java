@@ -4,12 +4,11 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.AfterClass;
 import org.junit.Before;
+import org.junit.BeforeClass;
 import org.junit.Test;
 
 import com.brightpi.BrightPi;
@@ -17,51 +16,62 @@ import com.brightpi.BrightPiBrightness;
 import com.brightpi.BrightPiGain;
 import com.brightpi.BrightPiLED;
 import com.brightpi.BrightPiMode;
+import com.brightpi.BrightPiState;
+import com.brightpi.BrightPiTransport;
+import com.brightpi.I2CTransport;
+import com.brightpi.SimulatedBrightPi;
 import com.pi4j.io.i2c.I2CBus;
-import com.pi4j.io.i2c.I2CDevice;
-import com.pi4j.io.i2c.I2CFactory;
-import com.pi4j.io.i2c.I2CFactory.UnsupportedBusNumberException;
 
+/**
+ * Runs against a {@link SimulatedBrightPi} by default. Set the system property brightpi.hardware to true to run
+ * against the Bright Pi on bus 1 instead.
+ */
 public class TestBrightPi
 {
-	private static final long DELAY = 10l;
+	public static final String HARDWARE_PROPERTY = "brightpi.hardware";
 
 	private static final int LED_MASK_ADDRESS = 0x00;
 
 	public static final int BRIGHTPI_ADDRESS = 0x70;
 
-	private I2CDevice my_brightpi;
+	/**
+	 * Used to read the registers back, bypassing the shadow registers of BrightPi.
+	 */
+	private static BrightPiTransport my_brightpi;
 
-	@Before
-	public void before() throws IOException
+	private static BrightPi my_bp;
+
+	/**
+	 * Time of each fade step in nanoseconds, long enough to see on hardware.
+	 */
+	private static long my_step;
+
+	@BeforeClass
+	public static void beforeClass() throws Exception
 	{
-		if (my_brightpi == null)
+		if (Boolean.getBoolean(HARDWARE_PROPERTY))
 		{
-			I2CDevice device = null;
-			try
-			{
-				final I2CBus i2c = I2CFactory.getInstance(I2CBus.BUS_1);
-				device = i2c.getDevice(BRIGHTPI_ADDRESS);
-			} catch (UnsupportedBusNumberException e)
-			{
-				// TODO Exception handling
-				e.printStackTrace();
-			} catch (IOException e)
-			{
-				// TODO Exception handling
-				e.printStackTrace();
-			}
-
-			my_brightpi = device;
+			my_brightpi = I2CTransport.open(I2CBus.BUS_1, BRIGHTPI_ADDRESS);
+			my_bp = BrightPi.instance();
+			my_step = TimeUnit.MILLISECONDS.toNanos(10);
+		} else
+		{
+			my_brightpi = new SimulatedBrightPi();
+			my_bp = new BrightPi(my_brightpi);
+			my_step = TimeUnit.MICROSECONDS.toNanos(20);
 		}
-		
-		BrightPi.instance().clear();
+	}
+
+	@Before
+	public void before()
+	{
+		my_bp.clear();
 	}
 
 	@Test
 	public void testBrightness()
 	{
-		final BrightPi bp = BrightPi.instance();
+		final BrightPi bp = my_bp;
 		bp.setGain(BrightPiGain.HIGH_GAIN);
 		bp.on();
 		for (final BrightPiLED led : BrightPiLED.values())
@@ -84,7 +94,7 @@ public class TestBrightPi
 	@Test
 	public void testClear()
 	{
-		final BrightPi bp = BrightPi.instance();
+		final BrightPi bp = my_bp;
 		for (final BrightPiGain gain : BrightPiGain.values())	
 		{
 			for (byte brightness = BrightPiBrightness.LED_MIN; brightness <= BrightPiBrightness.LED_MAX; brightness = (byte) (brightness + 1))
@@ -96,13 +106,7 @@ public class TestBrightPi
 					bp.setLEDBrightness(brightness);
 					bp.setGain(gain);
 					bp.clear();
-					try
-					{
-						verifyDeviceCleared();
-					} catch (IOException e)
-					{
-						fail("IOException : " + e.getMessage());
-					}
+					verifyDeviceCleared();
 				}
 				
 				bp.clear();
@@ -112,13 +116,7 @@ public class TestBrightPi
 					bp.setLEDBrightness(led, brightness);
 					bp.setGain(gain);
 					bp.clear();
-					try
-					{
-						verifyDeviceCleared();
-					} catch (IOException e)
-					{
-						fail("IOException : " + e.getMessage());
-					}
+					verifyDeviceCleared();
 				}
 			}
 		}
@@ -127,25 +125,25 @@ public class TestBrightPi
 	@Test
 	public void testFade()
 	{
-		final BrightPi bp = BrightPi.instance();
+		final BrightPi bp = my_bp;
 		for (final BrightPiLED led : BrightPiLED.values())
 		{
 			bp.on();
 			bp.setGain(BrightPiGain.HIGH_GAIN);
 			bp.setMode(BrightPiMode.MIXED);
-			bp.fade(led, BrightPiBrightness.LED_MIN, BrightPiBrightness.LED_MAX, DELAY);
+			bp.fade(led, BrightPiBrightness.LED_MIN, BrightPiBrightness.LED_MAX, fadeTime(), TimeUnit.NANOSECONDS);
 			try
 			{
-				assertTrue("LED " + led.name() + " not a full brightness.", (byte) my_brightpi.read() == BrightPiBrightness.LED_MAX);
+				assertTrue("LED " + led.name() + " not a full brightness.", (byte) my_brightpi.read(led.getAddress()) == BrightPiBrightness.LED_MAX);
 			} catch (IOException e)
 			{
 				fail("IOException : " + e.getMessage());
 			}
 
-			bp.fade(led, BrightPiBrightness.LED_MAX, BrightPiBrightness.LED_MIN, DELAY);
+			bp.fade(led, BrightPiBrightness.LED_MAX, BrightPiBrightness.LED_MIN, fadeTime(), TimeUnit.NANOSECONDS);
 			try
 			{
-				assertTrue("LED " + led.name() + " did not dim all the way.", (byte) my_brightpi.read() == BrightPiBrightness.LED_MIN);
+				assertTrue("LED " + led.name() + " did not dim all the way.", (byte) my_brightpi.read(led.getAddress()) == BrightPiBrightness.LED_MIN);
 			} catch (IOException e)
 			{
 				fail("IOException : " + e.getMessage());
@@ -157,7 +155,7 @@ public class TestBrightPi
 	@Test
 	public void testGain()
 	{
-		final BrightPi bp = BrightPi.instance();
+		final BrightPi bp = my_bp;
 		for (final BrightPiGain gain : BrightPiGain.values())
 		{
 			bp.clear();
@@ -173,10 +171,27 @@ public class TestBrightPi
 		}
 	}
 
+	@Test
+	public void testNearestGain()
+	{
+		final BrightPi bp = my_bp;
+		final byte[] values = { 2, 5, 8, 12, 13, 14 };
+		final BrightPiGain[] expected = { BrightPiGain.LOW_GAIN, BrightPiGain.LOW_GAIN, BrightPiGain.MEDIUM_GAIN,
+				BrightPiGain.MEDIUM_GAIN, BrightPiGain.HIGH_GAIN, BrightPiGain.HIGH_GAIN };
+		for (int i = 0; i < values.length; i++)
+		{
+			bp.setGain(values[i]);
+			assertTrue("Gain " + values[i] + " read as " + bp.getGain(), bp.getGain() == expected[i]);
+			assertTrue("Gain register was not kept.", bp.snapshot().getGainValue() == values[i]);
+		}
+
+		bp.clear();
+	}
+
 	@Test
 	public void testLED()
 	{
-		final BrightPi bp = BrightPi.instance();
+		final BrightPi bp = my_bp;
 		for (final BrightPiMode mode : BrightPiMode.values())
 		{
 			bp.clear();
@@ -187,9 +202,10 @@ public class TestBrightPi
 				assertTrue("All LEDs are not turned off.", (byte) my_brightpi.read(LED_MASK_ADDRESS) == BrightPiMode.OFF.getLeds());
 				bp.on();
 
-				//ensure all leds are on.
+				//ensure all leds are on. Individual mode lights the LEDs last chosen for it, which clear() keeps.
+				final byte expected = mode == BrightPiMode.INDIVIDUAL ? bp.snapshot().getIndividualMask() : mode.getLeds();
 				final byte curr = (byte) my_brightpi.read(LED_MASK_ADDRESS);
-				assertTrue(mode.name() + " LEDs did not turn on.", curr == mode.getLeds());
+				assertTrue(mode.name() + " LEDs did not turn on.", curr == expected);
 				bp.off();
 
 				//ensure all leds are off.
@@ -206,37 +222,30 @@ public class TestBrightPi
 	@AfterClass
 	public static void afterClass()
 	{
-		BrightPi.instance().clear();
+		my_bp.clear();
 	}
 
-	private Map<BrightPiLED, Integer> getDimValues() throws IOException
+	private static long fadeTime()
 	{
-		final Map<BrightPiLED, Integer> map = new HashMap<BrightPiLED, Integer>();
-		for (final BrightPiLED led : BrightPiLED.values())
-		{
-			map.put(led, my_brightpi.read(led.getAddress()));
-		}
-
-		return map;
+		return (BrightPiBrightness.LED_MAX - BrightPiBrightness.LED_MIN) * my_step;
 	}
 
-	private void verifyDeviceCleared() throws IOException
+	private void verifyDeviceCleared()
 	{
-		final byte mode = (byte) my_brightpi.read(LED_MASK_ADDRESS);
-		final Map<BrightPiLED, Integer> dim_values = getDimValues();
-		final byte gain = (byte) my_brightpi.read(BrightPiGain.GAIN_CHIP_ADDRESS);
-		assertTrue("Set mode did not reset.", BrightPi.instance().getMode() == BrightPi.DEFAULT_MODE);
-		assertTrue("LEDs do not match default mode.", mode == BrightPi.DEFAULT_MODE.getLeds());
-		assertTrue("LED dimmer values did not reset.", dimValuesCleared(dim_values));
-		assertTrue("Gain not reset", gain == BrightPi.DEFAULT_GAIN.getGain());
+		final BrightPiState state = my_bp.readState();
+		assertTrue("Device could not be read.", state != null);
+		assertTrue("Set mode did not reset.", my_bp.getMode() == BrightPi.DEFAULT_MODE);
+		assertTrue("LEDs do not match default mode.", state.getMask() == BrightPi.DEFAULT_MODE.getLeds());
+		assertTrue("LED dimmer values did not reset.", dimValuesCleared(state));
+		assertTrue("Gain not reset", state.getGainValue() == BrightPi.DEFAULT_GAIN.getGain());
 	}
 
-	private static boolean dimValuesCleared(final Map<BrightPiLED, Integer> dim_values)
+	private static boolean dimValuesCleared(final BrightPiState the_state)
 	{
-		boolean result = dim_values != null;
-		for (final Entry<BrightPiLED, Integer>  entry : dim_values.entrySet())
+		boolean result = true;
+		for (final BrightPiLED led : BrightPiLED.values())
 		{
-			result = entry.getValue() == BrightPiBrightness.LED_MIN;
+			result = the_state.getLEDBrightness(led) == BrightPiBrightness.LED_MIN;
 			if (!result)
 			{
 				break;
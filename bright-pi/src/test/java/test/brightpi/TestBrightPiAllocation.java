@@ -0,0 +1,228 @@
+package test.brightpi;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.brightpi.BrightPi;
+import com.brightpi.BrightPiGain;
+import com.brightpi.BrightPiLED;
+import com.brightpi.BrightPiMode;
+import com.brightpi.BrightPiTransaction;
+import com.brightpi.SimulatedBrightPi;
+
+/**
+ * Checks that commands allocate nothing once warmed up, when they repeat a state or switch the LEDs on and off, and
+ * that a command that changes the state allocates only the new state. Each operation is run until compiled, then the
+ * bytes the thread allocates over many more runs are measured.
+ */
+public class TestBrightPiAllocation
+{
+	private static final int REGISTER_COUNT = 10;
+
+	private static final int WARMUP = 200000;
+
+	private static final int OPERATIONS = 100000;
+
+	/**
+	 * Bytes a run of operations may allocate and still count as allocating nothing, less than one byte every thousand
+	 * operations.
+	 */
+	private static final long SLACK = 64;
+
+	/**
+	 * Most bytes one {@link com.brightpi.BrightPiState} takes, with or without compressed pointers.
+	 */
+	private static final long STATE_SIZE = 48;
+
+	private com.sun.management.ThreadMXBean my_threads;
+
+	private BrightPi my_bp;
+
+	private BrightPiTransaction my_transaction;
+
+	private interface Operation
+	{
+		void run(int the_index);
+	}
+
+	@Before
+	public void before()
+	{
+		assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+		my_threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		assumeTrue(my_threads.isThreadAllocatedMemorySupported());
+		my_threads.setThreadAllocatedMemoryEnabled(true);
+		my_bp = new BrightPi(new SimulatedBrightPi());
+		my_transaction = my_bp.batch();
+	}
+
+	@Test
+	public void testOnOff()
+	{
+		assertNoAllocation("on/off", new Operation()
+		{
+			@Override
+			public void run(final int the_index)
+			{
+				if ((the_index & 1) == 0)
+				{
+					my_bp.on();
+				} else
+				{
+					my_bp.off();
+				}
+			}
+		});
+	}
+
+	@Test
+	public void testRepeatedCommands()
+	{
+		assertNoAllocation("setLEDBrightness(led)", new Operation()
+		{
+			@Override
+			public void run(final int the_index)
+			{
+				my_bp.setLEDBrightness(BrightPiLED.W2, (byte) 20);
+			}
+		});
+		assertNoAllocation("setLEDBrightness", new Operation()
+		{
+			@Override
+			public void run(final int the_index)
+			{
+				my_bp.setLEDBrightness((byte) 30);
+			}
+		});
+		assertNoAllocation("setMode", new Operation()
+		{
+			@Override
+			public void run(final int the_index)
+			{
+				my_bp.setMode(BrightPiMode.WHITE);
+			}
+		});
+		assertNoAllocation("setGain", new Operation()
+		{
+			@Override
+			public void run(final int the_index)
+			{
+				my_bp.setGain(BrightPiGain.MEDIUM_GAIN);
+			}
+		});
+		assertNoAllocation("clear", new Operation()
+		{
+			@Override
+			public void run(final int the_index)
+			{
+				my_bp.clear();
+			}
+		});
+	}
+
+	@Test
+	public void testChangingCommands()
+	{
+		assertAllocation("changing setLEDBrightness(led)", STATE_SIZE, new Operation()
+		{
+			@Override
+			public void run(final int the_index)
+			{
+				my_bp.setLEDBrightness(BrightPiLED.W2, (byte) (the_index & 0x1f));
+			}
+		});
+		assertAllocation("changing setLEDBrightness", STATE_SIZE, new Operation()
+		{
+			@Override
+			public void run(final int the_index)
+			{
+				my_bp.setLEDBrightness((byte) (the_index & 0x1f));
+			}
+		});
+		assertAllocation("changing setGain", STATE_SIZE, new Operation()
+		{
+			@Override
+			public void run(final int the_index)
+			{
+				my_bp.setGain((byte) (1 + (the_index & 0x7)));
+			}
+		});
+	}
+
+	@Test
+	public void testTransaction()
+	{
+		assertNoAllocation("commit", new Operation()
+		{
+			@Override
+			public void run(final int the_index)
+			{
+				my_transaction.setGain(BrightPiGain.LOW_GAIN).setLEDBrightness(BrightPiLED.IR1, (byte) 5);
+				if ((the_index & 1) == 0)
+				{
+					my_transaction.on();
+				} else
+				{
+					my_transaction.off();
+				}
+
+				my_transaction.commit();
+			}
+		});
+	}
+
+	@Test
+	public void testReads()
+	{
+		assertNoAllocation("getters", new Operation()
+		{
+			@Override
+			public void run(final int the_index)
+			{
+				my_bp.getCurrentOnLEDs();
+				my_bp.getMode();
+				my_bp.getGain();
+				my_bp.snapshot().getRegister(the_index % REGISTER_COUNT);
+			}
+		});
+	}
+
+	private void assertNoAllocation(final String the_name, final Operation the_operation)
+	{
+		assertAllocation(the_name, 0, the_operation);
+	}
+
+	/**
+	 * @param the_limit Bytes each operation may allocate.
+	 */
+	private void assertAllocation(final String the_name, final long the_limit, final Operation the_operation)
+	{
+		for (int i = 0; i < WARMUP; i++)
+		{
+			the_operation.run(i);
+		}
+
+		//Whatever measuring itself allocates is taken off.
+		final long before = allocated();
+		final long overhead = allocated() - before;
+		final long start = allocated();
+		for (int i = 0; i < OPERATIONS; i++)
+		{
+			the_operation.run(i);
+		}
+
+		final long bytes = allocated() - start - overhead;
+		assertTrue(the_name + " allocated " + bytes + " bytes over " + OPERATIONS + " operations",
+				bytes <= the_limit * OPERATIONS + SLACK);
+	}
+
+	private long allocated()
+	{
+		return my_threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+}
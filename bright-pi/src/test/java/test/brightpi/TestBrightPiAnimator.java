@@ -0,0 +1,162 @@
+package test.brightpi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.brightpi.BrightPi;
+import com.brightpi.BrightPiAnimation;
+import com.brightpi.BrightPiAnimator;
+import com.brightpi.BrightPiLED;
+import com.brightpi.SimulatedBrightPi;
+
+/**
+ * Runs animations against a simulated BrightPi, including ones that are invalid or throw.
+ */
+public class TestBrightPiAnimator
+{
+	private SimulatedBrightPi my_simulator;
+
+	private BrightPi my_bp;
+
+	private BrightPiAnimator my_animator;
+
+	@Before
+	public void before()
+	{
+		my_simulator = new SimulatedBrightPi();
+		my_bp = new BrightPi(my_simulator);
+		my_animator = new BrightPiAnimator(my_bp, 1, TimeUnit.MILLISECONDS);
+	}
+
+	@After
+	public void after()
+	{
+		my_animator.shutdown();
+	}
+
+	@Test(timeout = 10000)
+	public void testFade() throws Exception
+	{
+		final BrightPiAnimation fade = my_animator.fade(BrightPiLED.W1, (byte) 0, (byte) 100, 50, TimeUnit.MILLISECONDS);
+		fade.get(5, TimeUnit.SECONDS);
+		assertTrue(fade.isDone());
+		assertFalse(fade.isCancelled());
+		assertEquals((byte) 100, my_simulator.getRegister(BrightPiLED.W1.getAddress()));
+	}
+
+	@Test(timeout = 10000)
+	public void testPulse() throws Exception
+	{
+		final BrightPiAnimation pulse = my_animator.pulse(BrightPiLED.IR1, (byte) 5, (byte) 60, 20,
+				TimeUnit.MILLISECONDS, 3);
+		pulse.get(5, TimeUnit.SECONDS);
+		assertEquals("A finished pulse ends low", (byte) 5, my_simulator.getRegister(BrightPiLED.IR1.getAddress()));
+	}
+
+	@Test(timeout = 10000)
+	public void testCancel() throws Exception
+	{
+		final BrightPiAnimation pulse = my_animator.pulse(BrightPiLED.W2, (byte) 0, (byte) 50, 10,
+				TimeUnit.MILLISECONDS, 0);
+		Thread.sleep(30);
+		assertFalse("Pulse without cycles finished", pulse.isDone());
+
+		//Another animation on the same LED replaces it.
+		final BrightPiAnimation fade = my_animator.fade(BrightPiLED.W2, (byte) 0, (byte) 70, 0, TimeUnit.MILLISECONDS);
+		assertTrue(pulse.isCancelled());
+		try
+		{
+			pulse.get();
+			fail("Cancelled pulse completed");
+		} catch (CancellationException e)
+		{
+			//Expected.
+		}
+
+		fade.get(5, TimeUnit.SECONDS);
+		assertEquals((byte) 70, my_simulator.getRegister(BrightPiLED.W2.getAddress()));
+		assertFalse("Finished animation cancelled", fade.cancel(false));
+	}
+
+	@Test
+	public void testInvalidArguments()
+	{
+		try
+		{
+			BrightPiAnimation.pulse(BrightPiLED.W1, (byte) 0, (byte) 10, 0, TimeUnit.MILLISECONDS, 1);
+			fail("Pulse with a zero period");
+		} catch (IllegalArgumentException e)
+		{
+			//Expected.
+		}
+
+		try
+		{
+			BrightPiAnimation.pulse(BrightPiLED.W1, (byte) 0, (byte) 10, 10, TimeUnit.MILLISECONDS, -1);
+			fail("Pulse with negative cycles");
+		} catch (IllegalArgumentException e)
+		{
+			//Expected.
+		}
+
+		try
+		{
+			BrightPiAnimation.pulse(BrightPiLED.W1, (byte) 0, (byte) 10, Long.MAX_VALUE / 2, TimeUnit.NANOSECONDS, 3);
+			fail("Pulse longer than a long holds");
+		} catch (IllegalArgumentException e)
+		{
+			//Expected.
+		}
+
+		try
+		{
+			BrightPiAnimation.fade(BrightPiLED.W1, (byte) 0, (byte) 10, -1, TimeUnit.MILLISECONDS);
+			fail("Fade with a negative duration");
+		} catch (IllegalArgumentException e)
+		{
+			//Expected.
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testFailingAnimation() throws Exception
+	{
+		final IllegalStateException failure = new IllegalStateException("Broken animation");
+		final BrightPiAnimation broken = my_animator.play(new BrightPiAnimation(BrightPiLED.IR2, -1)
+		{
+			@Override
+			protected byte valueAt(final long the_elapsed)
+			{
+				throw failure;
+			}
+		});
+		final BrightPiAnimation fade = my_animator.fade(BrightPiLED.IR3, (byte) 0, (byte) 30, 20,
+				TimeUnit.MILLISECONDS);
+
+		try
+		{
+			broken.get(5, TimeUnit.SECONDS);
+			fail("Failure was not reported");
+		} catch (ExecutionException e)
+		{
+			assertSame(failure, e.getCause());
+		}
+
+		//The other animation and later ones still run.
+		fade.get(5, TimeUnit.SECONDS);
+		assertEquals((byte) 30, my_simulator.getRegister(BrightPiLED.IR3.getAddress()));
+		my_animator.fade(BrightPiLED.IR2, (byte) 0, (byte) 40, 10, TimeUnit.MILLISECONDS).get(5, TimeUnit.SECONDS);
+		assertEquals((byte) 40, my_simulator.getRegister(BrightPiLED.IR2.getAddress()));
+	}
+}
@@ -0,0 +1,462 @@
+package test.brightpi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.brightpi.BrightPiBusOwner;
+import com.brightpi.BrightPiException;
+import com.brightpi.BrightPiTimeoutException;
+import com.brightpi.BrightPiTransport;
+import com.brightpi.BrightPiUnavailableException;
+import com.brightpi.SimulatedBrightPi;
+
+/**
+ * Drives {@link BrightPiBusOwner} and its command ring with small rings, several producers and a transport that
+ * blocks or throws on demand.
+ */
+public class TestBrightPiBusOwner
+{
+	private static final int FIRST_LED_ADDRESS = 1;
+
+	private static final int LED_COUNT = 8;
+
+	private SimulatedBrightPi my_simulator;
+
+	private GatedTransport my_transport;
+
+	private BrightPiBusOwner my_owner;
+
+	@Before
+	public void before()
+	{
+		my_simulator = new SimulatedBrightPi();
+		my_transport = new GatedTransport(my_simulator);
+		my_owner = new BrightPiBusOwner(my_transport, 4);
+	}
+
+	@After
+	public void after() throws InterruptedException
+	{
+		my_transport.open();
+		my_owner.close();
+	}
+
+	@Test(timeout = 10000)
+	public void testWrapAround() throws Exception
+	{
+		//Many times the capacity of the ring, with reads in between that must see the writes before them.
+		for (int i = 0; i < 1000; i++)
+		{
+			final int address = FIRST_LED_ADDRESS + i % LED_COUNT;
+			my_owner.write(address, (byte) i);
+			if (i % 10 == 0)
+			{
+				assertEquals("Read after write " + i, i & 0xff, my_owner.read(address));
+			}
+		}
+
+		my_owner.flush();
+		for (int i = 1000 - LED_COUNT; i < 1000; i++)
+		{
+			assertEquals("Register " + (FIRST_LED_ADDRESS + i % LED_COUNT), (byte) i,
+					my_simulator.getRegister(FIRST_LED_ADDRESS + i % LED_COUNT));
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testFullRing() throws Exception
+	{
+		my_transport.close();
+		final CountDownLatch done = new CountDownLatch(1);
+		final Thread producer = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					for (int i = 0; i < 20; i++)
+					{
+						my_owner.write(FIRST_LED_ADDRESS + i % LED_COUNT, (byte) i);
+					}
+				} catch (IOException e)
+				{
+					return;
+				}
+
+				done.countDown();
+			}
+		});
+		producer.start();
+
+		assertFalse("Producer did not wait for room in a full ring", done.await(200, TimeUnit.MILLISECONDS));
+		my_transport.open();
+		assertTrue("Producer did not finish once the bus was free", done.await(5, TimeUnit.SECONDS));
+		my_owner.flush();
+		for (int i = 20 - LED_COUNT; i < 20; i++)
+		{
+			assertEquals((byte) i, my_simulator.getRegister(FIRST_LED_ADDRESS + i % LED_COUNT));
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testFullRingClosed() throws Exception
+	{
+		my_transport.close();
+		final IOException[] failure = new IOException[1];
+		final Thread producer = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					for (int i = 0; i < 20; i++)
+					{
+						my_owner.write(FIRST_LED_ADDRESS, (byte) i);
+					}
+				} catch (IOException e)
+				{
+					failure[0] = e;
+				}
+			}
+		});
+		producer.start();
+		Thread.sleep(100);
+
+		//Closing gives up on the producer waiting for room instead of leaving it spinning.
+		final Thread closer = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					my_owner.close();
+				} catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		closer.start();
+		producer.join(5000);
+		assertFalse("Producer still waiting after close", producer.isAlive());
+		assertTrue("Producer was not told the owner closed", failure[0] instanceof BrightPiUnavailableException);
+		my_transport.open();
+		closer.join();
+	}
+
+	@Test(timeout = 30000)
+	public void testMultipleProducers() throws Exception
+	{
+		final RecordingTransport recorder = new RecordingTransport(my_simulator);
+		final BrightPiBusOwner owner = new BrightPiBusOwner(recorder, 8);
+		final int producers = 4;
+		final int writes = 20000;
+		final List<Thread> threads = new ArrayList<Thread>();
+		for (int p = 0; p < producers; p++)
+		{
+			//Each producer owns two registers and writes rising values to them.
+			final int address = FIRST_LED_ADDRESS + 2 * p;
+			threads.add(new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						for (int i = 0; i < writes; i++)
+						{
+							final byte value = (byte) (i * 127L / (writes - 1));
+							if (i % 2 == 0)
+							{
+								owner.write(address, value);
+							} else
+							{
+								owner.write(address, new byte[] { value, value }, 0, 2);
+							}
+						}
+					} catch (IOException e)
+					{
+						throw new IllegalStateException(e);
+					}
+				}
+			}));
+		}
+
+		for (final Thread thread : threads)
+		{
+			thread.start();
+		}
+
+		for (final Thread thread : threads)
+		{
+			thread.join();
+		}
+
+		owner.close();
+		assertEquals("Errors", 0, owner.getErrors());
+		for (int address = FIRST_LED_ADDRESS; address < FIRST_LED_ADDRESS + LED_COUNT; address++)
+		{
+			assertEquals("Register " + address, 127, my_simulator.getRegister(address));
+			assertTrue("Writes to register " + address + " out of order", recorder.isRising(address));
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testTransportRuntimeException() throws Exception
+	{
+		my_transport.fail(new IllegalStateException("Broken transport"));
+		my_owner.write(FIRST_LED_ADDRESS, (byte) 5);
+		my_owner.flush();
+		assertEquals("Errors", 1, my_owner.getErrors());
+
+		my_transport.fail(new IllegalStateException("Broken transport"));
+		try
+		{
+			my_owner.read(FIRST_LED_ADDRESS);
+			fail("Read did not report the failure");
+		} catch (BrightPiException e)
+		{
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+
+		//The owner thread survived both failures.
+		my_owner.write(FIRST_LED_ADDRESS, (byte) 6);
+		assertEquals(6, my_owner.read(FIRST_LED_ADDRESS));
+	}
+
+	@Test(timeout = 10000)
+	public void testReadTimeout() throws Exception
+	{
+		my_transport.close();
+		final long start = System.nanoTime();
+		try
+		{
+			my_owner.read(FIRST_LED_ADDRESS);
+			fail("Read did not time out");
+		} catch (BrightPiTimeoutException e)
+		{
+			assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(BrightPiBusOwner.READ_TIMEOUT));
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testOutOfRange() throws Exception
+	{
+		final int[][] ranges = { { -1, 1 }, { 10, 1 }, { 8, 3 }, { 0, 11 }, { 0, 0 } };
+		for (final int[] range : ranges)
+		{
+			try
+			{
+				if (range[1] == 1)
+				{
+					my_owner.write(range[0], (byte) 0);
+				} else
+				{
+					my_owner.write(range[0], new byte[16], 0, range[1]);
+				}
+
+				fail("Write to " + range[0] + " size " + range[1] + " was accepted");
+			} catch (IllegalArgumentException e)
+			{
+				//Expected.
+			}
+
+			try
+			{
+				my_owner.read(range[0], new byte[16], 0, range[1]);
+				fail("Read of " + range[0] + " size " + range[1] + " was accepted");
+			} catch (IllegalArgumentException e)
+			{
+				//Expected.
+			}
+		}
+
+		my_owner.write(FIRST_LED_ADDRESS, (byte) 3);
+		assertEquals(3, my_owner.read(FIRST_LED_ADDRESS));
+	}
+
+	@Test(timeout = 10000)
+	public void testClose() throws Exception
+	{
+		my_owner.write(FIRST_LED_ADDRESS, (byte) 9);
+		my_owner.close();
+		assertEquals("Close sends what was submitted", 9, my_simulator.getRegister(FIRST_LED_ADDRESS));
+		try
+		{
+			my_owner.write(FIRST_LED_ADDRESS, (byte) 10);
+			fail("Write accepted after close");
+		} catch (BrightPiUnavailableException e)
+		{
+			//Expected.
+		}
+
+		try
+		{
+			my_owner.read(FIRST_LED_ADDRESS);
+			fail("Read accepted after close");
+		} catch (BrightPiUnavailableException e)
+		{
+			//Expected.
+		}
+	}
+
+	/**
+	 * Holds every transaction while closed and can throw once on demand.
+	 */
+	private static final class GatedTransport implements BrightPiTransport
+	{
+		private final BrightPiTransport my_transport;
+
+		private volatile CountDownLatch my_gate = new CountDownLatch(0);
+
+		private volatile RuntimeException my_failure;
+
+		private GatedTransport(final BrightPiTransport the_transport)
+		{
+			my_transport = the_transport;
+		}
+
+		private void close()
+		{
+			my_gate = new CountDownLatch(1);
+		}
+
+		private void open()
+		{
+			my_gate.countDown();
+		}
+
+		private void fail(final RuntimeException the_failure)
+		{
+			my_failure = the_failure;
+		}
+
+		private void pass() throws IOException
+		{
+			try
+			{
+				my_gate.await();
+			} catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			}
+
+			final RuntimeException failure = my_failure;
+			if (failure != null)
+			{
+				my_failure = null;
+				throw failure;
+			}
+		}
+
+		@Override
+		public int read(final int the_address) throws IOException
+		{
+			pass();
+			return my_transport.read(the_address);
+		}
+
+		@Override
+		public int read(final int the_address, final byte[] the_buffer, final int the_offset, final int the_size)
+				throws IOException
+		{
+			pass();
+			return my_transport.read(the_address, the_buffer, the_offset, the_size);
+		}
+
+		@Override
+		public void write(final int the_address, final byte the_data) throws IOException
+		{
+			pass();
+			my_transport.write(the_address, the_data);
+		}
+
+		@Override
+		public void write(final int the_address, final byte[] the_buffer, final int the_offset, final int the_size)
+				throws IOException
+		{
+			pass();
+			my_transport.write(the_address, the_buffer, the_offset, the_size);
+		}
+	}
+
+	/**
+	 * Checks that the values written to each register never go down. Only called from the owner thread.
+	 */
+	private static final class RecordingTransport implements BrightPiTransport
+	{
+		private final BrightPiTransport my_transport;
+
+		private final int[] my_last = new int[10];
+
+		private final boolean[] my_falling = new boolean[10];
+
+		private RecordingTransport(final BrightPiTransport the_transport)
+		{
+			my_transport = the_transport;
+		}
+
+		private boolean isRising(final int the_address)
+		{
+			return !my_falling[the_address];
+		}
+
+		private void record(final int the_address, final byte the_value)
+		{
+			if (the_value < my_last[the_address])
+			{
+				my_falling[the_address] = true;
+			}
+
+			my_last[the_address] = the_value;
+		}
+
+		@Override
+		public int read(final int the_address) throws IOException
+		{
+			return my_transport.read(the_address);
+		}
+
+		@Override
+		public int read(final int the_address, final byte[] the_buffer, final int the_offset, final int the_size)
+				throws IOException
+		{
+			return my_transport.read(the_address, the_buffer, the_offset, the_size);
+		}
+
+		@Override
+		public void write(final int the_address, final byte the_data) throws IOException
+		{
+			record(the_address, the_data);
+			my_transport.write(the_address, the_data);
+		}
+
+		@Override
+		public void write(final int the_address, final byte[] the_buffer, final int the_offset, final int the_size)
+				throws IOException
+		{
+			for (int i = 0; i < the_size; i++)
+			{
+				record(the_address + i, the_buffer[the_offset + i]);
+			}
+
+			my_transport.write(the_address, the_buffer, the_offset, the_size);
+		}
+	}
+}
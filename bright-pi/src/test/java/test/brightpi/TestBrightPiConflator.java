@@ -0,0 +1,279 @@
+package test.brightpi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.brightpi.BrightPi;
+import com.brightpi.BrightPiBrightness;
+import com.brightpi.BrightPiConflator;
+import com.brightpi.BrightPiGain;
+import com.brightpi.BrightPiLED;
+import com.brightpi.BrightPiMode;
+import com.brightpi.BrightPiTransport;
+import com.brightpi.SimulatedBrightPi;
+
+/**
+ * Offers targets to a conflator while its worker is held in a bus transaction, so what it conflates and the order it
+ * applies targets in do not depend on timing.
+ */
+public class TestBrightPiConflator
+{
+	private static final int ROUNDS = 200000;
+
+	private SimulatedBrightPi my_simulator;
+
+	private GatedTransport my_transport;
+
+	private BrightPi my_bp;
+
+	private BrightPiConflator my_conflator;
+
+	@Before
+	public void before()
+	{
+		my_simulator = new SimulatedBrightPi();
+		my_transport = new GatedTransport(my_simulator);
+		my_bp = new BrightPi(my_transport);
+		my_conflator = new BrightPiConflator(my_bp);
+	}
+
+	@After
+	public void after() throws InterruptedException
+	{
+		my_transport.open();
+		my_conflator.close();
+	}
+
+	@Test(timeout = 10000)
+	public void testConflation() throws InterruptedException
+	{
+		hold(BrightPiLED.W1);
+		for (int value = 2; value <= 100; value++)
+		{
+			my_conflator.offerLEDBrightness(BrightPiLED.W1, (byte) value);
+		}
+
+		my_transport.open();
+		my_conflator.close();
+		assertEquals((byte) 100, my_simulator.getRegister(BrightPiLED.W1.getAddress()));
+		assertEquals("Conflated", 98, my_conflator.getConflated());
+		assertEquals("Commits", 2, my_conflator.getCommits());
+	}
+
+	@Test(timeout = 10000)
+	public void testOrder() throws InterruptedException
+	{
+		//An LED offered before all LEDs is overridden by them, and one offered after is not.
+		hold(BrightPiLED.IR1);
+		my_conflator.offerLEDBrightness(BrightPiLED.W2, (byte) 10);
+		my_conflator.offerLEDBrightness((byte) 20);
+		my_conflator.offerLEDBrightness(BrightPiLED.W3, (byte) 30);
+		my_conflator.offerGain(BrightPiGain.MEDIUM_GAIN);
+
+		//Setting the brightness switches to individual mode, so the mode offered last wins.
+		my_conflator.offerMode(BrightPiMode.WHITE);
+		my_conflator.offerPower(true);
+		my_transport.open();
+		my_conflator.close();
+
+		assertEquals((byte) 20, my_simulator.getRegister(BrightPiLED.W2.getAddress()));
+		assertEquals((byte) 30, my_simulator.getRegister(BrightPiLED.W3.getAddress()));
+		assertEquals((byte) 20, my_simulator.getRegister(BrightPiLED.IR4.getAddress()));
+		assertEquals(BrightPiGain.MEDIUM_GAIN.getGain(), my_simulator.getRegister(BrightPiGain.GAIN_CHIP_ADDRESS));
+		assertEquals(BrightPiMode.WHITE, my_bp.getMode());
+		assertEquals(BrightPiMode.WHITE.getLeds(), my_simulator.getRegister(0x00));
+		assertEquals(0, my_conflator.getConflated());
+		assertEquals(2, my_conflator.getCommits());
+	}
+
+	@Test(timeout = 10000)
+	public void testCloseWritesPending() throws InterruptedException
+	{
+		my_conflator.offerLEDBrightness(BrightPiLED.W4, (byte) 44);
+		my_conflator.offerPower(true);
+		my_conflator.close();
+		assertEquals((byte) 44, my_simulator.getRegister(BrightPiLED.W4.getAddress()));
+		assertTrue(my_bp.isOn());
+	}
+
+	@Test(timeout = 30000)
+	public void testOvertaken() throws InterruptedException
+	{
+		//Each round offers one LED and then all LEDs, one brightness step higher. The LED target of a round must never
+		//be written after the all-LEDs target of the same round, whichever drain takes them.
+		my_conflator.close();
+		final RecordingTransport transport = new RecordingTransport(my_simulator, BrightPiLED.W1.getAddress());
+		final BrightPiConflator conflator = new BrightPiConflator(new BrightPi(transport));
+		for (int round = 0; round < ROUNDS; round++)
+		{
+			final int step = round % (BrightPiBrightness.LED_MAX / 2 - 1);
+			conflator.offerLEDBrightness(BrightPiLED.W1, (byte) (2 * step + 1));
+			conflator.offerLEDBrightness((byte) (2 * step + 2));
+
+			//Gives the worker time to drain between rounds.
+			Thread.yield();
+		}
+
+		conflator.close();
+		int previous = -1;
+		for (final int value : transport.values())
+		{
+			assertTrue("Wrote " + value + " after " + previous, value % 2 == 0 || value != previous - 1);
+			previous = value;
+		}
+
+		assertEquals((byte) (2 * ((ROUNDS - 1) % (BrightPiBrightness.LED_MAX / 2 - 1)) + 2),
+				my_simulator.getRegister(BrightPiLED.W1.getAddress()));
+	}
+
+	/**
+	 * Offers a target and waits until the worker is writing it with the gate closed.
+	 */
+	private void hold(final BrightPiLED the_led) throws InterruptedException
+	{
+		my_transport.close();
+		my_conflator.offerLEDBrightness(the_led, (byte) 50);
+		assertTrue("Worker did not write", my_transport.my_stalled.await(5, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * Holds writes while its gate is closed.
+	 */
+	private static final class GatedTransport implements BrightPiTransport
+	{
+		private final BrightPiTransport my_transport;
+
+		private volatile CountDownLatch my_gate = new CountDownLatch(0);
+
+		private final CountDownLatch my_stalled = new CountDownLatch(1);
+
+		private GatedTransport(final BrightPiTransport the_transport)
+		{
+			my_transport = the_transport;
+		}
+
+		private void close()
+		{
+			my_gate = new CountDownLatch(1);
+		}
+
+		private void open()
+		{
+			my_gate.countDown();
+		}
+
+		private void pass() throws IOException
+		{
+			final CountDownLatch gate = my_gate;
+			if (gate.getCount() > 0)
+			{
+				my_stalled.countDown();
+				try
+				{
+					gate.await();
+				} catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					throw new IOException(e);
+				}
+			}
+		}
+
+		@Override
+		public int read(final int the_address) throws IOException
+		{
+			return my_transport.read(the_address);
+		}
+
+		@Override
+		public int read(final int the_address, final byte[] the_buffer, final int the_offset, final int the_size)
+				throws IOException
+		{
+			return my_transport.read(the_address, the_buffer, the_offset, the_size);
+		}
+
+		@Override
+		public void write(final int the_address, final byte the_data) throws IOException
+		{
+			pass();
+			my_transport.write(the_address, the_data);
+		}
+
+		@Override
+		public void write(final int the_address, final byte[] the_buffer, final int the_offset, final int the_size)
+				throws IOException
+		{
+			pass();
+			my_transport.write(the_address, the_buffer, the_offset, the_size);
+		}
+	}
+
+	/**
+	 * Records the values written to one register.
+	 */
+	private static final class RecordingTransport implements BrightPiTransport
+	{
+		private final BrightPiTransport my_transport;
+
+		private final int my_address;
+
+		private final List<Integer> my_values = new ArrayList<Integer>();
+
+		private RecordingTransport(final BrightPiTransport the_transport, final int the_address)
+		{
+			my_transport = the_transport;
+			my_address = the_address;
+		}
+
+		private synchronized List<Integer> values()
+		{
+			return new ArrayList<Integer>(my_values);
+		}
+
+		@Override
+		public int read(final int the_address) throws IOException
+		{
+			return my_transport.read(the_address);
+		}
+
+		@Override
+		public int read(final int the_address, final byte[] the_buffer, final int the_offset, final int the_size)
+				throws IOException
+		{
+			return my_transport.read(the_address, the_buffer, the_offset, the_size);
+		}
+
+		@Override
+		public synchronized void write(final int the_address, final byte the_data) throws IOException
+		{
+			if (the_address == my_address)
+			{
+				my_values.add((int) the_data);
+			}
+
+			my_transport.write(the_address, the_data);
+		}
+
+		@Override
+		public synchronized void write(final int the_address, final byte[] the_buffer, final int the_offset,
+				final int the_size) throws IOException
+		{
+			if (my_address >= the_address && my_address < the_address + the_size)
+			{
+				my_values.add((int) the_buffer[the_offset + my_address - the_address]);
+			}
+
+			my_transport.write(the_address, the_buffer, the_offset, the_size);
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package test.brightpi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import com.brightpi.BrightPiBrightness;
+import com.brightpi.BrightPiCurve;
+import com.brightpi.BrightPiGain;
+
+/**
+ * Checks the register pairs chosen by {@link BrightPiCurve}. A linear curve with one level per unit of output makes
+ * each level's target a whole number, so ties between gains can be set up exactly.
+ */
+public class TestBrightPiCurve
+{
+	private static final int MAX_OUTPUT = BrightPiGain.MAX_GAIN * BrightPiBrightness.LED_MAX;
+
+	private static final BrightPiCurve LINEAR = new BrightPiCurve(MAX_OUTPUT + 1, 1);
+
+	@Test
+	public void testEnds()
+	{
+		for (final BrightPiCurve curve : new BrightPiCurve[] { LINEAR, BrightPiCurve.DEFAULT })
+		{
+			assertEquals(BrightPiGain.MIN_GAIN, curve.getGain(0));
+			assertEquals(0, curve.getDuty(0));
+			assertEquals(BrightPiGain.MAX_GAIN, curve.getGain(curve.getMaxLevel()));
+			assertEquals(BrightPiBrightness.LED_MAX, curve.getDuty(curve.getMaxLevel()));
+		}
+	}
+
+	@Test
+	public void testTies()
+	{
+		//60 is 2 x 30 and 3 x 20, the smaller gain wins.
+		assertEquals(2, LINEAR.getGain(60));
+		assertEquals(30, LINEAR.getDuty(60));
+
+		//150 is 3 x 50, 4 x 37.5 rounds away from it, so the smallest gain is exact.
+		assertEquals(3, LINEAR.getGain(150));
+		assertEquals(50, LINEAR.getDuty(150));
+
+		//51 is not reachable with gain 2, gain 3 is exact.
+		assertEquals(3, LINEAR.getGain(51));
+		assertEquals(17, LINEAR.getDuty(51));
+	}
+
+	@Test
+	public void testSmallestGain()
+	{
+		for (int level = 0; level <= LINEAR.getMaxLevel(); level++)
+		{
+			final int gain = LINEAR.getGain(level);
+			final int smallest = Math.max(BrightPiGain.MIN_GAIN, (level + BrightPiBrightness.LED_MAX - 1)
+					/ BrightPiBrightness.LED_MAX);
+			assertTrue("Level " + level + " uses gain " + gain, gain == smallest || gain == smallest + 1);
+
+			//Gain 1 reaches every output up to the largest brightness exactly.
+			if (level <= BrightPiBrightness.LED_MAX)
+			{
+				assertEquals("Level " + level, level, gain * LINEAR.getDuty(level));
+			}
+		}
+	}
+
+	@Test
+	public void testFixedGain()
+	{
+		//Level 600 is gain 12 at 50, which gain 15 reaches at 40.
+		assertEquals(40, LINEAR.getDuty(600, BrightPiGain.MAX_GAIN));
+		assertEquals("Brightness above the maximum", BrightPiBrightness.LED_MAX, LINEAR.getDuty(600, (byte) 1));
+		assertEquals(BrightPiBrightness.LED_MAX, LINEAR.getDuty(600, (byte) 0));
+
+		assertTrue(LINEAR.isSame(60, 60));
+		assertFalse(LINEAR.isSame(60, 62));
+		try
+		{
+			new BrightPiCurve(1, 2.2);
+			fail("Curve with one level");
+		} catch (IllegalArgumentException e)
+		{
+			//Expected.
+		}
+	}
+}
@@ -0,0 +1,195 @@
+package test.brightpi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.brightpi.BrightPi;
+import com.brightpi.BrightPiExecutors;
+import com.brightpi.BrightPiLED;
+import com.brightpi.BrightPiTransport;
+import com.brightpi.SimulatedBrightPi;
+
+/**
+ * Checks the threads of {@link BrightPiExecutors}. The jdk21 profile also runs this against the multi-release jar with
+ * brightpi.multiRelease set, where the Java 21 version must be the one loaded.
+ */
+public class TestBrightPiExecutors
+{
+	@Test
+	public void testThreadFactory() throws Exception
+	{
+		final String[] name = new String[1];
+		final boolean[] virtual = new boolean[1];
+		final Thread thread = BrightPiExecutors.threadFactory("BrightPi test").newThread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				name[0] = Thread.currentThread().getName();
+				virtual[0] = isVirtual(Thread.currentThread());
+			}
+		});
+		assertTrue("Threads would keep the JVM alive", thread.isDaemon());
+		thread.start();
+		thread.join();
+		assertEquals("BrightPi test", name[0]);
+		assertEquals("Kind of thread", BrightPiExecutors.isVirtual(), virtual[0]);
+	}
+
+	@Test
+	public void testMultiRelease()
+	{
+		assumeTrue(Boolean.getBoolean("brightpi.multiRelease"));
+		assumeTrue(!"false".equalsIgnoreCase(System.getProperty(BrightPiExecutors.VIRTUAL_THREADS_PROPERTY)));
+		assertTrue("Java 21 version of BrightPiExecutors not loaded", BrightPiExecutors.isVirtual());
+	}
+
+	@Test(timeout = 10000)
+	public void testTaskExecutor() throws Exception
+	{
+		final ExecutorService executor = BrightPiExecutors.newTaskExecutor("BrightPi test");
+		try
+		{
+			//Both tasks only finish if they run at the same time.
+			final CountDownLatch together = new CountDownLatch(2);
+			final List<Future<Boolean>> tasks = new ArrayList<Future<Boolean>>();
+			for (int i = 0; i < 2; i++)
+			{
+				tasks.add(executor.submit(new Callable<Boolean>()
+				{
+					@Override
+					public Boolean call() throws InterruptedException
+					{
+						together.countDown();
+						return together.await(5, TimeUnit.SECONDS);
+					}
+				}));
+			}
+
+			for (final Future<Boolean> task : tasks)
+			{
+				assertTrue("Tasks did not run concurrently", task.get());
+			}
+		} finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void testWaitersDoNotPin() throws Exception
+	{
+		assumeTrue(BrightPiExecutors.isVirtual());
+
+		//One task holds the device lock in a stalled transaction while more tasks than carriers wait for it.
+		final CountDownLatch[] gate = { new CountDownLatch(0) };
+		final SimulatedBrightPi simulator = new SimulatedBrightPi();
+		final CountDownLatch stalled = new CountDownLatch(1);
+		final BrightPi bp = new BrightPi(new BrightPiTransport()
+		{
+			@Override
+			public int read(final int the_address) throws IOException
+			{
+				return simulator.read(the_address);
+			}
+
+			@Override
+			public int read(final int the_address, final byte[] the_buffer, final int the_offset, final int the_size)
+					throws IOException
+			{
+				return simulator.read(the_address, the_buffer, the_offset, the_size);
+			}
+
+			@Override
+			public void write(final int the_address, final byte the_data) throws IOException
+			{
+				final CountDownLatch closed = gate[0];
+				if (closed.getCount() > 0)
+				{
+					stalled.countDown();
+					try
+					{
+						closed.await();
+					} catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+					}
+				}
+
+				simulator.write(the_address, the_data);
+			}
+
+			@Override
+			public void write(final int the_address, final byte[] the_buffer, final int the_offset, final int the_size)
+					throws IOException
+			{
+				write(the_address, the_buffer[the_offset]);
+				simulator.write(the_address, the_buffer, the_offset, the_size);
+			}
+		});
+
+		gate[0] = new CountDownLatch(1);
+		final ExecutorService executor = BrightPiExecutors.newTaskExecutor("BrightPi test");
+		try
+		{
+			final int waiters = 4 * Runtime.getRuntime().availableProcessors() + 1;
+			for (int i = 0; i < waiters; i++)
+			{
+				final byte value = (byte) (i + 1);
+				executor.execute(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						bp.setLEDBrightness(BrightPiLED.W1, value);
+					}
+				});
+			}
+
+			assertTrue(stalled.await(5, TimeUnit.SECONDS));
+			final CountDownLatch ran = new CountDownLatch(1);
+			executor.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					ran.countDown();
+				}
+			});
+			assertTrue("Threads waiting for the device pinned every carrier", ran.await(5, TimeUnit.SECONDS));
+		} finally
+		{
+			gate[0].countDown();
+			executor.shutdown();
+			assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+		}
+	}
+
+	/**
+	 * @return True if the thread is a virtual thread, which needs Java 21.
+	 */
+	private static boolean isVirtual(final Thread the_thread)
+	{
+		try
+		{
+			final Method method = Thread.class.getMethod("isVirtual");
+			return (Boolean) method.invoke(the_thread);
+		} catch (ReflectiveOperationException e)
+		{
+			return false;
+		}
+	}
+}
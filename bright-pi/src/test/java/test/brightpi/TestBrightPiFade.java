@@ -0,0 +1,141 @@
+package test.brightpi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.brightpi.BrightPi;
+import com.brightpi.BrightPiLED;
+import com.brightpi.BrightPiTransport;
+import com.brightpi.SimulatedBrightPi;
+
+/**
+ * Times blocking fades on a simulated BrightPi with a slow bus, recording every value written to the faded LED.
+ */
+public class TestBrightPiFade
+{
+	private static final BrightPiLED LED = BrightPiLED.W1;
+
+	private SimulatedBrightPi my_simulator;
+
+	private final List<Byte> my_values = Collections.synchronizedList(new ArrayList<Byte>());
+
+	private BrightPi my_bp;
+
+	@Before
+	public void before()
+	{
+		my_simulator = new SimulatedBrightPi();
+		my_bp = new BrightPi(new RecordingTransport(my_simulator));
+		my_values.clear();
+	}
+
+	@After
+	public void after()
+	{
+		Thread.interrupted();
+	}
+
+	@Test(timeout = 10000)
+	public void testSlowBus()
+	{
+		//Each write takes longer than a step, so a fade sleeping a step between writes would take six times as long.
+		my_simulator.setLatency(5, TimeUnit.MILLISECONDS);
+		final long duration = TimeUnit.MILLISECONDS.toNanos(200);
+		final long start = System.nanoTime();
+		my_bp.fade(LED, (byte) 0, (byte) 200, duration, TimeUnit.NANOSECONDS);
+		final long elapsed = System.nanoTime() - start;
+
+		assertTrue("Fade ended early", elapsed >= duration);
+		assertTrue("Fade took " + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms", elapsed < 3 * duration);
+		assertTrue("Late steps were not dropped", my_values.size() < 200);
+		assertEquals((byte) 200, my_simulator.getRegister(LED.getAddress()));
+	}
+
+	@Test(timeout = 10000)
+	public void testSteps()
+	{
+		my_bp.fade(LED, (byte) 50, (byte) 10, 40, TimeUnit.MILLISECONDS);
+		assertEquals("First step", (byte) 50, (byte) my_values.get(0));
+		assertEquals("Last step", (byte) 10, (byte) my_values.get(my_values.size() - 1));
+		for (int i = 1; i < my_values.size(); i++)
+		{
+			assertTrue("Fade went back at " + my_values, my_values.get(i) < my_values.get(i - 1));
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testNoSteps()
+	{
+		my_bp.fade(LED, (byte) 30, (byte) 30, 10, TimeUnit.SECONDS);
+		assertEquals((byte) 30, my_simulator.getRegister(LED.getAddress()));
+
+		my_bp.fade(LED, (byte) 0, (byte) 60, 0, TimeUnit.SECONDS);
+		assertEquals((byte) 60, my_simulator.getRegister(LED.getAddress()));
+	}
+
+	@Test(timeout = 10000)
+	public void testInterrupt()
+	{
+		Thread.currentThread().interrupt();
+		my_bp.fade(LED, (byte) 0, (byte) 100, 10, TimeUnit.SECONDS);
+		assertTrue("Interrupt was cleared", Thread.interrupted());
+		assertEquals("Interrupted fade finished", (byte) 0, my_simulator.getRegister(LED.getAddress()));
+	}
+
+	/**
+	 * Records the values written to the faded LED.
+	 */
+	private final class RecordingTransport implements BrightPiTransport
+	{
+		private final BrightPiTransport my_transport;
+
+		private RecordingTransport(final BrightPiTransport the_transport)
+		{
+			my_transport = the_transport;
+		}
+
+		@Override
+		public int read(final int the_address) throws IOException
+		{
+			return my_transport.read(the_address);
+		}
+
+		@Override
+		public int read(final int the_address, final byte[] the_buffer, final int the_offset, final int the_size)
+				throws IOException
+		{
+			return my_transport.read(the_address, the_buffer, the_offset, the_size);
+		}
+
+		@Override
+		public void write(final int the_address, final byte the_data) throws IOException
+		{
+			my_transport.write(the_address, the_data);
+			if (the_address == LED.getAddress())
+			{
+				my_values.add(the_data);
+			}
+		}
+
+		@Override
+		public void write(final int the_address, final byte[] the_buffer, final int the_offset, final int the_size)
+				throws IOException
+		{
+			my_transport.write(the_address, the_buffer, the_offset, the_size);
+			if (the_address <= LED.getAddress() && LED.getAddress() < the_address + the_size)
+			{
+				my_values.add(the_buffer[the_offset + LED.getAddress() - the_address]);
+			}
+		}
+	}
+}
@@ -0,0 +1,347 @@
+package test.brightpi;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.brightpi.BrightPi;
+import com.brightpi.BrightPiBrightness;
+import com.brightpi.BrightPiGain;
+import com.brightpi.BrightPiLED;
+import com.brightpi.BrightPiMode;
+import com.brightpi.BrightPiTransaction;
+import com.brightpi.BrightPiTransport;
+import com.brightpi.SimulatedBrightPi;
+
+/**
+ * Drives a BrightPi on a simulated bus with random sequences of calls and checks every step against a reference
+ * model: the registers of the device must match the model, only changed registers may start or end a write, and
+ * nothing is sent when nothing changed. Set brightpi.fuzz.seed to replay a single failing sequence.
+ */
+public class TestBrightPiFuzz
+{
+	private static final int SEQUENCES = 100;
+
+	private static final int STEPS = 200;
+
+	private static final int REGISTER_COUNT = 10;
+
+	private static final BrightPiMode[] MODES = BrightPiMode.values();
+
+	private static final BrightPiGain[] GAINS = BrightPiGain.values();
+
+	private static final BrightPiLED[] LEDS = BrightPiLED.values();
+
+	@Test
+	public void testRandomSequences()
+	{
+		final Long seed = Long.getLong("brightpi.fuzz.seed");
+		if (seed != null)
+		{
+			run(seed);
+			return;
+		}
+
+		for (long sequence = 0; sequence < SEQUENCES; sequence++)
+		{
+			run(sequence);
+		}
+	}
+
+	private static void run(final long the_seed)
+	{
+		final Random random = new Random(the_seed);
+		final RecordingBus bus = new RecordingBus();
+		final BrightPi bp = new BrightPi(bus);
+		final Model model = new Model();
+		assertTrue("seed " + the_seed + ": device not cleared", Arrays.equals(model.image(), bus.my_device.getRegisters()));
+
+		for (int step = 0; step < STEPS; step++)
+		{
+			final byte[] before = model.image();
+			bus.my_writes.clear();
+			bus.my_reads = 0;
+			final String call = step(random, bp, model);
+			final byte[] after = model.image();
+			final String where = "seed " + the_seed + ", step " + step + " " + call + ": ";
+
+			assertTrue(where + "device " + Arrays.toString(bus.my_device.getRegisters()) + " but model "
+					+ Arrays.toString(after), Arrays.equals(after, bus.my_device.getRegisters()));
+			assertTrue(where + "read the bus while writing", bus.my_reads == 0);
+			if (call.startsWith("fade"))
+			{
+				//Intermediate steps differ from the final image, but a fade must only touch its LED.
+				for (final int[] write : bus.my_writes)
+				{
+					assertTrue(where + "fade wrote outside its LED", write.length == 2 && write[0] == model.my_last_led);
+				}
+				continue;
+			}
+
+			int changed = 0;
+			for (int address = 0; address < REGISTER_COUNT; address++)
+			{
+				if (before[address] != after[address])
+				{
+					changed++;
+				}
+			}
+
+			assertTrue(where + bus.my_writes.size() + " writes for " + changed + " changed registers",
+					bus.my_writes.size() <= changed);
+			for (final int[] write : bus.my_writes)
+			{
+				final int first = write[0];
+				final int last = first + write.length - 2;
+				assertTrue(where + "write starts on an unchanged register", before[first] != after[first]);
+				assertTrue(where + "write ends on an unchanged register", before[last] != after[last]);
+				for (int i = 1; i < write.length; i++)
+				{
+					assertTrue(where + "wrote a value the model does not hold", (byte) write[i] == after[first + i - 1]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Makes one random call on both the device and the model.
+	 * 
+	 * @return A description of the call.
+	 */
+	private static String step(final Random the_random, final BrightPi the_bp, final Model the_model)
+	{
+		switch (the_random.nextInt(11))
+		{
+			case 0:
+				the_bp.on();
+				the_model.on();
+				return "on";
+			case 1:
+				the_bp.off();
+				the_model.off();
+				return "off";
+			case 2:
+			{
+				final BrightPiMode mode = MODES[the_random.nextInt(MODES.length)];
+				the_bp.setMode(mode);
+				the_model.setMode(mode);
+				return "setMode " + mode;
+			}
+			case 3:
+			{
+				final BrightPiGain gain = GAINS[the_random.nextInt(GAINS.length)];
+				the_bp.setGain(gain);
+				the_model.my_gain = gain.getGain();
+				return "setGain " + gain;
+			}
+			case 4:
+			{
+				final byte gain = (byte) (BrightPiGain.MIN_GAIN + the_random.nextInt(BrightPiGain.MAX_GAIN));
+				the_bp.setGain(gain);
+				the_model.my_gain = gain;
+				return "setGain " + gain;
+			}
+			case 5:
+			case 6:
+			{
+				final BrightPiLED led = LEDS[the_random.nextInt(LEDS.length)];
+				final byte value = brightness(the_random);
+				the_bp.setLEDBrightness(led, value);
+				the_model.setLEDBrightness(led, value);
+				return "setLEDBrightness " + led + " " + value;
+			}
+			case 7:
+			{
+				final byte value = brightness(the_random);
+				the_bp.setLEDBrightness(value);
+				for (final BrightPiLED led : LEDS)
+				{
+					the_model.setLEDBrightness(led, value);
+				}
+				return "setLEDBrightness " + value;
+			}
+			case 8:
+			{
+				final BrightPiLED led = LEDS[the_random.nextInt(LEDS.length)];
+				final byte start = brightness(the_random);
+				final byte end = brightness(the_random);
+				//The model switches mode before the fade so only the LED register may change during it.
+				the_model.setLEDBrightness(led, end);
+				the_bp.setLEDBrightness(led, start);
+				the_model.my_last_led = led.getAddress();
+				the_bp.fade(led, start, end, 100, TimeUnit.MICROSECONDS);
+				return "fade " + led + " " + start + " " + end;
+			}
+			case 9:
+			{
+				final BrightPiTransaction transaction = the_bp.batch();
+				final StringBuilder description = new StringBuilder("batch");
+				for (int i = the_random.nextInt(6); i >= 0; i--)
+				{
+					final BrightPiLED led = LEDS[the_random.nextInt(LEDS.length)];
+					final byte value = brightness(the_random);
+					if (the_random.nextBoolean())
+					{
+						transaction.setLEDBrightness(led, value);
+						the_model.setLEDBrightness(led, value);
+						description.append(" led ").append(led).append(' ').append(value);
+					} else
+					{
+						final BrightPiMode mode = MODES[the_random.nextInt(MODES.length)];
+						transaction.setMode(mode).on();
+						the_model.setMode(mode);
+						the_model.on();
+						description.append(" mode ").append(mode).append(" on");
+					}
+				}
+
+				transaction.commit();
+				return description.toString();
+			}
+			default:
+				the_bp.clear();
+				the_model.clear();
+				return "clear";
+		}
+	}
+
+	private static byte brightness(final Random the_random)
+	{
+		return (byte) the_random.nextInt(BrightPiBrightness.LED_MAX + 1);
+	}
+
+	/**
+	 * Reference model of the registers, written from the documented behavior of BrightPi.
+	 */
+	private static final class Model
+	{
+		boolean i_am_on;
+
+		BrightPiMode my_mode = BrightPi.DEFAULT_MODE;
+
+		byte my_individual_mask = BrightPiMode.INDIVIDUAL.getLeds();
+
+		byte my_gain = BrightPi.DEFAULT_GAIN.getGain();
+
+		final byte[] my_levels = new byte[REGISTER_COUNT];
+
+		/**
+		 * Address of the LED faded in the last step.
+		 */
+		int my_last_led;
+
+		Model()
+		{
+			Arrays.fill(my_levels, BrightPiBrightness.LED_MIN);
+		}
+
+		byte mask()
+		{
+			if (!i_am_on)
+			{
+				return BrightPiMode.OFF.getLeds();
+			}
+
+			return my_mode == BrightPiMode.INDIVIDUAL ? my_individual_mask : my_mode.getLeds();
+		}
+
+		void on()
+		{
+			i_am_on = true;
+		}
+
+		void off()
+		{
+			i_am_on = false;
+		}
+
+		void setMode(final BrightPiMode the_mode)
+		{
+			my_mode = the_mode;
+		}
+
+		void setLEDBrightness(final BrightPiLED the_led, final byte the_value)
+		{
+			//Setting an LED switches to individual mode with the LEDs that were lit.
+			if (my_mode != BrightPiMode.INDIVIDUAL)
+			{
+				my_individual_mask = mask();
+				my_mode = BrightPiMode.INDIVIDUAL;
+			}
+
+			my_levels[the_led.getAddress()] = the_value;
+		}
+
+		void clear()
+		{
+			i_am_on = false;
+			my_mode = BrightPi.DEFAULT_MODE;
+			my_gain = BrightPi.DEFAULT_GAIN.getGain();
+			Arrays.fill(my_levels, BrightPiBrightness.LED_MIN);
+		}
+
+		byte[] image()
+		{
+			final byte[] image = my_levels.clone();
+			image[0] = mask();
+			image[BrightPiGain.GAIN_CHIP_ADDRESS] = my_gain;
+			return image;
+		}
+	}
+
+	/**
+	 * Simulated bus that records the writes, each as the address followed by the values.
+	 */
+	private static final class RecordingBus implements BrightPiTransport
+	{
+		final SimulatedBrightPi my_device = new SimulatedBrightPi();
+
+		final List<int[]> my_writes = new ArrayList<int[]>();
+
+		int my_reads;
+
+		@Override
+		public int read(final int the_address) throws IOException
+		{
+			my_reads++;
+			return my_device.read(the_address);
+		}
+
+		@Override
+		public int read(final int the_address, final byte[] the_buffer, final int the_offset, final int the_size)
+				throws IOException
+		{
+			my_reads++;
+			return my_device.read(the_address, the_buffer, the_offset, the_size);
+		}
+
+		@Override
+		public void write(final int the_address, final byte the_data) throws IOException
+		{
+			my_writes.add(new int[] { the_address, the_data });
+			my_device.write(the_address, the_data);
+		}
+
+		@Override
+		public void write(final int the_address, final byte[] the_buffer, final int the_offset, final int the_size)
+				throws IOException
+		{
+			final int[] write = new int[the_size + 1];
+			write[0] = the_address;
+			for (int i = 0; i < the_size; i++)
+			{
+				write[i + 1] = the_buffer[the_offset + i];
+			}
+
+			my_writes.add(write);
+			my_device.write(the_address, the_buffer, the_offset, the_size);
+		}
+	}
+}
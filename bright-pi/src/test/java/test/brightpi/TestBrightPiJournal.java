@@ -0,0 +1,252 @@
+package test.brightpi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.brightpi.BrightPi;
+import com.brightpi.BrightPiGain;
+import com.brightpi.BrightPiJournal;
+import com.brightpi.BrightPiLED;
+import com.brightpi.BrightPiMode;
+import com.brightpi.BrightPiReplayer;
+import com.brightpi.BrightPiTransport;
+import com.brightpi.SimulatedBrightPi;
+
+/**
+ * Records simulated BrightPi traffic into a journal and replays it, including a ring small enough to wrap around.
+ */
+public class TestBrightPiJournal
+{
+	/**
+	 * Long enough that the background thread only copies the ring when it is half full.
+	 */
+	private static final long SLOW_FLUSH = 1;
+
+	/**
+	 * Layout of the journal file, from BrightPiJournal.
+	 */
+	private static final int HEADER_SIZE = 24;
+	private static final int RECORD_SIZE = 32;
+	private static final int OPERATION_OFFSET = 12;
+
+	private File my_file;
+
+	@Before
+	public void before() throws IOException
+	{
+		my_file = File.createTempFile("brightpi", ".journal");
+	}
+
+	@After
+	public void after()
+	{
+		my_file.delete();
+	}
+
+	@Test(timeout = 10000)
+	public void testRoundTrip() throws IOException
+	{
+		final SimulatedBrightPi recorded = new SimulatedBrightPi();
+		final long start = System.currentTimeMillis();
+		final BrightPiJournal journal = new BrightPiJournal(recorded, my_file);
+		final BrightPi bp = new BrightPi(journal);
+		bp.batch().setLEDBrightness((byte) 30).setGain(BrightPiGain.MEDIUM_GAIN).setMode(BrightPiMode.IR).on()
+				.commit();
+		bp.setLEDBrightness(BrightPiLED.W2, (byte) 12);
+		bp.readState();
+		journal.close();
+		assertEquals(0, journal.getDropped());
+
+		final BrightPiReplayer replayer = new BrightPiReplayer(my_file);
+		assertEquals(journal.getRecorded(), replayer.getRecordCount());
+		assertTrue(replayer.getRecordedAt() >= start && replayer.getRecordedAt() <= System.currentTimeMillis());
+
+		final SimulatedBrightPi replayed = new SimulatedBrightPi();
+		assertEquals(replayer.getRecordCount(), replayer.replay(replayed, false));
+		assertEquals(0, replayer.getErrors());
+		assertArrayEquals(recorded.getRegisters(), replayed.getRegisters());
+		assertEquals(recorded.getTransactionCount(), replayed.getTransactionCount());
+	}
+
+	@Test(timeout = 10000)
+	public void testWrapAround() throws IOException
+	{
+		final BrightPiJournal journal = new BrightPiJournal(new SimulatedBrightPi(), my_file, 4, SLOW_FLUSH,
+				TimeUnit.HOURS);
+		for (int value = 1; value <= 3; value++)
+		{
+			journal.write(BrightPiLED.W1.getAddress(), (byte) value);
+		}
+
+		//The next records go to the end of the ring and then its start.
+		journal.flush();
+		for (int value = 4; value <= 6; value++)
+		{
+			journal.write(BrightPiLED.W1.getAddress(), (byte) value);
+		}
+
+		journal.write(BrightPiLED.IR1.getAddress(), new byte[] { 7, 8, 9 }, 0, 3);
+		journal.close();
+
+		final RecordingTransport replayed = new RecordingTransport();
+		new BrightPiReplayer(my_file).replay(replayed, false);
+		assertEquals(Arrays.asList("2:1", "2:2", "2:3", "2:4", "2:5", "2:6", "1:7,8,9"), replayed.my_writes);
+	}
+
+	@Test(timeout = 10000)
+	public void testFailures() throws IOException
+	{
+		final SimulatedBrightPi recorded = new SimulatedBrightPi();
+		final BrightPiJournal journal = new BrightPiJournal(recorded, my_file);
+		journal.write(BrightPiLED.W1.getAddress(), (byte) 5);
+		try
+		{
+			journal.write(0x0a, (byte) 1);
+			fail("Write to a register that does not exist");
+		} catch (IOException e)
+		{
+			//Expected, and recorded.
+		}
+
+		recorded.setErrorRate(1);
+		try
+		{
+			journal.write(BrightPiLED.W2.getAddress(), (byte) 6);
+			fail("Injected error did not fail");
+		} catch (IOException e)
+		{
+			//Expected, and recorded.
+		}
+
+		journal.close();
+		assertEquals(3, journal.getRecorded());
+
+		//Failed transactions are sent again, so the bus sees the same traffic.
+		final BrightPiReplayer replayer = new BrightPiReplayer(my_file);
+		final SimulatedBrightPi replayed = new SimulatedBrightPi();
+		assertEquals(3, replayer.replay(replayed, false));
+		assertEquals(1, replayer.getErrors());
+		assertEquals(5, replayed.getRegister(BrightPiLED.W1.getAddress()));
+		assertEquals(6, replayed.getRegister(BrightPiLED.W2.getAddress()));
+	}
+
+	@Test(timeout = 10000)
+	public void testUnknownOperation() throws IOException
+	{
+		final BrightPiJournal journal = new BrightPiJournal(new SimulatedBrightPi(), my_file);
+		for (int value = 1; value <= 3; value++)
+		{
+			journal.write(BrightPiLED.W1.getAddress(), (byte) value);
+		}
+
+		journal.close();
+		final RandomAccessFile file = new RandomAccessFile(my_file, "rw");
+		try
+		{
+			file.seek(HEADER_SIZE + RECORD_SIZE + OPERATION_OFFSET);
+			file.write(0x7f);
+		} finally
+		{
+			file.close();
+		}
+
+		final BrightPiReplayer replayer = new BrightPiReplayer(my_file);
+		final RecordingTransport replayed = new RecordingTransport();
+		assertEquals(3, replayer.replay(replayed, false));
+		assertEquals(1, replayer.getErrors());
+		assertEquals(Arrays.asList("2:1", "2:3"), replayed.my_writes);
+	}
+
+	@Test(timeout = 10000)
+	public void testRealTime() throws Exception
+	{
+		final BrightPiJournal journal = new BrightPiJournal(new SimulatedBrightPi(), my_file);
+		journal.write(BrightPiLED.W1.getAddress(), (byte) 1);
+		Thread.sleep(50);
+		journal.write(BrightPiLED.W1.getAddress(), (byte) 2);
+		journal.close();
+
+		final BrightPiReplayer replayer = new BrightPiReplayer(my_file);
+		final long start = System.nanoTime();
+		replayer.replay(new SimulatedBrightPi(), true);
+		assertTrue("Replay did not keep the recorded gap",
+				System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+	}
+
+	@Test
+	public void testNotAJournal() throws IOException
+	{
+		final FileOutputStream out = new FileOutputStream(my_file);
+		try
+		{
+			out.write(new byte[64]);
+		} finally
+		{
+			out.close();
+		}
+
+		try
+		{
+			new BrightPiReplayer(my_file);
+			fail("Read a file of zeros as a journal");
+		} catch (IOException e)
+		{
+			//Expected.
+		}
+	}
+
+	/**
+	 * Records the writes it is sent as "address:values".
+	 */
+	private static final class RecordingTransport implements BrightPiTransport
+	{
+		private final List<String> my_writes = new ArrayList<String>();
+
+		@Override
+		public int read(final int the_address) throws IOException
+		{
+			return 0;
+		}
+
+		@Override
+		public int read(final int the_address, final byte[] the_buffer, final int the_offset, final int the_size)
+				throws IOException
+		{
+			return the_size;
+		}
+
+		@Override
+		public void write(final int the_address, final byte the_data) throws IOException
+		{
+			my_writes.add(the_address + ":" + the_data);
+		}
+
+		@Override
+		public void write(final int the_address, final byte[] the_buffer, final int the_offset, final int the_size)
+				throws IOException
+		{
+			final StringBuilder values = new StringBuilder();
+			for (int i = 0; i < the_size; i++)
+			{
+				values.append(i == 0 ? "" : ",").append(the_buffer[the_offset + i]);
+			}
+
+			my_writes.add(the_address + ":" + values);
+		}
+	}
+}
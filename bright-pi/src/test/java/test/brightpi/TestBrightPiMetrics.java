@@ -0,0 +1,167 @@
+package test.brightpi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.brightpi.BrightPi;
+import com.brightpi.BrightPiHistogram;
+import com.brightpi.BrightPiLED;
+import com.brightpi.BrightPiMetrics;
+import com.brightpi.SimulatedBrightPi;
+
+/**
+ * Checks the bucket bounds of {@link BrightPiHistogram}, and what {@link BrightPiMetrics} counts for commands on a
+ * simulated BrightPi.
+ */
+public class TestBrightPiMetrics
+{
+	private static final long CONCURRENT_VALUES = 100000;
+
+	@Test
+	public void testSmallValuesExact()
+	{
+		for (long value = 0; value < 16; value++)
+		{
+			assertEquals(value, bound(value));
+		}
+	}
+
+	@Test
+	public void testBucketBounds()
+	{
+		final long[] values = { 16, 17, 31, 32, 33, 1000, 1023, 1024, 123456789, Long.MAX_VALUE / 3,
+				Long.MAX_VALUE - 1 };
+		for (final long value : values)
+		{
+			final long bound = bound(value);
+			assertTrue(value + " above its bound " + bound, bound >= value);
+			assertTrue(value + " more than 1/16 below its bound " + bound, bound - value <= value / 16);
+			assertEquals("Bound of " + value + " is in another bucket", bound, bound(bound));
+			if (bound < Long.MAX_VALUE - 1)
+			{
+				assertTrue("Bucket of " + value + " holds " + (bound + 1), bound(bound + 1) > bound);
+			}
+		}
+
+		//From 256 to 511 the buckets are 16 wide.
+		assertEquals(271, bound(256));
+		assertEquals(271, bound(271));
+		assertEquals(287, bound(272));
+		assertEquals(511, bound(500));
+	}
+
+	@Test
+	public void testStatistics()
+	{
+		final BrightPiHistogram histogram = new BrightPiHistogram();
+		assertEquals(0, histogram.getValueAtPercentile(99));
+		assertEquals(0, histogram.getMean(), 0);
+
+		histogram.record(-5);
+		histogram.record(10);
+		histogram.record(20);
+		histogram.record(Long.MAX_VALUE / 2);
+		assertEquals(4, histogram.getCount());
+		assertEquals(Long.MAX_VALUE / 2, histogram.getMax());
+		assertEquals(30 + Long.MAX_VALUE / 2, histogram.getTotal());
+		assertEquals("Negative value", 0, histogram.getValueAtPercentile(0));
+		assertEquals(10, histogram.getValueAtPercentile(50));
+		assertEquals("Bound above the largest value", Long.MAX_VALUE / 2, histogram.getValueAtPercentile(100));
+	}
+
+	@Test(timeout = 10000)
+	public void testRecordConcurrently() throws InterruptedException
+	{
+		final BrightPiHistogram histogram = new BrightPiHistogram();
+		final Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++)
+		{
+			final long offset = t;
+			threads[t] = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					for (long value = 0; value < CONCURRENT_VALUES; value++)
+					{
+						histogram.recordConcurrently(value * threads.length + offset);
+					}
+				}
+			};
+			threads[t].start();
+		}
+
+		for (final Thread thread : threads)
+		{
+			thread.join();
+		}
+
+		final long count = CONCURRENT_VALUES * threads.length;
+		assertEquals("Lost updates", count, histogram.getCount());
+		assertEquals(count * (count - 1) / 2, histogram.getTotal());
+		assertEquals(count - 1, histogram.getMax());
+	}
+
+	@Test
+	public void testCommands()
+	{
+		final SimulatedBrightPi simulator = new SimulatedBrightPi();
+		final BrightPi bp = new BrightPi(simulator);
+		final BrightPiMetrics metrics = bp.getMetrics();
+		final long[] writes = metrics.getRegisterWrites();
+		final long transactions = metrics.getTransactions();
+		final long block_writes = metrics.getLatency(BrightPiMetrics.Operation.BLOCK_WRITE).getCount();
+
+		//All LEDs in one block.
+		bp.setLEDBrightness((byte) 40);
+		assertEquals(transactions + 1, metrics.getTransactions());
+		assertEquals(block_writes + 1, metrics.getLatency(BrightPiMetrics.Operation.BLOCK_WRITE).getCount());
+		for (final BrightPiLED led : BrightPiLED.values())
+		{
+			assertEquals(led.name(), writes[led.getAddress()] + 1, metrics.getRegisterWrites(led.getAddress()));
+		}
+
+		final long coalesced = metrics.getCoalescedWrites();
+		assertTrue(coalesced >= BrightPiLED.values().length - 1);
+
+		//Nothing to write.
+		final long elided = metrics.getElidedWrites();
+		bp.setLEDBrightness((byte) 40);
+		assertEquals(transactions + 1, metrics.getTransactions());
+		assertEquals(elided + BrightPiLED.values().length, metrics.getElidedWrites());
+		assertEquals(coalesced, metrics.getCoalescedWrites());
+
+		//A failed write counts as an error and a transaction, but not as a register write.
+		simulator.setErrorRate(1);
+		final long errors = metrics.getErrors(BrightPiMetrics.Operation.WRITE);
+		bp.setLEDBrightness(BrightPiLED.W1, (byte) 5);
+		assertEquals(errors + 1, metrics.getErrors(BrightPiMetrics.Operation.WRITE));
+		assertEquals(errors + 1, metrics.getErrors());
+		assertEquals(transactions + 2, metrics.getTransactions());
+		assertEquals(writes[BrightPiLED.W1.getAddress()] + 1, metrics.getRegisterWrites(BrightPiLED.W1.getAddress()));
+
+		simulator.setErrorRate(0);
+		final long[] reads = metrics.getRegisterReads();
+		bp.readState();
+		for (int address = 0; address < reads.length; address++)
+		{
+			assertEquals(reads[address] + 1, metrics.getRegisterReads(address));
+		}
+
+		assertTrue("Lock waits not recorded", metrics.getLockWait().getCount() >= 4);
+	}
+
+	/**
+	 * @return The upper bound of the bucket the value falls in.
+	 */
+	private static long bound(final long the_value)
+	{
+		//The median of two values is the lower one, reported as the bound of its bucket.
+		final BrightPiHistogram histogram = new BrightPiHistogram();
+		histogram.record(the_value);
+		histogram.record(Long.MAX_VALUE);
+		return histogram.getValueAtPercentile(50);
+	}
+}
@@ -0,0 +1,355 @@
+package test.brightpi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.brightpi.BrightPi;
+import com.brightpi.BrightPiCommand;
+import com.brightpi.BrightPiLED;
+import com.brightpi.BrightPiLocation;
+import com.brightpi.BrightPiRegistry;
+import com.brightpi.BrightPiTransport;
+import com.brightpi.SimulatedBrightPi;
+
+/**
+ * Opens simulated BrightPis at the same address behind two recording multiplexers on one bus, or wired to it
+ * directly, and checks that only one of them is ever connected during a transaction.
+ */
+public class TestBrightPiRegistry
+{
+	private static final int BUS = 1;
+
+	private static final int ADDRESS = 0x70;
+
+	private static final int FIRST_MUX = 0x71;
+
+	private static final int SECOND_MUX = 0x72;
+
+	private BrightPiRegistry my_registry;
+
+	/**
+	 * Channel mask of each multiplexer by address.
+	 */
+	private final Map<Integer, Integer> my_masks = new HashMap<Integer, Integer>();
+
+	/**
+	 * Every write to a multiplexer, as "address:mask".
+	 */
+	private final List<String> my_switches = Collections.synchronizedList(new ArrayList<String>());
+
+	/**
+	 * Transactions made while the BrightPi was not the only one connected.
+	 */
+	private final List<String> my_collisions = Collections.synchronizedList(new ArrayList<String>());
+
+	private final Map<BrightPiLocation, SimulatedBrightPi> my_simulators = new HashMap<BrightPiLocation, SimulatedBrightPi>();
+
+	@Before
+	public void before()
+	{
+		my_registry = new BrightPiRegistry();
+		my_registry.addMultiplexer(BUS, FIRST_MUX, new RecordingMux(FIRST_MUX));
+		my_registry.addMultiplexer(BUS, SECOND_MUX, new RecordingMux(SECOND_MUX));
+	}
+
+	@After
+	public void after()
+	{
+		my_registry.shutdown();
+	}
+
+	@Test(timeout = 10000)
+	public void testSameAddressBehindTwoMuxes() throws Exception
+	{
+		final BrightPiLocation first = open(new BrightPiLocation(BUS, ADDRESS, FIRST_MUX, 0));
+		final BrightPiLocation second = open(new BrightPiLocation(BUS, ADDRESS, SECOND_MUX, 0));
+		final byte reset = my_simulators.get(second).getRegister(BrightPiLED.W2.getAddress());
+
+		my_registry.get(first).setLEDBrightness(BrightPiLED.W1, (byte) 10);
+		my_registry.get(second).setLEDBrightness(BrightPiLED.W1, (byte) 20);
+		my_registry.get(first).setLEDBrightness(BrightPiLED.W2, (byte) 30);
+		assertEquals("Collisions " + my_collisions, 0, my_collisions.size());
+		assertEquals((byte) 10, my_simulators.get(first).getRegister(BrightPiLED.W1.getAddress()));
+		assertEquals((byte) 20, my_simulators.get(second).getRegister(BrightPiLED.W1.getAddress()));
+		assertEquals(reset, my_simulators.get(second).getRegister(BrightPiLED.W2.getAddress()));
+
+		//Switching from one multiplexer to the other disconnects the first before connecting the second.
+		final int last = my_switches.lastIndexOf(FIRST_MUX + ":1");
+		assertEquals(Arrays.asList(SECOND_MUX + ":0", FIRST_MUX + ":1"), my_switches.subList(last - 1, last + 1));
+	}
+
+	@Test(timeout = 10000)
+	public void testDirectAndMuxedAtSameAddress() throws Exception
+	{
+		final BrightPiLocation direct = open(new BrightPiLocation(BUS, ADDRESS));
+		final BrightPiLocation muxed = open(new BrightPiLocation(BUS, ADDRESS, FIRST_MUX, 3));
+
+		my_registry.get(muxed).setLEDBrightness(BrightPiLED.W1, (byte) 10);
+		my_registry.get(direct).setLEDBrightness(BrightPiLED.W1, (byte) 20);
+		my_registry.get(muxed).setLEDBrightness(BrightPiLED.W2, (byte) 30);
+		assertEquals("Collisions " + my_collisions, 0, my_collisions.size());
+		assertEquals((byte) 10, my_simulators.get(muxed).getRegister(BrightPiLED.W1.getAddress()));
+		assertEquals((byte) 20, my_simulators.get(direct).getRegister(BrightPiLED.W1.getAddress()));
+		assertEquals((byte) 30, my_simulators.get(muxed).getRegister(BrightPiLED.W2.getAddress()));
+
+		//The direct BrightPi switched the channel off, so it was selected again.
+		assertEquals(FIRST_MUX + ":8", my_switches.get(my_switches.size() - 1));
+		assertEquals(FIRST_MUX + ":0", my_switches.get(my_switches.lastIndexOf(FIRST_MUX + ":8") - 1));
+	}
+
+	@Test(timeout = 10000)
+	public void testMuxOrdering() throws Exception
+	{
+		final List<BrightPiLocation> locations = new ArrayList<BrightPiLocation>();
+		for (final int mux : new int[] { SECOND_MUX, FIRST_MUX })
+		{
+			for (int channel = 3; channel >= 0; channel--)
+			{
+				locations.add(open(new BrightPiLocation(BUS, ADDRESS, mux, channel)));
+			}
+		}
+
+		my_switches.clear();
+		my_registry.broadcast(locations, new BrightPiCommand()
+		{
+			@Override
+			public void apply(final BrightPi the_brightpi)
+			{
+				the_brightpi.setLEDBrightness((byte) 40);
+			}
+		});
+
+		//Location order visits each channel once, starting from the one left selected by the last reset.
+		assertEquals(Arrays.asList(FIRST_MUX + ":2", FIRST_MUX + ":4", FIRST_MUX + ":8", FIRST_MUX + ":0",
+				SECOND_MUX + ":1", SECOND_MUX + ":2", SECOND_MUX + ":4", SECOND_MUX + ":8"), my_switches);
+		assertEquals("Collisions " + my_collisions, 0, my_collisions.size());
+		for (final BrightPiLocation location : locations)
+		{
+			assertEquals(location.toString(), (byte) 40,
+					my_simulators.get(location).getRegister(BrightPiLED.W3.getAddress()));
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testFailedSwitch() throws Exception
+	{
+		final BrightPiLocation first = open(new BrightPiLocation(BUS, ADDRESS, FIRST_MUX, 0));
+		final BrightPiLocation second = open(new BrightPiLocation(BUS, ADDRESS, SECOND_MUX, 0));
+		my_registry.get(first).setLEDBrightness(BrightPiLED.W1, (byte) 10);
+		final byte reset = my_simulators.get(second).getRegister(BrightPiLED.W1.getAddress());
+
+		//The registry cannot know what state a multiplexer that failed a write is in, so it is switched off again.
+		my_masks.put(FIRST_MUX, -1);
+		my_registry.get(second).setLEDBrightness(BrightPiLED.W1, (byte) 20);
+		assertEquals("Written through a failed switch", reset,
+				my_simulators.get(second).getRegister(BrightPiLED.W1.getAddress()));
+		my_registry.get(second).setLEDBrightness(BrightPiLED.W1, (byte) 25);
+		assertEquals("Collisions " + my_collisions, 0, my_collisions.size());
+		assertEquals((byte) 25, my_simulators.get(second).getRegister(BrightPiLED.W1.getAddress()));
+	}
+
+	@Test(timeout = 10000)
+	public void testGroups() throws Exception
+	{
+		final BrightPiLocation plain = new BrightPiLocation(2, ADDRESS);
+		final SimulatedBrightPi plain_simulator = new SimulatedBrightPi();
+		my_registry.register(plain, plain_simulator);
+		final BrightPiLocation muxed = open(new BrightPiLocation(BUS, ADDRESS, FIRST_MUX, 5));
+		final BrightPiLocation other = open(new BrightPiLocation(BUS, ADDRESS, SECOND_MUX, 5));
+		my_registry.addToGroup("front", plain);
+		my_registry.addToGroup("front", muxed);
+
+		final Map<BrightPiLocation, String> threads = new HashMap<BrightPiLocation, String>();
+		my_registry.broadcast("front", new BrightPiCommand()
+		{
+			@Override
+			public void apply(final BrightPi the_brightpi)
+			{
+				the_brightpi.setLEDBrightness(BrightPiLED.IR1, (byte) 50);
+				synchronized (threads)
+				{
+					threads.put(the_brightpi == my_registry.get(plain) ? plain : muxed,
+							Thread.currentThread().getName());
+				}
+			}
+		});
+
+		assertEquals((byte) 50, plain_simulator.getRegister(BrightPiLED.IR1.getAddress()));
+		assertEquals((byte) 50, my_simulators.get(muxed).getRegister(BrightPiLED.IR1.getAddress()));
+		assertEquals("Not in the group", my_simulators.get(other).getRegister(BrightPiLED.IR2.getAddress()),
+				my_simulators.get(other).getRegister(BrightPiLED.IR1.getAddress()));
+		assertNotEquals("Buses share a dispatcher", threads.get(plain), threads.get(muxed));
+
+		assertEquals(3, my_registry.getLocations().size());
+		assertNull(my_registry.get(new BrightPiLocation(3, ADDRESS)));
+		try
+		{
+			my_registry.broadcast("back", new BrightPiCommand()
+			{
+				@Override
+				public void apply(final BrightPi the_brightpi)
+				{
+				}
+			});
+			fail("Unknown group was accepted");
+		} catch (IllegalArgumentException e)
+		{
+			//Expected.
+		}
+
+		try
+		{
+			my_registry.submit(Arrays.asList(new BrightPiLocation(3, ADDRESS)), null);
+			fail("Location that is not open was accepted");
+		} catch (IllegalArgumentException e)
+		{
+			//Expected.
+		}
+	}
+
+	@Test
+	public void testRegisterTwice()
+	{
+		final BrightPiLocation location = new BrightPiLocation(2, ADDRESS);
+		final BrightPi brightpi = my_registry.register(location, new SimulatedBrightPi());
+		assertSame(brightpi, my_registry.get(location));
+		try
+		{
+			my_registry.register(location, new SimulatedBrightPi());
+			fail("Location registered twice");
+		} catch (IllegalStateException e)
+		{
+			assertTrue(e.getMessage().contains(location.toString()));
+		}
+
+		try
+		{
+			my_registry.addMultiplexer(BUS, FIRST_MUX, new RecordingMux(FIRST_MUX));
+			fail("Multiplexer added twice");
+		} catch (IllegalStateException e)
+		{
+			//Expected.
+		}
+	}
+
+	/**
+	 * Registers a simulated BrightPi that records a collision whenever it is used while not the only one connected.
+	 */
+	private BrightPiLocation open(final BrightPiLocation the_location)
+	{
+		final SimulatedBrightPi simulator = new SimulatedBrightPi();
+		my_simulators.put(the_location, simulator);
+		my_registry.register(the_location, new CheckedTransport(the_location, simulator));
+		return the_location;
+	}
+
+	/**
+	 * Records its writes, and fails the next write once its mask is set to -1.
+	 */
+	private final class RecordingMux implements BrightPiRegistry.Multiplexer
+	{
+		private final int my_address;
+
+		private RecordingMux(final int the_address)
+		{
+			my_address = the_address;
+		}
+
+		@Override
+		public void write(final byte the_channels) throws IOException
+		{
+			synchronized (my_masks)
+			{
+				final Integer mask = my_masks.get(my_address);
+				if (mask != null && mask == -1)
+				{
+					//The write may have reached the multiplexer before failing.
+					my_masks.put(my_address, 0xff);
+					throw new IOException("Multiplexer 0x" + Integer.toHexString(my_address) + " failed");
+				}
+
+				my_masks.put(my_address, the_channels & 0xff);
+			}
+
+			my_switches.add(my_address + ":" + (the_channels & 0xff));
+		}
+	}
+
+	/**
+	 * Passes transactions to a simulator after checking that only its channel is connected.
+	 */
+	private final class CheckedTransport implements BrightPiTransport
+	{
+		private final BrightPiLocation my_location;
+
+		private final BrightPiTransport my_transport;
+
+		private CheckedTransport(final BrightPiLocation the_location, final BrightPiTransport the_transport)
+		{
+			my_location = the_location;
+			my_transport = the_transport;
+		}
+
+		private void check()
+		{
+			synchronized (my_masks)
+			{
+				for (final Map.Entry<Integer, Integer> entry : my_masks.entrySet())
+				{
+					final int expected = entry.getKey() == my_location.getMuxAddress() ? 1 << my_location.getChannel() : 0;
+					if (entry.getValue() != expected)
+					{
+						my_collisions.add(my_location + " with " + my_masks);
+						return;
+					}
+				}
+			}
+		}
+
+		@Override
+		public int read(final int the_address) throws IOException
+		{
+			check();
+			return my_transport.read(the_address);
+		}
+
+		@Override
+		public int read(final int the_address, final byte[] the_buffer, final int the_offset, final int the_size)
+				throws IOException
+		{
+			check();
+			return my_transport.read(the_address, the_buffer, the_offset, the_size);
+		}
+
+		@Override
+		public void write(final int the_address, final byte the_data) throws IOException
+		{
+			check();
+			my_transport.write(the_address, the_data);
+		}
+
+		@Override
+		public void write(final int the_address, final byte[] the_buffer, final int the_offset, final int the_size)
+				throws IOException
+		{
+			check();
+			my_transport.write(the_address, the_buffer, the_offset, the_size);
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package test.brightpi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.TreeSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.brightpi.BrightPi;
+import com.brightpi.BrightPiGain;
+import com.brightpi.BrightPiLED;
+import com.brightpi.BrightPiMode;
+import com.brightpi.BrightPiScene;
+import com.brightpi.BrightPiSceneRegistry;
+import com.brightpi.BrightPiTransaction;
+import com.brightpi.SimulatedBrightPi;
+
+/**
+ * Switches a simulated BrightPi between scenes of a small registry, counting the bus transactions each switch takes.
+ */
+public class TestBrightPiSceneRegistry
+{
+	private SimulatedBrightPi my_simulator;
+
+	private BrightPi my_bp;
+
+	private BrightPiSceneRegistry my_registry;
+
+	@Before
+	public void before()
+	{
+		my_simulator = new SimulatedBrightPi();
+		my_bp = new BrightPi(my_simulator);
+		my_registry = new BrightPiSceneRegistry(2);
+	}
+
+	@Test
+	public void testApply()
+	{
+		my_registry.define("day", BrightPiScene.define().setLEDBrightness((byte) 40).setMode(BrightPiMode.WHITE)
+				.setGain(BrightPiGain.LOW_GAIN).on());
+		my_registry.define("night", BrightPiScene.define().setLEDBrightness((byte) 40).setMode(BrightPiMode.IR)
+				.setGain(BrightPiGain.HIGH_GAIN).on());
+
+		my_registry.apply(my_bp, "night");
+		assertArrayEquals(my_registry.get("night").getImage(), my_simulator.getRegisters());
+		assertEquals(my_registry.get("night").getState(), my_bp.snapshot());
+
+		//Only the LED mask and the gain differ, and they are not contiguous, so two writes.
+		final long before = my_simulator.getTransactionCount();
+		my_registry.apply(my_bp, "day");
+		assertEquals(2, my_simulator.getTransactionCount() - before);
+		assertEquals(BrightPiMode.WHITE.getLeds(), my_simulator.getRegister(0x00));
+		assertEquals(BrightPiGain.LOW_GAIN.getGain(), my_simulator.getRegister(BrightPiGain.GAIN_CHIP_ADDRESS));
+
+		final long after = my_simulator.getTransactionCount();
+		my_registry.apply(my_bp, "day");
+		assertEquals("Applying the current scene wrote to the device", after, my_simulator.getTransactionCount());
+	}
+
+	@Test
+	public void testDefine()
+	{
+		final BrightPiTransaction definition = BrightPiScene.define().setLEDBrightness(BrightPiLED.W1, (byte) 9);
+		final BrightPiScene scene = my_registry.define("calibration", definition);
+		definition.setLEDBrightness(BrightPiLED.W1, (byte) 50);
+		assertSame(scene, my_registry.get("calibration"));
+		assertEquals("Definition changed after compiling", (byte) 9,
+				scene.getState().getLEDBrightness(BrightPiLED.W1));
+
+		my_registry.define("calibration", definition);
+		assertEquals((byte) 50, my_registry.get("calibration").getState().getLEDBrightness(BrightPiLED.W1));
+
+		assertTrue(my_registry.remove("calibration"));
+		assertFalse(my_registry.remove("calibration"));
+		try
+		{
+			my_registry.get("calibration");
+			fail("Removed scene was found");
+		} catch (IllegalArgumentException e)
+		{
+			//Expected.
+		}
+
+		try
+		{
+			new BrightPiSceneRegistry(0);
+			fail("Registry without room");
+		} catch (IllegalArgumentException e)
+		{
+			//Expected.
+		}
+	}
+
+	@Test
+	public void testEviction()
+	{
+		my_registry.define("a", BrightPiScene.define().setGain(BrightPiGain.LOW_GAIN));
+		final BrightPiScene b = my_registry.define("b", BrightPiScene.define().setGain(BrightPiGain.MEDIUM_GAIN));
+
+		//Using a makes b the least recently used.
+		my_registry.get("a");
+		my_registry.define("c", BrightPiScene.define().setGain(BrightPiGain.HIGH_GAIN));
+		assertEquals(new TreeSet<String>(Arrays.asList("a", "b", "c")), my_registry.getNames());
+		assertEquals(1, my_registry.getEvictions());
+
+		//The image of b was dropped and is compiled again, which drops the image of a.
+		final BrightPiScene recompiled = my_registry.get("b");
+		assertNotSame(b, recompiled);
+		assertEquals(b, recompiled);
+		assertEquals(2, my_registry.getEvictions());
+
+		//Redefining a scene that is cached drops nothing.
+		my_registry.define("c", BrightPiScene.define().setGain(BrightPiGain.LOW_GAIN));
+		assertEquals(2, my_registry.getEvictions());
+		assertEquals(3, my_registry.getNames().size());
+	}
+
+	@Test
+	public void testMoreScenesThanCapacity()
+	{
+		final BrightPiLED[] leds = BrightPiLED.values();
+		final int scenes = 3;
+		for (int i = 0; i < scenes; i++)
+		{
+			my_registry.define("scene" + i, BrightPiScene.define().setLEDBrightness(leds[i], (byte) (10 + i)).on());
+		}
+
+		for (int round = 0; round < 2; round++)
+		{
+			for (int i = 0; i < scenes; i++)
+			{
+				my_registry.apply(my_bp, "scene" + i);
+				assertEquals((byte) (10 + i), my_simulator.getRegister(leds[i].getAddress()));
+				assertArrayEquals(my_registry.get("scene" + i).getImage(), my_simulator.getRegisters());
+			}
+		}
+
+		assertTrue("Images were not dropped", my_registry.getEvictions() > 0);
+	}
+}
@@ -0,0 +1,217 @@
+package test.brightpi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.brightpi.BrightPi;
+import com.brightpi.BrightPiGain;
+import com.brightpi.BrightPiLED;
+import com.brightpi.BrightPiMode;
+import com.brightpi.BrightPiSharedState;
+import com.brightpi.BrightPiStartup;
+import com.brightpi.BrightPiState;
+import com.brightpi.SimulatedBrightPi;
+
+/**
+ * Shares a register image between two {@link BrightPiSharedState} instances on the same file, as two processes would,
+ * and reads files left torn or corrupt.
+ */
+public class TestBrightPiSharedState
+{
+	private static final int MAGIC = 0x42504932;
+
+	private static final int SEQUENCE_OFFSET = 8;
+
+	private static final int REGISTERS_OFFSET = 16;
+
+	private static final int REGISTER_COUNT = 10;
+
+	private File my_file;
+
+	private SimulatedBrightPi my_simulator;
+
+	private BrightPiSharedState my_writer;
+
+	private BrightPiSharedState my_reader;
+
+	@Before
+	public void before() throws IOException
+	{
+		my_file = File.createTempFile("brightpi", ".shm");
+		my_file.deleteOnExit();
+		my_simulator = new SimulatedBrightPi();
+		my_writer = new BrightPiSharedState(my_file);
+		my_reader = new BrightPiSharedState(my_file);
+	}
+
+	@After
+	public void after() throws IOException
+	{
+		my_writer.close();
+		my_reader.close();
+		my_file.delete();
+	}
+
+	@Test
+	public void testPublishAndRead()
+	{
+		assertNull("Empty file has a state", my_reader.read());
+		final BrightPi bp = new BrightPi(my_simulator, BrightPiStartup.RESET, my_writer);
+		bp.setGain(BrightPiGain.HIGH_GAIN);
+		bp.setLEDBrightness(BrightPiLED.W1, (byte) 20);
+		bp.on();
+		assertTrue(my_reader.isInitialized());
+		assertEquals(bp.snapshot(), my_reader.read());
+		assertEquals(my_writer.getSequence(), my_reader.getSequence());
+
+		bp.off();
+		assertEquals("Off keeps the mode", bp.snapshot(), my_reader.read());
+	}
+
+	@Test
+	public void testJoin()
+	{
+		final BrightPi first = new BrightPi(my_simulator, BrightPiStartup.RESET, my_writer);
+		first.setMode(BrightPiMode.WHITE);
+		first.setLEDBrightness(BrightPiLED.IR2, (byte) 30);
+		final long transactions = my_simulator.getTransactionCount();
+
+		//Joining takes the state from the file without touching the bus.
+		final BrightPi second = new BrightPi(my_simulator, BrightPiStartup.RESET, my_reader);
+		assertEquals(first.snapshot(), second.snapshot());
+		assertEquals("Bus transactions to join", transactions, my_simulator.getTransactionCount());
+
+		second.setMode(BrightPiMode.IR);
+		assertEquals("Change made through the other instance", BrightPiMode.IR, first.getMode());
+		assertEquals(second.snapshot(), first.snapshot());
+		for (int address = 0; address < REGISTER_COUNT; address++)
+		{
+			assertEquals("Register " + address, first.snapshot().getRegister(address),
+					my_simulator.getRegister(address));
+		}
+	}
+
+	@Test
+	public void testAdopt() throws IOException
+	{
+		my_simulator.write(0x00, (byte) 0x5a);
+		my_simulator.write(BrightPiLED.W2.getAddress(), (byte) 40);
+		my_simulator.write(BrightPiGain.GAIN_CHIP_ADDRESS, BrightPiGain.MEDIUM_GAIN.getGain());
+		final long transactions = my_simulator.getTransactionCount();
+
+		final BrightPi bp = new BrightPi(my_simulator, BrightPiStartup.ADOPT, my_writer);
+		assertEquals("Adopt reads the registers in one transaction", transactions + 1,
+				my_simulator.getTransactionCount());
+		assertEquals(BrightPiMode.WHITE, bp.getMode());
+		assertEquals((byte) 40, bp.snapshot().getLEDBrightness(BrightPiLED.W2));
+		assertEquals("Adopted state is shared", bp.snapshot(), my_reader.read());
+	}
+
+	@Test(timeout = 10000)
+	public void testConcurrentReads() throws Exception
+	{
+		final BrightPi bp = new BrightPi(my_simulator, BrightPiStartup.RESET, my_writer);
+		bp.batch().setGain(BrightPiGain.LOW_GAIN).setLEDBrightness((byte) 10).commit();
+		final BrightPiState low = bp.snapshot();
+		bp.batch().setGain(BrightPiGain.HIGH_GAIN).setLEDBrightness((byte) 100).commit();
+		final BrightPiState high = bp.snapshot();
+
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final AtomicReference<BrightPiState> torn = new AtomicReference<BrightPiState>();
+		final Thread reader = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				while (running.get())
+				{
+					final BrightPiState state = my_reader.read();
+					if (!low.equals(state) && !high.equals(state))
+					{
+						torn.set(state);
+					}
+				}
+			}
+		});
+		reader.start();
+
+		final long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500);
+		boolean up = false;
+		while (System.nanoTime() < end)
+		{
+			up = !up;
+			bp.batch().setGain(up ? BrightPiGain.HIGH_GAIN : BrightPiGain.LOW_GAIN)
+					.setLEDBrightness((byte) (up ? 100 : 10)).commit();
+		}
+
+		running.set(false);
+		reader.join();
+		assertNull("Read a state that was never written: " + torn.get(), torn.get());
+	}
+
+	@Test(timeout = 10000)
+	public void testInvalidMode() throws IOException
+	{
+		writeImage(2, (byte) 0x7f);
+		assertNull("Image with an unknown mode was decoded", my_reader.read());
+	}
+
+	@Test(timeout = 10000)
+	public void testDeadWriter() throws IOException
+	{
+		//A writer that died in the middle of an update leaves the counter odd for good.
+		writeImage(3, (byte) (0x80 | BrightPiMode.WHITE.ordinal()));
+		final BrightPiState state = my_reader.read();
+		assertNotNull("Image left by a dead writer was not read", state);
+		assertEquals(BrightPiMode.WHITE, state.getMode());
+		assertTrue(state.isOn());
+
+		//The next writer finishes with an even counter.
+		final BrightPi bp = new BrightPi(my_simulator, BrightPiStartup.RESET, my_writer);
+		bp.setMode(BrightPiMode.IR);
+		assertEquals(0, my_reader.getSequence() % 2);
+		assertEquals(bp.snapshot(), my_reader.read());
+	}
+
+	/**
+	 * Writes an image straight to the file, in the layout of BrightPiSharedState.
+	 */
+	private void writeImage(final int the_sequence, final byte the_flags) throws IOException
+	{
+		final RandomAccessFile file = new RandomAccessFile(my_file, "rw");
+		try
+		{
+			final MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 64);
+			buffer.order(ByteOrder.nativeOrder());
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(SEQUENCE_OFFSET, the_sequence);
+			for (int i = 0; i < REGISTER_COUNT; i++)
+			{
+				buffer.put(REGISTERS_OFFSET + i, (byte) 1);
+			}
+
+			buffer.put(REGISTERS_OFFSET + REGISTER_COUNT, (byte) 0);
+			buffer.put(REGISTERS_OFFSET + REGISTER_COUNT + 1, the_flags);
+			buffer.force();
+		} finally
+		{
+			file.close();
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package test.brightpi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.brightpi.BrightPi;
+import com.brightpi.BrightPiBrightness;
+import com.brightpi.BrightPiGain;
+import com.brightpi.BrightPiLED;
+import com.brightpi.BrightPiMode;
+import com.brightpi.BrightPiStartup;
+import com.brightpi.BrightPiTransport;
+import com.brightpi.SimulatedBrightPi;
+
+/**
+ * Brings a BrightPi up, resetting or adopting a simulated device that already has registers set, reading it through
+ * a transport that can return fewer registers than asked for.
+ */
+public class TestBrightPiStartup
+{
+	private SimulatedBrightPi my_simulator;
+
+	private ShortReadTransport my_transport;
+
+	@Before
+	public void before() throws IOException
+	{
+		my_simulator = new SimulatedBrightPi();
+		my_transport = new ShortReadTransport(my_simulator);
+
+		//Left by an earlier process.
+		my_simulator.write(0x00, BrightPiMode.IR.getLeds());
+		my_simulator.write(BrightPiLED.IR1.getAddress(), (byte) 25);
+		my_simulator.write(BrightPiGain.GAIN_CHIP_ADDRESS, BrightPiGain.HIGH_GAIN.getGain());
+	}
+
+	@Test
+	public void testAdopt()
+	{
+		final long transactions = my_simulator.getTransactionCount();
+		final BrightPi bp = new BrightPi(my_transport, BrightPiStartup.ADOPT);
+		assertEquals("Adopting took more than one read", 1, my_simulator.getTransactionCount() - transactions);
+		assertTrue(bp.isOn());
+		assertEquals(BrightPiMode.IR, bp.getMode());
+		assertEquals(BrightPiGain.HIGH_GAIN, bp.getGain());
+		assertEquals((byte) 25, bp.snapshot().getLEDBrightness(BrightPiLED.IR1));
+		assertEquals(BrightPiMode.IR.getLeds(), my_simulator.getRegister(0x00));
+
+		//The shadow registers were filled, so repeating what the device holds writes nothing.
+		bp.setGain(BrightPiGain.HIGH_GAIN);
+		bp.on();
+		assertEquals(1, my_simulator.getTransactionCount() - transactions);
+		bp.off();
+		assertEquals((byte) 0, my_simulator.getRegister(0x00));
+	}
+
+	@Test
+	public void testAdoptIndividual() throws IOException
+	{
+		my_simulator.write(0x00, (byte) 0x03);
+		final BrightPi bp = new BrightPi(my_transport, BrightPiStartup.ADOPT);
+		assertEquals(BrightPiMode.INDIVIDUAL, bp.getMode());
+		assertEquals((byte) 0x03, bp.snapshot().getIndividualMask());
+		assertEquals((byte) 0x03, bp.snapshot().getMask());
+
+		//An empty mask is the default mode, off.
+		my_simulator.write(0x00, (byte) 0);
+		final BrightPi off = new BrightPi(my_transport, BrightPiStartup.ADOPT);
+		assertFalse(off.isOn());
+		assertEquals(BrightPi.DEFAULT_MODE, off.getMode());
+		assertEquals((byte) 25, off.snapshot().getLEDBrightness(BrightPiLED.IR1));
+	}
+
+	@Test
+	public void testReset()
+	{
+		final BrightPi bp = new BrightPi(my_transport, BrightPiStartup.RESET);
+		assertFalse(bp.isOn());
+		assertEquals((byte) 0, my_simulator.getRegister(0x00));
+		assertEquals(BrightPi.DEFAULT_GAIN.getGain(), my_simulator.getRegister(BrightPiGain.GAIN_CHIP_ADDRESS));
+		assertEquals(BrightPiBrightness.LED_MIN, my_simulator.getRegister(BrightPiLED.IR1.getAddress()));
+	}
+
+	@Test(timeout = 10000)
+	public void testInstanceAsync() throws Exception
+	{
+		final Future<BrightPi> opening = BrightPi.instanceAsync();
+		try
+		{
+			assertSame(opening.get(5, TimeUnit.SECONDS), BrightPi.instance());
+		} catch (ExecutionException e)
+		{
+			//Without a BrightPi to open, the next call tries again.
+			assertNotSame("Failed open was cached", opening, BrightPi.instanceAsync());
+		}
+	}
+
+	@Test
+	public void testShortRead()
+	{
+		my_transport.my_short = true;
+		final BrightPi bp = new BrightPi(my_transport, BrightPiStartup.ADOPT);
+		assertNotNull("Short read was not reported", bp.takeLastError());
+		assertFalse("Adopted from a short read", bp.snapshot().isOn());
+		assertEquals("Did not fall back to a reset", BrightPi.DEFAULT_GAIN.getGain(),
+				my_simulator.getRegister(BrightPiGain.GAIN_CHIP_ADDRESS));
+
+		assertNull(bp.readState());
+		assertNotNull(bp.takeLastError());
+
+		my_transport.my_short = false;
+		assertTrue(bp.readState() != null);
+		assertNull(bp.takeLastError());
+	}
+
+	/**
+	 * Reads one register less than asked for in block reads while my_short is set, as a transport that only got part
+	 * of a transaction would.
+	 */
+	private static final class ShortReadTransport implements BrightPiTransport
+	{
+		private final BrightPiTransport my_transport;
+
+		private volatile boolean my_short;
+
+		private ShortReadTransport(final BrightPiTransport the_transport)
+		{
+			my_transport = the_transport;
+		}
+
+		@Override
+		public int read(final int the_address) throws IOException
+		{
+			return my_transport.read(the_address);
+		}
+
+		@Override
+		public int read(final int the_address, final byte[] the_buffer, final int the_offset, final int the_size)
+				throws IOException
+		{
+			return my_transport.read(the_address, the_buffer, the_offset, my_short ? the_size - 1 : the_size);
+		}
+
+		@Override
+		public void write(final int the_address, final byte the_data) throws IOException
+		{
+			my_transport.write(the_address, the_data);
+		}
+
+		@Override
+		public void write(final int the_address, final byte[] the_buffer, final int the_offset, final int the_size)
+				throws IOException
+		{
+			my_transport.write(the_address, the_buffer, the_offset, the_size);
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package test.brightpi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.brightpi.BrightPi;
+import com.brightpi.BrightPiGain;
+import com.brightpi.BrightPiLED;
+import com.brightpi.BrightPiMode;
+import com.brightpi.BrightPiStrobe;
+import com.brightpi.SimulatedBrightPi;
+
+/**
+ * Fires a strobe on a simulated BrightPi, by hand and on a frame period, while other changes are made to the device.
+ */
+public class TestBrightPiStrobe
+{
+	/**
+	 * Register holding which LEDs are on.
+	 */
+	private static final int ON_REGISTER = 0x00;
+
+	private SimulatedBrightPi my_simulator;
+
+	private BrightPi my_bp;
+
+	private BrightPiStrobe my_strobe;
+
+	@Before
+	public void before()
+	{
+		my_simulator = new SimulatedBrightPi();
+		my_bp = new BrightPi(my_simulator);
+		my_strobe = new BrightPiStrobe(my_bp);
+		my_bp.batch().setGain(BrightPiGain.HIGH_GAIN).setLEDBrightness((byte) 30).setMode(BrightPiMode.WHITE)
+				.commit();
+	}
+
+	@Test
+	public void testFireAndRelease()
+	{
+		assertFalse(my_strobe.isArmed());
+		my_strobe.arm(my_bp.snapshot());
+		assertTrue(my_strobe.isArmed());
+		assertEquals("Armed strobe is on", (byte) 0, my_simulator.getRegister(ON_REGISTER));
+
+		my_strobe.fire();
+		assertTrue(my_bp.snapshot().isOn());
+		assertEquals(BrightPiMode.WHITE.getLeds(), my_simulator.getRegister(ON_REGISTER));
+		assertEquals(1, my_strobe.getTriggerLatency().getCount());
+
+		my_strobe.release();
+		assertFalse(my_bp.snapshot().isOn());
+		assertEquals((byte) 0, my_simulator.getRegister(ON_REGISTER));
+		assertEquals((byte) 30, my_simulator.getRegister(BrightPiLED.W1.getAddress()));
+	}
+
+	@Test
+	public void testChangeWhileArmed()
+	{
+		my_strobe.arm(my_bp.snapshot());
+
+		//Another thread changes the gain between arming and firing.
+		my_bp.setGain(BrightPiGain.MEDIUM_GAIN);
+		my_strobe.fire();
+		assertTrue(my_bp.snapshot().isOn());
+		assertEquals("Fire undid a change", BrightPiGain.MEDIUM_GAIN, my_bp.snapshot().getGain());
+		assertEquals(BrightPiMode.WHITE.getLeds(), my_simulator.getRegister(ON_REGISTER));
+		assertEquals(BrightPiGain.MEDIUM_GAIN.getGain(), my_simulator.getRegister(BrightPiGain.GAIN_CHIP_ADDRESS));
+
+		my_bp.setGain(BrightPiGain.LOW_GAIN);
+		my_strobe.release();
+		assertFalse(my_bp.snapshot().isOn());
+		assertEquals("Release undid a change", BrightPiGain.LOW_GAIN, my_bp.snapshot().getGain());
+		assertEquals((byte) 0, my_simulator.getRegister(ON_REGISTER));
+
+		//Re-armed from the changed state.
+		my_strobe.fire();
+		assertEquals(BrightPiMode.WHITE.getLeds(), my_simulator.getRegister(ON_REGISTER));
+		assertEquals(BrightPiGain.LOW_GAIN.getGain(), my_simulator.getRegister(BrightPiGain.GAIN_CHIP_ADDRESS));
+		my_strobe.release();
+		assertEquals(BrightPiGain.LOW_GAIN, my_bp.snapshot().getGain());
+		assertEquals((byte) 0, my_simulator.getRegister(ON_REGISTER));
+	}
+
+	@Test
+	public void testNotArmed() throws InterruptedException
+	{
+		try
+		{
+			my_strobe.fire();
+			fail("Fired without being armed");
+		} catch (IllegalStateException e)
+		{
+			//Expected.
+		}
+
+		try
+		{
+			my_strobe.start(10, 1, TimeUnit.MILLISECONDS);
+			fail("Started without being armed");
+		} catch (IllegalStateException e)
+		{
+			//Expected.
+		}
+	}
+
+	@Test
+	public void testInvalidPeriod() throws InterruptedException
+	{
+		my_strobe.arm(my_bp.snapshot());
+		final long[][] invalid = { { 0, 0 }, { -5, 1 }, { 10, -1 } };
+		for (final long[] times : invalid)
+		{
+			try
+			{
+				my_strobe.start(times[0], times[1], TimeUnit.MILLISECONDS);
+				my_strobe.stop();
+				fail("Started with period " + times[0] + " and on time " + times[1]);
+			} catch (IllegalArgumentException e)
+			{
+				//Expected.
+			}
+		}
+
+		try
+		{
+			my_strobe.start(1, 0, TimeUnit.NANOSECONDS);
+			my_strobe.start(1, 0, TimeUnit.NANOSECONDS);
+			fail("Started twice");
+		} catch (IllegalStateException e)
+		{
+			//Expected.
+		} finally
+		{
+			my_strobe.stop();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testStart() throws InterruptedException
+	{
+		my_strobe.arm(my_bp.snapshot());
+		my_strobe.start(5, 1, TimeUnit.MILLISECONDS);
+		Thread.sleep(100);
+		my_strobe.stop();
+		assertTrue("Frames fired " + my_strobe.getTriggerLatency().getCount(),
+				my_strobe.getTriggerLatency().getCount() >= 5);
+		assertFalse("Strobe stopped with the LEDs on", my_bp.snapshot().isOn());
+		assertEquals((byte) 0, my_simulator.getRegister(ON_REGISTER));
+	}
+}
@@ -0,0 +1,115 @@
+package test.brightpi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.brightpi.BrightPi;
+import com.brightpi.BrightPiGain;
+import com.brightpi.BrightPiLED;
+import com.brightpi.BrightPiMode;
+import com.brightpi.BrightPiScene;
+import com.brightpi.BrightPiState;
+import com.brightpi.BrightPiTransaction;
+import com.brightpi.SimulatedBrightPi;
+
+/**
+ * Commits transactions to a simulated BrightPi, checking the order changes are applied in and the bus transactions a
+ * commit takes.
+ */
+public class TestBrightPiTransaction
+{
+	private SimulatedBrightPi my_simulator;
+
+	private BrightPi my_bp;
+
+	@Before
+	public void before()
+	{
+		my_simulator = new SimulatedBrightPi();
+		my_bp = new BrightPi(my_simulator);
+	}
+
+	@Test
+	public void testOrder()
+	{
+		my_bp.batch().setLEDBrightness((byte) 10).setLEDBrightness(BrightPiLED.W1, (byte) 20).commit();
+		assertEquals((byte) 20, my_simulator.getRegister(BrightPiLED.W1.getAddress()));
+		assertEquals((byte) 10, my_simulator.getRegister(BrightPiLED.W2.getAddress()));
+
+		my_bp.batch().setLEDBrightness(BrightPiLED.W1, (byte) 30).setLEDBrightness((byte) 15).commit();
+		assertEquals("Later change did not win", (byte) 15, my_simulator.getRegister(BrightPiLED.W1.getAddress()));
+
+		my_bp.batch().on().off().setMode(BrightPiMode.IR).on().commit();
+		assertTrue(my_bp.snapshot().isOn());
+		assertEquals(BrightPiMode.IR.getLeds(), my_simulator.getRegister(0x00));
+	}
+
+	@Test
+	public void testCommit()
+	{
+		final BrightPiState before = my_bp.snapshot();
+		final long transactions = my_simulator.getTransactionCount();
+		final BrightPiTransaction transaction = my_bp.batch().setGain(BrightPiGain.HIGH_GAIN)
+				.setLEDBrightness((byte) 40);
+		assertEquals("Change visible before commit", before, my_bp.snapshot());
+		assertEquals("Written before commit", transactions, my_simulator.getTransactionCount());
+
+		//The LEDs and the gain are contiguous registers.
+		transaction.commit();
+		assertEquals(1, my_simulator.getTransactionCount() - transactions);
+		assertEquals(BrightPiGain.HIGH_GAIN.getGain(), my_simulator.getRegister(BrightPiGain.GAIN_CHIP_ADDRESS));
+		assertEquals((byte) 40, my_simulator.getRegister(BrightPiLED.IR4.getAddress()));
+
+		//The transaction is empty again, and changes that end where they started write nothing.
+		transaction.commit();
+		transaction.setGain(BrightPiGain.LOW_GAIN).setGain(BrightPiGain.HIGH_GAIN).commit();
+		assertEquals(1, my_simulator.getTransactionCount() - transactions);
+	}
+
+	@Test
+	public void testManyOperations()
+	{
+		final BrightPiTransaction transaction = my_bp.batch();
+		for (int i = 0; i < 96; i++)
+		{
+			transaction.setLEDBrightness(BrightPiLED.values()[i % BrightPiLED.values().length], (byte) i);
+		}
+
+		transaction.commit();
+		for (int i = 0; i < BrightPiLED.values().length; i++)
+		{
+			final BrightPiLED led = BrightPiLED.values()[i];
+			assertEquals(led.name(), (byte) (96 - BrightPiLED.values().length + i),
+					my_simulator.getRegister(led.getAddress()));
+		}
+	}
+
+	@Test
+	public void testInvalid()
+	{
+		try
+		{
+			BrightPiScene.define().on().commit();
+			fail("Scene definition was committed");
+		} catch (IllegalStateException e)
+		{
+			//Expected.
+		}
+
+		try
+		{
+			my_bp.batch().setGain((byte) 0);
+			fail("Gain out of range was recorded");
+		} catch (IllegalArgumentException e)
+		{
+			//Expected.
+		}
+
+		assertFalse(my_bp.snapshot().isOn());
+	}
+}
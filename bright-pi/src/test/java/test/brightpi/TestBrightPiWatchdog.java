@@ -0,0 +1,171 @@
+package test.brightpi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.brightpi.BrightPi;
+import com.brightpi.BrightPiGain;
+import com.brightpi.BrightPiLED;
+import com.brightpi.BrightPiMode;
+import com.brightpi.BrightPiWatchdog;
+import com.brightpi.SimulatedBrightPi;
+
+/**
+ * Corrupts the registers of a simulated BrightPi behind its back and checks that the watchdog puts them back and
+ * adapts its interval.
+ */
+public class TestBrightPiWatchdog
+{
+	private static final long MIN_INTERVAL = 10;
+
+	private static final long MAX_INTERVAL = 80;
+
+	private SimulatedBrightPi my_simulator;
+
+	private BrightPi my_bp;
+
+	private BrightPiWatchdog my_watchdog;
+
+	@Before
+	public void before()
+	{
+		my_simulator = new SimulatedBrightPi();
+		my_bp = new BrightPi(my_simulator);
+		my_bp.batch().setGain(BrightPiGain.HIGH_GAIN).setLEDBrightness((byte) 30).setMode(BrightPiMode.WHITE).on()
+				.commit();
+		my_watchdog = new BrightPiWatchdog(my_bp, MIN_INTERVAL, MAX_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	@Test
+	public void testRepair() throws Exception
+	{
+		assertEquals("Stable device drifted", 0, my_watchdog.check());
+
+		//Another bus master writes one register.
+		my_simulator.write(BrightPiLED.W1.getAddress(), (byte) 5);
+		assertEquals(1, my_watchdog.check());
+		assertEquals((byte) 30, my_simulator.getRegister(BrightPiLED.W1.getAddress()));
+		assertEquals(1, my_watchdog.getRepairs());
+
+		//A brown-out resets them all.
+		my_simulator.reset();
+		assertTrue(my_watchdog.check() > 1);
+		assertArrayEquals(my_bp.snapshot().getRegisters(), my_simulator.getRegisters());
+		assertEquals(0, my_watchdog.check());
+		assertEquals(4, my_watchdog.getChecks());
+		assertEquals(0, my_watchdog.getFailures());
+	}
+
+	@Test
+	public void testInterval() throws Exception
+	{
+		assertEquals(MIN_INTERVAL, my_watchdog.getInterval(TimeUnit.MILLISECONDS));
+		for (final long expected : new long[] { 20, 40, 80, 80 })
+		{
+			my_watchdog.check();
+			assertEquals("Stable device", expected, my_watchdog.getInterval(TimeUnit.MILLISECONDS));
+		}
+
+		my_simulator.write(BrightPiLED.W2.getAddress(), (byte) 0);
+		my_watchdog.check();
+		assertEquals("After drift", MIN_INTERVAL, my_watchdog.getInterval(TimeUnit.MILLISECONDS));
+
+		my_watchdog.check();
+		my_simulator.setErrorRate(1);
+		assertEquals(-1, my_watchdog.check());
+		assertEquals("After a failed read", MIN_INTERVAL, my_watchdog.getInterval(TimeUnit.MILLISECONDS));
+		assertEquals(1, my_watchdog.getFailures());
+		my_simulator.setErrorRate(0);
+		assertEquals(0, my_watchdog.check());
+
+		try
+		{
+			new BrightPiWatchdog(my_bp, 10, 5, TimeUnit.MILLISECONDS);
+			fail("Maximum interval below the minimum");
+		} catch (IllegalArgumentException e)
+		{
+			//Expected.
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testConcurrentChecks() throws Exception
+	{
+		final int threads = 4;
+		final int checks = 500;
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Thread> checkers = new ArrayList<Thread>();
+		for (int i = 0; i < threads; i++)
+		{
+			final Thread checker = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						start.await();
+					} catch (InterruptedException e)
+					{
+						return;
+					}
+
+					for (int j = 0; j < checks; j++)
+					{
+						my_watchdog.check();
+					}
+				}
+			});
+			checker.start();
+			checkers.add(checker);
+		}
+
+		start.countDown();
+		for (final Thread checker : checkers)
+		{
+			checker.join();
+		}
+
+		assertEquals("Checks lost", threads * checks, my_watchdog.getChecks());
+		assertEquals(MAX_INTERVAL, my_watchdog.getInterval(TimeUnit.MILLISECONDS));
+	}
+
+	@Test(timeout = 10000)
+	public void testBackground() throws Exception
+	{
+		my_watchdog.start();
+		try
+		{
+			try
+			{
+				my_watchdog.start();
+				fail("Started twice");
+			} catch (IllegalStateException e)
+			{
+				//Expected.
+			}
+
+			my_simulator.reset();
+			while (my_simulator.getRegister(BrightPiLED.W1.getAddress()) != 30)
+			{
+				Thread.sleep(MIN_INTERVAL);
+			}
+
+			assertArrayEquals(my_bp.snapshot().getRegisters(), my_simulator.getRegisters());
+			assertTrue(my_watchdog.getRepairs() > 0);
+		} finally
+		{
+			my_watchdog.stop();
+		}
+	}
+}
@@ -0,0 +1,274 @@
+package test.brightpi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.brightpi.BrightPi;
+import com.brightpi.BrightPiException;
+import com.brightpi.BrightPiTimeoutException;
+import com.brightpi.BrightPiTransport;
+import com.brightpi.BrightPiUnavailableException;
+import com.brightpi.ResilientTransport;
+import com.brightpi.SimulatedBrightPi;
+
+/**
+ * Drives the deadline, retries and circuit breaker of {@link ResilientTransport} with a transport that fails or
+ * hangs on demand.
+ */
+public class TestResilientTransport
+{
+	private static final int ADDRESS = 0x01;
+
+	private SimulatedBrightPi my_simulator;
+
+	private FaultyTransport my_faulty;
+
+	private ResilientTransport my_transport;
+
+	@Before
+	public void before()
+	{
+		my_simulator = new SimulatedBrightPi();
+		my_faulty = new FaultyTransport(my_simulator);
+		my_transport = new ResilientTransport(my_faulty);
+		my_transport.setRetries(3, 0, TimeUnit.MILLISECONDS);
+	}
+
+	@After
+	public void after()
+	{
+		my_faulty.my_gate.countDown();
+		my_transport.close();
+	}
+
+	@Test(timeout = 10000)
+	public void testRetry() throws IOException
+	{
+		my_faulty.my_failures.set(2);
+		my_transport.write(ADDRESS, (byte) 12);
+		assertEquals((byte) 12, my_simulator.getRegister(ADDRESS));
+		assertEquals(2, my_transport.getRetries());
+		assertEquals(3, my_faulty.my_calls.get());
+		assertEquals(ResilientTransport.Circuit.CLOSED, my_transport.getCircuit());
+	}
+
+	@Test(timeout = 10000)
+	public void testGiveUp()
+	{
+		my_faulty.my_failures.set(Integer.MAX_VALUE);
+		try
+		{
+			my_transport.read(ADDRESS);
+			fail("Read of a failing transport succeeded");
+		} catch (IOException e)
+		{
+			assertTrue(e instanceof BrightPiException);
+		}
+
+		assertEquals("Attempts", 3, my_faulty.my_calls.get());
+		assertEquals(2, my_transport.getRetries());
+	}
+
+	@Test(timeout = 10000)
+	public void testDeadline() throws IOException
+	{
+		my_transport.setDeadline(50, TimeUnit.MILLISECONDS);
+		my_transport.write(ADDRESS, (byte) 1);
+		my_faulty.my_gate = new CountDownLatch(1);
+		final long start = System.nanoTime();
+		try
+		{
+			my_transport.write(ADDRESS, (byte) 2);
+			fail("Hung transaction returned");
+		} catch (BrightPiTimeoutException e)
+		{
+			assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+		}
+
+		assertEquals(1, my_transport.getTimeouts());
+		assertEquals("A timed out transaction was retried", 0, my_transport.getRetries());
+
+		//Once the bus returns, transactions go through again.
+		my_faulty.my_gate.countDown();
+		assertEquals(2, my_transport.read(ADDRESS));
+	}
+
+	@Test(timeout = 10000)
+	public void testCircuitBreaker() throws Exception
+	{
+		my_transport.setRetries(1, 0, TimeUnit.MILLISECONDS);
+		my_transport.setCircuitBreaker(2, 100, TimeUnit.MILLISECONDS);
+		my_faulty.my_failures.set(Integer.MAX_VALUE);
+		for (int i = 0; i < 2; i++)
+		{
+			try
+			{
+				my_transport.write(ADDRESS, (byte) 3);
+				fail("Write to a failing transport succeeded");
+			} catch (BrightPiUnavailableException e)
+			{
+				fail("Breaker opened early");
+			} catch (BrightPiException e)
+			{
+				//Expected.
+			}
+		}
+
+		assertEquals(ResilientTransport.Circuit.OPEN, my_transport.getCircuit());
+		final int calls = my_faulty.my_calls.get();
+		try
+		{
+			my_transport.write(ADDRESS, (byte) 3);
+			fail("Open breaker let a call through");
+		} catch (BrightPiUnavailableException e)
+		{
+			//Expected.
+		}
+
+		assertEquals("Open breaker reached the bus", calls, my_faulty.my_calls.get());
+		assertEquals(1, my_transport.getRejections());
+
+		//A failed trial opens the breaker again.
+		Thread.sleep(150);
+		try
+		{
+			my_transport.write(ADDRESS, (byte) 3);
+			fail("Failed trial succeeded");
+		} catch (BrightPiUnavailableException e)
+		{
+			fail("Trial was not let through");
+		} catch (BrightPiException e)
+		{
+			//Expected.
+		}
+
+		assertEquals(ResilientTransport.Circuit.OPEN, my_transport.getCircuit());
+
+		//A successful trial closes it.
+		Thread.sleep(150);
+		my_faulty.my_failures.set(0);
+		my_transport.write(ADDRESS, (byte) 4);
+		assertEquals(ResilientTransport.Circuit.CLOSED, my_transport.getCircuit());
+		assertEquals((byte) 4, my_simulator.getRegister(ADDRESS));
+	}
+
+	@Test(timeout = 10000)
+	public void testClose() throws IOException
+	{
+		my_transport.write(ADDRESS, (byte) 5);
+		my_transport.close();
+		try
+		{
+			my_transport.read(ADDRESS);
+			fail("Closed transport was used");
+		} catch (BrightPiUnavailableException e)
+		{
+			//Expected.
+		}
+	}
+
+	@Test
+	public void testInstanceRetriesAfterFailure()
+	{
+		Throwable first = null;
+		try
+		{
+			BrightPi.instance();
+		} catch (IllegalStateException e)
+		{
+			first = e.getCause();
+		}
+
+		//Only meaningful where there is no BrightPi to open.
+		assumeTrue(first != null);
+		try
+		{
+			BrightPi.instance();
+			fail("Opened the second time only");
+		} catch (IllegalStateException e)
+		{
+			assertNotSame("Failed open was cached", first, e.getCause());
+		}
+	}
+
+	/**
+	 * Fails a given number of calls, and holds calls while its gate is closed.
+	 */
+	private static final class FaultyTransport implements BrightPiTransport
+	{
+		private final BrightPiTransport my_transport;
+
+		private final AtomicInteger my_failures = new AtomicInteger();
+
+		private final AtomicInteger my_calls = new AtomicInteger();
+
+		private volatile CountDownLatch my_gate = new CountDownLatch(0);
+
+		private FaultyTransport(final BrightPiTransport the_transport)
+		{
+			my_transport = the_transport;
+		}
+
+		private void pass() throws IOException
+		{
+			my_calls.incrementAndGet();
+			try
+			{
+				my_gate.await();
+			} catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			}
+
+			if (my_failures.getAndDecrement() > 0)
+			{
+				throw new IOException("Injected failure");
+			}
+
+			my_failures.set(Math.max(0, my_failures.get()));
+		}
+
+		@Override
+		public int read(final int the_address) throws IOException
+		{
+			pass();
+			return my_transport.read(the_address);
+		}
+
+		@Override
+		public int read(final int the_address, final byte[] the_buffer, final int the_offset, final int the_size)
+				throws IOException
+		{
+			pass();
+			return my_transport.read(the_address, the_buffer, the_offset, the_size);
+		}
+
+		@Override
+		public void write(final int the_address, final byte the_data) throws IOException
+		{
+			pass();
+			my_transport.write(the_address, the_data);
+		}
+
+		@Override
+		public void write(final int the_address, final byte[] the_buffer, final int the_offset, final int the_size)
+				throws IOException
+		{
+			pass();
+			my_transport.write(the_address, the_buffer, the_offset, the_size);
+		}
+	}
+}
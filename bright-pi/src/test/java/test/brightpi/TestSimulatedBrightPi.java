@@ -0,0 +1,141 @@
+package test.brightpi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.brightpi.BrightPi;
+import com.brightpi.BrightPiLED;
+import com.brightpi.SimulatedBrightPi;
+
+/**
+ * Checks the register file, latency and injected errors of {@link SimulatedBrightPi}, and how BrightPi copes with
+ * the errors.
+ */
+public class TestSimulatedBrightPi
+{
+	@Test
+	public void testRegisters() throws IOException
+	{
+		final SimulatedBrightPi simulator = new SimulatedBrightPi();
+		simulator.write(0x01, new byte[] { 9, 1, 2, 3, 9 }, 1, 3);
+		simulator.write(0x09, (byte) 7);
+		assertEquals(2, simulator.read(0x02));
+
+		final byte[] block = new byte[4];
+		assertEquals(3, simulator.read(0x01, block, 1, 3));
+		assertArrayEquals(new byte[] { 0, 1, 2, 3 }, block);
+		assertEquals(4, simulator.getTransactionCount());
+
+		final byte[] registers = simulator.getRegisters();
+		registers[0x09] = 0;
+		assertEquals("Registers were not copied", 7, simulator.getRegister(0x09));
+
+		simulator.reset();
+		assertArrayEquals(new byte[registers.length], simulator.getRegisters());
+		assertEquals(0, simulator.getTransactionCount());
+	}
+
+	@Test
+	public void testNoRegister()
+	{
+		final SimulatedBrightPi simulator = new SimulatedBrightPi();
+		try
+		{
+			simulator.read(0x0a);
+			fail("Read past the last register");
+		} catch (IOException e)
+		{
+			//Expected.
+		}
+
+		try
+		{
+			simulator.write(0x08, new byte[3], 0, 3);
+			fail("Block write past the last register");
+		} catch (IOException e)
+		{
+			//Expected.
+		}
+
+		assertEquals("Failed transactions were not counted", 2, simulator.getTransactionCount());
+		assertEquals("Failed write changed a register", 0, simulator.getRegister(0x08));
+	}
+
+	@Test
+	public void testLatency() throws IOException
+	{
+		final SimulatedBrightPi simulator = new SimulatedBrightPi();
+		simulator.setLatency(2, TimeUnit.MILLISECONDS);
+		simulator.setJitter(1, TimeUnit.MILLISECONDS);
+		final long start = System.nanoTime();
+		for (int i = 0; i < 5; i++)
+		{
+			simulator.write(0x01, (byte) i);
+		}
+
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(10));
+	}
+
+	@Test
+	public void testErrors()
+	{
+		//The same seed fails the same transactions.
+		final boolean[] first = failures(new SimulatedBrightPi(new Random(42)));
+		final boolean[] second = failures(new SimulatedBrightPi(new Random(42)));
+		for (int i = 0; i < first.length; i++)
+		{
+			assertEquals("Transaction " + i, first[i], second[i]);
+		}
+
+		final SimulatedBrightPi simulator = new SimulatedBrightPi();
+		final BrightPi bp = new BrightPi(simulator);
+		assertNull(bp.takeLastError());
+		final byte reset = simulator.getRegister(BrightPiLED.W1.getAddress());
+
+		simulator.setErrorRate(1);
+		bp.setLEDBrightness(BrightPiLED.W1, (byte) 20);
+		assertNotNull("Failed write was not reported", bp.takeLastError());
+		assertNull("Error was not taken", bp.takeLastError());
+		assertEquals(reset, simulator.getRegister(BrightPiLED.W1.getAddress()));
+
+		//The failed register is written again even though the state already holds the value.
+		simulator.setErrorRate(0);
+		bp.setLEDBrightness(BrightPiLED.W1, (byte) 20);
+		assertEquals((byte) 20, simulator.getRegister(BrightPiLED.W1.getAddress()));
+		assertNull(bp.takeLastError());
+	}
+
+	/**
+	 * @return For each of a run of transactions at an error rate of one half, whether it failed.
+	 */
+	private static boolean[] failures(final SimulatedBrightPi the_simulator)
+	{
+		the_simulator.setErrorRate(0.5);
+		final boolean[] failed = new boolean[64];
+		int failures = 0;
+		for (int i = 0; i < failed.length; i++)
+		{
+			try
+			{
+				the_simulator.write(0x01, (byte) i);
+			} catch (IOException e)
+			{
+				failed[i] = true;
+				failures++;
+			}
+		}
+
+		assertTrue("Failures " + failures, failures > 0 && failures < failed.length);
+		return failed;
+	}
+}